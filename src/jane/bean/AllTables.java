@@ -29,17 +29,17 @@ public final class AllTables
 	 */
 	public static final TableLong<TestType, TestType.Safe> TestTable = _dbm.<TestType, TestType.Safe>openTable(1, "TestTable", "test", 65536, TestType.BEAN_STUB);
 	/**
-	 * value类型必须是bean定义的类型
+	 * value类型必须是bean定义的类型. keyorder表示bean类型的key按字段顺序保序编码,可按key的前几个字段遍历(只支持基本类型和字符串/binary类型的字段)
 	 */
-	public static final Table<TestKeyBean, TestBean, TestBean.Safe> BeanTable = _dbm.<TestKeyBean, TestBean, TestBean.Safe>openTable(2, "BeanTable", "bean", 65536, TestKeyBean.BEAN_STUB, TestBean.BEAN_STUB);
+	public static final Table<TestKeyBean, TestBean, TestBean.Safe> BeanTable = _dbm.<TestKeyBean, TestBean, TestBean.Safe>openTable(2, "BeanTable", "bean", 65536, TestKeyBean.BEAN_STUB, TestBean.BEAN_STUB, true);
 	/**
 	 * 没有定义id的是内存表. 注意表名和key类型的对应关系是不能改变的
 	 */
 	public static final Table<Octets, TestEmpty, TestEmpty.Safe> OctetsTable = _dbm.<Octets, TestEmpty, TestEmpty.Safe>openTable(0, "OctetsTable", "bean", 1000, null, null);
 	/**
-	 * 用于测试数据库的表
+	 * 用于测试数据库的表. cache表示读缓存的淘汰策略,默认是lru,tinylfu按访问频率淘汰,适合有遍历或大量一次性访问的表
 	 */
-	public static final TableLong<TestBean, TestBean.Safe> Benchmark = _dbm.<TestBean, TestBean.Safe>openTable(3, "Benchmark", "bench", 50000, TestBean.BEAN_STUB);
+	public static final TableLong<TestBean, TestBean.Safe> Benchmark = _dbm.<TestBean, TestBean.Safe>openTable(3, "Benchmark", "bench", 50000, TestBean.BEAN_STUB, TableBase.CACHE_TINYLFU);
 
 	/**
 	 * 以下内部类可以单独使用,避免初始化前面的表对象
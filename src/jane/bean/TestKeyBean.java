@@ -105,6 +105,24 @@ public final class TestKeyBean extends Bean<TestKeyBean>
 		}}
 	}
 
+	@Override
+	public OctetsStream marshalOrdered(OctetsStream _s_, int _n_)
+	{
+		if(_n_ < 1) return _s_;
+		_s_.marshalOrdered(this.key1);
+		if(_n_ < 2) return _s_;
+		_s_.marshalOrdered(this.key2);
+		return _s_;
+	}
+
+	@Override
+	public OctetsStream unmarshalOrdered(OctetsStream _s_) throws MarshalException
+	{
+		this.key1 = _s_.unmarshalOrderedInt();
+		this.key2 = _s_.unmarshalOrderedString();
+		return _s_;
+	}
+
 	@Override
 	public TestKeyBean clone()
 	{
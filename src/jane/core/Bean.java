@@ -15,7 +15,7 @@ import jane.core.SContext.Safe;
 public abstract class Bean<B extends Bean<B>> implements Comparable<B>, Cloneable, Serializable, WriteRequest
 {
 	private static final long serialVersionUID = 1L;
-	private transient int	  _serial;				// 用作协议时的序列号;也用于存储时的状态(0:未存储,1:已存储但未修改,2:已存储且已修改)
+	private transient int	  _serial;				// 用作协议时的序列号;也用于存储时的状态(0:未存储,1:已存储但未修改,2:已存储且已修改. 低2位是状态,高位是快照模式的修改轮次)
 
 	/**
 	 * 获取协议的序列号
@@ -51,7 +51,7 @@ public abstract class Bean<B extends Bean<B>> implements Comparable<B>, Cloneabl
 	 */
 	public final boolean modified()
 	{
-		return _serial == 2;
+		return (_serial & 3) == 2;
 	}
 
 	/**
@@ -64,6 +64,16 @@ public abstract class Bean<B extends Bean<B>> implements Comparable<B>, Cloneabl
 		_serial = saveState;
 	}
 
+	/**
+	 * 获取存储状态
+	 * <p>
+	 * 包含快照模式的修改轮次,用于和{@link TableBase}的当前修改状态值比较
+	 */
+	final int getSaveState()
+	{
+		return _serial;
+	}
+
 	/**
 	 * bean的类型值
 	 * <p>
@@ -170,6 +180,27 @@ public abstract class Bean<B extends Bean<B>> implements Comparable<B>, Cloneabl
 		return unmarshal(os);
 	}
 
+	/**
+	 * 按保序的编码序列化此bean的前fieldCount个字段到os中(用于有序key的数据库表)
+	 * <p>
+	 * 各字段按定义的顺序依次用OctetsStream.marshalOrdered编码,结果按无符号字节序比较等同于按字段依次比较<br>
+	 * 只序列化前几个字段即可得到以这些字段为前缀的所有key的公共前缀. 只有genbeans对有序key的表(keyorder)的key生成实现
+	 * @return 必须是参数os
+	 */
+	public OctetsStream marshalOrdered(OctetsStream os, int fieldCount)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * 从os中按保序的编码反序列化到此bean中(用于有序key的数据库表)
+	 * @return 必须是参数os
+	 */
+	public OctetsStream unmarshalOrdered(OctetsStream os) throws MarshalException
+	{
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public abstract B clone();
 
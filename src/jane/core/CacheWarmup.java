@@ -0,0 +1,183 @@
+package jane.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jane.core.map.IntHashMap;
+
+/**
+ * 数据库表读缓存的预热
+ * <p>
+ * 周期地(见Const.dbWarmupSavePeriod)及关闭数据库时把各表读缓存中的key(每表最多Const.dbWarmupMaxCount个,按key排序)保存到数据库文件同目录的文件中<br>
+ * 下次启动时,openTable后在后台线程中按保存的顺序用批量预读(prefetch)把这些记录加载到读缓存中<br>
+ * 预热不阻塞启动,可限制每秒预读的记录数(Const.dbWarmupRecordsPerSecond),以免影响启动后的事务. 预热完成前不会覆盖保存的文件<br>
+ * 文件格式: 依次是各表的[表ID:UInt][数据:Octets], 数据是[key数量:UInt][各key的序列化]
+ */
+final class CacheWarmup
+{
+	private static final String				HOTKEYS_SUFFIX	= ".hotkeys";			// 保存文件的后缀名
+	private static final int				BATCH_SIZE		= 256;					// 每次批量预读的记录数
+	private static final long				LOG_PERIOD		= 10_000_000_000L;		// 输出预热进度日志的间隔(纳秒)
+	private final File						_file;									// 保存key的文件
+	private final IntHashMap<OctetsStream>	_loaded;								// 启动时读取的各表key数据. 开始预热时移除
+	private final AtomicInteger				_pending		= new AtomicInteger();	// 还没完成的预热表数量
+	private final ExecutorService			_thread;								// 预热的线程
+
+	CacheWarmup(File dbFile)
+	{
+		_file = new File(dbFile.getAbsoluteFile().getParentFile(), dbFile.getName() + HOTKEYS_SUFFIX);
+		_loaded = load(_file);
+		_thread = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r ->
+		{
+			Thread t = new Thread(r, "DBWarmupThread");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	private static IntHashMap<OctetsStream> load(File file)
+	{
+		IntHashMap<OctetsStream> loaded = new IntHashMap<>();
+		if(!file.isFile()) return loaded;
+		try
+		{
+			OctetsStream os = OctetsStream.wrap(Files.readAllBytes(file.toPath()));
+			while(os.remain() > 0)
+			{
+				int tableId = os.unmarshalUInt();
+				loaded.put(tableId, OctetsStream.wrap(os.unmarshalOctets()));
+			}
+			Log.info("CacheWarmup: loaded {} tables from {}", loaded.size(), file);
+		}
+		catch(Exception e)
+		{
+			Log.error("CacheWarmup: load " + file + " failed", e);
+		}
+		return loaded;
+	}
+
+	/**
+	 * 是否还有没完成的预热
+	 */
+	boolean isWarming()
+	{
+		return _pending.get() > 0;
+	}
+
+	/**
+	 * 在后台开始预热指定的表. 在openTable时调用. 没有此表保存的key则忽略
+	 * @param stubK Table的key存根对象. TableLong为null
+	 */
+	void submit(TableBase<?> table, Object stubK)
+	{
+		OctetsStream os;
+		synchronized(_loaded)
+		{
+			os = _loaded.remove(table.getTableId());
+		}
+		if(os == null) return;
+		_pending.getAndIncrement();
+		_thread.execute(() ->
+		{
+			try
+			{
+				warmup(table, stubK, os);
+			}
+			catch(InterruptedException e)
+			{
+				Log.info("CacheWarmup: {}: interrupted", table.getTableName());
+			}
+			catch(Throwable e)
+			{
+				Log.error("CacheWarmup: " + table.getTableName() + ": exception:", e);
+			}
+			finally
+			{
+				_pending.getAndDecrement();
+			}
+		});
+	}
+
+	private static void warmup(TableBase<?> table, Object stubK, OctetsStream os) throws Exception
+	{
+		String tableName = table.getTableName();
+		int total = os.unmarshalUInt();
+		long maxPerSecond = Const.dbWarmupRecordsPerSecond;
+		long[] counts = new long[2];
+		long beginTime = System.nanoTime();
+		long logTime = beginTime + LOG_PERIOD;
+		Log.info("CacheWarmup: {}: begin {} records", tableName, total);
+		for(int n = 0; n < total;)
+		{
+			if(DBManager.instance().isExiting()) throw new InterruptedException();
+			int count = Math.min(BATCH_SIZE, total - n);
+			table.prefetchHotKeys(os, count, stubK, counts);
+			n += count;
+			long t = System.nanoTime();
+			if(maxPerSecond > 0)
+			{
+				long wait = beginTime + n * 1_000_000_000L / maxPerSecond - t;
+				if(wait > 0)
+				{
+					TimeUnit.NANOSECONDS.sleep(wait);
+					t += wait;
+				}
+			}
+			if(t >= logTime)
+			{
+				logTime = t + LOG_PERIOD;
+				Log.info("CacheWarmup: {}: {}/{} records ({} loaded)", tableName, n, total, counts[1]);
+			}
+		}
+		Log.info("CacheWarmup: {}: end {} records ({} loaded, {} cached/skipped, {}ms)",
+				tableName, total, counts[1], total - counts[1], (System.nanoTime() - beginTime) / 1_000_000);
+	}
+
+	/**
+	 * 保存所有表读缓存中的key. 还有没完成的预热时不保存
+	 * @param maxCount 每个表最多保存的key数量
+	 */
+	void save(int maxCount)
+	{
+		if(isWarming()) return;
+		long t = System.currentTimeMillis();
+		OctetsStream os = new OctetsStream(0x10000);
+		OctetsStream keys = new OctetsStream(0x10000);
+		int tableCount = 0, keyCount = 0;
+		for(TableBase<?> table : TableBase.getTables())
+		{
+			keys.clear();
+			int n = table.marshalHotKeys(keys, maxCount);
+			if(n <= 0) continue;
+			os.marshalUInt(table.getTableId()).marshal(keys);
+			++tableCount;
+			keyCount += n;
+		}
+		File tmpFile = new File(_file.getPath() + ".tmp");
+		try
+		{
+			Files.write(tmpFile.toPath(), os.getBytes());
+			Files.move(tmpFile.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Log.info("CacheWarmup: saved {} keys of {} tables ({}ms)", keyCount, tableCount, System.currentTimeMillis() - t);
+		}
+		catch(IOException e)
+		{
+			Log.error("CacheWarmup: save " + _file + " failed", e);
+		}
+	}
+
+	/**
+	 * 停止预热
+	 */
+	void shutdown()
+	{
+		_thread.shutdownNow();
+	}
+}
@@ -25,23 +25,50 @@ public final class Const
 	public static final int			beanDefaultMaxSize;
 	public static final int			httpHeadMaxSize;
 	public static final int			httpBodyDefaultMaxSize;
+	public static final String		dbStorage;
+	public static final String		dbMMapTables;
+	public static final boolean		dbMemorySnapshot;
 	public static final String		dbFilename;
 	public static final String		dbBackupPath;
 	public static final int			dbThreadCount;
+	public static final int			dbVirtualThreadCount;
+	public static final int			dbBackgroundThreadCount;
+	public static final int			procLatencyTarget;
+	public static final int			procDeferMaxTime;
+	public static final int			procBackgroundMaxLatency;
 	public static final int			deadlockCheckInterval;
 	public static final int			maxSessionProcedure;
 	public static final int			maxBatchProceduer;
+	public static final int			maxBatchLockProcedure;
 	public static final int			maxProceduerRedo;
+	public static final int			optimisticMaxRedo;
 	public static final int			lockPoolSize;
+	public static final int			lockPoolMaxSize;
+	public static final int			lockPoolGrowCount;
 	public static final int			maxLockPerProcedure;
 	public static final int			dbSimpleCacheSize;
 	public static final int			dbCommitResaveCount;
 	public static final int			dbCommitModCount;
+	public static final int			dbCommitThreadCount;
+	public static final int			dbReadThreadCount;
+	public static final int			dbWalkThreadCount;
+	public static final long		dbWalkRecordsPerSecond;
+	public static final long		dbCacheBudget;
+	public static final int			dbCacheBalancePeriod;
+	public static final long		dbL2CacheSize;
+	public static final int			dbL2SlabSize;
+	public static final int			dbWarmupMaxCount;
+	public static final int			dbWarmupSavePeriod;
+	public static final long		dbWarmupRecordsPerSecond;
 	public static final long		dbCommitPeriod;
+	public static final boolean		dbCommitSnapshot;
 	public static final String		dbBackupBase;
 	public static final long		dbBackupPeriod;
+	public static final boolean		dbRedoLog;
+	public static final int			dbRedoLogSyncPeriod;
+	public static final int			dbRedoLogBufferSize;
 	public static final int			procedureTimeout;
-	public static final int			procedureDeadlockTimeout;
+	public static final int			deadlockDetectWait;
 	public static final int			autoIdBegin;
 	public static final int			autoIdStride;
 	public static final String		levelDBNativePath;
@@ -50,6 +77,10 @@ public final class Const
 	public static final int			levelDBCacheSize;
 	public static final int			levelDBFileSize;
 	public static final long		levelDBFullBackupPeriod;
+	public static final int			lsmBlockSize;
+	public static final int			lsmBloomBitsPerKey;
+	public static final int			lsmCacheSize;
+	public static final int			lsmCompactTrigger;
 
 	static
 	{
@@ -95,23 +126,50 @@ public final class Const
 		beanDefaultMaxSize = getPropInt("maxRawBeanSize", 65536, 0);
 		httpHeadMaxSize = getPropInt("maxHttpHeadSize", 4096, 0);
 		httpBodyDefaultMaxSize = getPropInt("maxHttpBodySize", 65536, 0);
+		dbStorage = getPropStr("dbStorage", "leveldb").trim();
+		dbMMapTables = getPropStr("dbMMapTables").trim();
+		dbMemorySnapshot = getPropBoolean("dbMemorySnapshot", false);
 		dbFilename = getPropStr("dbFilename", "db/jane");
 		dbBackupPath = getPropStr("dbBackupPath", "db");
 		dbThreadCount = getPropInt("dbThreadCount", 0, 0);
+		dbVirtualThreadCount = getPropInt("dbVirtualThreadCount", 0, 0);
+		dbBackgroundThreadCount = getPropInt("dbBackgroundThreadCount", 0, 0);
+		procLatencyTarget = getPropInt("procLatencyTarget", 100, 0);
+		procDeferMaxTime = getPropInt("procDeferMaxTime", 1000, 0);
+		procBackgroundMaxLatency = getPropInt("procBackgroundMaxLatency", 0, 0);
 		deadlockCheckInterval = getPropInt("deadlockCheckInterval", 10, 0);
 		maxSessionProcedure = getPropInt("maxSessionProceduer", 65536, 1);
 		maxBatchProceduer = getPropInt("maxBatchProceduer", 256, 1);
+		maxBatchLockProcedure = getPropInt("maxBatchLockProcedure", 0, 0);
 		maxProceduerRedo = getPropInt("maxProceduerRedo", 256, 1);
+		optimisticMaxRedo = getPropInt("optimisticMaxRedo", 3, 0);
 		lockPoolSize = IntHashMap.nextPowerOfTwo(getPropInt("lockPoolSize", 65536, 1, 0x4000_0000));
+		lockPoolMaxSize = IntHashMap.nextPowerOfTwo(Math.max(getPropInt("lockPoolMaxSize", 0x10_0000, lockPoolSize, 0x4000_0000), lockPoolSize));
+		lockPoolGrowCount = getPropInt("lockPoolGrowCount", 1000, 1);
 		maxLockPerProcedure = getPropInt("maxLockPerProcedure", 16, 4, 256);
 		dbSimpleCacheSize = getPropInt("dbSimpleCacheSize", 10000, 1);
 		dbCommitResaveCount = getPropInt("dbCommitResaveCount", 200000, 1);
 		dbCommitModCount = getPropInt("dbCommitModCount", 200000, 1);
+		dbCommitThreadCount = getPropInt("dbCommitThreadCount", 1, 1, 256);
+		dbReadThreadCount = getPropInt("dbReadThreadCount", 3, 0, 256);
+		dbWalkThreadCount = getPropInt("dbWalkThreadCount", 2, 1, 256);
+		dbWalkRecordsPerSecond = getPropLong("dbWalkRecordsPerSecond", 0, 0);
+		dbCacheBudget = getPropLong("dbCacheBudget", 0, 0, 1L << 30) << 20; // MB => bytes
+		dbCacheBalancePeriod = getPropInt("dbCacheBalancePeriod", 10, 1);
+		dbL2CacheSize = getPropLong("dbL2CacheSize", 0, 0, 1L << 30) << 20; // MB => bytes
+		dbL2SlabSize = getPropInt("dbL2SlabSize", 1024, 4, 1 << 20) << 10; // KB => bytes
+		dbWarmupMaxCount = getPropInt("dbWarmupMaxCount", 0, 0);
+		dbWarmupSavePeriod = getPropInt("dbWarmupSavePeriod", 600, 1);
+		dbWarmupRecordsPerSecond = getPropLong("dbWarmupRecordsPerSecond", 10000, 0);
 		dbCommitPeriod = getPropLong("dbCommitPeriod", 60, 1, 86400L * 366 * 10000); // 0x49_A06B_5000
+		dbCommitSnapshot = getPropBoolean("dbCommitSnapshot", false);
 		dbBackupBase = getPropStr("dbBackupBase", "2014-01-06 04:00:00");
 		dbBackupPeriod = getPropLong("dbBackupPeriod", 3600, 1, 86400L * 366 * 10000); // 0x49_A06B_5000
+		dbRedoLog = getPropBoolean("dbRedoLog", false);
+		dbRedoLogSyncPeriod = getPropInt("dbRedoLogSyncPeriod", 10, 1);
+		dbRedoLogBufferSize = getPropInt("dbRedoLogBufferSize", 1024, 1, 0x100000);
 		procedureTimeout = getPropInt("procedureTimeout", 60, 1);
-		procedureDeadlockTimeout = getPropInt("procedureDeadlockTimeout", 5, 1);
+		deadlockDetectWait = getPropInt("deadlockDetectWait", 5, 0);
 		autoIdBegin = getPropInt("autoIdBegin", 1, 1);
 		autoIdStride = getPropInt("autoIdStride", 1, 1);
 		levelDBNativePath = getPropStr("levelDBNativePath", "lib");
@@ -120,6 +178,10 @@ public final class Const
 		levelDBCacheSize = getPropInt("levelDBCacheSize", 32, 1, 1024);
 		levelDBFileSize = getPropInt("levelDBFileSize", 10, 1, 1024);
 		levelDBFullBackupPeriod = getPropLong("levelDBFullBackupPeriod", 604800, 1, 86400L * 366 * 10000); // 0x49_A06B_5000
+		lsmBlockSize = getPropInt("lsmBlockSize", 4, 1, 1024);
+		lsmBloomBitsPerKey = getPropInt("lsmBloomBitsPerKey", 10, 1, 64);
+		lsmCacheSize = getPropInt("lsmCacheSize", 32, 1, 1024);
+		lsmCompactTrigger = getPropInt("lsmCompactTrigger", 4, 2, 64);
 	}
 
 	public static String getPropStr(String key, String def)
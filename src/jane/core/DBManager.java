@@ -4,14 +4,16 @@ import java.io.File;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import jane.core.SContext.Safe;
@@ -30,11 +32,21 @@ public final class DBManager
 
 	private final CommitThread								   _commitThread = new CommitThread();			// 处理数据提交的线程
 	private final ThreadPoolExecutor						   _procThreads;								// 事务线程池
-	private final ConcurrentMap<Object, ArrayDeque<Procedure>> _qmap		 = Util.newConcurrentHashMap();	// 当前sid队列的数量
+	private final ProcLane									   _procLane;									// 普通(交互)事务的通道,使用_procThreads
+	private final ProcLane									   _bgProcLane;									// 后台事务的通道,使用独立的线程池
+	private final AtomicLong								   _bgRejectCount = new AtomicLong();			// 后台事务因过载被拒绝的次数
+	private final ConcurrentMap<Object, SidQueue>			   _qmap		 = Util.newConcurrentHashMap();	// 当前sid队列的数量
+	private final ConcurrentMap<SidQueue.LockSet, SidQueue>	   _bmap		 = Util.newConcurrentHashMap();	// 没有绑定sid但声明了锁集合的事务按锁集合排队的队列
 	private final AtomicLong								   _procCount	 = new AtomicLong();			// 绑定过sid的在队列中未运行的事务数量
 	private final AtomicLong								   _modCount	 = new AtomicLong();			// 当前缓存修改的记录数
 	private Storage											   _storage;									// 存储引擎
+	private volatile RedoLog								   _redoLog;									// 重做日志. null表示不使用
+	private volatile CacheWarmup							   _warmup;										// 读缓存的预热. null表示不使用
 	private volatile boolean								   _exiting;									// 是否在退出状态(已经执行了ShutdownHook)
+	private volatile long									   _commitCount;								// 已完成的提交次数统计
+	private volatile long									   _commitPauseTime;							// 最近一次提交暂停所有事务的时间(毫秒)
+	private volatile long									   _commitPauseMaxTime;							// 提交暂停所有事务的最长时间(毫秒)
+	private volatile long									   _commitPauseTotalTime;						// 提交暂停所有事务的总时间(毫秒)
 
 	/**
 	 * 周期向数据库存储提交事务性修改的线程(checkpoint)
@@ -47,12 +59,15 @@ public final class DBManager
 		private final long			   _backupPeriod = Const.dbBackupPeriod * 1000;				   // 备份数据库的周期
 		private volatile long		   _commitTime	 = System.currentTimeMillis() + _commitPeriod; // 下次提交数据库的时间
 		private volatile long		   _backupTime;												   // 下次备份数据库的时间
+		private long				   _balanceTime;											   // 下次分配读缓存预算的时间
+		private long				   _warmupSaveTime;											   // 下次保存读缓存预热key的时间
 
 		CommitThread()
 		{
 			super("CommitThread");
 			setDaemon(true);
 			setPriority(Thread.NORM_PRIORITY + 1);
+			_warmupSaveTime = System.currentTimeMillis() + Const.dbWarmupSavePeriod * 1000L;
 			try
 			{
 				long base = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(Const.dbBackupBase).getTime();
@@ -87,6 +102,39 @@ public final class DBManager
 				{
 					break;
 				}
+				if(Const.dbCacheBudget > 0)
+				{
+					long t = System.currentTimeMillis();
+					if(t >= _balanceTime)
+					{
+						_balanceTime = t + Const.dbCacheBalancePeriod * 1000L;
+						try
+						{
+							TableBase.balanceCacheAll(Const.dbCacheBudget);
+						}
+						catch(Throwable e)
+						{
+							Log.error("balance cache exception:", e);
+						}
+					}
+				}
+				CacheWarmup warmup = _warmup;
+				if(warmup != null)
+				{
+					long t = System.currentTimeMillis();
+					if(t >= _warmupSaveTime)
+					{
+						_warmupSaveTime = t + Const.dbWarmupSavePeriod * 1000L;
+						try
+						{
+							warmup.save(Const.dbWarmupMaxCount);
+						}
+						catch(Throwable e)
+						{
+							Log.error("save warmup keys exception:", e);
+						}
+					}
+				}
 				if(!tryCommit(false))
 					break;
 			}
@@ -117,41 +165,60 @@ public final class DBManager
 						else
 						{
 							// 1.首先尝试遍历单个加锁的方式保存已修改的记录. 此时和其它事务可以并发
-							long t0 = System.currentTimeMillis(), t1 = 0;
+							long t0 = System.currentTimeMillis(), t1 = 0, redoSeq = -1;
+							RedoLog redoLog = _redoLog;
 							Log.info("db-commit saving: {}...", modCount);
 							_counts[0] = _counts[1] = _counts[2] = 0;
 							storage.putBegin();
-							TableBase.trySaveModifiedAll(_counts);
+							TableBase.trySaveModifiedAll(storage, _counts);
 							// 2.如果前一轮遍历之后仍然有过多的修改记录,则再试一轮
 							if(_counts[1] >= Const.dbCommitResaveCount)
 							{
 								Log.info("db-commit saved: {}=>{}({}), try again...", _counts[0], _counts[1], _counts[2]);
 								_counts[0] = _counts[1] = 0;
-								TableBase.trySaveModifiedAll(_counts);
+								TableBase.trySaveModifiedAll(storage, _counts);
 							}
 							// 3.然后加全局事务锁,待其它事务都停止等待时,保存剩余已修改的记录. 只有此步骤不能和其它事务并发
 							if(_counts[2] != 0 || _counts[1] != 0 || _counts[0] != 0 || force)
 							{
 								Log.info("db-commit saved: {}=>{}({}), flushing...", _counts[0], _counts[1], _counts[2]);
 								storage.putFlush(false);
+								if(redoLog != null) redoLog.flush(); // 减少下面暂停期间切换日志文件的同步量
 								Log.info("db-commit procedure pausing...");
 								t1 = System.currentTimeMillis();
 								Procedure.writeLock();
 								try
 								{
 									_modCount.set(0);
-									Log.info("db-commit saving left...");
-									Log.info("db-commit saved: {}, flushing left...", TableBase.saveModifiedAll());
-									storage.putFlush(true);
+									Procedure.adjustLockPool();
+									if(Const.dbCommitSnapshot)
+										TableBase.beginSnapshotAll(); // 快照模式只在暂停期间切换写缓存,保存操作在恢复事务后进行
+									else
+									{
+										Log.info("db-commit saving left...");
+										Log.info("db-commit saved: {}, flushing left...", TableBase.saveModifiedAll(storage));
+										storage.putFlush(true);
+									}
+									if(redoLog != null) redoSeq = redoLog.rotate();
 								}
 								finally
 								{
 									Procedure.writeUnlock();
 								}
 								t1 = System.currentTimeMillis() - t1;
-								if(storage instanceof StorageLevelDB)
+								_commitPauseTime = t1;
+								if(t1 > _commitPauseMaxTime) _commitPauseMaxTime = t1;
+								_commitPauseTotalTime += t1;
+								if(Const.dbCommitSnapshot)
+								{
+									Log.info("db-commit procedure continued({} ms), saving snapshot...", t1);
+									Log.info("db-commit saved: {}, flushing left...", TableBase.saveSnapshotAll(storage));
+									storage.putFlush(true);
+								}
+								Storage stoInner = (storage instanceof StorageMMap ? ((StorageMMap)storage).getInner() : storage);
+								if(stoInner instanceof StorageLevelDB)
 								{
-									StorageLevelDB stoLDB = (StorageLevelDB)storage;
+									StorageLevelDB stoLDB = (StorageLevelDB)stoInner;
 									Log.info("db-commit procedure continued, committing({}:{})...", stoLDB.getPutCount(), stoLDB.getPutSize());
 								}
 								else
@@ -161,8 +228,11 @@ public final class DBManager
 								Log.info("db-commit not found modified record");
 							// 4.最后恢复其它事务的运行,并对数据库存储系统做提交操作,完成一整轮的事务性持久化
 							long t2 = System.currentTimeMillis();
-							storage.commit();
+							boolean committed = storage.commit();
+							if(committed && redoSeq >= 0)
+								redoLog.removeBefore(redoSeq);
 							t3 = System.currentTimeMillis();
+							++_commitCount;
 							Log.info("db-commit done ({}/{}/{} ms)", t1, t3 - t2, t3 - t0);
 						}
 
@@ -215,14 +285,33 @@ public final class DBManager
 	private DBManager()
 	{
 		_hasCreated = true;
+		boolean virtual = false;
+		if(Const.dbVirtualThreadCount > 0)
+		{
+			virtual = (ProcThread.newVirtualThreadFactory("ProcVThread-") != null);
+			if(!virtual)
+				Log.warn("DBManager: virtual thread is not supported by current JVM, use ProcThread instead");
+		}
+		int threadCount = (Const.dbThreadCount > 0 ? Const.dbThreadCount : Runtime.getRuntime().availableProcessors());
+		_procThreads = newProcThreads(threadCount, virtual ? "ProcVThread-" : "ProcThread-", virtual);
+		_procLane = new ProcLane("interactive", _procThreads);
+		int bgThreadCount = (Const.dbBackgroundThreadCount > 0 ? Const.dbBackgroundThreadCount : Math.max(threadCount / 4, 1));
+		_bgProcLane = new ProcLane("background", newProcThreads(bgThreadCount, virtual ? "ProcBgVThread-" : "ProcBgThread-", virtual));
+		_bgProcLane.setYieldTo(_procLane);
+	}
+
+	private static ThreadPoolExecutor newProcThreads(int threadCount, String namePrefix, boolean virtual)
+	{
+		if(virtual) // 每个事务一个虚拟线程(空闲的线程可短暂复用),等待锁或远程应答的事务只挂起自己的虚拟线程,不影响其它事务的运行
+			return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+					ProcThread.newVirtualThreadFactory(namePrefix));
 		AtomicInteger counter = new AtomicInteger();
-		_procThreads = (ThreadPoolExecutor)Executors.newFixedThreadPool(
-				Const.dbThreadCount > 0 ? Const.dbThreadCount : Runtime.getRuntime().availableProcessors(), r ->
-				{
-					Thread t = new ProcThread("ProcThread-" + counter.incrementAndGet(), r);
-					t.setDaemon(true);
-					return t;
-				});
+		return (ThreadPoolExecutor)Executors.newFixedThreadPool(threadCount, r ->
+		{
+			Thread t = new ProcThread(namePrefix + counter.incrementAndGet(), r);
+			t.setDaemon(true);
+			return t;
+		});
 	}
 
 	/**
@@ -233,6 +322,14 @@ public final class DBManager
 		return _storage;
 	}
 
+	/**
+	 * 获取当前的重做日志. null表示不使用
+	 */
+	RedoLog getRedoLog()
+	{
+		return _redoLog;
+	}
+
 	/**
 	 * 增加一次记录修改计数
 	 */
@@ -241,6 +338,38 @@ public final class DBManager
 		_modCount.getAndIncrement();
 	}
 
+	/**
+	 * 获取已完成的提交次数
+	 */
+	public long getCommitCount()
+	{
+		return _commitCount;
+	}
+
+	/**
+	 * 获取最近一次提交暂停所有事务的时间(毫秒)
+	 */
+	public long getCommitPauseTime()
+	{
+		return _commitPauseTime;
+	}
+
+	/**
+	 * 获取提交暂停所有事务的最长时间(毫秒)
+	 */
+	public long getCommitPauseMaxTime()
+	{
+		return _commitPauseMaxTime;
+	}
+
+	/**
+	 * 获取提交暂停所有事务的总时间(毫秒)
+	 */
+	public long getCommitPauseTotalTime()
+	{
+		return _commitPauseTotalTime;
+	}
+
 	/**
 	 * 判断是否在退出前的shutdown状态下
 	 */
@@ -268,6 +397,14 @@ public final class DBManager
 			throw new IOException("create db path failed: " + dbFilename);
 		_storage = sto;
 		sto.openDB(dbfile);
+		if(Const.dbRedoLog)
+		{
+			RedoLog redoLog = new RedoLog(dbfile);
+			redoLog.open();
+			_redoLog = redoLog;
+		}
+		if(Const.dbWarmupMaxCount > 0)
+			_warmup = new CacheWarmup(dbfile);
 		ExitManager.getShutdownSystemCallbacks().add(() ->
 		{
 			Log.info("DBManager.OnJVMShutDown: db shutdown");
@@ -277,6 +414,7 @@ public final class DBManager
 				{
 					_exiting = true;
 					_procThreads.shutdownNow();
+					_bgProcLane.getThreads().shutdownNow();
 				}
 			}
 			finally
@@ -291,7 +429,7 @@ public final class DBManager
 	 * 启动数据库系统
 	 * <p>
 	 * 必须在openTable和操作数据库之前启动<br>
-	 * 默认使用StorageLevelDB.instance()作为存储引擎
+	 * 使用dbFilename配置的数据库文件名
 	 */
 	public void startup(Storage sto) throws IOException
 	{
@@ -302,11 +440,32 @@ public final class DBManager
 	 * 启动数据库系统
 	 * <p>
 	 * 必须在openTable和操作数据库之前启动<br>
-	 * 默认使用StorageLevelDB.instance()作为存储引擎
+	 * 根据dbStorage配置使用StorageLSM,StorageMemory或StorageLevelDB作为存储引擎<br>
+	 * 配置了dbMMapTables时再用StorageMMap包装
 	 */
 	public void startup() throws IOException
 	{
-		startup(StorageLevelDB.instance());
+		Storage sto;
+		if("lsm".equalsIgnoreCase(Const.dbStorage))
+			sto = StorageLSM.instance();
+		else if("memory".equalsIgnoreCase(Const.dbStorage))
+			sto = (Const.dbMemorySnapshot ? new StorageMemory(true) : StorageMemory.instance());
+		else
+			sto = StorageLevelDB.instance();
+		String mmapTables = Const.dbMMapTables;
+		if("*".equals(mmapTables))
+			sto = new StorageMMap(sto);
+		else if(!mmapTables.isEmpty())
+		{
+			List<String> tableNames = new ArrayList<>();
+			for(String name : mmapTables.split(","))
+			{
+				if(!(name = name.trim()).isEmpty())
+					tableNames.add(name);
+			}
+			sto = new StorageMMap(sto, tableNames);
+		}
+		startup(sto);
 	}
 
 	/**
@@ -315,17 +474,46 @@ public final class DBManager
 	 * 必须先启动数据库系统(startup)后再调用此方法
 	 * @param tableName 表名
 	 * @param lockName 此表关联的锁名
-	 * @param cacheSize 此表的读缓存记录数量上限. 如果是内存表则表示超过此上限则会自动丢弃
+	 * @param cacheSize 此表的读缓存记录数量上限. 如果是内存表则表示超过此上限则会自动丢弃. 启用读缓存内存预算(Const.dbCacheBudget)时只作为初始值
 	 * @param stubK 记录key的存根对象,不要用于记录有用的数据
 	 * @param stubV 记录value的存根对象,不要用于记录有用的数据. 如果为null则表示此表是内存表
 	 * @return Table
 	 */
-	public synchronized <K, V extends Bean<V>, S extends Safe<V>> Table<K, V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, Object stubK, V stubV)
+	public <K, V extends Bean<V>, S extends Safe<V>> Table<K, V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, Object stubK, V stubV)
+	{
+		return openTable(tableId, tableName, lockName, cacheSize, stubK, stubV, false);
+	}
+
+	/**
+	 * 获取或创建一个数据库表,可指定bean类型的key使用有序key的编码
+	 * <p>
+	 * 有序key的表在存储中按key的字段依次排序,可以用Table.walkPrefix按key的前几个字段遍历. 一般由genbeans对设置了keyorder的表生成调用
+	 * @param keyOrdered 是否使用有序key的编码. 已有记录的表不能改变此设置
+	 * @see #openTable(int, String, String, int, Object, Bean)
+	 */
+	public <K, V extends Bean<V>, S extends Safe<V>> Table<K, V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, Object stubK, V stubV,
+			boolean keyOrdered)
+	{
+		return openTable(tableId, tableName, lockName, cacheSize, stubK, stubV, keyOrdered, TableBase.CACHE_LRU);
+	}
+
+	/**
+	 * 获取或创建一个数据库表,可指定有序key的编码和读缓存的淘汰策略
+	 * @param cachePolicy 读缓存的淘汰策略(TableBase.CACHE_*)
+	 * @see #openTable(int, String, String, int, Object, Bean, boolean)
+	 */
+	public synchronized <K, V extends Bean<V>, S extends Safe<V>> Table<K, V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, Object stubK, V stubV,
+			boolean keyOrdered, int cachePolicy)
 	{
 		if(_storage == null) throw new IllegalArgumentException("call DBManager.startup before open any table");
 		tableName = (tableName != null && !(tableName = tableName.trim()).isEmpty() ? tableName : '[' + String.valueOf(tableId) + ']');
-		Storage.Table<K, V> stoTable = (stubV != null ? _storage.<K, V>openTable(tableId, tableName, stubK, stubV) : null);
-		return new Table<>(tableId, tableName, stoTable, lockName, cacheSize, stubV);
+		Storage.Table<K, V> stoTable = (stubV != null ? _storage.<K, V>openTable(tableId, tableName, stubK, stubV, keyOrdered) : null);
+		Table<K, V, S> table = new Table<>(tableId, tableName, stoTable, lockName, cacheSize, stubV, cachePolicy);
+		if(stoTable != null && _redoLog != null)
+			_redoLog.replay(table, stubK);
+		if(stoTable != null && _warmup != null)
+			_warmup.submit(table, stubK);
+		return table;
 	}
 
 	/**
@@ -335,16 +523,31 @@ public final class DBManager
 	 * 必须先启动数据库系统(startup)后再调用此方法
 	 * @param tableName 表名
 	 * @param lockName 此表关联的锁名
-	 * @param cacheSize 此表的读缓存记录数量上限. 如果是内存表则表示超过此上限则会自动丢弃
+	 * @param cacheSize 此表的读缓存记录数量上限. 如果是内存表则表示超过此上限则会自动丢弃. 启用读缓存内存预算(Const.dbCacheBudget)时只作为初始值
 	 * @param stubV 记录value的存根对象,不要用于记录有用的数据. 如果为null则表示此表是内存表
 	 * @return TableLong
 	 */
-	public synchronized <V extends Bean<V>, S extends Safe<V>> TableLong<V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, V stubV)
+	public <V extends Bean<V>, S extends Safe<V>> TableLong<V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, V stubV)
+	{
+		return openTable(tableId, tableName, lockName, cacheSize, stubV, TableBase.CACHE_LRU);
+	}
+
+	/**
+	 * 获取或创建一个以ID为key的数据库表,可指定读缓存的淘汰策略
+	 * @param cachePolicy 读缓存的淘汰策略(TableBase.CACHE_*)
+	 * @see #openTable(int, String, String, int, Bean)
+	 */
+	public synchronized <V extends Bean<V>, S extends Safe<V>> TableLong<V, S> openTable(int tableId, String tableName, String lockName, int cacheSize, V stubV, int cachePolicy)
 	{
 		if(_storage == null) throw new IllegalArgumentException("call DBManager.startup before open any table");
 		tableName = (tableName != null && !(tableName = tableName.trim()).isEmpty() ? tableName : '[' + String.valueOf(tableId) + ']');
 		Storage.TableLong<V> stoTable = (stubV != null ? _storage.openTable(tableId, tableName, stubV) : null);
-		return new TableLong<>(tableId, tableName, stoTable, lockName, cacheSize, stubV);
+		TableLong<V, S> table = new TableLong<>(tableId, tableName, stoTable, lockName, cacheSize, stubV, cachePolicy);
+		if(stoTable != null && _redoLog != null)
+			_redoLog.replay(table, null);
+		if(stoTable != null && _warmup != null)
+			_warmup.submit(table, null);
+		return table;
 	}
 
 	/**
@@ -400,7 +603,20 @@ public final class DBManager
 			Storage sto = _storage;
 			if(sto != null)
 			{
+				CacheWarmup warmup = _warmup;
+				if(warmup != null)
+				{
+					_warmup = null;
+					warmup.save(Const.dbWarmupMaxCount);
+					warmup.shutdown();
+				}
 				checkpoint();
+				RedoLog redoLog = _redoLog;
+				if(redoLog != null)
+				{
+					_redoLog = null;
+					redoLog.close();
+				}
 				_storage = null;
 				sto.close();
 			}
@@ -433,6 +649,49 @@ public final class DBManager
 		return _procCount.get();
 	}
 
+	/**
+	 * 获取某个sid队列中(包括正在运行的)事务数量
+	 */
+	public int getSessionQueueSize(Object sid)
+	{
+		SidQueue q = _qmap.get(sid);
+		return q != null ? q.size() : 0;
+	}
+
+	/**
+	 * 获取某个sid队列历史最大的长度
+	 */
+	public int getSessionQueueMaxSize(Object sid)
+	{
+		SidQueue q = _qmap.get(sid);
+		return q != null ? q.getMaxSize() : 0;
+	}
+
+	/**
+	 * 获取某个sid队列的调度次数. 和{@link #getSessionQueueMaxSize}对比可判断批量运行的效果
+	 */
+	public long getSessionQueueDrainCount(Object sid)
+	{
+		SidQueue q = _qmap.get(sid);
+		return q != null ? q.getDrainCount() : 0;
+	}
+
+	/**
+	 * 获取当前所有sid队列中最长的队列长度
+	 * <p>
+	 * 需要遍历所有队列,只适合低频的统计调用
+	 */
+	public int getSessionQueueMaxSize()
+	{
+		int m = 0;
+		for(SidQueue q : _qmap.values())
+		{
+			int s = q.size();
+			if(s > m) m = s;
+		}
+		return m;
+	}
+
 	/**
 	 * 获取当前事务线程池对象
 	 */
@@ -441,6 +700,30 @@ public final class DBManager
 		return _procThreads;
 	}
 
+	/**
+	 * 获取普通(交互)事务的通道. 可获取其排队延迟的统计
+	 */
+	public ProcLane getProcLane()
+	{
+		return _procLane;
+	}
+
+	/**
+	 * 获取后台事务的通道. 可获取其排队延迟的统计
+	 */
+	public ProcLane getBackgroundProcLane()
+	{
+		return _bgProcLane;
+	}
+
+	/**
+	 * 获取后台事务因过载被拒绝的次数
+	 */
+	public long getBackgroundRejectCount()
+	{
+		return _bgRejectCount.get();
+	}
+
 	/**
 	 * 获取当前事务线程池待运行的事务数量
 	 */
@@ -475,17 +758,9 @@ public final class DBManager
 			@Override
 			protected void onProcess()
 			{
-				ArrayDeque<Procedure> q = _qmap.get(sid);
+				SidQueue q = _qmap.get(sid);
 				if(q != null)
-				{
-					synchronized(q)
-					{
-						_procCount.getAndAdd(1 - q.size());
-						q.clear();
-						q.addLast(this); // 清除此队列所有的任务,只留当前任务待完成时会删除
-						_qmap.remove(sid); // _qmap删除队列的地方只有两处,另一处是collectQueue中队列判空的时候(有synchronized保护)
-					}
-				}
+					q.clear(); // 清除此队列所有未运行的任务,空队列之后由collectQueue回收
 			}
 		});
 	}
@@ -499,26 +774,46 @@ public final class DBManager
 	private void collectQueue(long[] counts)
 	{
 		counts[0] = _qmap.size();
-		for(Iterator<ArrayDeque<Procedure>> it = _qmap.values().iterator(); it.hasNext();)
+		for(Iterator<SidQueue> it = _qmap.values().iterator(); it.hasNext();)
 		{
-			ArrayDeque<Procedure> q = it.next();
-			if(q.isEmpty())
-			{
-				synchronized(q)
-				{
-					if(q.isEmpty()) it.remove();
-				}
-			}
+			if(it.next().tryClose()) // 标记回收后不会再有事务入队
+				it.remove();
 		}
 		counts[1] = _qmap.size();
+		for(Iterator<SidQueue> it = _bmap.values().iterator(); it.hasNext();)
+		{
+			if(it.next().tryClose())
+				it.remove();
+		}
 	}
 
 	/**
 	 * 向工作线程池提交一个事务
+	 * <p>
+	 * Const.maxBatchLockProcedure大于0且事务声明了锁集合({@link Procedure#declareLockIds})时,会按锁集合排队,
+	 * 以便相同锁集合的事务合并到一次加锁和一次提交中运行
 	 */
 	public void submit(Procedure p)
 	{
-		_procThreads.execute(p);
+		int[] lockIds = SidQueue.getBatchLockIds(p);
+		if(lockIds == null)
+		{
+			_procLane.execute(p);
+			return;
+		}
+		SidQueue.LockSet key = new SidQueue.LockSet(lockIds);
+		for(;;)
+		{
+			SidQueue q = _bmap.get(key);
+			if(q == null)
+			{
+				q = new SidQueue(this, _procCount, key);
+				SidQueue t = _bmap.putIfAbsent(key, q);
+				if(t != null) q = t;
+			}
+			if(q.offer(_procLane, p, lockIds)) return;
+			_bmap.remove(key, q);
+		}
 	}
 
 	/**
@@ -527,16 +822,53 @@ public final class DBManager
 	 * 不同sid的事务会并发处理,但相同的sid会按照提交顺序排队处理<br>
 	 * 如果队列中的事务数量超过上限(Const.maxSessionProcedure),则会清除这个sid的整个队列并输出错误日志<br>
 	 * sid即SessionId,一般表示网络连接的ID,事务运行时可以获取这个对象({@link Procedure#getSid})<br>
-	 * 当这个sid失效且不需要处理其任何未处理的事务时,应该调用clearSession清除这个sid的队列以避免少量的内存泄漏
+	 * 当这个sid失效且不需要处理其任何未处理的事务时,应该调用clearSession清除这个sid的队列以避免少量的内存泄漏<br>
+	 * Const.maxBatchLockProcedure大于0时,同一sid队列中连续的声明了相同锁集合的事务会合并批量运行
 	 */
 	public void submit(Object sid, Procedure p)
 	{
-		submit(_procThreads, sid, p);
+		submit(_procLane, sid, p);
+	}
+
+	/**
+	 * 向后台事务的线程池提交一个事务
+	 * <p>
+	 * 用于不要求及时响应的批量事务(如全服邮件). 后台事务使用独立的线程池(Const.dbBackgroundThreadCount),
+	 * 在普通事务的排队延迟超过Const.procLatencyTarget时会推迟运行,避免影响普通事务的延迟
+	 * @return 后台事务的排队延迟超过Const.procBackgroundMaxLatency时拒绝提交并返回false
+	 */
+	public boolean submitBackground(Procedure p)
+	{
+		if(!admitBackground(p)) return false;
+		_bgProcLane.execute(p);
+		return true;
+	}
+
+	/**
+	 * 向后台事务的线程池提交一个需要排队的事务
+	 * <p>
+	 * 同{@link #submitBackground(Procedure p)},相同sid的事务按照提交顺序排队处理<br>
+	 * 同一sid同时有普通事务和后台事务排队时,之后提交的事务会使用队列当前所在的线程池
+	 */
+	public boolean submitBackground(Object sid, Procedure p)
+	{
+		if(!admitBackground(p)) return false;
+		submit(_bgProcLane, sid, p);
+		return true;
+	}
+
+	private boolean admitBackground(Procedure p)
+	{
+		long maxLatency = Const.procBackgroundMaxLatency;
+		if(maxLatency <= 0 || _bgProcLane.getLatency() <= maxLatency) return true;
+		if(_bgRejectCount.getAndIncrement() % 1000 == 0) // 避免过载时输出过多日志
+			Log.warn("background procedure rejected for overload: {}, {}", p, _bgProcLane);
+		return false;
 	}
 
 	/**
 	 * 见{@link #submit(Object sid, Procedure p)}<br>
-	 * 可使用自定义的线程池(必须是ProcThread)
+	 * 可使用自定义的线程池(必须是ProcThread或ProcThread.newVirtualThreadFactory创建的线程)
 	 */
 	public void submit(Executor executor, Object sid, Procedure p)
 	{
@@ -546,74 +878,18 @@ public final class DBManager
 			executor.execute(p);
 			return;
 		}
-		ArrayDeque<Procedure> q;
+		int[] lockIds = SidQueue.getBatchLockIds(p);
 		for(;;)
 		{
-			q = _qmap.get(sid);
+			SidQueue q = _qmap.get(sid);
 			if(q == null)
 			{
-				q = new ArrayDeque<>();
-				ArrayDeque<Procedure> t = _qmap.putIfAbsent(sid, q); // _qmap增加队列的地方只有这一处
+				q = new SidQueue(this, _procCount, sid);
+				SidQueue t = _qmap.putIfAbsent(sid, q); // _qmap增加队列的地方只有这一处
 				if(t != null) q = t;
 			}
-			synchronized(q)
-			{
-				if(q != _qmap.get(sid)) continue;
-				int qs = q.size();
-				if(qs >= Const.maxSessionProcedure)
-					throw new IllegalStateException("procedure overflow: procedure=" + p.getClass().getName() +
-							",sid=" + sid + ",size=" + q.size() + ",maxsize=" + Const.maxSessionProcedure);
-				q.addLast(p);
-				_procCount.getAndIncrement();
-				if(qs > 0) return;
-			}
-			break;
+			if(q.offer(executor, p, lockIds)) return;
+			_qmap.remove(sid, q); // 队列已被collectQueue回收,重新获取
 		}
-		ArrayDeque<Procedure> _q = q;
-		executor.execute(new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					for(int n = Const.maxBatchProceduer;;) // 一次调度可运行多个事务,避免切换调度导致的效率损失
-					{
-						Procedure proc;
-						synchronized(_q)
-						{
-							proc = _q.peekFirst(); // 这里只能先peek而不能poll或remove,否则可能和下次commit并发
-						}
-						if(proc == null) return;
-						_procCount.getAndDecrement();
-						try
-						{
-							proc.execute();
-						}
-						catch(Throwable e)
-						{
-							Log.error("procedure(sid=" + sid + ") exception:", e);
-						}
-						synchronized(_q)
-						{
-							_q.pollFirst();
-							if(_q.isEmpty()) return;
-						}
-						if(--n <= 0)
-						{
-							executor.execute(this);
-							return;
-						}
-					}
-				}
-				catch(Throwable e)
-				{
-					if(e instanceof RejectedExecutionException && _exiting)
-						Log.info("procedure queue canceled. sid={}, queueSize={}", sid, _q.size());
-					else
-						Log.error("procedure(sid=" + sid + ") fatal exception:", e);
-				}
-			}
-		});
 	}
 }
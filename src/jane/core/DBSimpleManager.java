@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -36,6 +37,8 @@ public final class DBSimpleManager
 	private final ConcurrentMap<Octets, Octets>	_writeCache	  = Util.newConcurrentHashMap(); // 写缓冲区
 	protected final AtomicLong					_readCount	  = new AtomicLong();			 // 读操作次数统计
 	protected final AtomicLong					_readStoCount = new AtomicLong();			 // 读数据库存储的次数统计(即cache-miss的次数统计)
+	protected final AtomicLong					_coalescedCount = new AtomicLong();		 // 并发读取同一记录时合并的cache-miss次数统计
+	private final ConcurrentMap<Octets, CompletableFuture<Octets>> _loading = Util.newConcurrentHashMap(); // 正在从数据库存储读取的记录
 	private StorageLevelDB						_storage;									 // 存储引擎
 	private String								_dbFilename;								 // 数据库保存的路径
 
@@ -273,6 +276,14 @@ public final class DBSimpleManager
 		return _readStoCount.get();
 	}
 
+	/**
+	 * 获取并发读取同一记录时合并的cache-miss次数统计. 合并的cache-miss不计入getReadStoCount
+	 */
+	public long getCoalescedCount()
+	{
+		return _coalescedCount.get();
+	}
+
 	private static Octets toKeyFrom(int tableId)
 	{
 		return OctetsStream.createSpace(OctetsStream.marshalUIntLen(tableId)).marshalUInt(tableId);
@@ -313,6 +324,42 @@ public final class DBSimpleManager
 		return new OctetsStream(5 + key.initSize()).marshalUInt(tableId).marshal(key);
 	}
 
+	/**
+	 * 从数据库存储读取记录并加入读缓存
+	 * <p>
+	 * 同一记录并发的读取会合并成一次, 其它线程等待并共享读取的结果
+	 * @return 记录的原始数据. 不存在时返回null
+	 */
+	private Octets loadSto(Octets key)
+	{
+		CompletableFuture<Octets> loading = new CompletableFuture<>();
+		CompletableFuture<Octets> cur = _loading.putIfAbsent(key, loading);
+		if(cur != null)
+		{
+			_coalescedCount.getAndIncrement();
+			return cur.join();
+		}
+		_readStoCount.getAndIncrement();
+		try
+		{
+			byte[] v = _storage.dbget(key);
+			Octets val = (v != null ? Octets.wrap(v) : null);
+			if(val != null && _readCache != null)
+				_readCache.put(key, val);
+			loading.complete(val);
+			return val;
+		}
+		catch(Throwable e)
+		{
+			loading.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			_loading.remove(key, loading);
+		}
+	}
+
 	private <B extends Bean<B>> B get0(Octets key, B beanStub) throws MarshalException
 	{
 		_readCount.getAndIncrement();
@@ -321,16 +368,7 @@ public final class DBSimpleManager
 		{
 			val = _writeCache.get(key);
 			if(val == null)
-			{
-				_readStoCount.getAndIncrement();
-				byte[] v = _storage.dbget(key);
-				if(v == null)
-					return null;
-				OctetsStreamEx os = OctetsStreamEx.wrap(v);
-				if(_readCache != null)
-					_readCache.put(key, os);
-				return StorageLevelDB.toBean(os, beanStub);
-			}
+				return StorageLevelDB.toBean(loadSto(key), beanStub);
 			if(val.size() <= 0)
 				return null;
 		}
@@ -555,6 +555,83 @@ public class OctetsStream extends Octets
 		return b.marshalProtocol(this);
 	}
 
+	/**
+	 * 以下marshalOrdered是保序的编码(用于有序key的数据库表)
+	 * <p>
+	 * 编码结果按无符号字节序比较的结果和原值比较的结果一致,且可以直接拼接多个值<br>
+	 * 整数是符号位取反的定长大端序; 浮点数正数只取反符号位,负数取反所有位; 字符串(UTF-8)和二进制数据的0字节转义成0x00,0xff,并以0x00,0x01结尾
+	 */
+	public OctetsStream marshalOrdered(boolean x)
+	{
+		return marshal1((byte)(x ? 1 : 0));
+	}
+
+	public OctetsStream marshalOrdered(byte x)
+	{
+		return marshal1((byte)(x ^ 0x80));
+	}
+
+	public OctetsStream marshalOrdered(short x)
+	{
+		return marshal2(x ^ 0x8000);
+	}
+
+	public OctetsStream marshalOrdered(char x)
+	{
+		return marshal2(x);
+	}
+
+	public OctetsStream marshalOrdered(int x)
+	{
+		return marshal4(x ^ 0x8000_0000);
+	}
+
+	public OctetsStream marshalOrdered(long x)
+	{
+		return marshal8(x ^ 0x8000_0000_0000_0000L);
+	}
+
+	public OctetsStream marshalOrdered(float x)
+	{
+		int v = Float.floatToIntBits(x);
+		return marshal4(v ^ ((v >> 31) | 0x8000_0000));
+	}
+
+	public OctetsStream marshalOrdered(double x)
+	{
+		long v = Double.doubleToLongBits(x);
+		return marshal8(v ^ ((v >> 63) | 0x8000_0000_0000_0000L));
+	}
+
+	public OctetsStream marshalOrdered(String str)
+	{
+		reserve(_count + marshalStrLen(str) + 2);
+		for(int i = 0, n = str.length(); i < n; ++i)
+		{
+			char c = str.charAt(i);
+			if(c != 0)
+				marshalUTF8(c);
+			else
+				marshal2(0x00ff);
+		}
+		return marshal2(0x0001);
+	}
+
+	public OctetsStream marshalOrdered(Octets o)
+	{
+		byte[] buf = o._buffer;
+		reserve(_count + o._count + 2);
+		for(int i = 0, n = o._count; i < n; ++i)
+		{
+			byte b = buf[i];
+			if(b != 0)
+				marshal1(b);
+			else
+				marshal2(0x00ff);
+		}
+		return marshal2(0x0001);
+	}
+
 	public static int getKVType(Object o)
 	{
 		if(o instanceof Number)
@@ -1341,4 +1418,82 @@ public class OctetsStream extends Octets
 		unmarshalSkipKV(type);
 		return "";
 	}
+
+	/**
+	 * 以下unmarshalOrdered是对应marshalOrdered的保序解码
+	 */
+	public boolean unmarshalOrderedBoolean() throws MarshalException
+	{
+		return unmarshalInt1() != 0;
+	}
+
+	public byte unmarshalOrderedByte() throws MarshalException
+	{
+		return (byte)(unmarshalInt1() ^ 0x80);
+	}
+
+	public short unmarshalOrderedShort() throws MarshalException
+	{
+		return (short)(unmarshalInt2() ^ 0x8000);
+	}
+
+	public char unmarshalOrderedChar() throws MarshalException
+	{
+		return (char)unmarshalInt2();
+	}
+
+	public int unmarshalOrderedInt() throws MarshalException
+	{
+		return unmarshalInt4() ^ 0x8000_0000;
+	}
+
+	public long unmarshalOrderedLong() throws MarshalException
+	{
+		return unmarshalLong8() ^ 0x8000_0000_0000_0000L;
+	}
+
+	public float unmarshalOrderedFloat() throws MarshalException
+	{
+		int v = unmarshalInt4();
+		return Float.intBitsToFloat(v < 0 ? v ^ 0x8000_0000 : ~v);
+	}
+
+	public double unmarshalOrderedDouble() throws MarshalException
+	{
+		long v = unmarshalLong8();
+		return Double.longBitsToDouble(v < 0 ? v ^ 0x8000_0000_0000_0000L : ~v);
+	}
+
+	public Octets unmarshalOrderedOctets() throws MarshalException
+	{
+		byte[] buf = _buffer;
+		int pos = _pos, count = _count;
+		Octets o = new Octets();
+		for(;;)
+		{
+			if(pos >= count) throw getEOFException();
+			byte b = buf[pos++];
+			if(b == 0)
+			{
+				if(pos >= count) throw getEOFException();
+				b = buf[pos++];
+				if(b == 1) break;
+				if(b != (byte)0xff) throw getMarshalException();
+				b = 0;
+			}
+			o.append(b);
+		}
+		_pos = pos;
+		return o;
+	}
+
+	public String unmarshalOrderedString() throws MarshalException
+	{
+		OctetsStream os = wrap(unmarshalOrderedOctets());
+		char[] tmp = new char[os.remain()];
+		int n = 0;
+		while(os.remain() > 0)
+			tmp[n++] = os.unmarshalUTF8();
+		return new String(tmp, 0, n);
+	}
 }
@@ -0,0 +1,349 @@
+package jane.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 堆外的二级记录缓存
+ * <p>
+ * 位于数据库表的读缓存和存储引擎之间,保存序列化后的记录,key是表ID+记录key的序列化. 不占用java堆,不增加GC负担<br>
+ * 按key的hash值分成多个段,每个段有自己的锁和索引. 每个段的内存分成多个固定大小的slab(直接内存,首次使用时分配)<br>
+ * 记录依次追加写入当前slab,写满后循环使用下一个slab,重用前淘汰其中的全部记录(按写入顺序的FIFO淘汰)<br>
+ * 只做缓存,不保证一定能取到已放入的记录. 需要调整JVM参数-XX:MaxDirectMemorySize使其不小于缓存的容量
+ */
+public final class OffHeapCache
+{
+	private static final int	SEGMENT_SHIFT = 6;						 // 段数量的位数
+	private static final int	SEGMENT_COUNT = 1 << SEGMENT_SHIFT;		 // 段数量
+	private static final int	HEAD_SIZE	  = 16;						 // 每个记录的头部大小: [hash:8][keyLen:4][valueLen:4]
+	private final Segment[]		_segments	  = new Segment[SEGMENT_COUNT];
+	private final int			_slabSize;								 // 每个slab的字节数
+	private final AtomicLong	_hitCount	  = new AtomicLong();		 // 命中次数统计
+	private final AtomicLong	_missCount	  = new AtomicLong();		 // 未命中次数统计
+	private final AtomicLong	_putCount	  = new AtomicLong();		 // 写入次数统计
+	private final AtomicLong	_evictCount	  = new AtomicLong();		 // 淘汰的记录数统计
+
+	private static final class InstanceHolder
+	{
+		public static final OffHeapCache instance = (Const.dbL2CacheSize > 0 ? new OffHeapCache(Const.dbL2CacheSize, Const.dbL2SlabSize) : null);
+	}
+
+	/**
+	 * 获取按配置(Const.dbL2CacheSize)创建的全局实例
+	 * @return 没有启用二级缓存时返回null
+	 */
+	public static OffHeapCache instance()
+	{
+		return InstanceHolder.instance;
+	}
+
+	/**
+	 * 段内记录的索引. 开放寻址的long=>long哈希表
+	 * <p>
+	 * key是记录key的64位hash值(非0), value是记录的位置: (slab序号<<32)+slab内的偏移
+	 */
+	private static final class Index
+	{
+		private long[] _keys = new long[1024];
+		private long[] _values = new long[1024];
+		private int	   _size;
+
+		long get(long hash)
+		{
+			long[] keys = _keys;
+			int mask = keys.length - 1;
+			for(int i = (int)hash & mask;; i = (i + 1) & mask)
+			{
+				long k = keys[i];
+				if(k == hash) return _values[i];
+				if(k == 0) return -1;
+			}
+		}
+
+		void put(long hash, long value)
+		{
+			if(_size >= (_keys.length >> 1) + (_keys.length >> 2))
+				rehash(_keys.length << 1);
+			long[] keys = _keys;
+			int mask = keys.length - 1;
+			for(int i = (int)hash & mask;; i = (i + 1) & mask)
+			{
+				long k = keys[i];
+				if(k == 0)
+				{
+					keys[i] = hash;
+					_values[i] = value;
+					++_size;
+					return;
+				}
+				if(k == hash)
+				{
+					_values[i] = value;
+					return;
+				}
+			}
+		}
+
+		void remove(long hash)
+		{
+			long[] keys = _keys;
+			long[] values = _values;
+			int mask = keys.length - 1;
+			int i = (int)hash & mask;
+			for(;; i = (i + 1) & mask)
+			{
+				long k = keys[i];
+				if(k == 0) return;
+				if(k == hash) break;
+			}
+			--_size;
+			for(;;) // 删除后把后面的连续记录中可以前移的移到空位,保证查找时不会中断
+			{
+				keys[i] = 0;
+				int j = i;
+				long k;
+				for(;;)
+				{
+					j = (j + 1) & mask;
+					k = keys[j];
+					if(k == 0) return;
+					int r = (int)k & mask; // 记录k的理想位置. 在(i,j]之间的不能前移
+					if(i <= j ? (i >= r || r > j) : (i >= r && r > j)) break;
+				}
+				keys[i] = k;
+				values[i] = values[j];
+				i = j;
+			}
+		}
+
+		void clear()
+		{
+			Arrays.fill(_keys, 0);
+			_size = 0;
+		}
+
+		private void rehash(int newCap)
+		{
+			long[] oldKeys = _keys;
+			long[] oldValues = _values;
+			_keys = new long[newCap];
+			_values = new long[newCap];
+			_size = 0;
+			for(int i = 0, n = oldKeys.length; i < n; ++i)
+			{
+				if(oldKeys[i] != 0)
+					put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private final class Segment
+	{
+		private final ByteBuffer[] _slabs;			  // 此段的全部slab. 首次使用时分配
+		private final int[]		   _slabUsed;		  // 每个slab已写入的字节数
+		private final Index		   _index = new Index();
+		private int				   _curSlab;		  // 当前写入的slab序号
+		private int				   _curPos;			  // 当前slab的写入位置
+
+		Segment(int slabCount)
+		{
+			_slabs = new ByteBuffer[slabCount];
+			_slabUsed = new int[slabCount];
+		}
+
+		synchronized byte[] get(long hash, Octets key)
+		{
+			long pos = _index.get(hash);
+			if(pos < 0) return null;
+			ByteBuffer bb = _slabs[(int)(pos >>> 32)];
+			int p = (int)pos;
+			int keyLen = bb.getInt(p + 8);
+			int keySize = key.size();
+			if(keyLen != keySize) return null;
+			byte[] keyBuf = key.array();
+			p += HEAD_SIZE;
+			for(int i = 0; i < keySize; ++i)
+				if(bb.get(p + i) != keyBuf[i]) return null;
+			byte[] value = new byte[bb.getInt(p - 4)];
+			bb.position(p + keySize);
+			bb.get(value);
+			return value;
+		}
+
+		synchronized void put(long hash, Octets key, Octets value)
+		{
+			int keySize = key.size();
+			int valueSize = value.size();
+			int size = HEAD_SIZE + keySize + valueSize;
+			if(_curPos + size > _slabSize)
+			{
+				if(++_curSlab >= _slabs.length) _curSlab = 0;
+				_curPos = 0;
+				evictSlab(_curSlab);
+			}
+			ByteBuffer bb = _slabs[_curSlab];
+			if(bb == null)
+				_slabs[_curSlab] = bb = ByteBuffer.allocateDirect(_slabSize);
+			int p = _curPos;
+			bb.putLong(p, hash);
+			bb.putInt(p + 8, keySize);
+			bb.putInt(p + 12, valueSize);
+			bb.position(p + HEAD_SIZE);
+			bb.put(key.array(), 0, keySize);
+			bb.put(value.array(), 0, valueSize);
+			_index.put(hash, ((long)_curSlab << 32) + p);
+			_curPos = p + size;
+			_slabUsed[_curSlab] = _curPos;
+		}
+
+		synchronized void remove(long hash)
+		{
+			_index.remove(hash);
+		}
+
+		synchronized void clear()
+		{
+			_index.clear();
+			Arrays.fill(_slabUsed, 0);
+			_curSlab = 0;
+			_curPos = 0;
+		}
+
+		synchronized long getUsedSize()
+		{
+			long size = 0;
+			for(int used : _slabUsed)
+				size += used;
+			return size;
+		}
+
+		private void evictSlab(int slab)
+		{
+			int used = _slabUsed[slab];
+			if(used <= 0) return;
+			ByteBuffer bb = _slabs[slab];
+			long base = (long)slab << 32;
+			int n = 0;
+			for(int p = 0; p < used; p += HEAD_SIZE + bb.getInt(p + 8) + bb.getInt(p + 12))
+			{
+				long hash = bb.getLong(p);
+				if(_index.get(hash) == base + p)
+				{
+					_index.remove(hash);
+					++n;
+				}
+			}
+			_slabUsed[slab] = 0;
+			_evictCount.addAndGet(n);
+		}
+	}
+
+	/**
+	 * @param capacity 缓存的总字节数. 平均分到各段,每段至少2个slab
+	 * @param slabSize 每个slab的字节数. 超过此大小的记录不会缓存
+	 */
+	public OffHeapCache(long capacity, int slabSize)
+	{
+		if(slabSize < 1024) throw new IllegalArgumentException("slabSize must be >= 1024");
+		_slabSize = slabSize;
+		int slabCount = (int)Math.min(Math.max(capacity / slabSize / SEGMENT_COUNT, 2), Integer.MAX_VALUE);
+		for(int i = 0; i < SEGMENT_COUNT; ++i)
+			_segments[i] = new Segment(slabCount);
+	}
+
+	private static long hash(Octets key)
+	{
+		byte[] buf = key.array();
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0, n = key.size(); i < n; ++i)
+			h = (h ^ buf[i]) * 0x100000001b3L;
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h != 0 ? h : 1;
+	}
+
+	private Segment segment(long hash)
+	{
+		return _segments[(int)(hash >>> (64 - SEGMENT_SHIFT))];
+	}
+
+	/**
+	 * 获取缓存的记录
+	 * @return 序列化的记录. 没有缓存则返回null
+	 */
+	public byte[] get(Octets key)
+	{
+		long hash = hash(key);
+		byte[] value = segment(hash).get(hash, key);
+		(value != null ? _hitCount : _missCount).getAndIncrement();
+		return value;
+	}
+
+	/**
+	 * 缓存记录. 会替换已缓存的同key记录
+	 * @param value 序列化的记录. 如果记录大小超过slab大小则不缓存
+	 */
+	public void put(Octets key, Octets value)
+	{
+		if(HEAD_SIZE + key.size() + value.size() > _slabSize) return;
+		long hash = hash(key);
+		segment(hash).put(hash, key, value);
+		_putCount.getAndIncrement();
+	}
+
+	/**
+	 * 删除缓存的记录. 记录在存储中修改或删除后必须调用
+	 */
+	public void remove(Octets key)
+	{
+		long hash = hash(key);
+		segment(hash).remove(hash);
+	}
+
+	/**
+	 * 清除全部缓存的记录. 已分配的slab不会释放
+	 */
+	public void clear()
+	{
+		for(Segment seg : _segments)
+			seg.clear();
+	}
+
+	public long getCapacity()
+	{
+		return (long)_segments[0]._slabs.length * _slabSize * SEGMENT_COUNT;
+	}
+
+	/**
+	 * 获取已写入的字节数(包括已被替换或删除但还没淘汰的记录)
+	 */
+	public long getUsedSize()
+	{
+		long size = 0;
+		for(Segment seg : _segments)
+			size += seg.getUsedSize();
+		return size;
+	}
+
+	public long getHitCount()
+	{
+		return _hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return _missCount.get();
+	}
+
+	public long getPutCount()
+	{
+		return _putCount.get();
+	}
+
+	public long getEvictCount()
+	{
+		return _evictCount.get();
+	}
+}
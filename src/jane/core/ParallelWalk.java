@@ -0,0 +1,221 @@
+package jane.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 数据库表的并行遍历
+ * <p>
+ * 表的key范围拆分成多个分区,在专用的低优先级ForkJoinPool(线程数见Const.dbWalkThreadCount)中并行遍历各分区<br>
+ * 此对象记录一次并行遍历的进度,可在遍历过程中从其它线程获取各分区的进度或取消遍历<br>
+ * 可限制每秒遍历的记录数,以免长时间的遍历占用过多的存储读取能力而影响事务线程<br>
+ * 一个对象只能用于一次遍历
+ */
+public final class ParallelWalk
+{
+	private static ForkJoinPool			_pool;							   // 并行遍历的线程池
+	private final long					_maxPerSecond;					   // 每秒遍历的记录数上限. 0表示不限制
+	private final AtomicLong			_count	   = new AtomicLong();	   // 所有分区已遍历的记录数
+	private final AtomicInteger			_doneCount = new AtomicInteger();  // 已完成的分区数
+	private volatile AtomicLongArray	_partCounts;					   // 各分区已遍历的记录数. 开始遍历前为null
+	private volatile AtomicIntegerArray	_partStates;					   // 各分区的状态. 0:未完成; 1:已完成
+	private volatile boolean			_cancelled;						   // 是否已取消(或被handler中断)
+	private long						_beginTime;						   // 开始遍历的时间(纳秒)
+
+	/**
+	 * 遍历一个分区的接口
+	 */
+	interface PartWalker
+	{
+		/**
+		 * @return 返回true表示已完全遍历此分区, 返回false表示被中断
+		 */
+		boolean walk(int part);
+	}
+
+	private static synchronized ForkJoinPool getPool()
+	{
+		if(_pool == null)
+		{
+			AtomicInteger counter = new AtomicInteger();
+			_pool = new ForkJoinPool(Const.dbWalkThreadCount, pool ->
+			{
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				t.setName("DBWalker-" + counter.incrementAndGet());
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}, null, false);
+		}
+		return _pool;
+	}
+
+	/**
+	 * 获取默认的分区数量. 分区数量多于线程数量,使key分布不均匀时各线程的负载也较均衡
+	 */
+	static int getDefaultPartCount()
+	{
+		return Const.dbWalkThreadCount * 4;
+	}
+
+	/**
+	 * 使用配置的每秒遍历记录数上限(Const.dbWalkRecordsPerSecond)
+	 */
+	public ParallelWalk()
+	{
+		this(Const.dbWalkRecordsPerSecond);
+	}
+
+	/**
+	 * @param maxPerSecond 每秒遍历的记录数上限(所有分区合计). 0表示不限制
+	 */
+	public ParallelWalk(long maxPerSecond)
+	{
+		_maxPerSecond = Math.max(maxPerSecond, 0);
+	}
+
+	/**
+	 * 获取分区数量. 开始遍历前返回0
+	 */
+	public int getPartCount()
+	{
+		AtomicLongArray partCounts = _partCounts;
+		return partCounts != null ? partCounts.length() : 0;
+	}
+
+	/**
+	 * 获取指定分区已遍历的记录数
+	 */
+	public long getCount(int part)
+	{
+		return _partCounts.get(part);
+	}
+
+	/**
+	 * 获取所有分区已遍历的记录数
+	 */
+	public long getCount()
+	{
+		return _count.get();
+	}
+
+	/**
+	 * 指定分区是否已遍历完成(包括被中断)
+	 */
+	public boolean isDone(int part)
+	{
+		return _partStates.get(part) != 0;
+	}
+
+	/**
+	 * 获取已遍历完成(包括被中断)的分区数量
+	 */
+	public int getDoneCount()
+	{
+		return _doneCount.get();
+	}
+
+	/**
+	 * 取消遍历. 各分区会在遍历下一个记录前中断
+	 */
+	public void cancel()
+	{
+		_cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return _cancelled;
+	}
+
+	/**
+	 * 并行遍历所有分区,等待全部分区完成后返回
+	 * @return 返回true表示已完全遍历, 返回false表示被取消或中断
+	 */
+	boolean run(int partCount, PartWalker walker)
+	{
+		synchronized(this)
+		{
+			if(_partCounts != null) throw new IllegalStateException("ParallelWalk can only run once");
+			_partStates = new AtomicIntegerArray(partCount);
+			_partCounts = new AtomicLongArray(partCount);
+			_beginTime = System.nanoTime();
+		}
+		ForkJoinPool pool = getPool();
+		List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(partCount);
+		for(int i = 0; i < partCount; ++i)
+		{
+			int part = i;
+			tasks.add(pool.submit(() ->
+			{
+				try
+				{
+					boolean r = _cancelled || walker.walk(part);
+					if(!r) _cancelled = true; // 一个分区被中断则中断整个遍历
+					return r;
+				}
+				finally
+				{
+					_partStates.set(part, 1);
+					_doneCount.incrementAndGet();
+				}
+			}));
+		}
+		boolean interrupted = false;
+		Throwable error = null;
+		for(ForkJoinTask<Boolean> task : tasks)
+		{
+			for(;;) // 必须等待所有分区完成才能返回
+			{
+				try
+				{
+					task.get();
+					break;
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+					_cancelled = true;
+				}
+				catch(ExecutionException e)
+				{
+					_cancelled = true;
+					if(error == null) error = e.getCause();
+					break;
+				}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		if(error != null)
+			throw new IllegalStateException("parallel walk failed", error);
+		return !_cancelled;
+	}
+
+	/**
+	 * 每个分区在遍历一个记录前调用. 统计进度并按需限速
+	 * @return 返回false表示已取消
+	 */
+	boolean onWalk(int part)
+	{
+		if(_cancelled) return false;
+		_partCounts.incrementAndGet(part);
+		long n = _count.incrementAndGet();
+		long maxPerSecond = _maxPerSecond;
+		if(maxPerSecond > 0 && (n & 0xff) == 0)
+		{
+			long waitTime = (long)(n * 1e9 / maxPerSecond) - (System.nanoTime() - _beginTime);
+			if(waitTime > 0)
+				LockSupport.parkNanos(waitTime);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,205 @@
+package jane.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import jane.core.Procedure.IndexLock;
+
+/**
+ * 事务运行的上下文
+ * <p>
+ * 保存事务运行时的锁,安全修改的上下文等状态. 每个事务线程绑定一个,不依赖具体的线程类<br>
+ * ProcThread直接持有; 虚拟线程(JDK21+)由{@link #newVirtualThreadFactory}创建,并通过ThreadLocal绑定
+ */
+final class ProcContext
+{
+	private static final ConcurrentLinkedQueue<ProcContext>	_contexts	= new ConcurrentLinkedQueue<>();	// 当前全部事务线程的上下文. 用于判断是否超时和检测死锁
+	private static final ThreadLocal<ProcContext>			_current	= new ThreadLocal<>();				// 非ProcThread的事务线程绑定的上下文
+	private static volatile long							_interruptCount;								// 事务被打断的次数统计
+
+	final Thread		thread;													// 绑定的线程
+	final IndexLock[]	locks			= new IndexLock[Const.maxLockPerProcedure];	// 当前线程已经加过的锁
+	int					lockCount;													// 当前进程已经加过锁的数量
+	final SContext		sctx			= new SContext();							// 当前线程上的安全修改的上下文
+	Procedure			proc;														// 当前运行的事务
+	long				beginTime;													// 当前/上个事务运行的起始时间. 用于判断是否超时
+	final int[]			versions		= new int[Const.maxLockPerProcedure];		// 当前线程已经加过的锁版本号(只在需要时临时设置,这里只是为了避免反复分配)
+	final long[]		lockKeys		= new long[Const.maxLockPerProcedure];		// 加锁时排序用的锁key(见Procedure.lockKey. 只在需要时临时设置,这里只是为了避免反复分配)
+	volatile long		beginNanoTime;												// 当前/上个事务运行的起始时间(纳秒). 用于选择死锁的牺牲者
+	volatile IndexLock	waitLock;													// 当前正在等待的锁. 只在等待较久需要检测死锁时设置
+	boolean				optimistic;													// 当前事务是否使用乐观读
+	int[]				readIdxes		= new int[16];								// 当前事务乐观读过的锁下标
+	int[]				readVersions	= new int[16];								// 当前事务乐观读时的锁版本号
+	int					readCount;													// 当前事务乐观读过的锁数量
+	boolean				batching;													// 当前是否在同一次加锁中批量运行多个事务(见Procedure.executeBatch)
+
+	ProcContext(Thread t)
+	{
+		thread = t;
+		_contexts.add(this);
+	}
+
+	/**
+	 * 获取当前线程绑定的事务上下文
+	 * @return 当前线程不是事务线程时返回null
+	 */
+	static ProcContext current()
+	{
+		Thread t = Thread.currentThread();
+		return t instanceof ProcThread ? ((ProcThread)t).ctx : _current.get();
+	}
+
+	/**
+	 * 获取当前的事务上下文数量
+	 */
+	static int getCount()
+	{
+		return _contexts.size();
+	}
+
+	/**
+	 * 获取事务被打断的次数统计
+	 */
+	static long getInterruptCount()
+	{
+		return _interruptCount;
+	}
+
+	/**
+	 * 创建运行事务的虚拟线程工厂
+	 * <p>
+	 * 虚拟线程在等待锁或远程应答时不占用系统线程,因此可以用大量虚拟线程同时运行事务<br>
+	 * 为了兼容低版本JDK编译,通过反射使用Thread.ofVirtual()
+	 * @return 当前JDK不支持虚拟线程时返回null
+	 */
+	static ThreadFactory newVirtualThreadFactory(String namePrefix)
+	{
+		ThreadFactory factory;
+		try
+		{
+			Class<?> builderCls = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderCls.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+			factory = (ThreadFactory)builderCls.getMethod("factory").invoke(builder);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			return null;
+		}
+		return r -> factory.newThread(() ->
+		{
+			ProcContext ctx = new ProcContext(Thread.currentThread());
+			_current.set(ctx);
+			try
+			{
+				r.run();
+			}
+			finally
+			{
+				_current.remove();
+				_contexts.remove(ctx);
+			}
+		});
+	}
+
+	void addRead(int lockIdx, int version)
+	{
+		int n = readCount;
+		for(int i = 0; i < n; ++i)
+		{
+			if(readIdxes[i] == lockIdx) return; // 只需要保留最早读到的版本号
+		}
+		if(n == readIdxes.length)
+		{
+			readIdxes = Arrays.copyOf(readIdxes, n * 2);
+			readVersions = Arrays.copyOf(readVersions, n * 2);
+		}
+		readIdxes[n] = lockIdx;
+		readVersions[n] = version;
+		readCount = n + 1;
+	}
+
+	boolean hasRead(int lockIdx)
+	{
+		for(int i = readCount - 1; i >= 0; --i)
+		{
+			if(readIdxes[i] == lockIdx)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 当前事务修改了加锁的记录时调用. 如果乐观读后没有其它事务修改过,则同步更新记下的版本号
+	 */
+	void onVersionInc(int lockIdx, int oldVersion)
+	{
+		for(int i = readCount - 1; i >= 0; --i)
+		{
+			if(readIdxes[i] == lockIdx)
+			{
+				if(readVersions[i] == oldVersion)
+					readVersions[i] = oldVersion + 1;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 判断当前事务是否比另一上下文的当前事务开始得晚. 用于选择死锁的牺牲者,所有线程的判断结果一致
+	 */
+	boolean isYoungerThan(ProcContext ctx)
+	{
+		long d = beginNanoTime - ctx.beginNanoTime;
+		return d != 0 ? d > 0 : thread.getId() > ctx.thread.getId();
+	}
+
+	static
+	{
+		if(Const.deadlockCheckInterval > 0)
+		{
+			NetManager.scheduleWithFixedDelay(Const.deadlockCheckInterval, Const.deadlockCheckInterval, () ->
+			{
+				try
+				{
+					long now = NetManager.getTimeSec();
+					long procTimeout = Const.procedureTimeout;
+					for(ProcContext ctx : _contexts)
+					{
+						Thread t = ctx.thread;
+						if(t.isAlive())
+						{
+							Procedure p = ctx.proc; // 虽然非volatile读,但因为对及时性要求不高,而且下面有double check,所以没什么问题
+							if(p != null && now - ctx.beginTime > procTimeout) // beginTime的问题同上
+							{
+								synchronized(p)
+								{
+									if(p == ctx.proc)
+									{
+										long timeout = now - ctx.beginTime;
+										if(timeout > procTimeout)
+										{
+											StringBuilder sb = new StringBuilder(2000);
+											sb.append("procedure({}) in {} interrupted for timeout ({} ms): sid={}\n");
+											for(StackTraceElement ste : t.getStackTrace())
+												sb.append("\tat ").append(ste).append('\n');
+											Log.error(sb.toString(), p.getClass().getName(), t, timeout, p.getSid());
+											++_interruptCount;
+											t.interrupt();
+										}
+									}
+								}
+							}
+						}
+						else
+							_contexts.remove(ctx);
+					}
+				}
+				catch(Throwable e)
+				{
+					Log.error("procedure timeout fatal exception:", e);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package jane.core;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 事务运行的优先级通道
+ * <p>
+ * 每个通道有独立的线程池,以保证低优先级的大量事务不会占满高优先级事务的线程<br>
+ * 通过此通道提交的任务会统计排队延迟(从提交到开始运行的时间)的直方图,用于判断是否过载<br>
+ * 低优先级通道可设置需要让步的高优先级通道,当高优先级通道的排队延迟超过Const.procLatencyTarget时,推迟运行低优先级的任务<br>
+ * 推迟的任务不占用线程,而是1毫秒后重新排队. 推迟的时间单独统计,不计入排队延迟
+ */
+public final class ProcLane implements Executor
+{
+	private static final int HISTOGRAM_SIZE = 32; // 直方图的区间数量. 第i个区间统计的延迟范围是[2^(i-1), 2^i)微秒
+
+	private final class Task implements Runnable
+	{
+		private final Runnable _r;
+		private volatile long  _queueTime = System.nanoTime(); // 最近一次排队的时间
+		private long		   _deferTime;					   // 开始推迟的时间. 0表示还没有推迟过
+
+		Task(Runnable r)
+		{
+			_r = r;
+		}
+
+		@Override
+		public void run()
+		{
+			long now = System.nanoTime();
+			if(_deferTime == 0)
+				onStart(now - _queueTime);
+			ProcLane lane = _yieldTo;
+			if(lane != null && deferFor(lane, now))
+				return;
+			if(_deferTime != 0)
+				_deferNanos += now - _deferTime; // 统计值,不要求精确
+			_r.run();
+		}
+
+		/**
+		 * 高优先级通道过载时1毫秒后重新排队,但最多推迟Const.procDeferMaxTime毫秒,避免低优先级的任务饿死
+		 * @return 是否已推迟
+		 */
+		private boolean deferFor(ProcLane lane, long now)
+		{
+			long target = Const.procLatencyTarget;
+			if(target <= 0 || lane.getLatency() <= target) return false;
+			if(_deferTime == 0)
+			{
+				if(Const.procDeferMaxTime <= 0) return false;
+				_deferTime = now;
+			}
+			else if(now - _deferTime >= Const.procDeferMaxTime * 1_000_000L)
+				return false;
+			++_deferCount; // 统计值,不要求精确
+			NetManager.scheduleMs(1, () ->
+			{
+				_queueTime = System.nanoTime();
+				try
+				{
+					_threads.execute(this);
+				}
+				catch(RejectedExecutionException e)
+				{
+					Log.info("deferred procedure canceled: {}", _name);
+				}
+			});
+			return true;
+		}
+	}
+
+	private final String			 _name;
+	private final ThreadPoolExecutor _threads;
+	private final AtomicLongArray	 _histogram	= new AtomicLongArray(HISTOGRAM_SIZE); // 排队延迟的直方图
+	private volatile long			 _latency;										   // 最近排队延迟的平滑值(纳秒)
+	private volatile long			 _maxLatency;									   // 最长的排队延迟(纳秒)
+	private volatile long			 _deferCount;									   // 因让步而推迟运行的次数(每次1毫秒)
+	private volatile long			 _deferNanos;									   // 因让步而推迟运行的总时间(纳秒)
+	private volatile ProcLane		 _yieldTo;										   // 需要让步的高优先级通道. null表示不让步
+
+	ProcLane(String name, ThreadPoolExecutor threads)
+	{
+		_name = name;
+		_threads = threads;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public ThreadPoolExecutor getThreads()
+	{
+		return _threads;
+	}
+
+	/**
+	 * 设置需要让步的高优先级通道
+	 */
+	void setYieldTo(ProcLane lane)
+	{
+		_yieldTo = lane;
+	}
+
+	@Override
+	public void execute(Runnable r)
+	{
+		_threads.execute(new Task(r));
+	}
+
+	private void onStart(long latency)
+	{
+		int i = 64 - Long.numberOfLeadingZeros(latency / 1000);
+		_histogram.getAndIncrement(i < HISTOGRAM_SIZE ? i : HISTOGRAM_SIZE - 1);
+		long lat = _latency;
+		_latency = lat + ((latency - lat) >> 3); // 统计值,不要求精确
+		if(latency > _maxLatency) _maxLatency = latency;
+	}
+
+	/**
+	 * 获取当前的排队延迟(毫秒)
+	 * <p>
+	 * 取最近排队延迟的平滑值和当前队列中最早的任务已等待时间的较大值. 后者可以在线程全部阻塞时也能及时反映过载<br>
+	 * 队列为空时返回0,避免空闲后仍使用过时的平滑值
+	 */
+	public long getLatency()
+	{
+		BlockingQueue<Runnable> q = _threads.getQueue();
+		Runnable r = q.peek();
+		if(r == null) return 0;
+		long lat = _latency;
+		if(r instanceof Task)
+		{
+			long wait = System.nanoTime() - ((Task)r)._queueTime;
+			if(wait > lat) lat = wait;
+		}
+		return lat / 1_000_000;
+	}
+
+	/**
+	 * 获取最长的排队延迟(毫秒)
+	 */
+	public long getMaxLatency()
+	{
+		return _maxLatency / 1_000_000;
+	}
+
+	/**
+	 * 获取因让步而推迟运行的次数(每次1毫秒)
+	 */
+	public long getDeferCount()
+	{
+		return _deferCount;
+	}
+
+	/**
+	 * 获取因让步而推迟运行的总时间(毫秒). 不计入排队延迟
+	 */
+	public long getDeferTime()
+	{
+		return _deferNanos / 1_000_000;
+	}
+
+	/**
+	 * 获取排队延迟的直方图
+	 * <p>
+	 * 第i个值是排队延迟在[2^(i-1), 2^i)微秒范围内的任务数量,第0个值是小于1微秒的数量
+	 */
+	public long[] getHistogram()
+	{
+		long[] r = new long[HISTOGRAM_SIZE];
+		for(int i = 0; i < HISTOGRAM_SIZE; ++i)
+			r[i] = _histogram.get(i);
+		return r;
+	}
+
+	/**
+	 * 根据直方图估算排队延迟的百分位数(微秒),返回所在区间的上限
+	 * @param percent 百分位,范围(0,100]
+	 */
+	public long getLatencyPercentile(double percent)
+	{
+		long[] h = getHistogram();
+		long total = 0;
+		for(long n : h)
+			total += n;
+		if(total == 0) return 0;
+		long target = (long)Math.ceil(total * percent / 100);
+		for(int i = 0; i < HISTOGRAM_SIZE; ++i)
+		{
+			if((target -= h[i]) <= 0)
+				return 1L << i;
+		}
+		return 1L << (HISTOGRAM_SIZE - 1);
+	}
+
+	@Override
+	public String toString()
+	{
+		return _name + ":threads=" + _threads.getActiveCount() + '/' + _threads.getPoolSize() + ",queue=" + _threads.getQueue().size() +
+				",latency=" + getLatency() + "ms,p50=" + getLatencyPercentile(50) + "us,p99=" + getLatencyPercentile(99) + "us,max=" + getMaxLatency() + "ms,defer=" + getDeferTime() + "ms";
+	}
+}
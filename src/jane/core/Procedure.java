@@ -3,7 +3,9 @@ package jane.core;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 import jane.core.SContext.Safe;
@@ -22,27 +24,383 @@ public abstract class Procedure implements Runnable
 	{
 		private static final long serialVersionUID = 1L;
 
-		final int index;
+		final int			index;
+		private long		holderId	= NO_LOCK_ID;	// 当前/上个持有者加锁时的lockId. 无法得知时为NO_LOCK_ID
+		private Class<?>	holderClass;				// 当前/上个持有者的事务类
+		private Class<?>	blockerClass;				// 最近一次造成等待的持有者事务类
+		private int			waitCount;					// 加锁需要等待的次数
+		private int			collideCount;				// 等待时持有者和自己的lockId不同(即不同的记录共用了此锁)的次数
+		private long		waitNanos;					// 加锁等待的总时间(纳秒)
+		private ProcContext	holderCtx;					// 当前/上个持有者的事务上下文. 用于检测死锁
 
 		IndexLock(int i)
 		{
 			index = i;
 		}
+
+		/**
+		 * 加锁并记录竞争统计
+		 * <p>
+		 * 只在无法直接加锁(需要等待)时才计时和统计,所以不需要等待时的开销很小<br>
+		 * 统计字段只在持有锁时修改,读取时不加锁,只保证大致准确
+		 * @param lockId 未取掩码的lockId(无符号扩展). 无法得知时为NO_LOCK_ID
+		 */
+		private void lockProfiled(long lockId, Procedure proc) throws InterruptedException
+		{
+			if(!tryLock())
+			{
+				long blockerId = holderId;
+				Class<?> blocker = holderClass;
+				long t = System.nanoTime();
+				try
+				{
+					lockWait(proc._ctx);
+				}
+				finally
+				{
+					t = System.nanoTime() - t;
+					_lockWaitNanos.getAndAdd(t);
+				}
+				++waitCount;
+				waitNanos += t;
+				blockerClass = blocker;
+				_lockWaitCount.getAndIncrement();
+				if(lockId != NO_LOCK_ID && blockerId != NO_LOCK_ID && lockId != blockerId)
+				{
+					++collideCount;
+					_lockCollideCount.getAndIncrement();
+				}
+			}
+			holderId = lockId;
+			holderClass = proc.getClass();
+			holderCtx = proc._ctx;
+		}
+
+		/**
+		 * 等待加锁. 每等待Const.deadlockDetectWait毫秒检测一次死锁
+		 * <p>
+		 * 检测时从此锁开始沿着"锁的持有线程=>该线程正在等待的锁"构建等待图,如果回到当前线程则说明有死锁<br>
+		 * 死锁环上的每个线程都会各自检测到同一个环,并选出同一个牺牲者(最晚开始的事务),只有牺牲者抛出Redo异常重做,解锁后其它线程即可继续
+		 */
+		private void lockWait(ProcContext ctx) throws InterruptedException
+		{
+			long wait = Const.deadlockDetectWait;
+			if(wait <= 0)
+			{
+				lockInterruptibly();
+				return;
+			}
+			if(tryLock(wait, TimeUnit.MILLISECONDS)) return;
+			ctx.waitLock = this;
+			try
+			{
+				do
+				{
+					if(isDeadlockVictim(ctx))
+					{
+						Log.info("deadlock detected, redo procedure: {}", ctx.proc);
+						redo();
+					}
+				}
+				while(!tryLock(wait, TimeUnit.MILLISECONDS));
+			}
+			finally
+			{
+				ctx.waitLock = null;
+			}
+		}
+
+		/**
+		 * 判断当前线程是否在死锁环上且是环上应该重做的牺牲者
+		 * <p>
+		 * 读取其它线程的状态时没有加锁,所以只在等待一段时间后调用. 非死锁的误判只会导致多余的重做
+		 */
+		private boolean isDeadlockVictim(ProcContext ctx)
+		{
+			ProcContext victim = ctx;
+			IndexLock lock = this;
+			for(int n = ProcContext.getCount(); n > 0; --n)
+			{
+				Thread owner = lock.getOwner();
+				if(owner == ctx.thread) return victim == ctx;
+				ProcContext octx = (owner instanceof ProcThread ? ((ProcThread)owner).ctx : lock.holderCtx);
+				if(octx == null || octx.thread != owner) return false; // 不是事务线程持有的锁
+				if(octx.isYoungerThan(victim))
+					victim = octx;
+				if((lock = octx.waitLock) == null) return false;
+			}
+			return false; // 当前线程不在环上. 环上的线程会各自检测到
+		}
+
+		void lockProfiled(int lockId, Procedure proc) throws InterruptedException
+		{
+			lockProfiled(lockId & 0xffff_ffffL, proc);
+		}
 	}
 
-	private static final IndexLock[]					 _lockPool	   = new IndexLock[Const.lockPoolSize];			 // 全局共享的锁池
-	private static final AtomicIntegerArray				 _lockVersions = new AtomicIntegerArray(Const.lockPoolSize); // 全局共享的锁版本号池
-	private static final AtomicReferenceArray<IndexLock> _lockCreator  = new AtomicReferenceArray<>(_lockPool);		 // 锁池中锁的线程安全创造器(副本)
-	private static final int							 _lockMask	   = Const.lockPoolSize - 1;					 // 锁池下标的掩码
-	private static final FastRWLock						 _rwlCommit	   = new FastRWLock();							 // 用于数据提交的读写锁
-	private static ExceptionHandler						 _defaultEh;												 // 默认的全局异常处理
+	/**
+	 * 锁池的一页. 锁池由多个页组成,扩大锁池时保留原有的页(锁对象和版本号)并追加新页
+	 */
+	private static final class LockPage
+	{
+		final IndexLock[]						locks		= new IndexLock[LOCK_PAGE_SIZE];				// 此页的锁. 首次使用时创建
+		final AtomicReferenceArray<IndexLock>	creator		= new AtomicReferenceArray<>(LOCK_PAGE_SIZE);	// 锁的线程安全创造器(副本)
+		final AtomicIntegerArray				versions	= new AtomicIntegerArray(LOCK_PAGE_SIZE);		// 锁的版本号
+	}
+
+	/**
+	 * 锁池. 扩大时整体替换,不可变
+	 */
+	private static final class LockPool
+	{
+		final LockPage[] pages; // 锁池的全部页
+		final int		 mask;	// 锁池下标的掩码
+
+		LockPool(LockPage[] oldPages, int size)
+		{
+			int n = Math.max(size >>> LOCK_PAGE_SHIFT, 1);
+			LockPage[] ps = (oldPages != null ? Arrays.copyOf(oldPages, Math.max(n, oldPages.length)) : new LockPage[n]);
+			for(int i = 0; i < n; ++i)
+			{
+				if(ps[i] == null)
+					ps[i] = new LockPage();
+			}
+			pages = ps;
+			mask = size - 1;
+		}
+	}
+
+	/**
+	 * 锁的竞争统计
+	 */
+	public static final class LockStat
+	{
+		public final int	index;			// 锁池中的下标
+		public final int	waitCount;		// 加锁需要等待的次数
+		public final int	collideCount;	// 等待时不同记录共用此锁的次数
+		public final long	waitNanos;		// 加锁等待的总时间(纳秒)
+		public final String	blocker;		// 最近一次造成等待的持有者事务类名
+		public final String	holder;			// 当前/上个持有者的事务类名
 
-	private ProcThread _pt;	 // 事务所属的线程上下文. 只在事务运行中有效
+		LockStat(IndexLock lock)
+		{
+			Class<?> bc = lock.blockerClass;
+			Class<?> hc = lock.holderClass;
+			index = lock.index;
+			waitCount = lock.waitCount;
+			collideCount = lock.collideCount;
+			waitNanos = lock.waitNanos;
+			blocker = (bc != null ? bc.getName() : null);
+			holder = (hc != null ? hc.getName() : null);
+		}
+	}
+
+	private static final long			NO_LOCK_ID					= -1;										// 无法得知lockId时的标记
+	private static final int			LOCK_PAGE_SHIFT				= 10;										// 锁池每页锁数量的位数
+	private static final int			LOCK_PAGE_SIZE				= 1 << LOCK_PAGE_SHIFT;						// 锁池每页的锁数量
+	private static volatile LockPool	_lockPool					= new LockPool(null, Const.lockPoolSize);	// 全局共享的锁池. 只在暂停全部事务时扩大
+	private static final AtomicLong		_lockWaitCount				= new AtomicLong();							// 加锁需要等待的次数统计
+	private static final AtomicLong		_lockWaitNanos				= new AtomicLong();							// 加锁等待的总时间统计(纳秒)
+	private static final AtomicLong		_lockCollideCount			= new AtomicLong();							// 等待时不同记录共用锁的次数统计
+	private static final AtomicLong		_optimisticConflictCount	= new AtomicLong();							// 乐观读的事务提交前校验失败而重做的次数统计
+	private static final AtomicLong		_batchCount					= new AtomicLong();							// 合并加锁批量运行的次数统计
+	private static final AtomicLong		_batchProcCount				= new AtomicLong();							// 合并加锁批量运行成功的事务数量统计
+	private static long					_lockCollideLast;														// 上次调整锁池大小时的_lockCollideCount
+	private static final StripedRWLock	_rwlCommit					= new StripedRWLock();						// 用于数据提交的读写锁
+	private static ExceptionHandler		_defaultEh;																// 默认的全局异常处理
+
+	private ProcContext _ctx; // 事务所属的线程上下文. 只在事务运行中有效
 	private Object	   _sid; // 事务绑定的SessionId
 
 	static void incVersion(int lockId)
 	{
-		_lockVersions.getAndIncrement(lockId & _lockMask);
+		LockPool pool = _lockPool;
+		int lockIdx = lockId & pool.mask;
+		int v = pool.pages[lockIdx >>> LOCK_PAGE_SHIFT].versions.getAndIncrement(lockIdx & (LOCK_PAGE_SIZE - 1));
+		ProcContext ctx = ProcContext.current();
+		if(ctx != null)
+			ctx.onVersionInc(lockIdx, v); // 当前事务自己的修改不应导致乐观读的校验失败
+	}
+
+	/**
+	 * 更新当前线程已加的全部锁的版本号
+	 */
+	static void incLockedVersions()
+	{
+		ProcContext ctx = ProcContext.current();
+		if(ctx == null) return;
+		IndexLock[] locks = ctx.locks;
+		LockPage[] pages = _lockPool.pages;
+		for(int i = 0, n = ctx.lockCount; i < n; ++i)
+		{
+			int lockIdx = locks[i].index;
+			pages[lockIdx >>> LOCK_PAGE_SHIFT].versions.getAndIncrement(lockIdx & (LOCK_PAGE_SIZE - 1));
+		}
+	}
+
+	private static int getVersion(int lockIdx)
+	{
+		return _lockPool.pages[lockIdx >>> LOCK_PAGE_SHIFT].versions.get(lockIdx & (LOCK_PAGE_SIZE - 1));
+	}
+
+	private static int lockMask()
+	{
+		return _lockPool.mask;
+	}
+
+	/**
+	 * 获取当前锁池的大小
+	 */
+	public static int getLockPoolSize()
+	{
+		return _lockPool.mask + 1;
+	}
+
+	public static long getLockWaitCount()
+	{
+		return _lockWaitCount.get();
+	}
+
+	public static long getLockWaitNanos()
+	{
+		return _lockWaitNanos.get();
+	}
+
+	public static long getLockCollideCount()
+	{
+		return _lockCollideCount.get();
+	}
+
+	/**
+	 * 获取等待时间最多的若干个锁的竞争统计
+	 * <p>
+	 * 需要遍历整个锁池,不宜频繁调用. 用于找出热点记录和判断锁池是否过小
+	 */
+	public static ArrayList<LockStat> getTopLockStats(int count)
+	{
+		ArrayList<LockStat> stats = new ArrayList<>();
+		for(LockPage page : _lockPool.pages)
+		{
+			for(IndexLock lock : page.locks)
+			{
+				if(lock != null && lock.waitCount > 0)
+					stats.add(new LockStat(lock));
+			}
+		}
+		stats.sort((a, b) -> Long.compare(b.waitNanos, a.waitNanos));
+		if(stats.size() > count)
+			stats.subList(count, stats.size()).clear();
+		return stats;
+	}
+
+	/**
+	 * 根据锁竞争统计调整锁池的大小
+	 * <p>
+	 * 如果距上次调整期间不同记录共用锁而等待的次数达到Const.lockPoolGrowCount,则锁池扩大一倍,直到Const.lockPoolMaxSize<br>
+	 * 扩大后原来共用一个锁的记录会分散到两个锁上. 同一记录的竞争不会因扩大而减少,所以不计入<br>
+	 * 只能在提交线程加提交的写锁期间(没有任何事务在运行)调用. 事务外持有记录锁的预读也会加提交的读锁({@link #readLockOutside})
+	 */
+	static void adjustLockPool()
+	{
+		long collideCount = _lockCollideCount.get();
+		long n = collideCount - _lockCollideLast;
+		_lockCollideLast = collideCount;
+		LockPool pool = _lockPool;
+		int size = pool.mask + 1;
+		if(n >= Const.lockPoolGrowCount && size < Const.lockPoolMaxSize)
+		{
+			_lockPool = new LockPool(pool.pages, size << 1);
+			Log.info("lock pool grown: {} => {} (collide={})", size, size << 1, n);
+		}
+	}
+
+	public static long getOptimisticConflictCount()
+	{
+		return _optimisticConflictCount.get();
+	}
+
+	/**
+	 * 获取合并加锁批量运行的次数统计
+	 */
+	public static long getBatchCount()
+	{
+		return _batchCount.get();
+	}
+
+	/**
+	 * 获取合并加锁批量运行的事务数量统计. 和{@link #getBatchCount}的比值即平均每次加锁运行的事务数量
+	 */
+	public static long getBatchProcCount()
+	{
+		return _batchProcCount.get();
+	}
+
+	/**
+	 * 乐观读一个lockId对应的记录前调用
+	 * <p>
+	 * 乐观模式下不加锁,只记下当前的锁版本号,在事务提交前校验. 非乐观模式(见Const.optimisticMaxRedo)下等同于{@link #appendLock}<br>
+	 * 非乐观模式下如果加锁数量已达到Const.maxLockPerProcedure,则仍然使用乐观读
+	 */
+	final void readOptimistic(int lockId) throws InterruptedException
+	{
+		ProcContext ctx = _ctx;
+		if(ctx == null) throw new IllegalStateException("invalid optimistic read out of procedure");
+		if(!ctx.optimistic && ctx.lockCount < Const.maxLockPerProcedure) // 加锁数量已满则仍然使用乐观读
+		{
+			appendLock(lockId);
+			return;
+		}
+		int lockIdx = lockId & lockMask();
+		if(!getLock(lockIdx).isHeldByCurrentThread())
+			ctx.addRead(lockIdx, getVersion(lockIdx));
+	}
+
+	/**
+	 * 首次修改乐观读的记录时升级为加锁
+	 * <p>
+	 * 已有修改后无法重排加锁时,则以加锁模式重做
+	 * @return 是否已升级. 非乐观读的记录返回false
+	 */
+	static boolean upgradeLock(int lockId)
+	{
+		ProcContext ctx = ProcContext.current();
+		if(ctx == null) return false;
+		Procedure proc = ctx.proc;
+		if(proc == null || !ctx.hasRead(lockId & lockMask())) return false;
+		try
+		{
+			proc.appendLock(lockId);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("upgrade lock interrupted: " + proc, e);
+		}
+		catch(IllegalStateException e)
+		{
+			ctx.optimistic = false;
+			redo();
+		}
+		return true;
+	}
+
+	/**
+	 * 校验当前事务乐观读过的记录在读取后没有被其它事务修改,且没有被其它事务加锁(可能正在修改)
+	 * <p>
+	 * 先判断锁再判断版本号,这样不会漏掉判断锁之前已解锁的修改
+	 */
+	private static boolean validateReads(ProcContext ctx)
+	{
+		int[] idxes = ctx.readIdxes;
+		int[] versions = ctx.readVersions;
+		for(int i = 0, n = ctx.readCount; i < n; ++i)
+		{
+			int lockIdx = idxes[i];
+			IndexLock lock = getLock(lockIdx);
+			if(lock.isLocked() && !lock.isHeldByCurrentThread()) return false;
+			if(getVersion(lockIdx) != versions[i]) return false;
+		}
+		return true;
 	}
 
 	/**
@@ -60,6 +418,24 @@ public abstract class Procedure implements Runnable
 		_rwlCommit.writeUnlock();
 	}
 
+	/**
+	 * 在事务外加提交的读锁
+	 * <p>
+	 * 用于事务外需要持有记录锁的操作(如预读),使提交线程不会在此期间调整锁池. 事务中已持有读锁,不再重复加锁
+	 * @return 是否加了读锁. 返回true时需要调用{@link #readUnlock}解锁
+	 */
+	static boolean readLockOutside()
+	{
+		if(getCurProcedure() != null) return false;
+		_rwlCommit.readLock();
+		return true;
+	}
+
+	static void readUnlock()
+	{
+		_rwlCommit.readUnlock();
+	}
+
 	/**
 	 * 设置当前默认的异常处理器
 	 */
@@ -73,8 +449,8 @@ public abstract class Procedure implements Runnable
 	 */
 	public static Procedure getCurProcedure()
 	{
-		Thread t = Thread.currentThread();
-		return t instanceof ProcThread ? ((ProcThread)t).proc : null;
+		ProcContext ctx = ProcContext.current();
+		return ctx != null ? ctx.proc : null;
 	}
 
 	/**
@@ -97,12 +473,12 @@ public abstract class Procedure implements Runnable
 
 	protected final void addOnCommit(Runnable r)
 	{
-		_pt.sctx.addOnCommit(r);
+		_ctx.sctx.addOnCommit(r);
 	}
 
 	protected final void addOnRollback(Runnable r)
 	{
-		_pt.sctx.addOnRollback(r);
+		_ctx.sctx.addOnRollback(r);
 	}
 
 	/**
@@ -113,9 +489,9 @@ public abstract class Procedure implements Runnable
 	 */
 	protected final synchronized void setUnintterrupted()
 	{
-		ProcThread pt = _pt;
-		if(pt != null)
-			pt.beginTime = Long.MAX_VALUE;
+		ProcContext ctx = _ctx;
+		if(ctx != null)
+			ctx.beginTime = Long.MAX_VALUE;
 	}
 
 	@SuppressWarnings("serial")
@@ -253,12 +629,18 @@ public abstract class Procedure implements Runnable
 	 */
 	protected final void unlock()
 	{
-		ProcThread pt = _pt;
-		if(pt == null) throw new IllegalStateException("invalid lock/unlock out of procedure");
-		int lockCount = pt.lockCount;
-		if(lockCount == 0) return;
-		if(pt.sctx.hasDirty()) throw new IllegalStateException("invalid unlock after any dirty record");
-		IndexLock[] locks = pt.locks;
+		ProcContext ctx = _ctx;
+		if(ctx == null) throw new IllegalStateException("invalid lock/unlock out of procedure");
+		if(ctx.batching) redo(); // 批量运行中不能释放同批共用的锁,改为单独重做
+		if(ctx.lockCount == 0) return;
+		if(ctx.sctx.hasDirty()) throw new IllegalStateException("invalid unlock after any dirty record");
+		unlockAll(ctx);
+	}
+
+	private static void unlockAll(ProcContext ctx)
+	{
+		int lockCount = ctx.lockCount;
+		IndexLock[] locks = ctx.locks;
 		for(int i = lockCount - 1; i >= 0; --i)
 		{
 			try
@@ -270,7 +652,7 @@ public abstract class Procedure implements Runnable
 				Log.error("UNLOCK FAILED!!!", e);
 			}
 		}
-		pt.lockCount = 0;
+		ctx.lockCount = 0;
 	}
 
 	/**
@@ -278,11 +660,13 @@ public abstract class Procedure implements Runnable
 	 */
 	private static IndexLock getLock(int lockIdx)
 	{
-		IndexLock lock = _lockPool[lockIdx];
+		LockPage page = _lockPool.pages[lockIdx >>> LOCK_PAGE_SHIFT];
+		int i = lockIdx & (LOCK_PAGE_SIZE - 1);
+		IndexLock lock = page.locks[i];
 		if(lock != null) return lock;
-		if(!_lockCreator.compareAndSet(lockIdx, null, lock = new IndexLock(lockIdx))) // ensure init lock object only once
-			lock = _lockCreator.get(lockIdx); // should not be null
-		_lockPool[lockIdx] = lock; // still safe when overwritten
+		if(!page.creator.compareAndSet(i, null, lock = new IndexLock(lockIdx))) // ensure init lock object only once
+			lock = page.creator.get(i); // should not be null
+		page.locks[i] = lock; // still safe when overwritten
 		return lock;
 	}
 
@@ -291,7 +675,19 @@ public abstract class Procedure implements Runnable
 	 */
 	public static boolean isLocked(int lockId)
 	{
-		return getLock(lockId & _lockMask).isLocked();
+		return getLock(lockId & lockMask()).isLocked();
+	}
+
+	/**
+	 * 乐观读的记录不在缓存中时升级为加锁,加锁后从存储读取的记录才能加入缓存
+	 * @return 是否已持有此锁. 加锁数量已满时返回false,此时只能不经过缓存读取
+	 */
+	static boolean upgradeLockForLoad(int lockId)
+	{
+		ProcContext ctx = ProcContext.current();
+		if(ctx == null || ctx.lockCount >= Const.maxLockPerProcedure) return false;
+		upgradeLock(lockId);
+		return isLockedByCurrentThread(lockId);
 	}
 
 	/**
@@ -299,7 +695,7 @@ public abstract class Procedure implements Runnable
 	 */
 	public static boolean isLockedByCurrentThread(int lockId)
 	{
-		return getLock(lockId & _lockMask).isHeldByCurrentThread();
+		return getLock(lockId & lockMask()).isHeldByCurrentThread();
 	}
 
 	/**
@@ -309,7 +705,7 @@ public abstract class Procedure implements Runnable
 	 */
 	static IndexLock tryLock(int lockId)
 	{
-		IndexLock lock = getLock(lockId & _lockMask);
+		IndexLock lock = getLock(lockId & lockMask());
 		return lock.tryLock() ? lock : null;
 	}
 
@@ -322,9 +718,9 @@ public abstract class Procedure implements Runnable
 	protected final void lock(int lockId) throws InterruptedException
 	{
 		unlock();
-		ProcThread pt = _pt;
-		(pt.locks[0] = getLock(lockId & _lockMask)).lockInterruptibly();
-		pt.lockCount = 1;
+		ProcContext ctx = _ctx;
+		(ctx.locks[0] = getLock(lockId & lockMask())).lockProfiled(lockId, this);
+		ctx.lockCount = 1;
 	}
 
 	/**
@@ -335,16 +731,17 @@ public abstract class Procedure implements Runnable
 	 */
 	protected final void appendLock(int lockId) throws InterruptedException
 	{
-		final ProcThread pt = _pt;
-		if(pt == null) throw new IllegalStateException("invalid appendLock out of procedure");
-		final IndexLock[] locks = pt.locks;
-		final int lockIdx = lockId & _lockMask;
-		final int n = pt.lockCount;
+		final ProcContext ctx = _ctx;
+		if(ctx == null) throw new IllegalStateException("invalid appendLock out of procedure");
+		final IndexLock[] locks = ctx.locks;
+		final int lockIdx = lockId & lockMask();
+		final int n = ctx.lockCount;
 		IndexLock lock = getLock(lockIdx);
+		if(ctx.batching && !lock.isHeldByCurrentThread()) redo(); // 批量运行中不能追加锁,改为单独重做
 		if(n == 0)
 		{
-			(locks[0] = lock).lockInterruptibly(); // 之前没有加任何锁则可以直接加锁
-			pt.lockCount = 1;
+			(locks[0] = lock).lockProfiled(lockId, this); // 之前没有加任何锁则可以直接加锁
+			ctx.lockCount = 1;
 			return;
 		}
 		IndexLock lastLock = locks[n - 1];
@@ -355,8 +752,8 @@ public abstract class Procedure implements Runnable
 			{
 				if(n >= Const.maxLockPerProcedure)
 					throw new IllegalStateException("appendLock exceed: " + (n + 1) + '>' + Const.maxLockPerProcedure);
-				(locks[n] = lock).lockInterruptibly(); // 要加的锁比之前的锁都大则直接加锁
-				pt.lockCount = n + 1;
+				(locks[n] = lock).lockProfiled(lockId, this); // 要加的锁比之前的锁都大则直接加锁
+				ctx.lockCount = n + 1;
 			}
 			return;
 		}
@@ -377,39 +774,71 @@ public abstract class Procedure implements Runnable
 			for(int j = n - 1; j >= i; --j)
 				locks[j + 1] = locks[j];
 			locks[i] = lock;
-			pt.lockCount = n + 1;
+			ctx.lockCount = n + 1;
 			return;
 		}
-		if(pt.sctx.hasDirty()) // 必须要解部分锁了,所以确保之前不能有修改操作
+		if(ctx.sctx.hasDirty()) // 必须要解部分锁了,所以确保之前不能有修改操作
 			throw new IllegalStateException("invalid appendLock after any dirty record");
-		final int[] versions = pt.versions;
+		final int[] versions = ctx.versions;
+		final long[] holderIds = ctx.lockKeys;
 		for(int j = n - 1; j >= i; --j)
 		{
 			lastLock = locks[j];
-			versions[j] = _lockVersions.get(lastLock.index);
+			versions[j] = getVersion(lastLock.index);
+			holderIds[j] = lastLock.holderId; // 重新加锁时仍使用原来的lockId统计竞争
 			lastLock.unlock(); // 尝试解所有比当前锁大的锁
 		}
-		pt.lockCount = i;
-		(locks[i] = lock).lockInterruptibly(); // 加当前锁
-		pt.lockCount = ++i;
+		ctx.lockCount = i;
+		(locks[i] = lock).lockProfiled(lockId, this); // 加当前锁
+		ctx.lockCount = ++i;
 		for(;;)
 		{
 			lock = locks[i];
-			(locks[i] = lastLock).lockInterruptibly(); // 继续加比当前锁大的所有锁
-			pt.lockCount = ++i;
-			if(_lockVersions.get(lastLock.index) != versions[i - 2])
+			(locks[i] = lastLock).lockProfiled(holderIds[i - 1], this); // 继续加比当前锁大的所有锁
+			ctx.lockCount = ++i;
+			if(getVersion(lastLock.index) != versions[i - 2])
 				redo(); // 发现解锁和加锁期间有版本变化则回滚重做
 			if(i > n) return;
 			lastLock = lock;
 		}
 	}
 
+	/**
+	 * 组合加锁排序用的key. 高32位是取掩码后的锁下标,低32位是未取掩码的lockId(用于统计不同记录共用锁的竞争)<br>
+	 * 按key排序即按锁下标排序
+	 */
+	private static long lockKey(int lockId, int lockMask)
+	{
+		return (long)(lockId & lockMask) << 32 | (lockId & 0xffff_ffffL);
+	}
+
+	/**
+	 * 按lockKey追加加锁,只用于已排好序的加锁
+	 */
+	private void lockByKey(ProcContext ctx, long key) throws InterruptedException
+	{
+		int i = ctx.lockCount;
+		(ctx.locks[i] = getLock((int)(key >>> 32))).lockProfiled(key & 0xffff_ffffL, this);
+		ctx.lockCount = i + 1;
+	}
+
+	/**
+	 * 加锁已放在ctx.lockKeys中的n个lockKey
+	 */
+	private void lockByKeys(ProcContext ctx, int n) throws InterruptedException
+	{
+		long[] keys = ctx.lockKeys;
+		Arrays.sort(keys, 0, n);
+		for(int i = 0; i < n; ++i)
+			lockByKey(ctx, keys[i]);
+	}
+
 	/**
 	 * 加锁一组lockId
 	 * <p>
 	 * lockId通过{@link Table}/{@link TableLong}的lockId方法获取<br>
 	 * 只能在事务中调用, 加锁前会释放当前事务已经加过的锁
-	 * @param lockIds 注意此数组内的元素会被修改和排序
+	 * @param lockIds 此数组内的元素不会改动
 	 */
 	protected final void lock(int[] lockIds) throws InterruptedException
 	{
@@ -417,16 +846,12 @@ public abstract class Procedure implements Runnable
 		int n = lockIds.length;
 		if(n > Const.maxLockPerProcedure)
 			throw new IllegalStateException("lock exceed: " + n + '>' + Const.maxLockPerProcedure);
+		int lockMask = lockMask();
+		ProcContext ctx = _ctx;
+		long[] keys = ctx.lockKeys;
 		for(int i = 0; i < n; ++i)
-			lockIds[i] &= _lockMask;
-		Arrays.sort(lockIds);
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		for(int i = 0; i < n;)
-		{
-			(locks[i] = getLock(lockIds[i])).lockInterruptibly();
-			pt.lockCount = ++i;
-		}
+			keys[i] = lockKey(lockIds[i], lockMask);
+		lockByKeys(ctx, n);
 	}
 
 	/**
@@ -442,27 +867,21 @@ public abstract class Procedure implements Runnable
 		int n = lockIds.size();
 		if(n > Const.maxLockPerProcedure)
 			throw new IllegalStateException("lock exceed: " + n + '>' + Const.maxLockPerProcedure);
-		int[] idxes = new int[n];
-		int i = 0;
+		int i = 0, lockMask = lockMask();
+		ProcContext ctx = _ctx;
+		long[] keys = ctx.lockKeys;
 		if(lockIds instanceof ArrayList)
 		{
 			ArrayList<Integer> lockList = (ArrayList<Integer>)lockIds;
 			for(; i < n; ++i)
-				idxes[i] = lockList.get(i) & _lockMask;
+				keys[i] = lockKey(lockList.get(i), lockMask);
 		}
 		else
 		{
 			for(int lockId : lockIds)
-				idxes[i++] = lockId & _lockMask;
-		}
-		Arrays.sort(idxes);
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		for(i = 0; i < n;)
-		{
-			(locks[i] = getLock(idxes[i])).lockInterruptibly();
-			pt.lockCount = ++i;
+				keys[i++] = lockKey(lockId, lockMask);
 		}
+		lockByKeys(ctx, n);
 	}
 
 	/**
@@ -488,24 +907,18 @@ public abstract class Procedure implements Runnable
 	 * 内部用于排序加锁2个lockId
 	 * <p>
 	 */
-	private void lock2(int lockIdx0, int lockIdx1) throws InterruptedException
+	private void lock2(long lockKey0, long lockKey1) throws InterruptedException
 	{
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		int i = pt.lockCount;
-		if(lockIdx0 < lockIdx1)
+		ProcContext ctx = _ctx;
+		if(lockKey0 < lockKey1)
 		{
-			(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-			pt.lockCount = ++i;
-			(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-			pt.lockCount = ++i;
+			lockByKey(ctx, lockKey0);
+			lockByKey(ctx, lockKey1);
 		}
 		else
 		{
-			(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-			pt.lockCount = ++i;
-			(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-			pt.lockCount = ++i;
+			lockByKey(ctx, lockKey1);
+			lockByKey(ctx, lockKey0);
 		}
 	}
 
@@ -513,45 +926,35 @@ public abstract class Procedure implements Runnable
 	 * 内部用于排序加锁3个lockId
 	 * <p>
 	 */
-	private void lock3(int lockIdx0, int lockIdx1, int lockIdx2) throws InterruptedException
+	private void lock3(long lockKey0, long lockKey1, long lockKey2) throws InterruptedException
 	{
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		int i = pt.lockCount;
-		if(lockIdx0 <= lockIdx1)
+		ProcContext ctx = _ctx;
+		if(lockKey0 <= lockKey1)
 		{
-			if(lockIdx0 < lockIdx2)
+			if(lockKey0 < lockKey2)
 			{
-				(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-				pt.lockCount = ++i;
-				lock2(lockIdx1, lockIdx2);
+				lockByKey(ctx, lockKey0);
+				lock2(lockKey1, lockKey2);
 			}
 			else
 			{
-				(locks[i] = getLock(lockIdx2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockByKey(ctx, lockKey2);
+				lockByKey(ctx, lockKey0);
+				lockByKey(ctx, lockKey1);
 			}
 		}
 		else
 		{
-			if(lockIdx1 < lockIdx2)
+			if(lockKey1 < lockKey2)
 			{
-				(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-				pt.lockCount = ++i;
-				lock2(lockIdx0, lockIdx2);
+				lockByKey(ctx, lockKey1);
+				lock2(lockKey0, lockKey2);
 			}
 			else
 			{
-				(locks[i] = getLock(lockIdx2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx1)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockIdx0)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockByKey(ctx, lockKey2);
+				lockByKey(ctx, lockKey1);
+				lockByKey(ctx, lockKey0);
 			}
 		}
 	}
@@ -566,7 +969,8 @@ public abstract class Procedure implements Runnable
 	protected final void lock(int lockId0, int lockId1) throws InterruptedException
 	{
 		unlock();
-		lock2(lockId0 & _lockMask, lockId1 & _lockMask);
+		int lockMask = lockMask();
+		lock2(lockKey(lockId0, lockMask), lockKey(lockId1, lockMask));
 	}
 
 	/**
@@ -579,7 +983,8 @@ public abstract class Procedure implements Runnable
 	protected final void lock(int lockId0, int lockId1, int lockId2) throws InterruptedException
 	{
 		unlock();
-		lock3(lockId0 & _lockMask, lockId1 & _lockMask, lockId2 & _lockMask);
+		int lockMask = lockMask();
+		lock3(lockKey(lockId0, lockMask), lockKey(lockId1, lockMask), lockKey(lockId2, lockMask));
 	}
 
 	/**
@@ -592,113 +997,88 @@ public abstract class Procedure implements Runnable
 	protected final void lock(int lockId0, int lockId1, int lockId2, int lockId3) throws InterruptedException
 	{
 		unlock();
-		lockId0 &= _lockMask;
-		lockId1 &= _lockMask;
-		lockId2 &= _lockMask;
-		lockId3 &= _lockMask;
-		ProcThread pt = _pt;
-		IndexLock[] locks = pt.locks;
-		int i = 0;
-		if(lockId0 <= lockId1)
-		{
-			if(lockId0 < lockId2)
+		int lockMask = lockMask();
+		long lockKey0 = lockKey(lockId0, lockMask);
+		long lockKey1 = lockKey(lockId1, lockMask);
+		long lockKey2 = lockKey(lockId2, lockMask);
+		long lockKey3 = lockKey(lockId3, lockMask);
+		ProcContext ctx = _ctx;
+		if(lockKey0 <= lockKey1)
+		{
+			if(lockKey0 < lockKey2)
 			{
-				if(lockId0 < lockId3)
+				if(lockKey0 < lockKey3)
 				{
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
-					lock3(lockId1, lockId2, lockId3);
+					lockByKey(ctx, lockKey0);
+					lock3(lockKey1, lockKey2, lockKey3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
-					lock2(lockId1, lockId2);
+					lockByKey(ctx, lockKey3);
+					lockByKey(ctx, lockKey0);
+					lock2(lockKey1, lockKey2);
 				}
 			}
-			else if(lockId2 < lockId3)
+			else if(lockKey2 < lockKey3)
 			{
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				if(lockId0 < lockId3)
+				lockByKey(ctx, lockKey2);
+				if(lockKey0 < lockKey3)
 				{
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
-					lock2(lockId1, lockId3);
+					lockByKey(ctx, lockKey0);
+					lock2(lockKey1, lockKey3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockByKey(ctx, lockKey3);
+					lockByKey(ctx, lockKey0);
+					lockByKey(ctx, lockKey1);
 				}
 			}
 			else
 			{
-				(locks[i] = getLock(lockId3)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId0)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId1)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockByKey(ctx, lockKey3);
+				lockByKey(ctx, lockKey2);
+				lockByKey(ctx, lockKey0);
+				lockByKey(ctx, lockKey1);
 			}
 		}
 		else
 		{
-			if(lockId1 < lockId2)
+			if(lockKey1 < lockKey2)
 			{
-				if(lockId1 < lockId3)
+				if(lockKey1 < lockKey3)
 				{
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
-					lock3(lockId0, lockId2, lockId3);
+					lockByKey(ctx, lockKey1);
+					lock3(lockKey0, lockKey2, lockKey3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
-					lock2(lockId0, lockId2);
+					lockByKey(ctx, lockKey3);
+					lockByKey(ctx, lockKey1);
+					lock2(lockKey0, lockKey2);
 				}
 			}
-			else if(lockId2 < lockId3)
+			else if(lockKey2 < lockKey3)
 			{
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				if(lockId1 < lockId3)
+				lockByKey(ctx, lockKey2);
+				if(lockKey1 < lockKey3)
 				{
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
-					lock2(lockId0, lockId3);
+					lockByKey(ctx, lockKey1);
+					lock2(lockKey0, lockKey3);
 				}
 				else
 				{
-					(locks[i] = getLock(lockId3)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId1)).lockInterruptibly();
-					pt.lockCount = ++i;
-					(locks[i] = getLock(lockId0)).lockInterruptibly();
-					pt.lockCount = ++i;
+					lockByKey(ctx, lockKey3);
+					lockByKey(ctx, lockKey1);
+					lockByKey(ctx, lockKey0);
 				}
 			}
 			else
 			{
-				(locks[i] = getLock(lockId3)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId2)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId1)).lockInterruptibly();
-				pt.lockCount = ++i;
-				(locks[i] = getLock(lockId0)).lockInterruptibly();
-				pt.lockCount = ++i;
+				lockByKey(ctx, lockKey3);
+				lockByKey(ctx, lockKey2);
+				lockByKey(ctx, lockKey1);
+				lockByKey(ctx, lockKey0);
 			}
 		}
 	}
@@ -724,7 +1104,7 @@ public abstract class Procedure implements Runnable
 	/**
 	 * 事务的运行入口
 	 * <p>
-	 * 必须在ProcThread类的线程上运行. 一般应通过调度来运行({@link DBManager#submit})<br>
+	 * 必须在ProcThread类的线程或ProcThread.newVirtualThreadFactory创建的线程上运行. 一般应通过调度来运行({@link DBManager#submit})<br>
 	 * 如果确保没有顺序问题,也可以由用户直接调用,但不能在事务中嵌套调用
 	 */
 	public boolean execute() throws Exception
@@ -734,37 +1114,49 @@ public abstract class Procedure implements Runnable
 			Log.info("procedure canceled: " + toString());
 			return false;
 		}
-		ProcThread pt = (ProcThread)Thread.currentThread();
-		SContext sctx = pt.sctx;
+		ProcContext ctx = ProcContext.current();
+		if(ctx == null) throw new IllegalStateException("procedure must run in procedure thread: " + toString());
+		SContext sctx = ctx.sctx;
 		_rwlCommit.readLock();
 		try
 		{
-			synchronized(this)
-			{
-				if(pt.proc != null) // 防止嵌套调用
-					throw new IllegalStateException("procedure can not be reentrant: " + toString());
-				if(_pt != null) // 防止多线程并发
-					throw new IllegalStateException("procedure is running already: " + toString());
-				pt.beginTime = NetManager.getTimeSec();
-				pt.proc = this;
-				_pt = pt;
-			}
-			for(int n = Const.maxProceduerRedo;;)
+			bind(ctx);
+			int[] lockIds = declareLockIds();
+			ctx.optimistic = (Const.optimisticMaxRedo > 0);
+			for(int n = Const.maxProceduerRedo, conflicts = 0;;)
 			{
+				boolean conflict = false;
 				try
 				{
+					if(lockIds != null)
+						lock(lockIds.clone());
 					onProcess();
-					break;
+					if(validateReads(ctx)) break;
+					conflict = true;
 				}
 				catch(Redo e)
 				{
 				}
+				catch(Throwable e) // 乐观读到不一致的记录可能导致异常,此时如果校验失败则重做
+				{
+					if(validateReads(ctx)) throw e;
+					conflict = true;
+				}
+				ctx.readCount = 0;
 				sctx.rollback();
 				unlock();
 				if(--n <= 0)
 					throw new Exception("procedure redo too many times=" + Const.maxProceduerRedo + ": " + toString());
-				Log.info("procedure redo({}): {}", Const.maxProceduerRedo - n, toString());
+				if(conflict)
+				{
+					_optimisticConflictCount.getAndIncrement();
+					if(++conflicts >= Const.optimisticMaxRedo)
+						ctx.optimistic = false; // 冲突过多则改为加锁模式重做
+				}
+				else
+					Log.info("procedure redo({}): {}", Const.maxProceduerRedo - n, toString());
 			}
+			ctx.readCount = 0;
 			sctx.commit();
 			return true;
 		}
@@ -772,14 +1164,7 @@ public abstract class Procedure implements Runnable
 		{
 			try
 			{
-				if(e instanceof InterruptedException && DBManager.instance().isExiting())
-					Log.info("procedure canceled: " + toString());
-				else if(e != Undo._instance)
-					onException(e);
-			}
-			catch(Throwable ex)
-			{
-				Log.error("procedure.onException exception: " + toString(), ex);
+				handleException(e);
 			}
 			finally
 			{
@@ -789,17 +1174,195 @@ public abstract class Procedure implements Runnable
 		}
 		finally
 		{
+			ctx.readCount = 0;
 			unlock();
-			synchronized(this)
+			unbind(ctx);
+			_rwlCommit.readUnlock();
+		}
+	}
+
+	/**
+	 * 批量运行声明了相同锁集合({@link #declareLockIds})的一组事务
+	 * <p>
+	 * 只加一次锁,全部运行完后只提交一次. 每个事务运行前设置SContext的保存点,运行失败时只回滚自身的修改<br>
+	 * 需要追加其它锁或需要重做的事务,会在批量提交并解锁后单独运行<br>
+	 * 批量提交失败时整批回滚,已在批中运行成功的事务和尚未运行的事务也都单独重新运行
+	 * @param lockIds 这组事务共同的锁集合
+	 */
+	static void executeBatch(Procedure[] procs, int n, int[] lockIds)
+	{
+		if(DBManager.instance().isExiting())
+		{
+			for(int i = 0; i < n; ++i)
+				Log.info("procedure canceled: " + procs[i].toString());
+			return;
+		}
+		ProcContext ctx = ProcContext.current();
+		if(ctx == null) throw new IllegalStateException("procedure must run in procedure thread: " + procs[0].toString());
+		SContext sctx = ctx.sctx;
+		int redoCount = 0; // 需要单独重做的事务数量,这些事务依次移到procs的前部
+		int okEnd = 0; // procs[redoCount,okEnd)是在批中运行成功的事务,[okEnd,i)是已运行且不需要再运行的事务
+		int i = 0; // procs[i,n)是尚未运行的事务
+		boolean committed = false;
+		_rwlCommit.readLock();
+		try
+		{
+			Procedure first = procs[0];
+			first.bind(ctx);
+			try
+			{
+				first.lock(lockIds.clone());
+			}
+			catch(Throwable e) // 加锁时被打断或被选为死锁的牺牲者,则全部单独运行
 			{
-				_pt = null;
-				pt.proc = null;
-				Thread.interrupted(); // 清除interrupted标识
+				unlockAll(ctx);
+				return;
+			}
+			finally
+			{
+				first.unbind(ctx);
+			}
+			ctx.optimistic = false;
+			ctx.batching = true;
+			for(; i < n; ++i)
+			{
+				Procedure p = procs[i];
+				try
+				{
+					p.bind(ctx);
+				}
+				catch(IllegalStateException e)
+				{
+					Log.error("procedure batch exception:", e);
+					continue;
+				}
+				boolean redo = false, ok = false;
+				sctx.savepoint();
+				try
+				{
+					p.onProcess();
+					ok = validateReads(ctx);
+					redo = !ok;
+				}
+				catch(Redo e)
+				{
+					redo = true;
+				}
+				catch(Throwable e)
+				{
+					if(validateReads(ctx))
+					{
+						try
+						{
+							p.handleException(e);
+						}
+						finally
+						{
+							sctx.rollbackToSavepoint();
+						}
+					}
+					else
+						redo = true;
+				}
+				finally
+				{
+					ctx.readCount = 0;
+					p.unbind(ctx);
+				}
+				if(redo)
+				{
+					sctx.rollbackToSavepoint();
+					procs[i] = procs[okEnd]; // 保持procs中的事务不变,只调整顺序
+					procs[okEnd++] = procs[redoCount];
+					procs[redoCount++] = p;
+				}
+				else if(ok)
+				{
+					procs[i] = procs[okEnd];
+					procs[okEnd++] = p;
+				}
 			}
+			ctx.batching = false;
+			_batchCount.getAndIncrement();
+			_batchProcCount.getAndAdd(n - redoCount);
+			sctx.commit();
+			committed = true;
+		}
+		catch(Throwable e)
+		{
+			Log.error("procedure batch fatal exception:", e);
+			sctx.rollback();
+		}
+		finally
+		{
+			ctx.batching = false;
+			ctx.readCount = 0;
+			unlockAll(ctx);
 			_rwlCommit.readUnlock();
+			if(!committed) // 没有完成批量提交则整批已回滚,在批中运行成功的和尚未运行的事务也需要单独运行
+			{
+				while(i < n)
+					procs[okEnd++] = procs[i++];
+				redoCount = okEnd;
+			}
+			for(int j = 0; j < redoCount; ++j)
+				procs[j].run();
 		}
 	}
 
+	private void bind(ProcContext ctx)
+	{
+		synchronized(this)
+		{
+			if(ctx.proc != null) // 防止嵌套调用
+				throw new IllegalStateException("procedure can not be reentrant: " + toString());
+			if(_ctx != null) // 防止多线程并发
+				throw new IllegalStateException("procedure is running already: " + toString());
+			ctx.beginTime = NetManager.getTimeSec();
+			ctx.beginNanoTime = System.nanoTime();
+			ctx.proc = this;
+			_ctx = ctx;
+		}
+	}
+
+	private void unbind(ProcContext ctx)
+	{
+		synchronized(this)
+		{
+			if(_ctx != ctx) return;
+			_ctx = null;
+			ctx.proc = null;
+			Thread.interrupted(); // 清除interrupted标识
+		}
+	}
+
+	private void handleException(Throwable e)
+	{
+		try
+		{
+			if(e instanceof InterruptedException && DBManager.instance().isExiting())
+				Log.info("procedure canceled: " + toString());
+			else if(e != Undo._instance)
+				onException(e);
+		}
+		catch(Throwable ex)
+		{
+			Log.error("procedure.onException exception: " + toString(), ex);
+		}
+	}
+
+	/**
+	 * 可由子类声明的事务锁集合
+	 * <p>
+	 * 返回非null时,每次运行onProcess前会自动加这些锁,onProcess中不应再调用lock/unlock<br>
+	 * Const.maxBatchLockProcedure大于0时,排队中声明了相同锁集合的事务会合并到一次加锁和一次提交中运行({@link DBManager#submit})<br>
+	 * lockId通过{@link Table}/{@link TableLong}的lockId方法获取. 排队后的结果不能再改变,返回的数组不会被修改
+	 */
+	protected int[] declareLockIds()
+	{
+		return null;
+	}
+
 	/**
 	 * 由子类实现的事务
 	 */
@@ -0,0 +1,407 @@
+package jane.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import jane.core.map.IntHashMap;
+
+/**
+ * 数据库的重做日志(WAL)
+ * <p>
+ * 记录两次checkpoint之间每个事务提交的记录完整值,崩溃后重启时可重放到各表的写缓存中,以缩小两次checkpoint之间的数据丢失窗口<br>
+ * 事务提交时只追加到内存缓冲区,由单独的线程按周期批量写入文件并fsync(group commit),所以仍可能丢失最近一个同步周期内的修改<br>
+ * 只记录通过安全接口(get/put/remove等)的修改,直接调用Unsafe接口的修改不会记录<br>
+ * 日志文件名为"数据库文件名.redo.序号",每次checkpoint暂停事务时切换到新文件,存储引擎提交成功后删除旧文件<br>
+ * 文件格式: [batch]*, batch = [payload长度:4][payload的CRC32:4][payload], payload = [entry]*,
+ * entry = [类型:1][表ID:UInt][内容长度:4][内容]
+ */
+final class RedoLog
+{
+	static final int KIND_REMOVE	= 0; // 删除记录. 内容: [key]
+	static final int KIND_PUT		= 1; // 保存记录. 内容: [key][value]
+	static final int KIND_IDCOUNTER	= 2; // TableLong的自增长ID计数器. 内容: [idCounter]
+
+	private static final String	REDO_SUFFIX	= ".redo.";
+
+	private final File						_dbFile;										 // 数据库文件,日志放在同目录下
+	private final long						_syncPeriod	= Const.dbRedoLogSyncPeriod;		 // 批量同步的周期(毫秒)
+	private final int						_bufferSize	= Const.dbRedoLogBufferSize << 10;	 // 缓冲区超过此大小时立即同步
+	private final Object					_fileLock	= new Object();						 // 访问_fc和_fileSeq的锁
+	private final IntHashMap<OctetsStream>	_pending	= new IntHashMap<>();				 // 启动时加载的待重放日志. key:表ID
+	private OctetsStream					_buf		= new OctetsStream(0x10000);		 // 待写入的缓冲区(由this保护)
+	private OctetsStream					_bufFlush	= new OctetsStream(0x10000);		 // 正在写入的缓冲区(由_fileLock保护)
+	private FileChannel						_fc;											 // 当前写入的日志文件
+	private long							_fileSeq;										 // 当前写入的日志文件序号
+	private long							_appendCount;									 // 追加的batch数量统计
+	private long							_syncCount;										 // 同步文件的次数统计
+	private boolean							_broken;										 // 加载时是否遇到了损坏的batch
+	private final Thread					_syncThread;									 // 批量同步的线程
+	private volatile boolean				_closed;
+
+	RedoLog(File dbFile)
+	{
+		_dbFile = dbFile.getAbsoluteFile();
+		_syncThread = new Thread(this::syncLoop, "RedoLogThread");
+		_syncThread.setDaemon(true);
+		_syncThread.setPriority(Thread.NORM_PRIORITY + 1);
+	}
+
+	private File getLogFile(long seq)
+	{
+		return new File(_dbFile.getParentFile(), _dbFile.getName() + REDO_SUFFIX + seq);
+	}
+
+	/**
+	 * 获取已存在的所有日志文件的序号(升序)
+	 */
+	private List<Long> getLogSeqs()
+	{
+		List<Long> seqs = new ArrayList<>();
+		String prefix = _dbFile.getName() + REDO_SUFFIX;
+		File[] files = _dbFile.getParentFile().listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				String name = file.getName();
+				if(file.isFile() && name.startsWith(prefix))
+				{
+					try
+					{
+						seqs.add(Long.parseLong(name.substring(prefix.length())));
+					}
+					catch(NumberFormatException e)
+					{
+					}
+				}
+			}
+		}
+		Collections.sort(seqs);
+		return seqs;
+	}
+
+	/**
+	 * 加载已存在的所有日志文件并打开新的日志文件
+	 * <p>
+	 * 加载的日志按表分组暂存,等待openTable时重放
+	 */
+	void open() throws IOException
+	{
+		long seq = 0, n = 0;
+		for(long s : getLogSeqs())
+		{
+			seq = s;
+			if(_broken)
+			{
+				// 中间的文件损坏时,其后的日志可能依赖丢失的修改,所以不再重放
+				Log.error("RedoLog: skip {} after broken redo log", getLogFile(seq).getName());
+				continue;
+			}
+			n += load(getLogFile(seq));
+		}
+		if(n > 0)
+			Log.info("RedoLog: loaded {} batches for {} tables", n, _pending.size());
+		_fileSeq = seq + 1;
+		_fc = FileChannel.open(getLogFile(_fileSeq).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		_syncThread.start();
+	}
+
+	private int load(File file) throws IOException
+	{
+		byte[] data;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"))
+		{
+			long size = raf.length();
+			if(size > Integer.MAX_VALUE) throw new IOException("redo log file is too large: " + file.getAbsolutePath());
+			data = new byte[(int)size];
+			raf.readFully(data);
+		}
+		OctetsStream os = OctetsStream.wrap(data);
+		CRC32 crc = new CRC32();
+		int n = 0;
+		try
+		{
+			while(os.remain() > 0)
+			{
+				int size = os.unmarshalInt4();
+				int crcValue = os.unmarshalInt4();
+				int pos = os.position();
+				if(size < 0 || size > os.remain()) throw os.getEOFException();
+				crc.reset();
+				crc.update(data, pos, size);
+				if((int)crc.getValue() != crcValue) throw os.getMarshalException(); // crc不匹配
+				OctetsStream batch = OctetsStream.wrap(data, pos, pos + size);
+				while(batch.remain() > 0)
+				{
+					int kind = batch.unmarshalInt1();
+					int tableId = batch.unmarshalUInt();
+					int len = batch.unmarshalInt4();
+					int p = batch.position();
+					batch.unmarshalSkip(len);
+					OctetsStream tos = _pending.get(tableId);
+					if(tos == null) _pending.put(tableId, tos = new OctetsStream(0x1000));
+					tos.marshal1((byte)kind).marshal4(len).append(data, p, len);
+				}
+				os.setPosition(pos + size);
+				++n;
+			}
+		}
+		catch(MarshalException e)
+		{
+			// 崩溃时可能有写了一半的batch,忽略其后的所有内容,也不再重放之后的日志文件
+			Log.warn("RedoLog: ignore broken tail of {} at {}/{}", file.getName(), os.position(), data.length);
+			_broken = true;
+		}
+		return n;
+	}
+
+	/**
+	 * 把启动时加载的此表日志重放到表的写缓存中
+	 * <p>
+	 * 在DBManager.openTable中调用
+	 */
+	synchronized int replay(TableBase<?> table, Object stubK)
+	{
+		OctetsStream os = _pending.remove(table.getTableId());
+		if(os == null) return 0;
+		int n = 0;
+		try
+		{
+			while(os.remain() > 0)
+			{
+				int kind = os.unmarshalInt1();
+				int len = os.unmarshalInt4();
+				int end = os.position() + len;
+				table.redo(os, kind, stubK);
+				os.setPosition(end);
+				++n;
+			}
+		}
+		catch(MarshalException e)
+		{
+			Log.error("RedoLog: replay table " + table.getTableName() + " failed:", e);
+		}
+		Log.info("RedoLog: replayed table {}: {} records", table.getTableName(), n);
+		return n;
+	}
+
+	/**
+	 * 在entry内容之前调用,返回内容长度字段的位置,用于endEntry
+	 */
+	static int beginEntry(OctetsStream os, int kind, int tableId)
+	{
+		os.marshal1((byte)kind).marshalUInt(tableId).marshal4(0);
+		return os.size();
+	}
+
+	static void endEntry(OctetsStream os, int pos)
+	{
+		int len = os.size() - pos;
+		byte[] buf = os.array();
+		buf[pos - 4] = (byte)(len >> 24);
+		buf[pos - 3] = (byte)(len >> 16);
+		buf[pos - 2] = (byte)(len >> 8);
+		buf[pos - 1] = (byte)len;
+	}
+
+	static void marshalKey(OctetsStream os, Object k)
+	{
+		if(k instanceof Octets)
+			os.marshal((Octets)k);
+		else if(k instanceof String)
+			os.marshal((String)k);
+		else if(k instanceof Bean)
+			os.marshal((Bean<?>)k);
+		else
+			throw new UnsupportedOperationException("unsupported redo key type: " + (k != null ? k.getClass().getName() : "null"));
+	}
+
+	static Object unmarshalKey(OctetsStream os, Object stubK) throws MarshalException
+	{
+		if(stubK instanceof Octets)
+			return os.unmarshalOctets();
+		if(stubK instanceof String)
+			return os.unmarshalString();
+		if(stubK instanceof Bean)
+		{
+			Bean<?> b = ((Bean<?>)stubK).create();
+			os.unmarshal(b);
+			return b;
+		}
+		throw new UnsupportedOperationException("unsupported redo key type: " + (stubK != null ? stubK.getClass().getName() : "null"));
+	}
+
+	/**
+	 * 追加一个事务提交的所有entry
+	 * <p>
+	 * 只写入内存缓冲区,不会等待写入文件
+	 */
+	void append(Octets payload)
+	{
+		int size = payload.size();
+		if(size <= 0) return;
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, size);
+		int crcValue = (int)crc.getValue();
+		synchronized(this)
+		{
+			OctetsStream buf = _buf;
+			buf.marshal4(size).marshal4(crcValue).append(payload.array(), 0, size);
+			++_appendCount;
+			if(buf.size() >= _bufferSize)
+				notify();
+		}
+	}
+
+	/**
+	 * 把缓冲区中的日志写入当前文件并fsync
+	 */
+	void flush() throws IOException
+	{
+		synchronized(_fileLock)
+		{
+			OctetsStream buf;
+			synchronized(this)
+			{
+				buf = _buf;
+				if(buf.size() <= 0) return;
+				_buf = _bufFlush;
+				_bufFlush = buf;
+			}
+			try
+			{
+				ByteBuffer bb = ByteBuffer.wrap(buf.array(), 0, buf.size());
+				while(bb.hasRemaining())
+					_fc.write(bb);
+				_fc.force(false);
+				++_syncCount;
+			}
+			finally
+			{
+				buf.clear();
+			}
+		}
+	}
+
+	/**
+	 * 切换到新的日志文件
+	 * <p>
+	 * 必须在所有事务暂停的情况下调用(checkpoint),之后旧文件只包含此次checkpoint之前的修改
+	 * @return 返回旧文件的序号,用于存储引擎提交成功后删除旧文件(removeBefore)
+	 */
+	long rotate() throws IOException
+	{
+		synchronized(_fileLock)
+		{
+			flush();
+			_fc.close();
+			long seq = _fileSeq++;
+			_fc = FileChannel.open(getLogFile(_fileSeq).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			return seq;
+		}
+	}
+
+	/**
+	 * 删除序号不大于seq的所有日志文件
+	 * <p>
+	 * 必须在存储引擎提交成功后调用
+	 */
+	void removeBefore(long seq)
+	{
+		synchronized(this)
+		{
+			if(_pending.size() > 0)
+			{
+				StringBuilder sb = new StringBuilder();
+				_pending.foreachKey(tableId -> sb.append(tableId).append(','));
+				Log.error("RedoLog: drop redo logs of unopened tables: {}", sb);
+				_pending.clear();
+			}
+		}
+		for(long s : getLogSeqs())
+		{
+			if(s <= seq && !getLogFile(s).delete())
+				Log.error("RedoLog: delete {} failed", getLogFile(s).getAbsolutePath());
+		}
+	}
+
+	long getAppendCount()
+	{
+		return _appendCount;
+	}
+
+	long getSyncCount()
+	{
+		return _syncCount;
+	}
+
+	/**
+	 * 停止同步线程并关闭当前文件
+	 * <p>
+	 * 如果当前文件没有内容(已全部checkpoint)则删除
+	 */
+	void close()
+	{
+		_closed = true;
+		synchronized(this)
+		{
+			notify();
+		}
+		try
+		{
+			_syncThread.join();
+		}
+		catch(InterruptedException e)
+		{
+			Log.error("RedoLog.close: exception:", e);
+		}
+		synchronized(_fileLock)
+		{
+			try
+			{
+				flush();
+				boolean empty = (_fc.size() == 0);
+				_fc.close();
+				if(empty && !getLogFile(_fileSeq).delete())
+					Log.error("RedoLog: delete {} failed", getLogFile(_fileSeq).getAbsolutePath());
+			}
+			catch(IOException e)
+			{
+				Log.error("RedoLog.close: exception:", e);
+			}
+		}
+	}
+
+	private void syncLoop()
+	{
+		while(!_closed)
+		{
+			try
+			{
+				synchronized(this)
+				{
+					if(_buf.size() < _bufferSize && !_closed)
+						wait(_syncPeriod);
+				}
+				flush();
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			catch(Throwable e)
+			{
+				Log.error("RedoLog: sync exception:", e);
+			}
+		}
+	}
+}
@@ -1,13 +1,14 @@
 package jane.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * 安全修改的上下文类
  * <p>
  * 管理当前线程的回滚和提交<br>
- * 由ProcThread管理上下文
+ * 由ProcContext管理上下文
  */
 public final class SContext
 {
@@ -83,7 +84,13 @@ public final class SContext
 		public void dirty()
 		{
 			if(_parent == this)
-				_dirty = true;
+			{
+				if(!_dirty)
+				{
+					if(_rec != null) _rec.getTable().copyOnWrite(_rec); // 快照模式下确保快照中的值不被修改
+					_dirty = true;
+				}
+			}
 			else
 				_parent.dirty();
 			if(_onDirty != null)
@@ -199,11 +206,16 @@ public final class SContext
 		private final int			 _lockId;
 
 		Record(Table<K, V, S> table, K key, S value)
+		{
+			this(table, key, value, table.lockId(key));
+		}
+
+		Record(Table<K, V, S> table, K key, S value, int lockId)
 		{
 			_table = table;
 			_key = key;
 			_value = value;
-			_lockId = table.lockId(key);
+			_lockId = lockId;
 		}
 
 		@Override
@@ -233,7 +245,7 @@ public final class SContext
 		@Override
 		public void checkLock()
 		{
-			if(!Procedure.isLockedByCurrentThread(_lockId))
+			if(!Procedure.isLockedByCurrentThread(_lockId) && !Procedure.upgradeLock(_lockId))
 				throw new IllegalAccessError("write unlocked record! table=" + _table.getTableName() + ",key=" + _key);
 		}
 	}
@@ -246,11 +258,16 @@ public final class SContext
 		private final int			  _lockId;
 
 		RecordLong(TableLong<V, S> table, long key, S value)
+		{
+			this(table, key, value, table.lockId(key));
+		}
+
+		RecordLong(TableLong<V, S> table, long key, S value, int lockId)
 		{
 			_table = table;
 			_key = key;
 			_value = value;
-			_lockId = table.lockId(key);
+			_lockId = lockId;
 		}
 
 		@Override
@@ -280,20 +297,110 @@ public final class SContext
 		@Override
 		public void checkLock()
 		{
-			if(!Procedure.isLockedByCurrentThread(_lockId))
+			if(!Procedure.isLockedByCurrentThread(_lockId) && !Procedure.upgradeLock(_lockId))
 				throw new IllegalAccessError("write unlocked record! table=" + _table.getTableName() + ",key=" + _key);
 		}
 	}
 
-	private final List<Record<?, ?, ?>>	 _records	  = new ArrayList<>();
-	private final List<RecordLong<?, ?>> _recordLongs = new ArrayList<>();
-	private final List<Runnable>		 _onRollbacks = new ArrayList<>();
-	private final List<Runnable>		 _onCommits	  = new ArrayList<>();
+	/**
+	 * 记录列表的开放寻址哈希索引
+	 * <p>
+	 * 只保存记录在列表中的下标,相同的记录只索引最后加入的下标. 由调用者根据下标取出记录比较<br>
+	 * 以记录的lockId作为hash值,它已经包含了表和key的hash
+	 */
+	private static final class RecIndex
+	{
+		private static final int INIT_SIZE = 64;
+
+		int[] slots	 = new int[INIT_SIZE]; // 记录下标+1. 0表示空
+		int[] hashes = new int[INIT_SIZE]; // 对应slot记录的hash值
+		int	  count;					   // 列表前部已被索引的记录数量
+		int	  used;						   // 已使用的slot数量
+
+		static int spread(int h)
+		{
+			h *= 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * 增加一个新记录的索引. 调用前需确认没有相同的记录
+		 */
+		void add(int hash, int pos)
+		{
+			if((used + 1) * 2 > slots.length)
+				rehash();
+			int mask = slots.length - 1;
+			for(int i = spread(hash) & mask;; i = (i + 1) & mask)
+			{
+				if(slots[i] == 0)
+				{
+					slots[i] = pos + 1;
+					hashes[i] = hash;
+					++used;
+					return;
+				}
+			}
+		}
+
+		private void rehash()
+		{
+			int[] oldSlots = slots, oldHashes = hashes;
+			int n = oldSlots.length * 2, mask = n - 1;
+			slots = new int[n];
+			hashes = new int[n];
+			for(int j = 0; j < oldSlots.length; ++j)
+			{
+				int p = oldSlots[j];
+				if(p != 0)
+				{
+					int h = oldHashes[j], i = spread(h) & mask;
+					while(slots[i] != 0)
+						i = (i + 1) & mask;
+					slots[i] = p;
+					hashes[i] = h;
+				}
+			}
+		}
+
+		void clear()
+		{
+			if(used > 0)
+			{
+				if(slots.length > INIT_SIZE * 64) // 访问大量记录的事务之后不保留过大的索引
+				{
+					slots = new int[INIT_SIZE];
+					hashes = new int[INIT_SIZE];
+				}
+				else
+					Arrays.fill(slots, 0);
+				used = 0;
+			}
+			count = 0;
+		}
+	}
+
+	private static final int			 INDEX_THRESHOLD	 = 16; // 记录数量达到此值时使用哈希索引查找,否则线性查找
+
+	private final List<Record<?, ?, ?>>	 _records			 = new ArrayList<>();
+	private final List<RecordLong<?, ?>> _recordLongs		 = new ArrayList<>();
+	private final List<Runnable>		 _onRollbacks		 = new ArrayList<>();
+	private final List<Runnable>		 _onCommits			 = new ArrayList<>();
+	private final List<Object>			 _redoKeys			 = new ArrayList<>(); // 需要记录重做日志的表和key(交替存放),只记录put和remove
+	private final List<Record<?, ?, ?>>	 _savedRecords		 = new ArrayList<>(); // 批量运行时同批之前事务访问的记录,保存点之后的事务不再共用
+	private final List<RecordLong<?, ?>> _savedRecordLongs	 = new ArrayList<>(); // 同上
+	private OctetsStream				 _redoBuf;									// 提交时序列化重做日志的缓冲区
+	private int							 _savedRollbackCount;						// 保存点时_onRollbacks的数量
+	private int							 _savedCommitCount;							// 保存点时_onCommits的数量
+	private int							 _savedRedoCount;							// 保存点时_redoKeys的数量
+	private boolean						 _savedHasDirty;							// 保存点时的_hasDirty
 	private boolean						 _hasDirty;
+	private RecIndex					 _recIndex;									// _records的索引. 记录较少时为null
+	private RecIndex					 _recLongIndex;								// _recordLongs的索引. 记录较少时为null
 
 	public static SContext current()
 	{
-		return ((ProcThread)Thread.currentThread()).sctx;
+		return ProcContext.current().sctx;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -314,21 +421,147 @@ public final class SContext
 		return (V)(v instanceof Safe ? ((Safe<?>)v).unsafe() : v);
 	}
 
+	/**
+	 * 查找当前事务已访问过的记录
+	 * @return 记录在_records中的下标. 找不到返回-1
+	 */
+	private int findRecord(Table<?, ?, ?> table, Object key, int lockId)
+	{
+		List<Record<?, ?, ?>> records = _records;
+		int n = records.size();
+		if(n < INDEX_THRESHOLD)
+		{
+			for(int i = n - 1; i >= 0; --i)
+			{
+				Record<?, ?, ?> r = records.get(i);
+				if(r._lockId == lockId && r._table == table && r._key.equals(key))
+					return i;
+			}
+			return -1;
+		}
+		RecIndex idx = _recIndex;
+		if(idx == null) _recIndex = idx = new RecIndex();
+		while(idx.count < n) // 补充索引新加入的记录
+		{
+			Record<?, ?, ?> r = records.get(idx.count);
+			int slot = findRecordSlot(idx, r._table, r._key, r._lockId);
+			if(slot >= 0)
+				idx.slots[slot] = idx.count + 1;
+			else
+				idx.add(r._lockId, idx.count);
+			++idx.count;
+		}
+		int slot = findRecordSlot(idx, table, key, lockId);
+		return slot >= 0 ? idx.slots[slot] - 1 : -1;
+	}
+
+	private int findRecordSlot(RecIndex idx, Table<?, ?, ?> table, Object key, int lockId)
+	{
+		int[] slots = idx.slots, hashes = idx.hashes;
+		int mask = slots.length - 1;
+		for(int i = RecIndex.spread(lockId) & mask, p; (p = slots[i]) != 0; i = (i + 1) & mask)
+		{
+			if(hashes[i] == lockId)
+			{
+				Record<?, ?, ?> r = _records.get(p - 1);
+				if(r._table == table && r._key.equals(key))
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 同{@link #findRecord},用于TableLong的记录
+	 */
+	private int findRecordLong(TableLong<?, ?> table, long key, int lockId)
+	{
+		List<RecordLong<?, ?>> records = _recordLongs;
+		int n = records.size();
+		if(n < INDEX_THRESHOLD)
+		{
+			for(int i = n - 1; i >= 0; --i)
+			{
+				RecordLong<?, ?> r = records.get(i);
+				if(r._key == key && r._table == table)
+					return i;
+			}
+			return -1;
+		}
+		RecIndex idx = _recLongIndex;
+		if(idx == null) _recLongIndex = idx = new RecIndex();
+		while(idx.count < n)
+		{
+			RecordLong<?, ?> r = records.get(idx.count);
+			int slot = findRecordLongSlot(idx, r._table, r._key, r._lockId);
+			if(slot >= 0)
+				idx.slots[slot] = idx.count + 1;
+			else
+				idx.add(r._lockId, idx.count);
+			++idx.count;
+		}
+		int slot = findRecordLongSlot(idx, table, key, lockId);
+		return slot >= 0 ? idx.slots[slot] - 1 : -1;
+	}
+
+	private int findRecordLongSlot(RecIndex idx, TableLong<?, ?> table, long key, int lockId)
+	{
+		int[] slots = idx.slots, hashes = idx.hashes;
+		int mask = slots.length - 1;
+		for(int i = RecIndex.spread(lockId) & mask, p; (p = slots[i]) != 0; i = (i + 1) & mask)
+		{
+			if(hashes[i] == lockId)
+			{
+				RecordLong<?, ?> r = _recordLongs.get(p - 1);
+				if(r._key == key && r._table == table)
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	private void clearRecords()
+	{
+		_records.clear();
+		_recordLongs.clear();
+		if(_recIndex != null) _recIndex.clear();
+		if(_recLongIndex != null) _recLongIndex.clear();
+	}
+
+	/**
+	 * 获取记录的安全封装. 同一事务中多次获取同一记录的相同值时复用之前的封装,避免重复分配和提交时重复处理
+	 */
+	@SuppressWarnings("unchecked")
 	<K, V extends Bean<V>, S extends Safe<V>> S addRecord(Table<K, V, S> table, K key, V value)
 	{
-		@SuppressWarnings("unchecked")
+		int lockId = table.lockId(key);
+		int i = findRecord(table, key, lockId);
+		if(i >= 0)
+		{
+			Record<?, ?, ?> r = _records.get(i);
+			if(r._value.unsafe() == value)
+				return (S)r._value;
+		}
 		S s = (S)value.safe(null);
-		Record<K, V, S> rec = new Record<>(table, key, s);
+		Record<K, V, S> rec = new Record<>(table, key, s, lockId);
 		s.record(rec);
 		_records.add(rec);
 		return s;
 	}
 
+	@SuppressWarnings("unchecked")
 	<V extends Bean<V>, S extends Safe<V>> S addRecord(TableLong<V, S> table, long key, V value)
 	{
-		@SuppressWarnings("unchecked")
+		int lockId = table.lockId(key);
+		int i = findRecordLong(table, key, lockId);
+		if(i >= 0)
+		{
+			RecordLong<?, ?> r = _recordLongs.get(i);
+			if(r._value.unsafe() == value)
+				return (S)r._value;
+		}
 		S s = (S)value.safe(null);
-		RecordLong<V, S> rec = new RecordLong<>(table, key, s);
+		RecordLong<V, S> rec = new RecordLong<>(table, key, s, lockId);
 		s.record(rec);
 		_recordLongs.add(rec);
 		return s;
@@ -337,23 +570,15 @@ public final class SContext
 	@SuppressWarnings("unchecked")
 	<K, V extends Bean<V>, S extends Safe<V>> S getRecord(Table<K, V, S> table, K key)
 	{
-		for(Record<?, ?, ?> r : _records)
-		{
-			if(r.getKey().equals(key) && r.getTable() == table)
-				return (S)r.getValue();
-		}
-		return null;
+		int i = findRecord(table, key, table.lockId(key));
+		return i >= 0 ? (S)_records.get(i).getValue() : null;
 	}
 
 	@SuppressWarnings("unchecked")
 	<V extends Bean<V>, S extends Safe<V>> S getRecord(TableLong<V, S> table, long key)
 	{
-		for(RecordLong<?, ?> r : _recordLongs)
-		{
-			if(r.getKeyLong() == key && r.getTable() == table)
-				return (S)r.getValue();
-		}
-		return null;
+		int i = findRecordLong(table, key, table.lockId(key));
+		return i >= 0 ? (S)_recordLongs.get(i).getValue() : null;
 	}
 
 	public boolean hasDirty()
@@ -388,23 +613,114 @@ public final class SContext
 		_hasDirty = true;
 	}
 
+	void addRedo(TableBase<?> table, Object key)
+	{
+		if(DBManager.instance().getRedoLog() != null)
+		{
+			_redoKeys.add(table);
+			_redoKeys.add(key);
+		}
+	}
+
+	/**
+	 * 设置保存点. 用于同一上下文批量运行多个事务,之后可以只回滚到此保存点({@link #rollbackToSavepoint})
+	 */
+	void savepoint()
+	{
+		_savedRecords.addAll(_records);
+		_savedRecordLongs.addAll(_recordLongs);
+		clearRecords();
+		_savedRollbackCount = _onRollbacks.size();
+		_savedCommitCount = _onCommits.size();
+		_savedRedoCount = _redoKeys.size();
+		_savedHasDirty = _hasDirty;
+	}
+
+	/**
+	 * 回滚到最近的保存点,保存点之前的修改保持不变
+	 */
+	void rollbackToSavepoint()
+	{
+		boolean dirty = hasDirty();
+		clearRecords();
+		_onCommits.subList(_savedCommitCount, _onCommits.size()).clear();
+		_redoKeys.subList(_savedRedoCount, _redoKeys.size()).clear();
+
+		for(int i = _onRollbacks.size(), n = _savedRollbackCount; --i >= n;)
+		{
+			try
+			{
+				_onRollbacks.get(i).run();
+			}
+			catch(Throwable e)
+			{
+				Log.error("rollback exception:", e);
+			}
+		}
+		_onRollbacks.subList(_savedRollbackCount, _onRollbacks.size()).clear();
+		_hasDirty = _savedHasDirty;
+		if(dirty)
+			Procedure.incLockedVersions();
+	}
+
+	private void mergeSaved()
+	{
+		if(!_savedRecords.isEmpty())
+		{
+			_records.addAll(_savedRecords);
+			_savedRecords.clear();
+		}
+		if(!_savedRecordLongs.isEmpty())
+		{
+			_recordLongs.addAll(_savedRecordLongs);
+			_savedRecordLongs.clear();
+		}
+		_savedRollbackCount = _savedCommitCount = _savedRedoCount = 0;
+	}
+
 	void commit()
 	{
+		mergeSaved();
 		_onRollbacks.clear();
 
+		RedoLog redoLog = DBManager.instance().getRedoLog();
+		OctetsStream os = null;
+		if(redoLog != null)
+		{
+			os = _redoBuf;
+			if(os == null) _redoBuf = os = new OctetsStream(256);
+			for(int i = 0, n = _redoKeys.size(); i < n; i += 2)
+				((TableBase<?>)_redoKeys.get(i)).marshalRedo(os, _redoKeys.get(i + 1));
+		}
+		_redoKeys.clear();
+
 		for(Record<?, ?, ?> r : _records)
 		{
 			if(r._value.isDirtyAndClear())
+			{
 				r._table.modify(r._key, r._value.unsafe());
+				if(os != null) r._table.marshalRedo(os, r._key);
+			}
 		}
-		_records.clear();
 
 		for(RecordLong<?, ?> r : _recordLongs)
 		{
 			if(r._value.isDirtyAndClear())
+			{
 				r._table.modify(r._key, r._value.unsafe());
+				if(os != null) r._table.marshalRedo(os, r._key);
+			}
+		}
+		clearRecords();
+
+		if(os != null && os.size() > 0)
+		{
+			redoLog.append(os);
+			if(os.capacity() > 0x10000)
+				_redoBuf = null;
+			else
+				os.clear();
 		}
-		_recordLongs.clear();
 
 		for(Runnable r : _onCommits)
 		{
@@ -423,9 +739,11 @@ public final class SContext
 
 	void rollback()
 	{
-		_records.clear();
-		_recordLongs.clear();
+		mergeSaved();
+		boolean dirty = hasDirty();
+		clearRecords();
 		_onCommits.clear();
+		_redoKeys.clear();
 
 		for(int i = _onRollbacks.size(); --i >= 0;)
 		{
@@ -440,5 +758,7 @@ public final class SContext
 		}
 		_onRollbacks.clear();
 		_hasDirty = false;
+		if(dirty)
+			Procedure.incLockedVersions(); // 回滚前的修改可能被乐观读到,所以回滚后(解锁前)也要更新版本号
 	}
 }
@@ -0,0 +1,264 @@
+package jane.core;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 绑定同一sid的事务队列(多生产者单消费者)
+ * <p>
+ * 队列本身是无锁的链表,任意线程可并发入队,但同一时刻只有一个调度任务在出队并运行事务<br>
+ * 自身的计数值是队列中(包括正在运行的)事务数量,同时作为调度标记: 入队时从0变1的线程负责提交调度任务,
+ * 调度任务每运行完一个事务减1,减到0时结束; 计数值为-1表示此队列已从DBManager中回收,不能再入队<br>
+ * Const.maxBatchLockProcedure大于0时,连续排队的声明了相同锁集合的事务会合并批量运行({@link Procedure#executeBatch})
+ */
+final class SidQueue extends AtomicInteger implements Runnable
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final class Node
+	{
+		Procedure	   proc;
+		final int[]	   lockIds; // 事务声明的锁集合(已排序). 不合并批量运行时为null
+		volatile Node  next;
+
+		Node(Procedure p, int[] ids)
+		{
+			proc = p;
+			lockIds = ids;
+		}
+	}
+
+	/**
+	 * 锁集合的key. 用于把没有绑定sid但声明了相同锁集合的事务排到同一队列中
+	 */
+	static final class LockSet
+	{
+		private final int[]	lockIds; // 已排序
+		private final int	hash;
+
+		LockSet(int[] ids)
+		{
+			lockIds = ids;
+			hash = Arrays.hashCode(ids);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return this == o || o instanceof LockSet && Arrays.equals(lockIds, ((LockSet)o).lockIds);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "LockSet" + Arrays.toString(lockIds);
+		}
+	}
+
+	private final AtomicReference<Node>	_tail = new AtomicReference<>(); // 入队端,多线程竞争
+	private final Object				_sid;
+	private final DBManager				_dbMgr;
+	private final AtomicLong			_procCount;	 // DBManager中绑定过sid的在队列中未运行的事务数量
+	private Executor					_executor;	 // 当前调度使用的线程池,只在计数值从0变1的线程里写
+	private Node						_head;		 // 出队端(哨兵节点),只在调度任务中访问
+	private Procedure[]					_batch;		 // 合并批量运行的事务缓冲区,只在调度任务中访问
+	private volatile int				_maxSize;	 // 历史最大的队列长度
+	private volatile long				_drainCount; // 调度任务的运行次数
+
+	SidQueue(DBManager dbMgr, AtomicLong procCount, Object sid)
+	{
+		_dbMgr = dbMgr;
+		_procCount = procCount;
+		_sid = sid;
+		Node n = new Node(null, null);
+		_head = n;
+		_tail.set(n);
+	}
+
+	/**
+	 * 获取队列中(包括正在运行的)事务数量
+	 */
+	public int size()
+	{
+		int s = get();
+		return s > 0 ? s : 0;
+	}
+
+	/**
+	 * 获取此队列历史最大的长度
+	 */
+	public int getMaxSize()
+	{
+		return _maxSize;
+	}
+
+	/**
+	 * 获取此队列调度任务的运行次数
+	 */
+	public long getDrainCount()
+	{
+		return _drainCount;
+	}
+
+	/**
+	 * 获取事务声明的已排序的锁集合
+	 * @return 不需要合并批量运行时返回null
+	 */
+	static int[] getBatchLockIds(Procedure p)
+	{
+		if(Const.maxBatchLockProcedure <= 0) return null;
+		int[] lockIds = p.declareLockIds();
+		if(lockIds == null) return null;
+		lockIds = lockIds.clone();
+		Arrays.sort(lockIds);
+		return lockIds;
+	}
+
+	/**
+	 * 尝试把此空队列标记为回收状态,之后的入队都会失败
+	 */
+	boolean tryClose()
+	{
+		return compareAndSet(0, -1);
+	}
+
+	/**
+	 * 事务入队,必要时向线程池提交调度任务
+	 * @return 此队列已回收时返回false,需要重新获取队列
+	 */
+	boolean offer(Executor executor, Procedure p, int[] lockIds)
+	{
+		int s;
+		for(;;)
+		{
+			s = get();
+			if(s < 0) return false;
+			if(s >= Const.maxSessionProcedure)
+				throw new IllegalStateException("procedure overflow: procedure=" + p.getClass().getName() +
+						",sid=" + _sid + ",size=" + s + ",maxsize=" + Const.maxSessionProcedure);
+			if(compareAndSet(s, s + 1)) break;
+		}
+		if(s >= _maxSize) _maxSize = s + 1; // 统计值,不要求精确
+		_procCount.getAndIncrement();
+		Node n = new Node(p, lockIds);
+		_tail.getAndSet(n).next = n;
+		if(s == 0)
+		{
+			_executor = executor;
+			executor.execute(this);
+		}
+		return true;
+	}
+
+	/**
+	 * 出队一个事务,只能在调度任务中调用
+	 * <p>
+	 * 入队时计数值先于链接节点,所以计数值大于0时可能短暂地取不到,这时需要自旋等待
+	 */
+	private Procedure poll()
+	{
+		Node next;
+		while((next = _head.next) == null)
+			Thread.yield();
+		_head = next;
+		Procedure p = next.proc;
+		next.proc = null;
+		return p;
+	}
+
+	/**
+	 * 清除队列中未运行的事务,只能在此队列正在运行的事务中调用
+	 * @return 清除的事务数量
+	 */
+	int clear()
+	{
+		int n = 0;
+		for(Node next; (next = _head.next) != null; ++n)
+		{
+			_head = next;
+			next.proc = null;
+		}
+		if(n > 0)
+		{
+			addAndGet(-n); // 当前正在运行的事务还占着计数,所以不会减到0
+			_procCount.getAndAdd(-n);
+		}
+		return n;
+	}
+
+	@Override
+	public void run()
+	{
+		Executor executor = _executor;
+		++_drainCount;
+		try
+		{
+			for(int n = Const.maxBatchProceduer;;) // 一次调度可运行多个事务,避免切换调度导致的效率损失
+			{
+				Procedure proc = poll();
+				int[] lockIds = _head.lockIds;
+				int m = 1;
+				if(lockIds == null)
+				{
+					_procCount.getAndDecrement();
+					try
+					{
+						proc.execute();
+					}
+					catch(Throwable e)
+					{
+						Log.error("procedure(sid=" + _sid + ") exception:", e);
+					}
+				}
+				else
+				{
+					Procedure[] batch = _batch;
+					if(batch == null) _batch = batch = new Procedure[Const.maxBatchLockProcedure];
+					batch[0] = proc;
+					for(Node next; m < batch.length && m < n && (next = _head.next) != null && Arrays.equals(next.lockIds, lockIds); ++m)
+					{
+						_head = next; // 合并之后已入队的相同锁集合的事务
+						batch[m] = next.proc;
+						next.proc = null;
+					}
+					_procCount.getAndAdd(-m);
+					try
+					{
+						Procedure.executeBatch(batch, m, lockIds);
+					}
+					catch(Throwable e)
+					{
+						Log.error("procedure(sid=" + _sid + ") exception:", e);
+					}
+					finally
+					{
+						Arrays.fill(batch, 0, m, null);
+					}
+				}
+				if(addAndGet(-m) == 0) return; // 之后的入队会重新提交调度任务
+				if((n -= m) <= 0)
+				{
+					executor.execute(this);
+					return;
+				}
+			}
+		}
+		catch(Throwable e)
+		{
+			if(e instanceof RejectedExecutionException && _dbMgr.isExiting())
+				Log.info("procedure queue canceled. sid={}, queueSize={}", _sid, size());
+			else
+				Log.error("procedure(sid=" + _sid + ") fatal exception:", e);
+		}
+	}
+}
@@ -3,6 +3,15 @@ package jane.core;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
 
 /**
  * 存储引擎接口
@@ -81,10 +90,145 @@ public interface Storage extends Closeable
 
 	public static final class Helper
 	{
+		private static final int	   READ_MULTI_MIN_SIZE = 8; // 批量读取时每个线程至少读取的记录数
+		private static ExecutorService _readPool;				// 批量读取的线程池
+
 		private Helper()
 		{
 		}
 
+		private static synchronized ExecutorService getReadPool()
+		{
+			if(_readPool == null)
+			{
+				AtomicInteger counter = new AtomicInteger();
+				_readPool = Executors.newFixedThreadPool(Const.dbReadThreadCount, r ->
+				{
+					Thread t = new Thread(r, "StorageReader-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			return _readPool;
+		}
+
+		/**
+		 * 批量读取的辅助方法
+		 * <p>
+		 * 把[0,n)分成若干连续的段,在存储读取的线程池中并行执行,当前线程也执行其中一段. 数量较少或没有配置线程池时直接在当前线程中执行<br>
+		 * 调用者应事先按key的顺序排列,以便每个线程读取相邻的数据
+		 * @param reader 读取第i个记录. 不同的i可能在不同线程中并发调用
+		 */
+		public static void readMulti(int n, IntConsumer reader)
+		{
+			int threadCount = Math.min(Const.dbReadThreadCount + 1, n / READ_MULTI_MIN_SIZE);
+			if(threadCount <= 1)
+			{
+				for(int i = 0; i < n; ++i)
+					reader.accept(i);
+				return;
+			}
+			ExecutorService pool = getReadPool();
+			List<Future<?>> futures = new ArrayList<>(threadCount - 1);
+			for(int t = 1; t < threadCount; ++t)
+			{
+				int begin = (int)((long)n * t / threadCount), end = (int)((long)n * (t + 1) / threadCount);
+				futures.add(pool.submit(() ->
+				{
+					for(int i = begin; i < end; ++i)
+						reader.accept(i);
+				}));
+			}
+			RuntimeException ex = null;
+			try
+			{
+				for(int i = 0, end = n / threadCount; i < end; ++i)
+					reader.accept(i);
+			}
+			catch(RuntimeException e)
+			{
+				ex = e;
+			}
+			boolean interrupted = false;
+			for(Future<?> f : futures)
+			{
+				for(;;) // 必须等待所有任务完成,以免调用者看到不完整的结果
+				{
+					try
+					{
+						f.get();
+						break;
+					}
+					catch(InterruptedException e)
+					{
+						interrupted = true;
+					}
+					catch(ExecutionException e)
+					{
+						if(ex == null)
+						{
+							Throwable cause = e.getCause();
+							ex = (cause instanceof RuntimeException ? (RuntimeException)cause : new RuntimeException(cause));
+						}
+						break;
+					}
+				}
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+			if(ex != null) throw ex;
+		}
+
+		/**
+		 * 获取按key排序后的下标数组. key不可比较时保持原顺序
+		 */
+		static <K> int[] sortedIndexes(List<K> ks)
+		{
+			int n = ks.size();
+			Integer[] idxs = new Integer[n];
+			for(int i = 0; i < n; ++i)
+				idxs[i] = i;
+			if(n > 1 && ks.get(0) instanceof Comparable)
+			{
+				@SuppressWarnings("unchecked")
+				List<Comparable<Object>> cks = (List<Comparable<Object>>)ks;
+				Arrays.sort(idxs, (a, b) -> cks.get(a).compareTo(cks.get(b)));
+			}
+			int[] r = new int[n];
+			for(int i = 0; i < n; ++i)
+				r[i] = idxs[i];
+			return r;
+		}
+
+		/**
+		 * 获取按key排序后的下标数组
+		 */
+		static int[] sortedIndexes(long[] ks)
+		{
+			int n = ks.length;
+			boolean small = true;
+			for(int i = 0; i < n && small; ++i)
+				small = (ks[i] >= 0 && ks[i] < (1L << 32));
+			int[] r = new int[n];
+			if(small) // 常见的ID范围可以把key和下标合成一个long排序
+			{
+				long[] pairs = new long[n];
+				for(int i = 0; i < n; ++i)
+					pairs[i] = (ks[i] << 31) | i;
+				Arrays.sort(pairs);
+				for(int i = 0; i < n; ++i)
+					r[i] = (int)pairs[i] & 0x7fff_ffff;
+				return r;
+			}
+			Integer[] idxs = new Integer[n];
+			for(int i = 0; i < n; ++i)
+				idxs[i] = i;
+			Arrays.sort(idxs, (a, b) -> Long.compare(ks[a], ks[b]));
+			for(int i = 0; i < n; ++i)
+				r[i] = idxs[i];
+			return r;
+		}
+
 		public static <K> boolean onWalkSafe(WalkHandler<K> handler, K k)
 		{
 			try
@@ -155,6 +299,29 @@ public interface Storage extends Closeable
 		 */
 		V get(K k);
 
+		/**
+		 * 批量获取多个记录的value
+		 * <p>
+		 * 适用于一次需要读取大量记录的情况,如登录时加载角色的所有记录<br>
+		 * 默认按key的顺序分段在存储读取的线程池中并行读取,引擎可以实现成批量读取
+		 * @param ks 记录的key列表. 不能包含null
+		 * @return 与ks一一对应的value列表. 不存在的记录对应null
+		 */
+		default List<V> getMulti(List<K> ks)
+		{
+			int n = ks.size();
+			int[] idxs = Helper.sortedIndexes(ks);
+			Object[] vs = new Object[n];
+			Helper.readMulti(n, i ->
+			{
+				int j = idxs[i];
+				vs[j] = get(ks.get(j));
+			});
+			@SuppressWarnings("unchecked")
+			List<V> r = (List<V>)(List<?>)Arrays.asList(vs);
+			return r;
+		}
+
 		/**
 		 * 存储记录的key和value
 		 * <p>
@@ -194,6 +361,38 @@ public interface Storage extends Closeable
 		 * @return 返回true表示已完全遍历, 返回false表示被用户中断
 		 */
 		boolean walk(WalkValueHandler<K, V> handler, V beanStub, K from, K to, boolean inclusive, boolean reverse);
+
+		/**
+		 * 按记录key的顺序遍历此表中以指定前缀开头的所有key
+		 * <p>
+		 * 只遍历匹配前缀的key范围,不会扫描整个表<br>
+		 * 字符串和二进制数据类型的key按字节串前缀匹配(字符串按UTF-8编码); bean类型的key只支持有序key的表,匹配key的前几个字段
+		 * @param handler 遍历过程中返回false可中断遍历
+		 * @param prefix 需要匹配的key前缀
+		 * @param prefixFieldCount bean类型的key需要匹配的前几个字段数量. 其它类型的key忽略此参数
+		 * @param reverse 是否按反序遍历
+		 * @return 返回true表示已完全遍历, 返回false表示被用户中断
+		 */
+		default boolean walkPrefix(WalkHandler<K> handler, K prefix, int prefixFieldCount, boolean reverse)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * 按记录key的顺序遍历此表中以指定前缀开头的所有key和value
+		 * <p>
+		 * 前缀的匹配规则同上
+		 * @param handler 遍历过程中返回false可中断遍历
+		 * @param beanStub value的bean类型的stub对象
+		 * @param prefix 需要匹配的key前缀
+		 * @param prefixFieldCount bean类型的key需要匹配的前几个字段数量. 其它类型的key忽略此参数
+		 * @param reverse 是否按反序遍历
+		 * @return 返回true表示已完全遍历, 返回false表示被用户中断
+		 */
+		default boolean walkPrefix(WalkValueHandler<K, V> handler, V beanStub, K prefix, int prefixFieldCount, boolean reverse)
+		{
+			throw new UnsupportedOperationException();
+		}
 	}
 
 	interface TableLong<V extends Bean<V>>
@@ -213,6 +412,29 @@ public interface Storage extends Closeable
 		 */
 		V get(long k);
 
+		/**
+		 * 批量获取多个记录的value
+		 * <p>
+		 * 适用于一次需要读取大量记录的情况,如登录时加载角色的所有记录<br>
+		 * 默认按key的顺序分段在存储读取的线程池中并行读取,引擎可以实现成批量读取
+		 * @param ks 记录的key数组
+		 * @return 与ks一一对应的value列表. 不存在的记录对应null
+		 */
+		default List<V> getMulti(long[] ks)
+		{
+			int n = ks.length;
+			int[] idxs = Helper.sortedIndexes(ks);
+			Object[] vs = new Object[n];
+			Helper.readMulti(n, i ->
+			{
+				int j = idxs[i];
+				vs[j] = get(ks[j]);
+			});
+			@SuppressWarnings("unchecked")
+			List<V> r = (List<V>)(List<?>)Arrays.asList(vs);
+			return r;
+		}
+
 		/**
 		 * 存储记录的key和value
 		 * <p>
@@ -286,6 +508,20 @@ public interface Storage extends Closeable
 	 */
 	<K, V extends Bean<V>> Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV);
 
+	/**
+	 * 打开数据库表,可指定bean类型的key使用有序key的编码
+	 * <p>
+	 * 有序key的表用Bean.marshalOrdered编码key,存储中的记录按key的字段依次排序,可以按key的前几个字段范围遍历<br>
+	 * 同一个表的key编码不能改变,否则已有的记录将无法访问
+	 * @param keyOrdered 是否使用有序key的编码. 只对bean类型的key有效
+	 */
+	default <K, V extends Bean<V>> Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV, boolean keyOrdered)
+	{
+		if(keyOrdered && stubK instanceof Bean)
+			throw new UnsupportedOperationException("ordered key is not supported by " + getClass().getName() + " for table: " + tableName);
+		return openTable(tableId, tableName, stubK, stubV);
+	}
+
 	/**
 	 * 打开key为ID类型的数据库表
 	 * <p>
@@ -312,6 +548,19 @@ public interface Storage extends Closeable
 	 */
 	void putFlush(boolean isLast);
 
+	/**
+	 * 开始或结束一轮并行写操作
+	 * <p>
+	 * 开始后可以在多个线程中同时调用各表的put和remove(但同一轮中不会写同一个记录)<br>
+	 * 结束时要保证之后的写操作顺序在此轮所有写操作之后. 只在提交线程中调用
+	 * @param begin true表示开始,false表示结束
+	 * @return 是否支持并行写操作. 开始时返回false则只能单线程写
+	 */
+	default boolean putParallel(boolean begin)
+	{
+		return false;
+	}
+
 	/**
 	 * 提交并刷新数据库
 	 * <p>
@@ -0,0 +1,513 @@
+package jane.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基于有序字节串key-value的存储引擎的公共实现
+ * <p>
+ * 负责各种key类型的表和记录的序列化,key和value的格式与StorageLevelDB相同<br>
+ * 子类只需实现字节串记录的读取,写入和按key的无符号字节序遍历
+ */
+public abstract class StorageBase implements Storage
+{
+	/**
+	 * 遍历数据库记录的接口
+	 */
+	public interface DBWalkHandler
+	{
+		/**
+		 * 每次遍历一个记录都会调用此接口
+		 * @param key 记录的key. 不能改动
+		 * @param value 记录的value. 不能改动
+		 * @return 返回true表示继续遍历, 返回false表示中断遍历
+		 */
+		boolean onWalk(byte[] key, byte[] value) throws Exception;
+	}
+
+	/**
+	 * 根据记录的key获取value
+	 * <p>
+	 * 包括尚未提交的写入
+	 * @return 返回null表示记录不存在. 返回的数据不能改动
+	 */
+	public abstract byte[] dbget(byte[] key);
+
+	/**
+	 * 写入或删除一个记录
+	 * <p>
+	 * 只会在putBegin和commit之间调用. 调用后key和value的数据不会再改动
+	 * @param value 为null表示删除
+	 */
+	public abstract void dbput(byte[] key, byte[] value);
+
+	/**
+	 * 按key的无符号字节序遍历记录
+	 * <p>
+	 * @param keyFrom 遍历的最小key. null表示最小值
+	 * @param keyTo 遍历的最大key. null表示最大值
+	 * @param inclusive 遍历是否包含keyFrom和keyTo
+	 * @param reverse 是否按反序遍历
+	 * @return 返回true表示已完全遍历, 返回false表示被中断
+	 */
+	public abstract boolean dbwalk(byte[] keyFrom, byte[] keyTo, boolean inclusive, boolean reverse, DBWalkHandler handler);
+
+	/**
+	 * 批量获取多个记录的value
+	 * <p>
+	 * 默认按key的顺序分段并行调用dbget. 子类可以实现更高效的批量读取
+	 * @return 与keys一一对应的value数组. 不存在的记录对应null. 返回的数据不能改动
+	 */
+	public byte[][] dbgetMulti(byte[][] keys)
+	{
+		int[] idxs = sortedIndexes(keys);
+		byte[][] values = new byte[keys.length][];
+		Helper.readMulti(keys.length, i ->
+		{
+			int j = idxs[i];
+			values[j] = dbget(keys[j]);
+		});
+		return values;
+	}
+
+	/**
+	 * 获取按key的无符号字节序排序后的下标数组
+	 */
+	static int[] sortedIndexes(byte[][] keys)
+	{
+		int n = keys.length;
+		Integer[] idxs = new Integer[n];
+		for(int i = 0; i < n; ++i)
+			idxs[i] = i;
+		Arrays.sort(idxs, (a, b) -> Util.compareBytes(keys[a], keys[b]));
+		int[] r = new int[n];
+		for(int i = 0; i < n; ++i)
+			r[i] = idxs[i];
+		return r;
+	}
+
+	/**
+	 * 获取大于所有以prefix为前缀的key的最小key
+	 * @return null表示没有更大的key
+	 */
+	static byte[] nextPrefix(byte[] prefix)
+	{
+		int n = prefix.length;
+		while(n > 0 && prefix[n - 1] == (byte)0xff)
+			--n;
+		if(n == 0) return null;
+		byte[] r = Arrays.copyOf(prefix, n);
+		++r[n - 1];
+		return r;
+	}
+
+	static boolean startsWith(byte[] key, byte[] prefix)
+	{
+		int n = prefix.length;
+		if(key.length < n) return false;
+		for(int i = 0; i < n; ++i)
+			if(key[i] != prefix[i]) return false;
+		return true;
+	}
+
+	static <B extends Bean<B>> B toBean(byte[] data, B beanStub) throws MarshalException
+	{
+		if(data == null) return null;
+		OctetsStreamEx os = OctetsStreamEx.wrap(data);
+		int format = os.unmarshalInt1();
+		if(format != 0)
+			throw new IllegalStateException("unknown record value format(" + format + ") for type(" + beanStub.typeName() + ")");
+		B bean = beanStub.create();
+		bean.unmarshal(os);
+		return bean;
+	}
+
+	static byte[] toValue(Bean<?> bean)
+	{
+		OctetsStream os = new OctetsStream(1 + bean.initSize());
+		os.marshalZero(); // format
+		bean.marshal(os);
+		return os.getBytes();
+	}
+
+	private static OctetsStream marshalTableId(int tableId, int extraSize)
+	{
+		return OctetsStream.createSpace(OctetsStream.marshalUIntLen(tableId) + extraSize).marshalUInt(tableId);
+	}
+
+	private final class TableLong<V extends Bean<V>> implements Storage.TableLong<V>
+	{
+		private final String _tableName;
+		private final int	 _tableId;
+		private final int	 _tableIdLen;
+		private final byte[] _tableIdCounter;
+		private final V		 _stubV;
+
+		TableLong(int tableId, String tableName, V stubV)
+		{
+			_tableName = tableName;
+			_tableId = tableId;
+			_tableIdLen = OctetsStream.marshalUIntLen(tableId);
+			_tableIdCounter = OctetsStream.createSpace(1 + _tableIdLen).marshal1((byte)0xf1).marshalUInt(tableId).getBytes(); // 0xf1前缀用于idcounter
+			_stubV = stubV;
+		}
+
+		private byte[] marshalKey(long k)
+		{
+			return marshalTableId(_tableId, OctetsStream.marshalLen(k)).marshal(k).getBytes();
+		}
+
+		@Override
+		public int getTableId()
+		{
+			return _tableId;
+		}
+
+		@Override
+		public String getTableName()
+		{
+			return _tableName;
+		}
+
+		@Override
+		public V get(long k)
+		{
+			try
+			{
+				return toBean(dbget(marshalKey(k)), _stubV);
+			}
+			catch(MarshalException e)
+			{
+				throw new RuntimeException("unmarshal record failed in table(" + _tableName + ',' + _tableId + "),key=" + k, e);
+			}
+		}
+
+		@Override
+		public List<V> getMulti(long[] ks)
+		{
+			int n = ks.length;
+			byte[][] keys = new byte[n][];
+			for(int i = 0; i < n; ++i)
+				keys[i] = marshalKey(ks[i]);
+			byte[][] values = dbgetMulti(keys);
+			Object[] vs = new Object[n];
+			for(int i = 0; i < n; ++i)
+			{
+				try
+				{
+					vs[i] = toBean(values[i], _stubV);
+				}
+				catch(MarshalException e)
+				{
+					throw new RuntimeException("unmarshal record failed in table(" + _tableName + ',' + _tableId + "),key=" + ks[i], e);
+				}
+			}
+			@SuppressWarnings("unchecked")
+			List<V> r = (List<V>)(List<?>)Arrays.asList(vs);
+			return r;
+		}
+
+		@Override
+		public void put(long k, V v)
+		{
+			dbput(marshalKey(k), toValue(v));
+		}
+
+		@Override
+		public void remove(long k)
+		{
+			dbput(marshalKey(k), null);
+		}
+
+		@Override
+		public long getIdCounter()
+		{
+			byte[] buf = dbget(_tableIdCounter);
+			if(buf == null) return 0;
+			try
+			{
+				return OctetsStream.wrap(buf).unmarshalLong();
+			}
+			catch(MarshalException e)
+			{
+				Log.error("unmarshal idCounter failed", e);
+				return 0;
+			}
+		}
+
+		@Override
+		public void setIdCounter(long v)
+		{
+			if(v == getIdCounter()) return;
+			dbput(_tableIdCounter, OctetsStream.createSpace(OctetsStream.marshalLen(v)).marshal(v).getBytes());
+		}
+
+		@Override
+		public boolean walk(WalkHandlerLong handler, long from, long to, boolean inclusive, boolean reverse)
+		{
+			return dbwalk(marshalKey(Math.min(from, to)), marshalKey(Math.max(from, to)), inclusive, reverse,
+					(key, value) -> Helper.onWalkSafe(handler, OctetsStream.wrap(key, _tableIdLen, key.length).unmarshalLong()));
+		}
+
+		@Override
+		public boolean walk(WalkValueHandlerLong<V> handler, V beanStub, long from, long to, boolean inclusive, boolean reverse)
+		{
+			return dbwalk(marshalKey(Math.min(from, to)), marshalKey(Math.max(from, to)), inclusive, reverse,
+					(key, value) -> Helper.onWalkSafe(handler, OctetsStream.wrap(key, _tableIdLen, key.length).unmarshalLong(), toBean(value, beanStub)));
+		}
+	}
+
+	private abstract class TableBase<K, V extends Bean<V>> implements Storage.Table<K, V>
+	{
+		protected final String _tableName;
+		protected final int	   _tableId;
+		protected final int	   _tableIdLen;
+		protected final byte[] _tableIdBegin;
+		protected final byte[] _tableIdNext;
+		protected final V	   _stubV;
+
+		protected TableBase(int tableId, String tableName, V stubV)
+		{
+			_tableName = tableName;
+			_tableId = tableId;
+			_tableIdLen = OctetsStream.marshalUIntLen(tableId);
+			_tableIdBegin = marshalTableId(tableId, 0).getBytes();
+			_tableIdNext = (tableId < Integer.MAX_VALUE ? marshalTableId(tableId + 1, 0).getBytes() : new byte[] { (byte)0xf1 });
+			_stubV = stubV;
+		}
+
+		protected abstract byte[] marshalKey(K k);
+
+		protected abstract K unmarshalKey(byte[] key) throws MarshalException;
+
+		/**
+		 * 序列化用于前缀匹配的key. 默认整个key作为前缀
+		 */
+		protected byte[] marshalKeyPrefix(K k, int fieldCount)
+		{
+			return marshalKey(k);
+		}
+
+		@Override
+		public int getTableId()
+		{
+			return _tableId;
+		}
+
+		@Override
+		public String getTableName()
+		{
+			return _tableName;
+		}
+
+		@Override
+		public V get(K k)
+		{
+			try
+			{
+				return toBean(dbget(marshalKey(k)), _stubV);
+			}
+			catch(MarshalException e)
+			{
+				throw new RuntimeException("unmarshal record failed in table(" + _tableName + ',' + _tableId + "),key=" + k, e);
+			}
+		}
+
+		@Override
+		public List<V> getMulti(List<K> ks)
+		{
+			int n = ks.size();
+			byte[][] keys = new byte[n][];
+			for(int i = 0; i < n; ++i)
+				keys[i] = marshalKey(ks.get(i));
+			byte[][] values = dbgetMulti(keys);
+			Object[] vs = new Object[n];
+			for(int i = 0; i < n; ++i)
+			{
+				try
+				{
+					vs[i] = toBean(values[i], _stubV);
+				}
+				catch(MarshalException e)
+				{
+					throw new RuntimeException("unmarshal record failed in table(" + _tableName + ',' + _tableId + "),key=" + ks.get(i), e);
+				}
+			}
+			@SuppressWarnings("unchecked")
+			List<V> r = (List<V>)(List<?>)Arrays.asList(vs);
+			return r;
+		}
+
+		@Override
+		public void put(K k, V v)
+		{
+			dbput(marshalKey(k), toValue(v));
+		}
+
+		@Override
+		public void remove(K k)
+		{
+			dbput(marshalKey(k), null);
+		}
+
+		@Override
+		public boolean walk(WalkHandler<K> handler, K from, K to, boolean inclusive, boolean reverse)
+		{
+			byte[] keyFrom = (from != null ? marshalKey(from) : _tableIdBegin);
+			byte[] keyTo = (to != null ? marshalKey(to) : _tableIdNext);
+			if(Util.compareBytes(keyFrom, keyTo) > 0)
+			{
+				byte[] t = keyFrom;
+				keyFrom = keyTo;
+				keyTo = t;
+			}
+			return dbwalk(keyFrom, keyTo, inclusive, reverse, (key, value) -> Helper.onWalkSafe(handler, unmarshalKey(key)));
+		}
+
+		@Override
+		public boolean walk(WalkValueHandler<K, V> handler, V beanStub, K from, K to, boolean inclusive, boolean reverse)
+		{
+			byte[] keyFrom = (from != null ? marshalKey(from) : _tableIdBegin);
+			byte[] keyTo = (to != null ? marshalKey(to) : _tableIdNext);
+			if(Util.compareBytes(keyFrom, keyTo) > 0)
+			{
+				byte[] t = keyFrom;
+				keyFrom = keyTo;
+				keyTo = t;
+			}
+			return dbwalk(keyFrom, keyTo, inclusive, reverse,
+					(key, value) -> Helper.onWalkSafe(handler, unmarshalKey(key), toBean(value, beanStub)));
+		}
+
+		@Override
+		public boolean walkPrefix(WalkHandler<K> handler, K prefix, int prefixFieldCount, boolean reverse)
+		{
+			byte[] keyFrom = marshalKeyPrefix(prefix, prefixFieldCount);
+			byte[] keyTo = nextPrefix(keyFrom);
+			return dbwalk(keyFrom, keyTo != null ? keyTo : _tableIdNext, true, reverse, // 包含的keyTo不是此前缀的key,需要跳过
+					(key, value) -> !startsWith(key, keyFrom) || Helper.onWalkSafe(handler, unmarshalKey(key)));
+		}
+
+		@Override
+		public boolean walkPrefix(WalkValueHandler<K, V> handler, V beanStub, K prefix, int prefixFieldCount, boolean reverse)
+		{
+			byte[] keyFrom = marshalKeyPrefix(prefix, prefixFieldCount);
+			byte[] keyTo = nextPrefix(keyFrom);
+			return dbwalk(keyFrom, keyTo != null ? keyTo : _tableIdNext, true, reverse,
+					(key, value) -> !startsWith(key, keyFrom) || Helper.onWalkSafe(handler, unmarshalKey(key), toBean(value, beanStub)));
+		}
+	}
+
+	private final class TableOctets<V extends Bean<V>> extends TableBase<Octets, V>
+	{
+		TableOctets(int tableId, String tableName, V stubV)
+		{
+			super(tableId, tableName, stubV);
+		}
+
+		@Override
+		protected byte[] marshalKey(Octets k)
+		{
+			return marshalTableId(_tableId, k.size()).append(k).getBytes();
+		}
+
+		@Override
+		protected Octets unmarshalKey(byte[] key)
+		{
+			return new Octets(key, _tableIdLen, key.length - _tableIdLen);
+		}
+	}
+
+	private final class TableString<V extends Bean<V>> extends TableBase<String, V>
+	{
+		TableString(int tableId, String tableName, V stubV)
+		{
+			super(tableId, tableName, stubV);
+		}
+
+		@Override
+		protected byte[] marshalKey(String k)
+		{
+			OctetsStream os = marshalTableId(_tableId, OctetsStream.marshalStrLen(k));
+			for(int i = 0, n = k.length(); i < n; ++i)
+				os.marshalUTF8(k.charAt(i));
+			return os.getBytes();
+		}
+
+		@Override
+		protected String unmarshalKey(byte[] key)
+		{
+			return new String(key, _tableIdLen, key.length - _tableIdLen, StandardCharsets.UTF_8);
+		}
+	}
+
+	private final class TableBean<K, V extends Bean<V>> extends TableBase<K, V>
+	{
+		private final Bean<?> _stubK;
+		private final boolean _keyOrdered; // 是否使用有序key的编码
+
+		TableBean(int tableId, String tableName, K stubK, V stubV, boolean keyOrdered)
+		{
+			super(tableId, tableName, stubV);
+			_stubK = (Bean<?>)stubK;
+			_keyOrdered = keyOrdered;
+		}
+
+		@Override
+		protected byte[] marshalKey(K k)
+		{
+			Bean<?> kb = (Bean<?>)k;
+			OctetsStream os = marshalTableId(_tableId, kb.initSize());
+			return (_keyOrdered ? kb.marshalOrdered(os, Integer.MAX_VALUE) : kb.marshal(os)).getBytes();
+		}
+
+		@Override
+		protected byte[] marshalKeyPrefix(K k, int fieldCount)
+		{
+			if(!_keyOrdered)
+				throw new UnsupportedOperationException("walkPrefix needs ordered key for table: " + _tableName);
+			Bean<?> kb = (Bean<?>)k;
+			return kb.marshalOrdered(marshalTableId(_tableId, kb.initSize()), fieldCount).getBytes();
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		protected K unmarshalKey(byte[] key) throws MarshalException
+		{
+			Bean<?> k = _stubK.create();
+			OctetsStream os = OctetsStream.wrap(key, _tableIdLen, key.length);
+			if(_keyOrdered)
+				k.unmarshalOrdered(os);
+			else
+				k.unmarshal(os);
+			return (K)k;
+		}
+	}
+
+	@Override
+	public <K, V extends Bean<V>> Storage.Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV)
+	{
+		return openTable(tableId, tableName, stubK, stubV, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <K, V extends Bean<V>> Storage.Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV, boolean keyOrdered)
+	{
+		if(stubK instanceof Octets)
+			return (Storage.Table<K, V>)new TableOctets<>(tableId, tableName, stubV);
+		if(stubK instanceof String)
+			return (Storage.Table<K, V>)new TableString<>(tableId, tableName, stubV);
+		if(stubK instanceof Bean)
+			return new TableBean<>(tableId, tableName, (K)stubK, stubV, keyOrdered);
+		throw new UnsupportedOperationException("unsupported key type: " +
+				(stubK != null ? stubK.getClass().getName() : "null") + " for table: " + tableName);
+	}
+
+	@Override
+	public <V extends Bean<V>> Storage.TableLong<V> openTable(int tableId, String tableName, V stubV)
+	{
+		return new TableLong<>(tableId, tableName, stubV);
+	}
+}
@@ -0,0 +1,1319 @@
+package jane.core;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import jane.core.map.LongMap;
+
+/**
+ * 纯Java实现的LSM存储引擎
+ * <p>
+ * 写入的记录先保存在内存表(跳表)中,每次提交时把内存表按key排序写成一个不可变的段文件,再原子地替换清单文件完成提交<br>
+ * 段文件由带CRC校验的数据块,块索引和布隆过滤器组成. 后台线程按大小分层合并段文件,合并范围包含最旧的段文件时会丢弃已删除的记录<br>
+ * 读取时依次查询内存表和从新到旧的段文件. 不依赖本地库,也不需要预写日志,未提交的写入在崩溃后会全部丢失<br>
+ * 数据库文件名对应的是一个目录. 此类也可非单件实例化使用
+ */
+public final class StorageLSM extends StorageBase
+{
+	private static final StorageLSM			_instance	   = new StorageLSM();
+	private static final byte[]				DELETED		   = new byte[0];					  // 表示已删除的值
+	private static final Comparator<byte[]>	COMPARATOR	   = Util::compareBytes;			  // key的无符号字节序比较器
+	private static final long				SEGMENT_MAGIC  = 0x6a616e652d736567L;			  // "jane-seg"
+	private static final long				MANIFEST_MAGIC = 0x6a616e652d6c736dL;			  // "jane-lsm"
+	private static final String				MANIFEST_NAME  = "MANIFEST.lsm";				  // 清单文件名
+	private static final String				SEGMENT_EXT	   = ".seg";						  // 段文件的扩展名
+	private static final int				FOOTER_SIZE	   = 8 + 4 + 4 + 8 + 4 + 8;			  // 段文件尾部的固定大小
+	private static final int				RESTART_INTERVAL = 16;							  // 数据块中每隔多少条记录存储一次完整的key
+	private volatile NavigableMap<byte[], byte[]> _memTable = new ConcurrentSkipListMap<>(COMPARATOR); // 当前的内存表
+	private volatile Version				_version;										  // 当前所有段文件的版本. null表示已关闭
+	private final Object					_versionLock   = new Object();					  // 修改_version和清单文件的锁
+	private LongMap<byte[]>					_blockCache;									  // 数据块的读缓存
+	private File							_dbDir;											  // 当前数据库的目录
+	private long							_nextFileId;									  // 下一个段文件的ID
+	private Thread							_compactThread;									  // 后台合并段文件的线程
+	private volatile boolean				_closing;										  // 是否正在关闭
+	private boolean							_compactSignal;									  // 是否有新的段文件需要检查合并
+	private volatile long					_compactCount;									  // 合并段文件的次数统计
+
+	/**
+	 * 不可变的段文件
+	 * <p>
+	 * 格式: 数据块*N + 块索引 + 布隆过滤器 + 尾部<br>
+	 * 数据块: {共享前缀长度(UInt) 非共享长度(UInt) value长度+1(UInt,0表示已删除) 非共享的key value}* + 重启点位置(4)* + 重启点数量(4) + CRC32(4)<br>
+	 * 每RESTART_INTERVAL条记录设一个重启点,重启点的记录不共享前缀,用于在块内二分查找<br>
+	 * 块索引: 块数量(4) {块的最后key长度(4) key 块位置(8) 块大小(4)}*<br>
+	 * 布隆过滤器: hash数量(4) long数量(4) long*<br>
+	 * 尾部: 块索引位置(8) 块索引和布隆过滤器的大小(4) CRC32(4) 记录数量(8) 保留(4) MAGIC(8)
+	 */
+	private static final class Segment
+	{
+		private final long			_id;
+		private final File			_file;
+		private volatile FileChannel _fc;
+		private final byte[][]		_blockKeys;						 // 每个数据块的最后一个key
+		private final long[]		_blockPos;
+		private final int[]			_blockSize;						 // 不含CRC的数据块大小
+		private final long[]		_bloom;
+		private final long			_bloomBits;
+		private final int			_bloomHashes;
+		private final long			_count;							 // 记录数量(含已删除的记录)
+		private final long			_size;							 // 文件大小
+		private final AtomicInteger	_refCount = new AtomicInteger(); // 引用此段文件的版本数量
+		private volatile boolean	_obsolete;						 // 是否已被合并. 不再引用时删除文件
+
+		Segment(long id, File file) throws IOException
+		{
+			_id = id;
+			_file = file;
+			_fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try
+			{
+				_size = _fc.size();
+				if(_size < FOOTER_SIZE) throw new IOException("invalid segment file size: " + file.getAbsolutePath());
+				ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+				read(_size - FOOTER_SIZE, footer);
+				footer.flip();
+				long metaPos = footer.getLong();
+				int metaSize = footer.getInt();
+				int metaCrc = footer.getInt();
+				_count = footer.getLong();
+				footer.getInt();
+				if(footer.getLong() != SEGMENT_MAGIC || metaPos < 0 || metaSize < 12 || metaPos + metaSize > _size - FOOTER_SIZE)
+					throw new IOException("invalid segment file footer: " + file.getAbsolutePath());
+				ByteBuffer meta = ByteBuffer.allocate(metaSize);
+				read(metaPos, meta);
+				CRC32 crc = new CRC32();
+				crc.update(meta.array(), 0, metaSize);
+				if((int)crc.getValue() != metaCrc)
+					throw new IOException("corrupted segment file index: " + file.getAbsolutePath());
+				meta.flip();
+				int n = meta.getInt();
+				_blockKeys = new byte[n][];
+				_blockPos = new long[n];
+				_blockSize = new int[n];
+				for(int i = 0; i < n; ++i)
+				{
+					byte[] k = new byte[meta.getInt()];
+					meta.get(k);
+					_blockKeys[i] = k;
+					_blockPos[i] = meta.getLong();
+					_blockSize[i] = meta.getInt();
+				}
+				_bloomHashes = meta.getInt();
+				_bloom = new long[meta.getInt()];
+				for(int i = 0, m = _bloom.length; i < m; ++i)
+					_bloom[i] = meta.getLong();
+				_bloomBits = _bloom.length * 64L;
+			}
+			catch(IOException | RuntimeException e)
+			{
+				_fc.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * 从指定位置读满buf
+		 * <p>
+		 * 读取线程被打断时FileChannel会被关闭,这里会重新打开并重试,且不影响调用线程的中断状态
+		 */
+		void read(long pos, ByteBuffer buf) throws IOException
+		{
+			boolean interrupted = Thread.interrupted();
+			try
+			{
+				for(int retry = 0;; ++retry)
+				{
+					FileChannel fc = _fc;
+					try
+					{
+						while(buf.hasRemaining())
+						{
+							if(fc.read(buf, pos + buf.position()) < 0)
+								throw new EOFException("read segment file EOF: " + _file.getAbsolutePath());
+						}
+						return;
+					}
+					catch(ClosedChannelException e)
+					{
+						if(retry >= 3 || _refCount.get() <= 0) throw e;
+						interrupted |= Thread.interrupted();
+						synchronized(this)
+						{
+							if(_fc == fc)
+								_fc = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+						}
+					}
+				}
+			}
+			finally
+			{
+				if(interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
+		int getBlockCount()
+		{
+			return _blockKeys.length;
+		}
+
+		/**
+		 * 查找最后key不小于指定key的第一个数据块
+		 * @return 找不到时返回数据块数量
+		 */
+		int findBlock(byte[] key)
+		{
+			byte[][] keys = _blockKeys;
+			int lo = 0, hi = keys.length;
+			while(lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if(Util.compareBytes(keys[mid], key) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * 读取数据块. 返回的数据包含末尾4字节的CRC
+		 */
+		byte[] readBlock(int i, LongMap<byte[]> cache) throws IOException
+		{
+			long cacheKey = (_id << 32) + i;
+			byte[] buf;
+			if(cache != null && (buf = cache.get(cacheKey)) != null) return buf;
+			int size = _blockSize[i];
+			ByteBuffer bb = ByteBuffer.allocate(size + 4);
+			read(_blockPos[i], bb);
+			buf = bb.array();
+			CRC32 crc = new CRC32();
+			crc.update(buf, 0, size);
+			if((int)crc.getValue() != bb.getInt(size))
+				throw new IOException("corrupted segment block(" + i + "): " + _file.getAbsolutePath());
+			if(cache != null) cache.put(cacheKey, buf);
+			return buf;
+		}
+
+		boolean mayContain(long hash)
+		{
+			long[] bloom = _bloom;
+			long bits = _bloomBits;
+			if(bits == 0) return false;
+			long h1 = (int)hash, h2 = (int)(hash >>> 32);
+			for(int i = 0, n = _bloomHashes; i < n; ++i)
+			{
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+				if((bloom[(int)(bit >>> 6)] & (1L << bit)) == 0) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return 返回null表示此段文件中没有此key的记录, 返回DELETED表示已删除
+		 */
+		byte[] get(byte[] key, long hash, LongMap<byte[]> cache) throws IOException
+		{
+			if(!mayContain(hash)) return null;
+			int i = findBlock(key);
+			if(i >= _blockKeys.length) return null;
+			BlockReader br = new BlockReader(readBlock(i, cache));
+			br.seek(key);
+			while(br.next())
+			{
+				int c = br.compareKey(key);
+				if(c == 0) return br.value();
+				if(c > 0) break;
+			}
+			return null;
+		}
+
+		void retain()
+		{
+			_refCount.incrementAndGet();
+		}
+
+		void release()
+		{
+			if(_refCount.decrementAndGet() == 0)
+			{
+				try
+				{
+					_fc.close();
+				}
+				catch(IOException e)
+				{
+					Log.error("StorageLSM: close segment failed: " + _file.getAbsolutePath(), e);
+				}
+				if(_obsolete && !_file.delete())
+					Log.error("StorageLSM: delete segment failed: {}", _file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * 数据块的顺序解析器
+	 */
+	private static final class BlockReader
+	{
+		private final byte[] _buf;
+		private final int	 _end;			// 重启点数组的位置
+		private final int	 _restartCount;
+		private int			 _pos;
+		private byte[]		 _key = new byte[64];
+		private int			 _keyLen;
+		private int			 _valuePos;
+		private int			 _valueLen; // -1表示已删除
+
+		BlockReader(byte[] buf)
+		{
+			_buf = buf;
+			int p = buf.length - 8;
+			_restartCount = getInt(buf, p);
+			_end = p - _restartCount * 4;
+		}
+
+		private static int getInt(byte[] b, int p)
+		{
+			return (b[p] << 24) + ((b[p + 1] & 0xff) << 16) + ((b[p + 2] & 0xff) << 8) + (b[p + 3] & 0xff);
+		}
+
+		/**
+		 * 定位到key不大于指定key的最后一个重启点. 之后调用next依次读取
+		 */
+		void seek(byte[] key)
+		{
+			byte[] b = _buf;
+			int lo = 0, hi = _restartCount - 1;
+			while(lo < hi)
+			{
+				int mid = (lo + hi + 1) >>> 1;
+				_pos = getInt(b, _end + mid * 4);
+				readUInt(); // 重启点的共享前缀长度为0
+				int len = readUInt();
+				readUInt();
+				int c = 0;
+				for(int i = 0, p = _pos, n = Math.min(len, key.length); i < n && c == 0; ++i, ++p)
+					c = (b[p] & 0xff) - (key[i] & 0xff);
+				if(c < 0 || c == 0 && len <= key.length)
+					lo = mid;
+				else
+					hi = mid - 1;
+			}
+			_pos = (_restartCount > 0 ? getInt(b, _end + lo * 4) : _end);
+		}
+
+		private int readUInt()
+		{
+			byte[] b = _buf;
+			int v = b[_pos++] & 0xff;
+			if(v < 0x80) return v;
+			if(v < 0xc0) return ((v & 0x3f) << 8) + (b[_pos++] & 0xff);
+			if(v < 0xe0) return ((v & 0x1f) << 16) + ((b[_pos++] & 0xff) << 8) + (b[_pos++] & 0xff);
+			if(v < 0xf0) return ((v & 0x0f) << 24) + ((b[_pos++] & 0xff) << 16) + ((b[_pos++] & 0xff) << 8) + (b[_pos++] & 0xff);
+			return ((b[_pos++] & 0xff) << 24) + ((b[_pos++] & 0xff) << 16) + ((b[_pos++] & 0xff) << 8) + (b[_pos++] & 0xff);
+		}
+
+		boolean next()
+		{
+			if(_pos >= _end) return false;
+			int shared = readUInt();
+			int unshared = readUInt();
+			int valueLen = readUInt() - 1;
+			int keyLen = shared + unshared;
+			if(keyLen > _key.length)
+				_key = Arrays.copyOf(_key, Math.max(keyLen, _key.length * 2));
+			System.arraycopy(_buf, _pos, _key, shared, unshared);
+			_pos += unshared;
+			_keyLen = keyLen;
+			_valuePos = _pos;
+			_valueLen = valueLen;
+			if(valueLen > 0) _pos += valueLen;
+			return true;
+		}
+
+		int compareKey(byte[] key)
+		{
+			byte[] k = _key;
+			int n0 = _keyLen, n1 = key.length;
+			for(int i = 0, n = Math.min(n0, n1); i < n; ++i)
+			{
+				int c = (k[i] & 0xff) - (key[i] & 0xff);
+				if(c != 0) return c;
+			}
+			return n0 - n1;
+		}
+
+		byte[] key()
+		{
+			return Arrays.copyOf(_key, _keyLen);
+		}
+
+		byte[] value()
+		{
+			return _valueLen >= 0 ? Arrays.copyOfRange(_buf, _valuePos, _valuePos + _valueLen) : DELETED;
+		}
+	}
+
+	/**
+	 * 一组段文件的不可变快照. 读取时持有引用,保证其中的段文件不会被关闭和删除
+	 */
+	private static final class Version
+	{
+		private final Segment[]		_segments;						  // 从新到旧排列
+		private final AtomicInteger	_refCount = new AtomicInteger(1); // 当前版本持有1个引用
+
+		Version(Segment[] segments)
+		{
+			_segments = segments;
+			for(Segment seg : segments)
+				seg.retain();
+		}
+
+		boolean acquire()
+		{
+			for(;;)
+			{
+				int n = _refCount.get();
+				if(n <= 0) return false;
+				if(_refCount.compareAndSet(n, n + 1)) return true;
+			}
+		}
+
+		void release()
+		{
+			if(_refCount.decrementAndGet() == 0)
+			{
+				for(Segment seg : _segments)
+					seg.release();
+			}
+		}
+	}
+
+	/**
+	 * 有序遍历记录的游标
+	 */
+	private interface Cursor
+	{
+		/**
+		 * @return 当前的key. null表示已遍历结束
+		 */
+		byte[] key();
+
+		/**
+		 * @return 当前的value. DELETED表示已删除
+		 */
+		byte[] value();
+
+		void next() throws IOException;
+	}
+
+	private static final class MapCursor implements Cursor
+	{
+		private final Iterator<Entry<byte[], byte[]>> _it;
+		private byte[]								  _key;
+		private byte[]								  _value;
+
+		MapCursor(NavigableMap<byte[], byte[]> map, byte[] from, boolean inclusive, boolean reverse)
+		{
+			if(from != null)
+				map = (reverse ? map.headMap(from, inclusive) : map.tailMap(from, inclusive));
+			_it = (reverse ? map.descendingMap() : map).entrySet().iterator();
+			next();
+		}
+
+		@Override
+		public byte[] key()
+		{
+			return _key;
+		}
+
+		@Override
+		public byte[] value()
+		{
+			return _value;
+		}
+
+		@Override
+		public void next()
+		{
+			if(_it.hasNext())
+			{
+				Entry<byte[], byte[]> e = _it.next();
+				_key = e.getKey();
+				_value = e.getValue();
+			}
+			else
+				_key = _value = null;
+		}
+	}
+
+	private static final class SegmentCursor implements Cursor
+	{
+		private final Segment		  _seg;
+		private final LongMap<byte[]> _cache;
+		private final boolean		  _reverse;
+		private int					  _block;
+		private byte[][]			  _keys	  = new byte[16][];
+		private byte[][]			  _values = new byte[16][];
+		private int					  _count;
+		private int					  _idx;
+
+		SegmentCursor(Segment seg, LongMap<byte[]> cache, byte[] from, boolean inclusive, boolean reverse) throws IOException
+		{
+			_seg = seg;
+			_cache = cache;
+			_reverse = reverse;
+			int blockCount = seg.getBlockCount();
+			if(!reverse)
+			{
+				load(from != null ? seg.findBlock(from) : 0);
+				if(from != null)
+				{
+					for(int c; _idx < _count && ((c = Util.compareBytes(_keys[_idx], from)) < 0 || c == 0 && !inclusive);)
+						++_idx;
+					if(_idx >= _count) load(_block + 1);
+				}
+			}
+			else
+			{
+				load(from != null ? Math.min(seg.findBlock(from), blockCount - 1) : blockCount - 1);
+				if(from != null)
+				{
+					for(int c; _idx >= 0 && ((c = Util.compareBytes(_keys[_idx], from)) > 0 || c == 0 && !inclusive);)
+						--_idx;
+					if(_idx < 0) load(_block - 1);
+				}
+			}
+		}
+
+		private void load(int block) throws IOException
+		{
+			_block = block;
+			_count = 0;
+			if(block >= 0 && block < _seg.getBlockCount())
+			{
+				BlockReader br = new BlockReader(_seg.readBlock(block, _cache));
+				while(br.next())
+				{
+					if(_count >= _keys.length)
+					{
+						_keys = Arrays.copyOf(_keys, _count * 2);
+						_values = Arrays.copyOf(_values, _count * 2);
+					}
+					_keys[_count] = br.key();
+					_values[_count++] = br.value();
+				}
+			}
+			_idx = (_reverse ? _count - 1 : 0);
+		}
+
+		@Override
+		public byte[] key()
+		{
+			return _idx >= 0 && _idx < _count ? _keys[_idx] : null;
+		}
+
+		@Override
+		public byte[] value()
+		{
+			return _idx >= 0 && _idx < _count ? _values[_idx] : null;
+		}
+
+		@Override
+		public void next() throws IOException
+		{
+			if(!_reverse)
+			{
+				if(++_idx >= _count && _count > 0) load(_block + 1);
+			}
+			else
+			{
+				if(--_idx < 0 && _count > 0) load(_block - 1);
+			}
+		}
+	}
+
+	/**
+	 * 合并多个游标的有序遍历. 相同key的记录只取优先级最高(数组中最靠前)的游标的value
+	 */
+	private static final class MergeCursor implements Cursor
+	{
+		private final Cursor[] _cursors;
+		private final boolean  _reverse;
+		private byte[]		   _key;
+		private byte[]		   _value;
+
+		MergeCursor(Cursor[] cursors, boolean reverse)
+		{
+			_cursors = cursors;
+			_reverse = reverse;
+			find();
+		}
+
+		private void find()
+		{
+			byte[] key = null, value = null;
+			for(Cursor cur : _cursors)
+			{
+				byte[] k = cur.key();
+				if(k == null) continue;
+				int c;
+				if(key == null || (c = Util.compareBytes(k, key)) != 0 && (c < 0) != _reverse)
+				{
+					key = k;
+					value = cur.value();
+				}
+			}
+			_key = key;
+			_value = value;
+		}
+
+		@Override
+		public byte[] key()
+		{
+			return _key;
+		}
+
+		@Override
+		public byte[] value()
+		{
+			return _value;
+		}
+
+		@Override
+		public void next() throws IOException
+		{
+			byte[] key = _key;
+			if(key == null) return;
+			for(Cursor cur : _cursors)
+			{
+				byte[] k = cur.key();
+				if(k != null && Util.compareBytes(k, key) == 0)
+					cur.next();
+			}
+			find();
+		}
+	}
+
+	private static long hash(byte[] key)
+	{
+		long h = 0xcbf2_9ce4_8422_2325L; // FNV-1a 64
+		for(byte b : key)
+			h = (h ^ (b & 0xff)) * 0x100_0000_01b3L;
+		h = (h ^ (h >>> 33)) * 0xff51_afd7_ed55_8ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ce_b9fe_1a85_ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	public static StorageLSM instance()
+	{
+		return _instance;
+	}
+
+	private static File segmentFile(File dir, long id)
+	{
+		return new File(dir, String.format("%08d", id) + SEGMENT_EXT);
+	}
+
+	private static void syncDir(File dir)
+	{
+		try(FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ))
+		{
+			fc.force(true);
+		}
+		catch(IOException e) // 部分平台不支持同步目录
+		{
+		}
+	}
+
+	private long allocFileId()
+	{
+		synchronized(_versionLock)
+		{
+			return _nextFileId++;
+		}
+	}
+
+	private Version acquireVersion()
+	{
+		for(;;)
+		{
+			Version ver = _version;
+			if(ver == null) throw new IllegalStateException("db closed");
+			if(ver.acquire()) return ver;
+		}
+	}
+
+	/**
+	 * 把游标遍历的所有记录写成新的段文件
+	 * @param dropDeleted 是否丢弃已删除的记录
+	 * @return 没有任何记录时返回null
+	 */
+	private Segment writeSegment(long id, Cursor cur, boolean dropDeleted) throws IOException
+	{
+		File file = segmentFile(_dbDir, id);
+		int blockSize = Const.lsmBlockSize << 10;
+		int bloomBitsPerKey = Const.lsmBloomBitsPerKey;
+		long count = 0, pos = 0;
+		boolean ok = false;
+		try
+		{
+			OctetsStream block = new OctetsStream(blockSize + 256);
+			OctetsStream index = new OctetsStream(4096);
+			OctetsStream restarts = new OctetsStream(256);
+			int blockEntries = 0;
+			long[] hashes = new long[1024];
+			int blockCount = 0;
+			byte[] lastKey = null;
+			CRC32 crc = new CRC32();
+			FileOutputStream fos = new FileOutputStream(file);
+			try(BufferedOutputStream os = new BufferedOutputStream(fos, 0x10000))
+			{
+				index.marshal4(0); // 之后修正块数量
+				for(byte[] key; (key = cur.key()) != null; cur.next())
+				{
+					byte[] value = cur.value();
+					if(value == DELETED && dropDeleted) continue;
+					if(_closing) throw new IOException("StorageLSM: closing");
+					int shared = 0;
+					if(blockEntries++ % RESTART_INTERVAL == 0)
+						restarts.marshal4(block.size());
+					else
+					{
+						for(int n = Math.min(lastKey.length, key.length); shared < n && lastKey[shared] == key[shared];)
+							++shared;
+					}
+					block.marshalUInt(shared).marshalUInt(key.length - shared).marshalUInt(value == DELETED ? 0 : value.length + 1);
+					block.append(key, shared, key.length - shared);
+					if(value != DELETED) block.append(value);
+					if(count >= hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+					hashes[(int)count++] = hash(key);
+					lastKey = key;
+					if(block.size() >= blockSize)
+					{
+						pos = writeBlock(os, block, restarts, index, lastKey, pos, crc);
+						blockEntries = 0;
+						++blockCount;
+					}
+				}
+				if(blockEntries > 0)
+				{
+					pos = writeBlock(os, block, restarts, index, lastKey, pos, crc);
+					++blockCount;
+				}
+				if(count == 0) return null;
+				byte[] buf = index.array();
+				buf[0] = (byte)(blockCount >> 24);
+				buf[1] = (byte)(blockCount >> 16);
+				buf[2] = (byte)(blockCount >> 8);
+				buf[3] = (byte)blockCount;
+
+				long bits = Math.max(count * bloomBitsPerKey, 64);
+				long[] bloom = new long[(int)Math.min((bits + 63) >> 6, Integer.MAX_VALUE >> 3)];
+				bits = bloom.length * 64L;
+				int bloomHashes = Math.max(1, Math.min(30, (int)Math.round(bloomBitsPerKey * 0.69)));
+				for(int i = 0; i < count; ++i)
+				{
+					long h = hashes[i], h1 = (int)h, h2 = (int)(h >>> 32);
+					for(int j = 0; j < bloomHashes; ++j)
+					{
+						long bit = ((h1 + j * h2) & Long.MAX_VALUE) % bits;
+						bloom[(int)(bit >>> 6)] |= 1L << bit;
+					}
+				}
+				index.marshal4(bloomHashes).marshal4(bloom.length);
+				for(long b : bloom)
+					index.marshal8(b);
+				crc.reset();
+				crc.update(index.array(), 0, index.size());
+				os.write(index.array(), 0, index.size());
+				OctetsStream footer = new OctetsStream(FOOTER_SIZE);
+				footer.marshal8(pos).marshal4(index.size()).marshal4((int)crc.getValue()).marshal8(count).marshal4(0).marshal8(SEGMENT_MAGIC);
+				os.write(footer.array(), 0, footer.size());
+				os.flush();
+				fos.getFD().sync();
+			}
+			Segment seg = new Segment(id, file);
+			ok = true;
+			return seg;
+		}
+		finally
+		{
+			if(!ok && file.exists() && !file.delete())
+				Log.error("StorageLSM: delete segment failed: {}", file.getAbsolutePath());
+		}
+	}
+
+	private static long writeBlock(BufferedOutputStream os, OctetsStream block, OctetsStream restarts, OctetsStream index,
+			byte[] lastKey, long pos, CRC32 crc) throws IOException
+	{
+		block.append(restarts);
+		block.marshal4(restarts.size() / 4);
+		restarts.clear();
+		int size = block.size();
+		crc.reset();
+		crc.update(block.array(), 0, size);
+		block.marshal4((int)crc.getValue());
+		os.write(block.array(), 0, block.size());
+		index.marshal4(lastKey.length).append(lastKey);
+		index.marshal8(pos).marshal4(size);
+		pos += block.size();
+		block.clear();
+		return pos;
+	}
+
+	private void writeManifest(File dir, Segment[] segments, long nextFileId) throws IOException
+	{
+		OctetsStream os = new OctetsStream(24 + segments.length * 8);
+		os.marshal8(MANIFEST_MAGIC).marshal8(nextFileId).marshal4(segments.length);
+		for(Segment seg : segments)
+			os.marshal8(seg._id);
+		CRC32 crc = new CRC32();
+		crc.update(os.array(), 0, os.size());
+		os.marshal4((int)crc.getValue());
+		File tmp = new File(dir, MANIFEST_NAME + ".tmp");
+		try(FileOutputStream fos = new FileOutputStream(tmp))
+		{
+			fos.write(os.array(), 0, os.size());
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(dir, MANIFEST_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncDir(dir);
+	}
+
+	/**
+	 * 在已持有_versionLock的情况下替换当前版本
+	 */
+	private void installVersion(Segment[] segments, long nextFileId) throws IOException
+	{
+		writeManifest(_dbDir, segments, nextFileId);
+		Version old = _version;
+		_version = new Version(segments);
+		if(old != null) old.release();
+	}
+
+	/**
+	 * 选择需要合并的段文件
+	 * <p>
+	 * 从最新的段文件开始,只要下一个较旧的段文件不超过已选中大小的2倍就一起合并,使各层的段文件大小呈指数增长
+	 * @return 需要合并的最新段文件的数量. <2表示不需要合并
+	 */
+	private static int pickCompaction(Segment[] segments)
+	{
+		int n = segments.length;
+		int trigger = Const.lsmCompactTrigger;
+		if(n < trigger) return 0;
+		long sum = segments[0]._size;
+		int end = 1;
+		while(end < n && segments[end]._size <= sum * 2)
+			sum += segments[end++]._size;
+		if(end < 2 && n >= trigger * 2)
+			end = trigger; // 段文件过多时强制合并最新的部分
+		return end;
+	}
+
+	/**
+	 * 执行一次段文件合并
+	 * @return 是否执行了合并
+	 */
+	private boolean compactOnce() throws IOException
+	{
+		Version ver = acquireVersion();
+		try
+		{
+			Segment[] segs = ver._segments;
+			int n = pickCompaction(segs);
+			if(n < 2) return false;
+			long t = System.currentTimeMillis();
+			Cursor[] cursors = new Cursor[n];
+			for(int i = 0; i < n; ++i)
+				cursors[i] = new SegmentCursor(segs[i], null, null, true, false);
+			Segment seg = writeSegment(allocFileId(), new MergeCursor(cursors, false), n == segs.length);
+			synchronized(_versionLock)
+			{
+				Version cur = _version;
+				Segment[] curSegs = (cur != null ? cur._segments : null);
+				int base = (curSegs != null ? curSegs.length - segs.length : -1); // 合并期间只会有新提交的段文件加在最前面
+				boolean valid = (base >= 0);
+				for(int i = 0; valid && i < n; ++i)
+					valid = (curSegs[base + i] == segs[i]);
+				if(!valid)
+				{
+					if(seg != null)
+					{
+						seg._obsolete = true;
+						seg.retain();
+						seg.release();
+					}
+					return false;
+				}
+				Segment[] newSegs = new Segment[curSegs.length - n + (seg != null ? 1 : 0)];
+				System.arraycopy(curSegs, 0, newSegs, 0, base);
+				int p = base;
+				if(seg != null) newSegs[p++] = seg;
+				System.arraycopy(curSegs, base + n, newSegs, p, curSegs.length - base - n);
+				try
+				{
+					installVersion(newSegs, _nextFileId);
+				}
+				catch(IOException e)
+				{
+					if(seg != null)
+					{
+						seg._obsolete = true;
+						seg.retain();
+						seg.release();
+					}
+					throw e;
+				}
+				for(int i = 0; i < n; ++i)
+					segs[i]._obsolete = true;
+			}
+			++_compactCount;
+			Log.info("StorageLSM: compacted {} segments => {} ({} records, {} bytes) ({} ms)", n,
+					seg != null ? seg._file.getName() : "none", seg != null ? seg._count : 0, seg != null ? seg._size : 0,
+					System.currentTimeMillis() - t);
+			return true;
+		}
+		finally
+		{
+			ver.release();
+		}
+	}
+
+	private void compactLoop()
+	{
+		while(!_closing)
+		{
+			try
+			{
+				if(!compactOnce())
+				{
+					synchronized(_versionLock)
+					{
+						if(!_compactSignal && !_closing)
+							_versionLock.wait(10_000);
+						_compactSignal = false;
+					}
+				}
+			}
+			catch(InterruptedException e)
+			{
+				break;
+			}
+			catch(Throwable e)
+			{
+				if(_closing) break;
+				Log.error("StorageLSM: compact exception:", e);
+				try
+				{
+					Thread.sleep(1000);
+				}
+				catch(InterruptedException ex)
+				{
+					break;
+				}
+			}
+		}
+	}
+
+	private void signalCompact()
+	{
+		synchronized(_versionLock)
+		{
+			_compactSignal = true;
+			_versionLock.notifyAll();
+		}
+	}
+
+	public StorageLSM()
+	{
+	}
+
+	/**
+	 * 获取当前的段文件数量
+	 */
+	public int getSegmentCount()
+	{
+		Version ver = _version;
+		return ver != null ? ver._segments.length : 0;
+	}
+
+	/**
+	 * 获取当前所有段文件的总大小
+	 */
+	public long getSegmentSize()
+	{
+		Version ver = _version;
+		if(ver == null) return 0;
+		long size = 0;
+		for(Segment seg : ver._segments)
+			size += seg._size;
+		return size;
+	}
+
+	/**
+	 * 获取合并段文件的次数统计
+	 */
+	public long getCompactCount()
+	{
+		return _compactCount;
+	}
+
+	@Override
+	public byte[] dbget(byte[] key)
+	{
+		byte[] v = _memTable.get(key); // 必须先于获取版本,以免遗漏刚从内存表写入段文件的记录
+		if(v == null)
+		{
+			Version ver = acquireVersion();
+			try
+			{
+				long hash = hash(key);
+				for(Segment seg : ver._segments)
+				{
+					if((v = seg.get(key, hash, _blockCache)) != null)
+						break;
+				}
+			}
+			catch(IOException e)
+			{
+				throw new RuntimeException("StorageLSM.dbget failed", e);
+			}
+			finally
+			{
+				ver.release();
+			}
+		}
+		return v != DELETED ? v : null;
+	}
+
+	/**
+	 * 只获取一次当前版本,按key的顺序分段并行查询,相邻的key可以共用缓存的数据块
+	 */
+	@Override
+	public byte[][] dbgetMulti(byte[][] keys)
+	{
+		int[] idxs = sortedIndexes(keys);
+		byte[][] values = new byte[keys.length][];
+		NavigableMap<byte[], byte[]> memTable = _memTable; // 必须先于获取版本
+		Version ver = acquireVersion();
+		try
+		{
+			Segment[] segs = ver._segments;
+			Helper.readMulti(keys.length, i ->
+			{
+				int j = idxs[i];
+				byte[] key = keys[j];
+				byte[] v = memTable.get(key);
+				if(v == null)
+				{
+					long hash = hash(key);
+					try
+					{
+						for(Segment seg : segs)
+						{
+							if((v = seg.get(key, hash, _blockCache)) != null)
+								break;
+						}
+					}
+					catch(IOException e)
+					{
+						throw new RuntimeException("StorageLSM.dbgetMulti failed", e);
+					}
+				}
+				values[j] = (v != DELETED ? v : null);
+			});
+		}
+		finally
+		{
+			ver.release();
+		}
+		return values;
+	}
+
+	@Override
+	public void dbput(byte[] key, byte[] value)
+	{
+		_memTable.put(key, value != null ? value : DELETED);
+	}
+
+	@Override
+	public boolean dbwalk(byte[] keyFrom, byte[] keyTo, boolean inclusive, boolean reverse, DBWalkHandler handler)
+	{
+		if(keyFrom != null && keyTo != null && Util.compareBytes(keyFrom, keyTo) > 0)
+		{
+			byte[] t = keyFrom;
+			keyFrom = keyTo;
+			keyTo = t;
+		}
+		byte[] keyBegin = (reverse ? keyTo : keyFrom);
+		byte[] keyEnd = (reverse ? keyFrom : keyTo);
+		NavigableMap<byte[], byte[]> memTable = _memTable; // 必须先于获取版本
+		Version ver = acquireVersion();
+		try
+		{
+			Segment[] segs = ver._segments;
+			Cursor[] cursors = new Cursor[segs.length + 1];
+			cursors[0] = new MapCursor(memTable, keyBegin, inclusive, reverse);
+			for(int i = 0; i < segs.length; ++i)
+				cursors[i + 1] = new SegmentCursor(segs[i], _blockCache, keyBegin, inclusive, reverse);
+			for(MergeCursor cur = new MergeCursor(cursors, reverse);; cur.next())
+			{
+				byte[] key = cur.key();
+				if(key == null) break;
+				if(keyEnd != null)
+				{
+					int c = Util.compareBytes(key, keyEnd);
+					if(c == 0 ? !inclusive : (c > 0) != reverse) break;
+				}
+				byte[] value = cur.value();
+				if(value == DELETED) continue;
+				try
+				{
+					if(!handler.onWalk(key, value))
+						return false;
+				}
+				catch(Exception e)
+				{
+					Log.error("walk exception:", e);
+					return false;
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException("StorageLSM.dbwalk failed", e);
+		}
+		finally
+		{
+			ver.release();
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void openDB(File file) throws IOException
+	{
+		close();
+		if(!file.isDirectory() && !file.mkdirs())
+			throw new IOException("StorageLSM.openDB: create db path failed: " + file.getAbsolutePath());
+		if(new File(file, "CURRENT").exists())
+			throw new IOException("StorageLSM.openDB: found LevelDB files in db path: " + file.getAbsolutePath());
+		long nextFileId = 1;
+		Segment[] segs = new Segment[0];
+		File manifest = new File(file, MANIFEST_NAME);
+		if(manifest.exists())
+		{
+			ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(manifest.toPath()));
+			int size = bb.limit();
+			CRC32 crc = new CRC32();
+			crc.update(bb.array(), 0, Math.max(size - 4, 0));
+			if(size < 24 || bb.getLong() != MANIFEST_MAGIC || bb.getInt(size - 4) != (int)crc.getValue())
+				throw new IOException("StorageLSM.openDB: invalid manifest: " + manifest.getAbsolutePath());
+			nextFileId = bb.getLong();
+			int n = bb.getInt();
+			if(n < 0 || 24 + n * 8L != size) throw new IOException("StorageLSM.openDB: invalid manifest: " + manifest.getAbsolutePath());
+			segs = new Segment[n];
+			try
+			{
+				for(int i = 0; i < n; ++i)
+				{
+					long id = bb.getLong();
+					segs[i] = new Segment(id, segmentFile(file, id));
+				}
+			}
+			catch(IOException | RuntimeException e)
+			{
+				for(Segment seg : segs)
+				{
+					if(seg != null)
+					{
+						seg.retain();
+						seg.release();
+					}
+				}
+				throw e;
+			}
+		}
+		HashSet<String> live = new HashSet<>();
+		for(Segment seg : segs)
+			live.add(seg._file.getName());
+		File[] files = file.listFiles();
+		if(files != null)
+		{
+			for(File f : files) // 清理未完成提交或合并的段文件
+			{
+				String name = f.getName();
+				if((name.endsWith(SEGMENT_EXT) && !live.contains(name) || name.equals(MANIFEST_NAME + ".tmp")) && !f.delete())
+					Log.error("StorageLSM.openDB: delete obsolete file failed: {}", f.getAbsolutePath());
+			}
+		}
+		_blockCache = Util.newLongConcurrentLRUMap(Math.max((Const.lsmCacheSize << 10) / Const.lsmBlockSize, 16), "StorageLSM.blockCache");
+		_memTable = new ConcurrentSkipListMap<>(COMPARATOR);
+		synchronized(_versionLock)
+		{
+			_dbDir = file;
+			_nextFileId = nextFileId;
+			_version = new Version(segs);
+			_compactSignal = true;
+		}
+		_closing = false;
+		_compactThread = new Thread(this::compactLoop, "StorageLSM-Compactor");
+		_compactThread.setDaemon(true);
+		_compactThread.start();
+		Log.info("StorageLSM.openDB: {} ({} segments, {} bytes)", file.getAbsolutePath(), segs.length, getSegmentSize());
+	}
+
+	@Override
+	public void putBegin()
+	{
+	}
+
+	@Override
+	public void putFlush(boolean isLast)
+	{
+	}
+
+	/**
+	 * 内存表本身支持并发写,所以总是支持并行写操作
+	 */
+	@Override
+	public boolean putParallel(boolean begin)
+	{
+		return true;
+	}
+
+	@Override
+	public synchronized boolean commit()
+	{
+		NavigableMap<byte[], byte[]> memTable = _memTable;
+		if(memTable.isEmpty()) return true;
+		if(_version == null) throw new IllegalStateException("db closed");
+		try
+		{
+			Segment seg = writeSegment(allocFileId(), new MapCursor(memTable, null, true, false), getSegmentCount() == 0);
+			if(seg != null)
+			{
+				synchronized(_versionLock)
+				{
+					Segment[] curSegs = _version._segments;
+					Segment[] newSegs = new Segment[curSegs.length + 1];
+					newSegs[0] = seg;
+					System.arraycopy(curSegs, 0, newSegs, 1, curSegs.length);
+					try
+					{
+						installVersion(newSegs, _nextFileId);
+					}
+					catch(IOException e)
+					{
+						seg._obsolete = true;
+						seg.retain();
+						seg.release();
+						throw e;
+					}
+				}
+			}
+			_memTable = new ConcurrentSkipListMap<>(COMPARATOR); // 必须在更新版本之后
+			signalCompact();
+			return true;
+		}
+		catch(IOException e)
+		{
+			Log.error("StorageLSM.commit: write segment failed:", e);
+			return false;
+		}
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		if(_version == null) return;
+		if(!commit())
+			Log.error("StorageLSM.close: commit failed, lost {} records", _memTable.size());
+		_closing = true;
+		signalCompact();
+		Thread t = _compactThread;
+		if(t != null)
+		{
+			try
+			{
+				t.join();
+			}
+			catch(InterruptedException e)
+			{
+				Log.error("StorageLSM.close: interrupted");
+			}
+			_compactThread = null;
+		}
+		synchronized(_versionLock)
+		{
+			Version ver = _version;
+			_version = null;
+			if(ver != null) ver.release();
+			_dbDir = null;
+		}
+		_blockCache.clear();
+		_memTable = new ConcurrentSkipListMap<>(COMPARATOR);
+	}
+
+	/**
+	 * 热备份数据库
+	 * <p>
+	 * 段文件都是不可变的,所以只需在持有当前版本的情况下把所有段文件硬链接(不支持时复制)到备份目录并写入清单文件<br>
+	 * 备份目录可直接作为数据库目录打开
+	 * @return 返回复制的字节数量(硬链接的文件不计入)
+	 */
+	@Override
+	public long backup(File fdst) throws IOException
+	{
+		if(!fdst.isDirectory() && !fdst.mkdirs())
+			throw new IOException("create db backup path failed: " + fdst.getAbsolutePath());
+		Version ver = acquireVersion();
+		try
+		{
+			long size = 0, nextFileId = 0;
+			for(Segment seg : ver._segments)
+			{
+				File dst = new File(fdst, seg._file.getName());
+				Files.deleteIfExists(dst.toPath());
+				try
+				{
+					Files.createLink(dst.toPath(), seg._file.toPath());
+				}
+				catch(IOException | UnsupportedOperationException e)
+				{
+					Files.copy(seg._file.toPath(), dst.toPath());
+					size += seg._size;
+				}
+				nextFileId = Math.max(nextFileId, seg._id + 1);
+			}
+			writeManifest(fdst, ver._segments, nextFileId);
+			return size;
+		}
+		finally
+		{
+			ver.release();
+		}
+	}
+}
@@ -6,8 +6,10 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.zip.CRC32;
@@ -25,7 +27,18 @@ public final class StorageLevelDB implements Storage
 	private int							_writeCount;											   // 提交中的写缓冲区记录数量
 	private final OctetsStreamEx		_writeBuf	  = new OctetsStreamEx(0x10000);			   // 提交中的写缓冲区
 	private final Map<Slice, Slice>		_writeMap	  = Util.newConcurrentHashMap();			   // 提交中的写记录
-	private final FastRWLock			_writeBufLock = new FastRWLock();						   // 访问_writeBuf和_writeMap的读写锁
+	private final StripedRWLock			_writeBufLock = new StripedRWLock();					   // 访问_writeBuf和_writeMap的读写锁
+	private final List<WriteBuffer>		_writeBufs	  = new ArrayList<>();						   // 所有线程的并行写缓冲区
+	private final ThreadLocal<WriteBuffer> _writeBufLocal = ThreadLocal.withInitial(() ->		   // 当前线程的并行写缓冲区
+	{
+		WriteBuffer wb = new WriteBuffer();
+		synchronized(_writeBufs)
+		{
+			_writeBufs.add(wb);
+		}
+		return wb;
+	});
+	private volatile boolean			_putParallel;											   // 是否在并行保存中
 	private long						_db;													   // LevelDB的数据库对象句柄
 	private File						_dbFile;												   // 当前数据库的文件
 	private final SimpleDateFormat		_sdf		  = new SimpleDateFormat("yy-MM-dd-HH-mm-ss"); // 备份文件后缀名的时间格式
@@ -82,9 +95,10 @@ public final class StorageLevelDB implements Storage
 				Slice s = (Slice)o;
 				int n = _len;
 				if(n != s._len) return false;
-				byte[] b = _buf;
+				byte[] b0 = _buf;
+				byte[] b1 = s._buf;
 				for(int p = _pos, q = s._pos, e = p + n; p < e; ++p, ++q)
-					if(b[p] != b[q]) return false;
+					if(b0[p] != b1[q]) return false;
 				return true;
 			}
 			else if(o instanceof Octets)
@@ -102,6 +116,18 @@ public final class StorageLevelDB implements Storage
 		}
 	}
 
+	/**
+	 * 并行保存时每个线程独立的写缓冲区
+	 * <p>
+	 * 每轮并行保存结束时合并到_writeBuf中. _writeMap中的slice可能引用这里的数据,所以提交成功前不能清除
+	 */
+	private static final class WriteBuffer
+	{
+		private final OctetsStreamEx _buf = new OctetsStreamEx(0x10000);
+		private int					 _count;	 // 未合并的记录数量
+		private int					 _mergedPos; // 已合并的位置
+	}
+
 	static
 	{
 		String nativeLibName = System.mapLibraryName("leveldbjni" + System.getProperty("sun.arch.data.model"));
@@ -181,9 +207,8 @@ public final class StorageLevelDB implements Storage
 		return pos;
 	}
 
-	private int writeVarUInt(int v)
+	private static int writeVarUInt(OctetsStreamEx os, int v)
 	{
-		OctetsStreamEx os = _writeBuf;
 		if(v < 0x80)
 			return os.marshal1((byte)v).size();
 		int size = os.size();
@@ -193,12 +218,11 @@ public final class StorageLevelDB implements Storage
 		return size;
 	}
 
-	private int writeValue(Bean<?> bean) // size(VarUInt) + data
+	private static int writeValue(OctetsStreamEx os, Bean<?> bean) // size(VarUInt) + data
 	{
 		int maxSize = 1 + bean.maxSize(); // 1 for format
 		int initLenLen = OctetsStream.marshalUIntLen(maxSize > 1 ? maxSize : Integer.MAX_VALUE);
 
-		OctetsStreamEx os = _writeBuf;
 		int pos = os.size(); // 记录当前位置,之后写大小
 		int vpos = pos + initLenLen;
 		os.resize(vpos); // 跳过估计大小的长度
@@ -328,8 +352,7 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(long k, V v)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int klen = _tableIdLen + OctetsStream.marshalLen(k);
 			os.marshal1((byte)klen);
@@ -339,7 +362,7 @@ public final class StorageLevelDB implements Storage
 			else
 				os.marshalUInt(_tableId);
 			os.marshal(k);
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -347,8 +370,7 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(long k)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int klen = _tableIdLen + OctetsStream.marshalLen(k);
 			os.marshal1((byte)klen);
@@ -381,8 +403,7 @@ public final class StorageLevelDB implements Storage
 		public void setIdCounter(long v)
 		{
 			if(v == getIdCounter()) return;
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int klen = _tableIdCounter.size();
 			os.marshal1((byte)klen);
@@ -553,6 +574,14 @@ public final class StorageLevelDB implements Storage
 			return _tableName;
 		}
 
+		/**
+		 * 序列化用于前缀匹配的key. 默认整个key作为前缀
+		 */
+		protected OctetsStream marshalKeyPrefix(K k, int fieldCount)
+		{
+			return marshalKey(k);
+		}
+
 		@Override
 		public boolean walk(WalkHandler<K> handler, K from, K to, boolean inclusive, boolean reverse)
 		{
@@ -565,6 +594,23 @@ public final class StorageLevelDB implements Storage
 				keyFrom = keyTo;
 				keyTo = t;
 			}
+			return walk(handler, keyFrom, keyTo, inclusive, reverse, null);
+		}
+
+		@Override
+		public boolean walkPrefix(WalkHandler<K> handler, K prefix, int prefixFieldCount, boolean reverse)
+		{
+			if(_db == 0) throw new IllegalStateException("db closed");
+			byte[] keyFrom = marshalKeyPrefix(prefix, prefixFieldCount).getBytes();
+			byte[] keyTo = StorageBase.nextPrefix(keyFrom);
+			return walk(handler, Octets.wrap(keyFrom), keyTo != null ? Octets.wrap(keyTo) : _tableIdNext, true, reverse, keyFrom);
+		}
+
+		/**
+		 * @param prefix 非null时跳过不以此为前缀的key
+		 */
+		private boolean walk(WalkHandler<K> handler, Octets keyFrom, Octets keyTo, boolean inclusive, boolean reverse, byte[] prefix)
+		{
 			long iter = 0;
 			try
 			{
@@ -578,6 +624,7 @@ public final class StorageLevelDB implements Storage
 						OctetsStream keyOs = OctetsStream.wrap(key);
 						int comp = keyOs.compareTo(keyTo);
 						if(comp >= 0 && (comp > 0 || !inclusive)) break;
+						if(prefix != null && !StorageBase.startsWith(key, prefix)) continue;
 						keyOs.setPosition(_tableIdLen);
 						if(!onWalk(handler, keyOs)) return false;
 					}
@@ -592,6 +639,7 @@ public final class StorageLevelDB implements Storage
 						OctetsStream keyOs = OctetsStream.wrap(key);
 						int comp = keyOs.compareTo(keyFrom);
 						if(comp <= 0 && (comp < 0 || !inclusive)) break;
+						if(prefix != null && !StorageBase.startsWith(key, prefix)) continue;
 						keyOs.setPosition(_tableIdLen);
 						if(!onWalk(handler, keyOs)) return false;
 					}
@@ -620,6 +668,21 @@ public final class StorageLevelDB implements Storage
 				keyFrom = keyTo;
 				keyTo = t;
 			}
+			return walk(handler, beanStub, keyFrom, keyTo, inclusive, reverse, null);
+		}
+
+		@Override
+		public boolean walkPrefix(WalkValueHandler<K, V> handler, V beanStub, K prefix, int prefixFieldCount, boolean reverse)
+		{
+			if(_db == 0) throw new IllegalStateException("db closed");
+			byte[] keyFrom = marshalKeyPrefix(prefix, prefixFieldCount).getBytes();
+			byte[] keyTo = StorageBase.nextPrefix(keyFrom);
+			return walk(handler, beanStub, Octets.wrap(keyFrom), keyTo != null ? Octets.wrap(keyTo) : _tableIdNext, true, reverse, keyFrom);
+		}
+
+		private boolean walk(WalkValueHandler<K, V> handler, V beanStub, Octets keyFrom, Octets keyTo, boolean inclusive, boolean reverse,
+				byte[] prefix)
+		{
 			long iter = 0;
 			try
 			{
@@ -635,6 +698,7 @@ public final class StorageLevelDB implements Storage
 						OctetsStream keyOs = OctetsStream.wrap(key);
 						int comp = keyOs.compareTo(keyTo);
 						if(comp >= 0 && (comp > 0 || !inclusive)) break;
+						if(prefix != null && !StorageBase.startsWith(key, prefix)) continue;
 						keyOs.setPosition(_tableIdLen);
 						V v = toBean(value, beanStub);
 						if(!onWalk(handler, keyOs, v)) return false;
@@ -652,6 +716,7 @@ public final class StorageLevelDB implements Storage
 						OctetsStream keyOs = OctetsStream.wrap(key);
 						int comp = keyOs.compareTo(keyFrom);
 						if(comp <= 0 && (comp < 0 || !inclusive)) break;
+						if(prefix != null && !StorageBase.startsWith(key, prefix)) continue;
 						keyOs.setPosition(_tableIdLen);
 						V v = toBean(value, beanStub);
 						if(!onWalk(handler, keyOs, v)) return false;
@@ -717,12 +782,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(Octets k, V v)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int ksize = k.size();
 			int klen = _tableIdLen + ksize;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if(_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -730,7 +794,7 @@ public final class StorageLevelDB implements Storage
 			int pos = os.size();
 			os.resize(pos + ksize);
 			System.arraycopy(k.array(), 0, os.array(), pos, ksize);
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -738,12 +802,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(Octets k)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int ksize = k.size();
 			int klen = _tableIdLen + ksize;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if(_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -826,12 +889,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(String k, V v)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int bn = OctetsStream.marshalStrLen(k);
 			int klen = _tableIdLen + bn;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if(_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -847,7 +909,7 @@ public final class StorageLevelDB implements Storage
 				for(int i = 0; i < cn; ++i)
 					os.marshalUTF8(k.charAt(i));
 			}
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -855,12 +917,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(String k)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int bn = OctetsStream.marshalStrLen(k);
 			int klen = _tableIdLen + bn;
-			int kpos = writeVarUInt(klen);
+			int kpos = writeVarUInt(os, klen);
 			if(_tableIdLen == 1)
 				os.marshal1((byte)_tableId);
 			else
@@ -895,15 +956,16 @@ public final class StorageLevelDB implements Storage
 	private final class TableBean<K, V extends Bean<V>> extends TableBase<K, V>
 	{
 		private final Bean<?> _stubK;
+		private final boolean _keyOrdered; // 是否使用有序key的编码
 
-		protected TableBean(int tableId, String tableName, K stubK, V stubV)
+		protected TableBean(int tableId, String tableName, K stubK, V stubV, boolean keyOrdered)
 		{
 			super(tableId, tableName, stubV);
 			_stubK = (Bean<?>)stubK;
+			_keyOrdered = keyOrdered;
 		}
 
-		@Override
-		protected OctetsStream marshalKey(K k)
+		private OctetsStream marshalKey(K k, int fieldCount)
 		{
 			@SuppressWarnings("unchecked")
 			Bean<V> kb = (Bean<V>)k;
@@ -913,7 +975,39 @@ public final class StorageLevelDB implements Storage
 				keyOs.marshal1((byte)_tableId);
 			else
 				keyOs.marshalUInt(_tableId);
-			return kb.marshal(keyOs);
+			return _keyOrdered ? kb.marshalOrdered(keyOs, fieldCount) : kb.marshal(keyOs);
+		}
+
+		@Override
+		protected OctetsStream marshalKey(K k)
+		{
+			return marshalKey(k, Integer.MAX_VALUE);
+		}
+
+		@Override
+		protected OctetsStream marshalKeyPrefix(K k, int fieldCount)
+		{
+			if(!_keyOrdered)
+				throw new UnsupportedOperationException("walkPrefix needs ordered key for table: " + _tableName);
+			return marshalKey(k, fieldCount);
+		}
+
+		private int writeKey(OctetsStreamEx os, K k) // size(VarUInt) + tableId + key
+		{
+			OctetsStream key = marshalKey(k);
+			int kpos = writeVarUInt(os, key.size());
+			os.append(key.array(), 0, key.size());
+			return kpos;
+		}
+
+		private Bean<?> unmarshalKey(OctetsStream k) throws MarshalException
+		{
+			Bean<?> key = _stubK.create();
+			if(_keyOrdered)
+				key.unmarshalOrdered(k);
+			else
+				k.unmarshal(key);
+			return key;
 		}
 
 		@Override
@@ -943,12 +1037,11 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void put(K k, V v)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
-			int kpos = writeValue((Bean<?>)k);
+			int kpos = writeKey(os, k);
 			int klen = os.size() - kpos;
-			int vpos = writeValue(v);
+			int vpos = writeValue(os, v);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -956,10 +1049,9 @@ public final class StorageLevelDB implements Storage
 		@Override
 		public void remove(K k)
 		{
-			incWriteCount();
-			OctetsStreamEx os = _writeBuf;
+			OctetsStreamEx os = beginWrite();
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
-			int kpos = writeValue((Bean<?>)k);
+			int kpos = writeKey(os, k);
 			_writeMap.put(new Slice(os.array(), kpos, os.size() - kpos), _deletedSlice);
 		}
 
@@ -967,18 +1059,14 @@ public final class StorageLevelDB implements Storage
 		@Override
 		protected boolean onWalk(WalkHandler<K> handler, OctetsStream k) throws MarshalException
 		{
-			Bean<?> key = _stubK.create();
-			k.unmarshal(key);
-			return Helper.onWalkSafe(handler, (K)key);
+			return Helper.onWalkSafe(handler, (K)unmarshalKey(k));
 		}
 
 		@SuppressWarnings("unchecked")
 		@Override
 		protected boolean onWalk(WalkValueHandler<K, V> handler, OctetsStream k, V v) throws MarshalException
 		{
-			Bean<?> key = _stubK.create();
-			k.unmarshal(key);
-			return Helper.onWalkSafe(handler, (K)key, v);
+			return Helper.onWalkSafe(handler, (K)unmarshalKey(k), v);
 		}
 	}
 
@@ -1047,6 +1135,21 @@ public final class StorageLevelDB implements Storage
 		++_writeCount;
 	}
 
+	/**
+	 * 开始写入一条记录,返回当前线程应该写入的缓冲区
+	 */
+	private OctetsStreamEx beginWrite()
+	{
+		if(!_putParallel)
+		{
+			incWriteCount();
+			return _writeBuf;
+		}
+		WriteBuffer wb = _writeBufLocal.get();
+		++wb._count;
+		return wb._buf;
+	}
+
 	public synchronized void dbput(Octets key, Octets value)
 	{
 		incWriteCount();
@@ -1205,16 +1308,22 @@ public final class StorageLevelDB implements Storage
 		_dbFile = file;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <K, V extends Bean<V>> Storage.Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV)
+	{
+		return openTable(tableId, tableName, stubK, stubV, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <K, V extends Bean<V>> Storage.Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV, boolean keyOrdered)
 	{
 		if(stubK instanceof Octets)
 			return (Storage.Table<K, V>)new TableOctets<>(tableId, tableName, stubV);
 		if(stubK instanceof String)
 			return (Storage.Table<K, V>)new TableString<>(tableId, tableName, stubV);
 		if(stubK instanceof Bean)
-			return new TableBean<>(tableId, tableName, (K)stubK, stubV);
+			return new TableBean<>(tableId, tableName, (K)stubK, stubV, keyOrdered);
 		throw new UnsupportedOperationException("unsupported key type: " +
 				(stubK != null ? stubK.getClass().getName() : "null") + " for table: " + tableName);
 	}
@@ -1242,6 +1351,15 @@ public final class StorageLevelDB implements Storage
 		{
 			_writeMap.clear();
 			_writeBuf.resize(4);
+			synchronized(_writeBufs)
+			{
+				for(WriteBuffer wb : _writeBufs)
+				{
+					wb._buf.clear();
+					wb._count = 0;
+					wb._mergedPos = 0;
+				}
+			}
 			_writeBufLock.waitLock(); // 确保此时没有线程在读_writeBuf
 		}
 	}
@@ -1251,6 +1369,40 @@ public final class StorageLevelDB implements Storage
 	{
 	}
 
+	/**
+	 * 开始或结束并行保存
+	 * <p>
+	 * 并行保存时各线程写入独立的缓冲区,结束时在调用线程中按顺序合并到_writeBuf,最后仍作为一个WriteBatch提交
+	 */
+	@Override
+	public synchronized boolean putParallel(boolean begin)
+	{
+		if(begin)
+		{
+			_putParallel = true;
+			return true;
+		}
+		_putParallel = false;
+		synchronized(_writeBufs)
+		{
+			OctetsStreamEx os = _writeBuf;
+			for(WriteBuffer wb : _writeBufs)
+			{
+				int n = wb._count;
+				if(n <= 0) continue;
+				if(Integer.compareUnsigned(_writeCount + n, _writeCount) < 0)
+					throw new IllegalStateException("wrote too many records");
+				_writeCount += n;
+				int pos = wb._mergedPos;
+				int size = wb._buf.size();
+				os.append(wb._buf.array(), pos, size - pos);
+				wb._mergedPos = size;
+				wb._count = 0;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public synchronized boolean commit()
 	{
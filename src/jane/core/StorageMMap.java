@@ -0,0 +1,891 @@
+package jane.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import jane.core.map.LongConcurrentHashMap;
+import jane.core.map.LongMap.MapIterator;
+
+/**
+ * 使用内存映射文件存储ID类型表的存储引擎
+ * <p>
+ * 包装另一个存储引擎. 选中的ID类型表(TableLong)使用直接索引的内存映射文件存储,其它表仍使用被包装的引擎<br>
+ * 索引文件按ID直接定位8字节的记录位置,数据文件中每个记录占一个可容纳少量增长的槽. 提交时能放下的记录原地更新,放不下的追加新槽<br>
+ * 读取不经过JNI,只从映射内存复制一次value数据. 适合ID密集分配的表,ID稀疏时索引文件会较大(稀疏文件).
+ * 负数和超过MAX_ID的ID仍存储在被包装的引擎中<br>
+ * 提交时先把本轮的所有修改写入同步的日志文件,再随被包装引擎的提交记录本轮的提交序号,最后原地更新映射文件并删除日志.
+ * 启动时只重放提交序号一致的残留日志,保证与被包装引擎的提交原子一致<br>
+ * 映射文件存放在数据库文件名加".mmap"后缀的目录中. 切换已有数据的表到此引擎需要自行导出导入
+ */
+public final class StorageMMap implements Storage
+{
+	public static final long	MAX_ID			 = 0xffff_ffffL;		 // 使用映射文件存储的最大ID
+	private static final int	COMMIT_TABLE_ID	 = Integer.MAX_VALUE;	 // 在被包装引擎中记录提交序号的表ID
+	private static final long	INDEX_MAGIC		 = 0x6a616e652d696478L;	 // "jane-idx"
+	private static final long	DATA_MAGIC		 = 0x6a616e652d646174L;	 // "jane-dat"
+	private static final long	JOURNAL_MAGIC	 = 0x6a616e652d6a6e6cL;	 // "jane-jnl"
+	private static final String	JOURNAL_NAME	 = "journal";			 // 日志文件名
+	private static final int	HEADER_SIZE		 = 64;					 // 索引和数据文件头的大小
+	private static final int	INDEX_CHUNK_BITS = 24;					 // 索引文件每段映射16MB
+	private static final int	DATA_CHUNK_BITS	 = 28;					 // 数据文件每段映射256MB,单个记录不能跨段
+	private static final long	NO_COUNTER		 = Long.MIN_VALUE;		 // 表示没有待提交的idCounter
+	private static final byte[]	DELETED			 = new byte[0];			 // 表示已删除的值
+	private final Storage		_inner;									 // 被包装的存储引擎
+	private final HashSet<String> _tableNames;							 // 选中的表名. null表示所有ID类型表
+	private final List<MMapTable<?>> _tables	 = new ArrayList<>();	 // 已打开的映射表
+	private File				_dir;									 // 映射文件所在的目录
+	private Storage.TableLong<RawBean> _commitTable;					 // 在被包装引擎中记录提交序号
+	private long				_commitSeq;								 // 最后一次提交的序号
+	private volatile long		_applySeq;								 // 原地更新映射文件的序号. 奇数表示正在更新,读取时需要等待并重试
+
+	/**
+	 * 分段映射的文件. 每段映射的大小固定,只在访问时才映射
+	 */
+	private static final class MappedFile
+	{
+		private final File				  _file;
+		private final FileChannel		  _fc;
+		private final int				  _chunkBits;
+		private volatile MappedByteBuffer[] _chunks = new MappedByteBuffer[0];
+
+		MappedFile(File file, int chunkBits) throws IOException
+		{
+			_file = file;
+			_fc = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			_chunkBits = chunkBits;
+		}
+
+		/**
+		 * @param create 是否在超出文件大小时扩展文件
+		 * @return 不扩展且超出文件大小时返回null
+		 */
+		MappedByteBuffer chunk(long pos, boolean create) throws IOException
+		{
+			int i = (int)(pos >>> _chunkBits);
+			MappedByteBuffer[] chunks = _chunks;
+			MappedByteBuffer chunk;
+			if(i < chunks.length && (chunk = chunks[i]) != null) return chunk;
+			return map(i, create);
+		}
+
+		private synchronized MappedByteBuffer map(int i, boolean create) throws IOException
+		{
+			MappedByteBuffer[] chunks = _chunks;
+			if(i < chunks.length && chunks[i] != null) return chunks[i];
+			long pos = (long)i << _chunkBits;
+			if(!create && pos >= _fc.size()) return null;
+			MappedByteBuffer chunk = _fc.map(MapMode.READ_WRITE, pos, 1L << _chunkBits);
+			if(i >= chunks.length) chunks = Arrays.copyOf(chunks, i + 1);
+			else chunks = chunks.clone();
+			chunks[i] = chunk;
+			_chunks = chunks;
+			return chunk;
+		}
+
+		private int offset(long pos)
+		{
+			return (int)pos & ((1 << _chunkBits) - 1);
+		}
+
+		long getLong(long pos) throws IOException
+		{
+			MappedByteBuffer chunk = chunk(pos, false);
+			return chunk != null ? chunk.getLong(offset(pos)) : 0;
+		}
+
+		int getInt(long pos) throws IOException
+		{
+			MappedByteBuffer chunk = chunk(pos, false);
+			return chunk != null ? chunk.getInt(offset(pos)) : 0;
+		}
+
+		void get(long pos, byte[] dst) throws IOException
+		{
+			ByteBuffer bb = chunk(pos, true).duplicate();
+			bb.position(offset(pos));
+			bb.get(dst);
+		}
+
+		void putLong(long pos, long v) throws IOException
+		{
+			chunk(pos, true).putLong(offset(pos), v);
+		}
+
+		void putInt(long pos, int v) throws IOException
+		{
+			chunk(pos, true).putInt(offset(pos), v);
+		}
+
+		void put(long pos, byte[] src, int srcPos, int len) throws IOException
+		{
+			ByteBuffer bb = chunk(pos, true).duplicate();
+			bb.position(offset(pos));
+			bb.put(src, srcPos, len);
+		}
+
+		long copyTo(File dst, long size) throws IOException
+		{
+			size = Math.min(size, _fc.size());
+			try(FileChannel fc = FileChannel.open(dst.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				for(long pos = 0; pos < size;)
+					pos += _fc.transferTo(pos, size - pos, fc);
+			}
+			return size;
+		}
+
+		void force()
+		{
+			for(MappedByteBuffer chunk : _chunks)
+			{
+				if(chunk != null)
+					chunk.force();
+			}
+		}
+
+		void close()
+		{
+			try
+			{
+				_fc.close(); // 已映射的内存在回收后才会解除映射
+			}
+			catch(IOException e)
+			{
+				Log.error("StorageMMap: close file failed: " + _file.getAbsolutePath(), e);
+			}
+			_chunks = new MappedByteBuffer[0];
+		}
+	}
+
+	/**
+	 * 一个表的映射文件
+	 * <p>
+	 * 索引文件头: MAGIC(8) idCounter(8) maxId(8); 之后每个ID占8字节,记录数据槽的位置,0表示不存在<br>
+	 * 数据文件头: MAGIC(8) 已分配的末尾位置(8) 废弃的槽大小(8); 之后每个数据槽: 容量(4) 长度(4) value
+	 */
+	private static final class TableFiles
+	{
+		final MappedFile _index;
+		final MappedFile _data;
+		long			 _dataEnd;
+		long			 _garbageSize;
+
+		TableFiles(File dir, int tableId) throws IOException
+		{
+			_index = new MappedFile(new File(dir, "t" + tableId + ".idx"), INDEX_CHUNK_BITS);
+			try
+			{
+				_data = new MappedFile(new File(dir, "t" + tableId + ".dat"), DATA_CHUNK_BITS);
+			}
+			catch(IOException e)
+			{
+				_index.close();
+				throw e;
+			}
+			try
+			{
+				long magic = _index.getLong(0);
+				if(magic == 0)
+				{
+					_index.putLong(0, INDEX_MAGIC);
+					_data.putLong(0, DATA_MAGIC);
+					_data.putLong(8, HEADER_SIZE);
+				}
+				else if(magic != INDEX_MAGIC || _data.getLong(0) != DATA_MAGIC)
+					throw new IOException("invalid mmap table files: " + _index._file.getAbsolutePath());
+				_dataEnd = _data.getLong(8);
+				_garbageSize = _data.getLong(16);
+			}
+			catch(IOException e)
+			{
+				close();
+				throw e;
+			}
+		}
+
+		void force()
+		{
+			_data.force();
+			_index.force();
+		}
+
+		void close()
+		{
+			_index.close();
+			_data.close();
+		}
+	}
+
+	private final class MMapTable<V extends Bean<V>> implements Storage.TableLong<V>
+	{
+		private final int							_tableId;
+		private final String						_tableName;
+		private final V								_stubV;
+		private final Storage.TableLong<V>			_fallback;								// 存储负数和超过MAX_ID的ID
+		private final TableFiles					_files;
+		private final LongConcurrentHashMap<byte[]>	_pending = new LongConcurrentHashMap<>(); // 待提交的修改
+		private volatile long						_idCounterPending = NO_COUNTER;
+		private volatile long						_maxId;
+
+		MMapTable(int tableId, String tableName, V stubV, TableFiles files) throws IOException
+		{
+			_tableId = tableId;
+			_tableName = tableName;
+			_stubV = stubV;
+			_fallback = _inner.openTable(tableId, tableName, stubV);
+			_files = files;
+			_maxId = files._index.getLong(16);
+		}
+
+		private byte[] readValue(long k)
+		{
+			for(;;)
+			{
+				long seq = _applySeq;
+				if((seq & 1) == 0)
+				{
+					byte[] v = null;
+					try
+					{
+						long slot = _files._index.getLong(HEADER_SIZE + k * 8);
+						if(slot != 0)
+						{
+							v = new byte[_files._data.getInt(slot + 4)];
+							_files._data.get(slot + 8, v);
+						}
+					}
+					catch(IOException e)
+					{
+						throw new RuntimeException("StorageMMap: read failed in table(" + _tableName + ',' + _tableId + "),key=" + k, e);
+					}
+					catch(RuntimeException e)
+					{
+						if(_applySeq == seq) throw e;
+					}
+					if(_applySeq == seq) return v;
+				}
+				Thread.yield();
+			}
+		}
+
+		private byte[] getValue(long k)
+		{
+			byte[] v = _pending.get(k);
+			if(v == null) v = readValue(k);
+			return v != DELETED ? v : null;
+		}
+
+		@Override
+		public int getTableId()
+		{
+			return _tableId;
+		}
+
+		@Override
+		public String getTableName()
+		{
+			return _tableName;
+		}
+
+		@Override
+		public V get(long k)
+		{
+			if(k < 0 || k > MAX_ID) return _fallback.get(k);
+			try
+			{
+				return StorageBase.toBean(getValue(k), _stubV);
+			}
+			catch(MarshalException e)
+			{
+				throw new RuntimeException("unmarshal record failed in table(" + _tableName + ',' + _tableId + "),key=" + k, e);
+			}
+		}
+
+		/**
+		 * 读取映射文件只需复制内存,所以直接依次读取
+		 */
+		@Override
+		public List<V> getMulti(long[] ks)
+		{
+			List<V> vs = new ArrayList<>(ks.length);
+			for(long k : ks)
+				vs.add(get(k));
+			return vs;
+		}
+
+		@Override
+		public void put(long k, V v)
+		{
+			if(k < 0 || k > MAX_ID)
+				_fallback.put(k, v);
+			else
+			{
+				_pending.put(k, StorageBase.toValue(v));
+				if(k > _maxId) updateMaxId(k);
+			}
+		}
+
+		private synchronized void updateMaxId(long k)
+		{
+			if(k > _maxId) _maxId = k;
+		}
+
+		@Override
+		public void remove(long k)
+		{
+			if(k < 0 || k > MAX_ID)
+				_fallback.remove(k);
+			else
+				_pending.put(k, DELETED);
+		}
+
+		@Override
+		public long getIdCounter()
+		{
+			long v = _idCounterPending;
+			if(v != NO_COUNTER) return v;
+			try
+			{
+				return _files._index.getLong(8);
+			}
+			catch(IOException e)
+			{
+				Log.error("StorageMMap: read idCounter failed", e);
+				return 0;
+			}
+		}
+
+		@Override
+		public void setIdCounter(long v)
+		{
+			if(v != getIdCounter())
+				_idCounterPending = v;
+		}
+
+		private boolean walkMapped(WalkValueHandlerLong<V> handler, V beanStub, long from, long to, boolean reverse) throws MarshalException
+		{
+			to = Math.min(to, _maxId);
+			if(from > to) return true;
+			for(long k = (reverse ? to : from);; k += (reverse ? -1 : 1))
+			{
+				byte[] v = getValue(k);
+				if(v != null && !Helper.onWalkSafe(handler, k, beanStub != null ? StorageBase.toBean(v, beanStub) : null))
+					return false;
+				if(k == (reverse ? from : to)) return true;
+			}
+		}
+
+		/**
+		 * 按ID的无符号顺序(与其它引擎中key的顺序一致,即-1是最大值)分成三段遍历: 映射文件中的ID,超过MAX_ID的ID,负数ID. 后两段由被包装的引擎遍历
+		 */
+		private boolean walk0(WalkHandlerLong keyHandler, WalkValueHandlerLong<V> handler, V beanStub, long from, long to, boolean inclusive, boolean reverse)
+		{
+			if(Long.compareUnsigned(from, to) > 0)
+			{
+				long t = from;
+				from = to;
+				to = t;
+			}
+			if(!inclusive)
+			{
+				if(from == to) return true;
+				++from;
+				--to;
+				if(Long.compareUnsigned(from, to) > 0) return true;
+			}
+			try
+			{
+				for(int part = 0; part < 3; ++part)
+				{
+					int p = (reverse ? 2 - part : part);
+					if(p == 0)
+					{
+						if(Long.compareUnsigned(from, MAX_ID) <= 0 &&
+								!walkMapped(handler, beanStub, from, Long.compareUnsigned(to, MAX_ID) < 0 ? to : MAX_ID, reverse)) return false;
+					}
+					else if(p == 1)
+					{
+						if(Long.compareUnsigned(to, MAX_ID) > 0 && from >= 0)
+						{
+							long f = Math.max(from, MAX_ID + 1), t = (to >= 0 ? to : Long.MAX_VALUE);
+							if(!(keyHandler != null ? _fallback.walk(keyHandler, f, t, true, reverse)
+									: _fallback.walk(handler, beanStub, f, t, true, reverse))) return false;
+						}
+					}
+					else if(to < 0)
+					{
+						long f = (from < 0 ? from : Long.MIN_VALUE);
+						if(!(keyHandler != null ? _fallback.walk(keyHandler, f, to, true, reverse)
+								: _fallback.walk(handler, beanStub, f, to, true, reverse))) return false;
+					}
+				}
+			}
+			catch(MarshalException e)
+			{
+				throw new RuntimeException(e);
+			}
+			return true;
+		}
+
+		@Override
+		public boolean walk(WalkHandlerLong handler, long from, long to, boolean inclusive, boolean reverse)
+		{
+			return walk0(handler, (k, v) -> handler.onWalk(k), null, from, to, inclusive, reverse);
+		}
+
+		@Override
+		public boolean walk(WalkValueHandlerLong<V> handler, V beanStub, long from, long to, boolean inclusive, boolean reverse)
+		{
+			return walk0(null, handler, beanStub, from, to, inclusive, reverse);
+		}
+
+		/**
+		 * 计算本轮修改的存储位置并序列化到日志中
+		 * @return 是否有修改
+		 */
+		boolean prepare(OctetsStream journal, List<Object> applied) throws IOException
+		{
+			long idCounter = _idCounterPending;
+			if(_pending.isEmpty() && idCounter == NO_COUNTER) return false;
+			TableFiles files = _files;
+			long dataEnd = files._dataEnd, garbageSize = files._garbageSize;
+			int countPos = journal.size() + 4 + 8 + 8 + 8 + 8;
+			journal.marshal4(_tableId).marshal8(idCounter).marshal8(_maxId).marshal8(0).marshal8(0).marshal4(0);
+			int count = 0;
+			for(MapIterator<byte[]> it = _pending.entryIterator(); it.moveToNext();)
+			{
+				long k = it.key();
+				byte[] v = it.value();
+				long old = files._index.getLong(HEADER_SIZE + k * 8);
+				int oldCap = (old != 0 ? files._data.getInt(old) : 0);
+				long slot;
+				int cap;
+				if(v == DELETED)
+				{
+					if(old == 0)
+					{
+						applied.add(this); // 不需要写入日志,但提交后要清除
+						applied.add(k);
+						applied.add(v);
+						continue;
+					}
+					slot = 0;
+					cap = 0;
+					garbageSize += 8 + oldCap;
+				}
+				else if(old != 0 && oldCap >= v.length)
+				{
+					slot = old;
+					cap = oldCap;
+				}
+				else
+				{
+					if(old != 0) garbageSize += 8 + oldCap;
+					cap = (v.length + (v.length >> 2) + 7) & ~7; // 预留1/4的增长空间
+					if(cap < 8) cap = 8;
+					long size = 8L + cap;
+					if(size > (1L << DATA_CHUNK_BITS))
+						throw new IllegalStateException("too large record(" + v.length + ") in table(" + _tableName + ',' + _tableId + "),key=" + k);
+					if((dataEnd >>> DATA_CHUNK_BITS) != ((dataEnd + size - 1) >>> DATA_CHUNK_BITS))
+						dataEnd = ((dataEnd >>> DATA_CHUNK_BITS) + 1) << DATA_CHUNK_BITS; // 不能跨映射段
+					slot = dataEnd;
+					dataEnd += size;
+				}
+				journal.marshal8(k).marshal8(slot).marshal4(cap);
+				if(slot != 0)
+					journal.marshal4(v.length).append(v);
+				applied.add(this);
+				applied.add(k);
+				applied.add(v);
+				++count;
+			}
+			byte[] buf = journal.array();
+			putLong(buf, countPos - 16, dataEnd);
+			putLong(buf, countPos - 8, garbageSize);
+			putInt(buf, countPos, count);
+			return true;
+		}
+
+		void clearPending(long idCounter)
+		{
+			if(_idCounterPending == idCounter)
+				_idCounterPending = NO_COUNTER;
+		}
+	}
+
+	private static void putLong(byte[] buf, int pos, long v)
+	{
+		for(int i = 7; i >= 0; --i, v >>= 8)
+			buf[pos + i] = (byte)v;
+	}
+
+	private static void putInt(byte[] buf, int pos, int v)
+	{
+		for(int i = 3; i >= 0; --i, v >>= 8)
+			buf[pos + i] = (byte)v;
+	}
+
+	/**
+	 * 使用映射文件存储被包装引擎中的所有ID类型表
+	 */
+	public StorageMMap(Storage inner)
+	{
+		this(inner, null);
+	}
+
+	/**
+	 * @param tableNames 使用映射文件存储的ID类型表名. null表示所有ID类型表
+	 */
+	public StorageMMap(Storage inner, Collection<String> tableNames)
+	{
+		if(inner == null) throw new IllegalArgumentException("no inner Storage specified");
+		_inner = inner;
+		_tableNames = (tableNames != null ? new HashSet<>(tableNames) : null);
+	}
+
+	/**
+	 * 获取被包装的存储引擎
+	 */
+	public Storage getInner()
+	{
+		return _inner;
+	}
+
+	/**
+	 * 获取所有映射表的数据文件中废弃的槽的总大小
+	 */
+	public synchronized long getGarbageSize()
+	{
+		long size = 0;
+		for(MMapTable<?> table : _tables)
+			size += table._files._garbageSize;
+		return size;
+	}
+
+	/**
+	 * 把日志中的修改写入映射文件
+	 * @param files 根据表ID获取映射文件. 不存在时返回null
+	 */
+	private static void apply(OctetsStream journal, HashMap<Integer, TableFiles> files) throws IOException, MarshalException
+	{
+		while(journal.remain() > 4)
+		{
+			int tableId = journal.unmarshalInt4();
+			long idCounter = journal.unmarshalLong8();
+			long maxId = journal.unmarshalLong8();
+			long dataEnd = journal.unmarshalLong8();
+			long garbageSize = journal.unmarshalLong8();
+			int count = journal.unmarshalInt4();
+			TableFiles tf = files.get(tableId);
+			if(tf == null) throw new IOException("StorageMMap: not found table files for tableId=" + tableId);
+			for(int i = 0; i < count; ++i)
+			{
+				long k = journal.unmarshalLong8();
+				long slot = journal.unmarshalLong8();
+				int cap = journal.unmarshalInt4();
+				if(slot != 0)
+				{
+					int len = journal.unmarshalInt4();
+					int pos = journal.position();
+					journal.unmarshalSkip(len);
+					tf._data.putInt(slot, cap);
+					tf._data.putInt(slot + 4, len);
+					tf._data.put(slot + 8, journal.array(), pos, len);
+				}
+				tf._index.putLong(HEADER_SIZE + k * 8, slot);
+			}
+			if(idCounter != NO_COUNTER) tf._index.putLong(8, idCounter);
+			if(maxId > tf._index.getLong(16)) tf._index.putLong(16, maxId);
+			tf._data.putLong(8, dataEnd);
+			tf._data.putLong(16, garbageSize);
+			tf._dataEnd = dataEnd;
+			tf._garbageSize = garbageSize;
+		}
+	}
+
+	/**
+	 * 读取日志文件. 不完整或校验失败时返回null
+	 */
+	private static OctetsStream readJournal(File file) throws IOException
+	{
+		if(!file.exists()) return null;
+		byte[] buf = Files.readAllBytes(file.toPath());
+		int n = buf.length;
+		if(n < 20) return null;
+		CRC32 crc = new CRC32();
+		crc.update(buf, 0, n - 4);
+		OctetsStream os = OctetsStream.wrap(buf);
+		try
+		{
+			if(os.unmarshalLong8() != JOURNAL_MAGIC) return null;
+			os.setPosition(n - 4);
+			if(os.unmarshalInt4() != (int)crc.getValue()) return null;
+		}
+		catch(MarshalException e)
+		{
+			return null;
+		}
+		os.resize(n - 4);
+		os.setPosition(8);
+		return os;
+	}
+
+	/**
+	 * 重放已随被包装引擎提交的日志. 在打开任何表之前调用
+	 */
+	private void recover() throws IOException
+	{
+		File file = new File(_dir, JOURNAL_NAME);
+		OctetsStream journal = readJournal(file);
+		if(journal != null)
+		{
+			try
+			{
+				long seq = journal.unmarshalLong8();
+				if(seq == _commitSeq)
+				{
+					HashMap<Integer, TableFiles> files = new HashMap<>();
+					try
+					{
+						int pos = journal.position();
+						while(journal.remain() > 4)
+						{
+							int tableId = journal.unmarshalInt4();
+							if(files.get(tableId) == null)
+								files.put(tableId, new TableFiles(_dir, tableId));
+							journal.unmarshalSkip(8 + 8 + 8 + 8);
+							for(int i = 0, n = journal.unmarshalInt4(); i < n; ++i)
+							{
+								journal.unmarshalSkip(8);
+								long slot = journal.unmarshalLong8();
+								journal.unmarshalSkip(4);
+								if(slot != 0) journal.unmarshalSkip(journal.unmarshalInt4());
+							}
+						}
+						journal.setPosition(pos);
+						apply(journal, files);
+						for(TableFiles tf : files.values())
+							tf.force();
+					}
+					finally
+					{
+						for(TableFiles tf : files.values())
+							tf.close();
+					}
+					Log.info("StorageMMap: recovered journal(seq={})", seq);
+				}
+			}
+			catch(MarshalException e)
+			{
+				throw new IOException("StorageMMap: invalid journal: " + file.getAbsolutePath(), e);
+			}
+		}
+		Files.deleteIfExists(file.toPath());
+	}
+
+	@Override
+	public synchronized void openDB(File file) throws IOException
+	{
+		close();
+		_inner.openDB(file);
+		_dir = new File(file.getPath() + ".mmap");
+		if(!_dir.isDirectory() && !_dir.mkdirs())
+			throw new IOException("StorageMMap.openDB: create path failed: " + _dir.getAbsolutePath());
+		_commitTable = _inner.openTable(COMMIT_TABLE_ID, "[mmap-commit]", (RawBean)null);
+		_commitSeq = _commitTable.getIdCounter();
+		recover();
+	}
+
+	@Override
+	public <K, V extends Bean<V>> Storage.Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV)
+	{
+		return _inner.openTable(tableId, tableName, stubK, stubV);
+	}
+
+	@Override
+	public <K, V extends Bean<V>> Storage.Table<K, V> openTable(int tableId, String tableName, Object stubK, V stubV, boolean keyOrdered)
+	{
+		return _inner.openTable(tableId, tableName, stubK, stubV, keyOrdered);
+	}
+
+	@Override
+	public synchronized <V extends Bean<V>> Storage.TableLong<V> openTable(int tableId, String tableName, V stubV)
+	{
+		if(_tableNames != null && !_tableNames.contains(tableName))
+			return _inner.openTable(tableId, tableName, stubV);
+		if(_dir == null) throw new IllegalStateException("db closed");
+		if(tableId == COMMIT_TABLE_ID) throw new IllegalArgumentException("reserved tableId: " + tableId);
+		try
+		{
+			TableFiles files = new TableFiles(_dir, tableId);
+			MMapTable<V> table;
+			try
+			{
+				table = new MMapTable<>(tableId, tableName, stubV, files);
+			}
+			catch(IOException | RuntimeException e)
+			{
+				files.close();
+				throw e;
+			}
+			_tables.add(table);
+			return table;
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("StorageMMap.openTable failed: " + tableName, e);
+		}
+	}
+
+	@Override
+	public void putBegin()
+	{
+		_inner.putBegin();
+	}
+
+	@Override
+	public void putFlush(boolean isLast)
+	{
+		_inner.putFlush(isLast);
+	}
+
+	@Override
+	public boolean putParallel(boolean begin)
+	{
+		return _inner.putParallel(begin);
+	}
+
+	@Override
+	public synchronized boolean commit()
+	{
+		if(_dir == null) return _inner.commit();
+		long seq = _commitSeq + 1;
+		OctetsStream journal = new OctetsStream(0x10000);
+		journal.marshal8(JOURNAL_MAGIC).marshal8(seq);
+		List<Object> applied = new ArrayList<>();
+		long[] idCounters = new long[_tables.size()];
+		boolean modified = false;
+		File file = new File(_dir, JOURNAL_NAME);
+		try
+		{
+			for(int i = 0, n = _tables.size(); i < n; ++i)
+			{
+				MMapTable<?> table = _tables.get(i);
+				idCounters[i] = table._idCounterPending;
+				modified |= table.prepare(journal, applied);
+			}
+			if(!modified) return _inner.commit();
+			CRC32 crc = new CRC32();
+			crc.update(journal.array(), 0, journal.size());
+			journal.marshal4((int)crc.getValue());
+			try(FileOutputStream fos = new FileOutputStream(file))
+			{
+				fos.write(journal.array(), 0, journal.size());
+				fos.getFD().sync();
+			}
+		}
+		catch(IOException e)
+		{
+			Log.error("StorageMMap.commit: write journal failed:", e);
+			return false;
+		}
+		_commitTable.setIdCounter(seq);
+		if(!_inner.commit())
+		{
+			try
+			{
+				Files.deleteIfExists(file.toPath());
+			}
+			catch(IOException e)
+			{
+				Log.error("StorageMMap.commit: delete journal failed:", e);
+			}
+			return false;
+		}
+		_commitSeq = seq;
+		HashMap<Integer, TableFiles> files = new HashMap<>();
+		for(MMapTable<?> table : _tables)
+			files.put(table._tableId, table._files);
+		try
+		{
+			journal.resize(journal.size() - 4);
+			journal.setPosition(16);
+			++_applySeq;
+			try
+			{
+				apply(journal, files);
+			}
+			finally
+			{
+				++_applySeq;
+			}
+			for(int i = 0, n = applied.size(); i < n; i += 3) // 映射文件已更新,可以清除待提交的修改
+			{
+				MMapTable<?> table = (MMapTable<?>)applied.get(i);
+				table._pending.remove((Long)applied.get(i + 1), applied.get(i + 2));
+			}
+			for(int i = 0, n = _tables.size(); i < n; ++i)
+				_tables.get(i).clearPending(idCounters[i]);
+			for(MMapTable<?> table : _tables)
+				table._files.force();
+			Files.deleteIfExists(file.toPath());
+		}
+		catch(Exception e) // 日志已提交,下次启动时会重放
+		{
+			Log.error("StorageMMap.commit: apply journal failed:", e);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		if(_dir != null)
+		{
+			if(!commit())
+				Log.error("StorageMMap.close: commit failed");
+			for(MMapTable<?> table : _tables)
+				table._files.close();
+			_tables.clear();
+			_commitTable = null;
+			_dir = null;
+		}
+		_inner.close();
+	}
+
+	/**
+	 * 热备份数据库
+	 * <p>
+	 * 先备份被包装的引擎,再复制映射文件到备份目标加".mmap"后缀的目录中
+	 */
+	@Override
+	public synchronized long backup(File fdst) throws IOException
+	{
+		if(_dir == null) throw new IllegalStateException("db closed");
+		long r = _inner.backup(fdst);
+		if(r < 0) return r;
+		File dstDir = new File(fdst.getPath() + ".mmap");
+		if(!dstDir.isDirectory() && !dstDir.mkdirs())
+			throw new IOException("create db backup path failed: " + dstDir.getAbsolutePath());
+		for(MMapTable<?> table : _tables) // 映射文件按段扩展,只需复制已使用的部分
+		{
+			TableFiles files = table._files;
+			r += files._index.copyTo(new File(dstDir, files._index._file.getName()), HEADER_SIZE + (files._index.getLong(16) + 1) * 8);
+			r += files._data.copyTo(new File(dstDir, files._data._file.getName()), files._dataEnd);
+		}
+		return r;
+	}
+}
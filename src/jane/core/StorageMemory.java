@@ -0,0 +1,258 @@
+package jane.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 纯内存的存储引擎
+ * <p>
+ * 所有记录保存在一个按key的无符号字节序排序的跳表中,用于有序遍历; 另用一个哈希表加速按key读取. 不依赖本地库和磁盘目录<br>
+ * 适用于单元测试,性能测试和临时的服务器<br>
+ * 可选在关闭时把所有记录保存到数据库文件名对应的单个快照文件中,下次打开时再加载. 否则关闭后所有记录都会丢失<br>
+ * 此类也可非单件实例化使用
+ */
+public final class StorageMemory extends StorageBase
+{
+	private static final StorageMemory _instance	  = new StorageMemory(false);
+	private static final long		   SNAPSHOT_MAGIC = 0x6a616e652d6d656dL; // "jane-mem"
+	private final boolean			   _snapshot;							 // 是否在关闭时保存快照文件
+	private volatile ConcurrentSkipListMap<byte[], byte[]> _map = new ConcurrentSkipListMap<>(Util::compareBytes);
+	private volatile ConcurrentHashMap<Octets, byte[]> _index = new ConcurrentHashMap<>(); // 与_map的记录相同
+	private File					   _file;								 // 快照文件. null表示未打开
+
+	/**
+	 * 获取不保存快照文件的单件实例
+	 */
+	public static StorageMemory instance()
+	{
+		return _instance;
+	}
+
+	/**
+	 * @param snapshot 是否在打开时加载并在关闭时保存快照文件
+	 */
+	public StorageMemory(boolean snapshot)
+	{
+		_snapshot = snapshot;
+	}
+
+	/**
+	 * 获取当前的记录数量(包括idCounter)
+	 */
+	public int getCount()
+	{
+		return _index.size();
+	}
+
+	@Override
+	public byte[] dbget(byte[] key)
+	{
+		return _index.get(Octets.wrap(key));
+	}
+
+	@Override
+	public void dbput(byte[] key, byte[] value)
+	{
+		if(value != null)
+		{
+			_map.put(key, value);
+			_index.put(Octets.wrap(key), value);
+		}
+		else
+		{
+			_map.remove(key);
+			_index.remove(Octets.wrap(key));
+		}
+	}
+
+	@Override
+	public boolean dbwalk(byte[] keyFrom, byte[] keyTo, boolean inclusive, boolean reverse, DBWalkHandler handler)
+	{
+		if(keyFrom != null && keyTo != null && Util.compareBytes(keyFrom, keyTo) > 0)
+		{
+			byte[] t = keyFrom;
+			keyFrom = keyTo;
+			keyTo = t;
+		}
+		NavigableMap<byte[], byte[]> map = _map;
+		if(keyFrom != null)
+			map = map.tailMap(keyFrom, inclusive);
+		if(keyTo != null)
+			map = map.headMap(keyTo, inclusive);
+		if(reverse)
+			map = map.descendingMap();
+		for(Entry<byte[], byte[]> e : map.entrySet())
+		{
+			try
+			{
+				if(!handler.onWalk(e.getKey(), e.getValue()))
+					return false;
+			}
+			catch(Exception ex)
+			{
+				Log.error("walk exception:", ex);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 快照文件格式: MAGIC(8) 若干{key长度(4) key value长度(4) value} -1(4) CRC32(4)
+	 */
+	private static ConcurrentSkipListMap<byte[], byte[]> loadSnapshot(File file) throws IOException
+	{
+		ConcurrentSkipListMap<byte[], byte[]> map = new ConcurrentSkipListMap<>(Util::compareBytes);
+		CRC32 crc = new CRC32();
+		try(DataInputStream dis = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc)))
+		{
+			if(dis.readLong() != SNAPSHOT_MAGIC)
+				throw new IOException("StorageMemory: invalid snapshot file: " + file.getAbsolutePath());
+			for(int n; (n = dis.readInt()) >= 0;)
+			{
+				byte[] key = new byte[n];
+				dis.readFully(key);
+				byte[] value = new byte[dis.readInt()];
+				dis.readFully(value);
+				map.put(key, value);
+			}
+			int v = (int)crc.getValue();
+			if(dis.readInt() != v)
+				throw new IOException("StorageMemory: snapshot file checksum mismatch: " + file.getAbsolutePath());
+		}
+		return map;
+	}
+
+	/**
+	 * 先写到临时文件,完成后再替换目标文件
+	 * @return 写入的字节数
+	 */
+	private static long saveSnapshot(NavigableMap<byte[], byte[]> map, File file) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		long size = 8 + 4 + 4;
+		try(FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream dos = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos), crc)))
+		{
+			dos.writeLong(SNAPSHOT_MAGIC);
+			for(Entry<byte[], byte[]> e : map.entrySet())
+			{
+				byte[] key = e.getKey(), value = e.getValue();
+				dos.writeInt(key.length);
+				dos.write(key);
+				dos.writeInt(value.length);
+				dos.write(value);
+				size += 4 + key.length + 4 + value.length;
+			}
+			dos.writeInt(-1);
+			dos.writeInt((int)crc.getValue());
+			dos.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return size;
+	}
+
+	@Override
+	public synchronized void openDB(File file) throws IOException
+	{
+		close();
+		ConcurrentSkipListMap<byte[], byte[]> map;
+		if(_snapshot && file.isFile())
+		{
+			map = loadSnapshot(file);
+			Log.info("StorageMemory.openDB: loaded {} records from {}", map.size(), file.getAbsolutePath());
+		}
+		else
+			map = new ConcurrentSkipListMap<>(Util::compareBytes);
+		ConcurrentHashMap<Octets, byte[]> index = new ConcurrentHashMap<>(map.size() * 2);
+		for(Entry<byte[], byte[]> e : map.entrySet())
+			index.put(Octets.wrap(e.getKey()), e.getValue());
+		_map = map;
+		_index = index;
+		_file = file;
+	}
+
+	@Override
+	public void putBegin()
+	{
+	}
+
+	@Override
+	public void putFlush(boolean isLast)
+	{
+	}
+
+	/**
+	 * 跳表本身支持并发写,所以总是支持并行写操作
+	 */
+	@Override
+	public boolean putParallel(boolean begin)
+	{
+		return true;
+	}
+
+	/**
+	 * 所有写入都已直接生效,没有需要提交的内容
+	 */
+	@Override
+	public boolean commit()
+	{
+		return true;
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		File file = _file;
+		if(file == null) return;
+		_file = null;
+		if(_snapshot)
+		{
+			try
+			{
+				long size = saveSnapshot(_map, file);
+				Log.info("StorageMemory.close: saved {} bytes to {}", size, file.getAbsolutePath());
+			}
+			catch(IOException e)
+			{
+				Log.error("StorageMemory.close: save snapshot failed: " + file.getAbsolutePath(), e);
+			}
+		}
+		_map = new ConcurrentSkipListMap<>(Util::compareBytes);
+		_index = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * 热备份数据库
+	 * <p>
+	 * 把当前所有记录保存成快照文件. 跳表的遍历是弱一致的,备份时不能有并发的写入(提交线程中备份时满足)
+	 * @param fdst 备份的目标快照文件
+	 * @return 写入的字节数
+	 */
+	@Override
+	public synchronized long backup(File fdst) throws IOException
+	{
+		if(_file == null) throw new IllegalStateException("db closed");
+		File path = fdst.getParentFile();
+		if(path != null && !path.isDirectory() && !path.mkdirs())
+			throw new IOException("create db backup path failed: " + fdst.getPath());
+		return saveSnapshot(_map, fdst);
+	}
+}
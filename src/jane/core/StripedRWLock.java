@@ -0,0 +1,123 @@
+package jane.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 读计数分散到多个槽的读写锁
+ * <p>
+ * 接口和语义同FastRWLock. 读锁只修改当前线程对应的槽,不同的线程一般不会竞争同一个缓存行,适合大量线程频繁加读锁而很少加写锁的情况<br>
+ * 写锁先设置写标记阻止新的读锁,再等待所有槽的读计数归零,所以写锁的开销随槽数增加<br>
+ * 读锁和解锁必须在同一个线程中调用
+ */
+public final class StripedRWLock
+{
+	private static final int	   PAD_SHIFT = 4;			 // 每个槽占16个long(128字节),避免伪共享
+	private static final int	   STRIPE_COUNT;			 // 槽的数量. 2的幂
+	private final AtomicLongArray _readers;				 // 各槽的读计数
+	private volatile int		   _writer;				 // 写标记. 0:无; 1:有写锁或正在等待写锁
+
+	static
+	{
+		int n = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() * 2 - 1, 1)) << 1;
+		STRIPE_COUNT = Math.min(n, 256);
+	}
+
+	public StripedRWLock()
+	{
+		_readers = new AtomicLongArray(STRIPE_COUNT << PAD_SHIFT);
+	}
+
+	private static void wait1()
+	{
+		try
+		{
+			Thread.sleep(1); // 忙等,主要用于不着急也不经常等待的情况
+		}
+		catch(InterruptedException e)
+		{
+		}
+	}
+
+	/**
+	 * 获取当前线程对应的槽在_readers中的下标
+	 */
+	private static int slot()
+	{
+		long id = Thread.currentThread().getId();
+		return ((int)(id * 0x9e3779b97f4a7c15L >>> 32) & (STRIPE_COUNT - 1)) << PAD_SHIFT;
+	}
+
+	public boolean tryReadLock()
+	{
+		if(_writer != 0) return false;
+		int i = slot();
+		_readers.incrementAndGet(i);
+		if(_writer == 0) return true; // 写锁在设置写标记后才检查读计数,所以这里看不到写标记就说明写锁一定会等待此读锁
+		_readers.decrementAndGet(i);
+		return false;
+	}
+
+	public void readLock()
+	{
+		int i = slot();
+		for(;;)
+		{
+			if(_writer != 0)
+				wait1();
+			else
+			{
+				_readers.incrementAndGet(i);
+				if(_writer == 0) return;
+				_readers.decrementAndGet(i);
+			}
+		}
+	}
+
+	public void readUnlock()
+	{
+		_readers.decrementAndGet(slot());
+	}
+
+	private boolean hasReader()
+	{
+		AtomicLongArray readers = _readers;
+		for(int i = 0, n = readers.length(); i < n; i += 1 << PAD_SHIFT)
+			if(readers.get(i) != 0) return true;
+		return false;
+	}
+
+	public void waitLock() // 等到没有读写锁的时刻返回
+	{
+		writeLock();
+		writeUnlock();
+	}
+
+	public void writeLock()
+	{
+		synchronized(this) // 写锁之间互斥
+		{
+			while(_writer != 0)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+			_writer = 1; // 加写标记,阻止新的读锁
+		}
+		while(hasReader())
+			wait1();
+	}
+
+	public void writeUnlock()
+	{
+		synchronized(this)
+		{
+			_writer = 0;
+			notify();
+		}
+	}
+}
@@ -1,23 +1,30 @@
 package jane.core;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
+import jane.core.SContext.Rec;
 import jane.core.SContext.Record;
 import jane.core.SContext.Safe;
 import jane.core.Storage.Helper;
 import jane.core.Storage.WalkHandler;
 import jane.core.Storage.WalkValueHandler;
+import jane.core.map.ConcurrentLRUMap;
+import jane.core.map.Resizable;
 
 /**
  * 通用key类型的数据库表类
  */
 public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableBase<V>
 {
-	private final Storage.Table<K, V> _stoTable; // 存储引擎的表对象
-	private final Map<K, V>			  _cache;	 // 读缓存. 有大小限制,溢出自动清理
-	private final ConcurrentMap<K, V> _cacheMod; // 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private final Storage.Table<K, V>	 _stoTable;		// 存储引擎的表对象
+	private final Map<K, V>				 _cache;		// 读缓存. 有大小限制,溢出自动清理
+	private volatile ConcurrentMap<K, V> _cacheMod;		// 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private volatile ConcurrentMap<K, V> _cacheModSnap;	// 快照模式下正在保存的写缓存快照. 保存完成后清除
+	private final ConcurrentMap<K, Loading<V>> _loading = Util.newConcurrentHashMap(); // 正在从数据库存储读取的记录
 
 	/**
 	 * 创建一个数据库表
@@ -26,13 +33,14 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	 * @param lockName 此表关联的锁名
 	 * @param cacheSize 此表的读缓存记录数量上限. 如果是内存表则表示超过此上限则会自动丢弃
 	 * @param stubV 记录value的存根对象,不要用于记录有用的数据. 这里只用于标记删除的字段,如果为null则表示此表是内存表
+	 * @param cachePolicy 读缓存的淘汰策略(TableBase.CACHE_*)
 	 */
-	Table(int tableId, String tableName, Storage.Table<K, V> stoTable, String lockName, int cacheSize, V stubV)
+	Table(int tableId, String tableName, Storage.Table<K, V> stoTable, String lockName, int cacheSize, V stubV, int cachePolicy)
 	{
-		super(tableId, tableName, stubV, (lockName != null && !(lockName = lockName.trim()).isEmpty() ? lockName.hashCode() : tableId) * 0x9e3779b1);
+		super(tableId, tableName, stubV, (lockName != null && !(lockName = lockName.trim()).isEmpty() ? lockName.hashCode() : tableId) * 0x9e3779b1, cachePolicy);
 		_stoTable = stoTable;
 		if(cacheSize < 1) cacheSize = 1;
-		_cache = Util.newConcurrentLRUMap(cacheSize, tableName);
+		_cache = (cachePolicy == CACHE_TINYLFU ? Util.newConcurrentTinyLFUMap(cacheSize) : Util.newConcurrentLRUMap(cacheSize, tableName));
 		_cacheMod = (stoTable != null ? Util.<K, V>newConcurrentHashMap() : null);
 		_tables.add(this);
 	}
@@ -50,46 +58,43 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	/**
 	 * 尝试依次加锁并保存此表已修改的记录
 	 * <p>
-	 * @param counts 长度必须>=3,用于保存3个统计值,分别是保存前所有修改的记录数,保存后的剩余记录数,保存的记录数
+	 * @param shard 只保存key的hash值按shardCount取模后等于此值的记录,用于多线程并行保存
+	 * @param shardCount 分片数量. 1表示不分片
+	 * @return 保存的记录数
 	 */
 	@Override
-	protected void trySaveModified(long[] counts)
+	protected int trySaveModified(int shard, int shardCount)
 	{
-		if(_cacheMod == null) return;
-		counts[0] += _cacheMod.size();
-		long n = 0;
-		try
+		if(_cacheMod == null) return 0;
+		int n = 0;
+		for(K k : _cacheMod.keySet())
 		{
-			for(K k : _cacheMod.keySet())
+			if(shardCount > 1 && shard(k.hashCode(), shardCount) != shard) continue;
+			Lock lock = Procedure.tryLock(lockId(k));
+			if(lock != null)
 			{
-				Lock lock = Procedure.tryLock(lockId(k));
-				if(lock != null)
+				try
 				{
-					try
-					{
-						++n;
-						V v = _cacheMod.get(k);
-						if(v == _deleted)
-							_stoTable.remove(k);
-						else
-						{
-							_stoTable.put(k, v);
-							v.setSaveState(1);
-						}
-						_cacheMod.remove(k, v);
-					}
-					finally
+					++n;
+					V v = _cacheMod.get(k);
+					if(v == _deleted)
+						_stoTable.remove(k);
+					else
 					{
-						lock.unlock();
+						_stoTable.put(k, v);
+						v.setSaveState(1);
+						sampleRecordSize(v);
 					}
+					if(_l2 != null) _l2.remove(l2Key(k));
+					_cacheMod.remove(k, v);
+				}
+				finally
+				{
+					lock.unlock();
 				}
 			}
 		}
-		finally
-		{
-			counts[1] += _cacheMod.size();
-			counts[2] += n;
-		}
+		return n;
 	}
 
 	/**
@@ -110,12 +115,148 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 				_stoTable.put(k, v);
 				v.setSaveState(1);
 			}
+			if(_l2 != null) _l2.remove(l2Key(k));
 		}
 		int m = _cacheMod.size();
 		_cacheMod.clear();
 		return m;
 	}
 
+	@Override
+	void beginSnapshot()
+	{
+		if(_cacheMod == null) return;
+		_cacheModSnap = _cacheMod;
+		_cacheMod = Util.newConcurrentHashMap();
+	}
+
+	@Override
+	int saveSnapshot()
+	{
+		ConcurrentMap<K, V> snap = _cacheModSnap;
+		if(snap == null) return 0;
+		int n = 0;
+		boolean interrupted = false;
+		for(int round = 0;; ++round)
+		{
+			for(K k : snap.keySet())
+			{
+				Lock lock = Procedure.tryLock(lockId(k));
+				if(lock != null)
+				{
+					try
+					{
+						V v = snap.remove(k);
+						if(v != null)
+						{
+							if(v == _deleted)
+								_stoTable.remove(k);
+							else
+							{
+								_stoTable.put(k, v);
+								if(v.getSaveState() != _modState) // 当前轮次又修改过的记录仍保持修改状态
+									v.setSaveState(1);
+							}
+							if(_l2 != null) _l2.remove(l2Key(k));
+							++n;
+						}
+					}
+					finally
+					{
+						lock.unlock();
+					}
+				}
+			}
+			if(snap.isEmpty()) break;
+			interrupted |= waitSnapshotLocked(round, snap.size());
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		_cacheModSnap = null;
+		return n;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	void copyOnWrite(Rec rec)
+	{
+		ConcurrentMap<K, V> snap = _cacheModSnap;
+		if(snap == null) return;
+		K k = (K)rec.getKey();
+		V v = snap.get(k);
+		if(v != null && v != _deleted && v == SContext.unsafe(rec.getValue()))
+		{
+			V vCopy = v.clone();
+			vCopy.setSaveState(1);
+			snap.put(k, vCopy);
+		}
+	}
+
+	@Override
+	int marshalHotKeys(OctetsStream os, int maxCount)
+	{
+		if(_cacheMod == null || maxCount <= 0) return 0;
+		List<K> keys = new ArrayList<>(Math.min(_cache.size(), maxCount));
+		for(K k : _cache.keySet())
+		{
+			if(!(k instanceof Octets || k instanceof String || k instanceof Bean)) return 0;
+			keys.add(k);
+			if(keys.size() >= maxCount) break;
+		}
+		try
+		{
+			keys.sort(null);
+		}
+		catch(RuntimeException e) // key类型不支持比较时不排序
+		{
+		}
+		os.marshalUInt(keys.size());
+		for(K k : keys)
+			RedoLog.marshalKey(os, k);
+		return keys.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	void prefetchHotKeys(OctetsStream os, int count, Object stubK, long[] counts) throws MarshalException
+	{
+		List<K> keys = new ArrayList<>(count);
+		for(int i = 0; i < count; ++i)
+			keys.add((K)RedoLog.unmarshalKey(os, stubK));
+		prefetch(keys, counts);
+	}
+
+	@Override
+	void marshalRedo(OctetsStream os, Object ko)
+	{
+		if(_cacheMod == null) return;
+		V v = _cacheMod.get(ko);
+		if(v == null) return;
+		int pos = RedoLog.beginEntry(os, v != _deleted ? RedoLog.KIND_PUT : RedoLog.KIND_REMOVE, _tableId);
+		RedoLog.marshalKey(os, ko);
+		if(v != _deleted) v.marshal(os);
+		RedoLog.endEntry(os, pos);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	void redo(OctetsStream os, int kind, Object stubK) throws MarshalException
+	{
+		if(_cacheMod == null) return;
+		K k = (K)RedoLog.unmarshalKey(os, stubK);
+		V v = _deleted;
+		if(kind == RedoLog.KIND_PUT)
+		{
+			v = _deleted.create();
+			v.unmarshal(os);
+			v.setSaveState(_modState);
+		}
+		else if(kind != RedoLog.KIND_REMOVE)
+			return;
+		_cache.remove(k);
+		if(_cacheMod.put(k, v) == null)
+			DBManager.instance().incModCount();
+	}
+
 	/**
 	 * 获取读缓存记录数
 	 */
@@ -125,6 +266,30 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return _cache.size();
 	}
 
+	@Override
+	public int getCacheMaxCount()
+	{
+		return ((Resizable)_cache).getMaxCount();
+	}
+
+	@Override
+	public void setCacheMaxCount(int maxCount)
+	{
+		((Resizable)_cache).setMaxCount(maxCount);
+	}
+
+	@Override
+	public long getCacheEvictNanos()
+	{
+		return _cache instanceof ConcurrentLRUMap ? ((ConcurrentLRUMap<?, ?>)_cache).getEvictNanos() : -1;
+	}
+
+	@Override
+	public int getCacheMaxOvershoot()
+	{
+		return _cache instanceof ConcurrentLRUMap ? ((ConcurrentLRUMap<?, ?>)_cache).getMaxOvershoot() : -1;
+	}
+
 	/**
 	 * 获取写缓存记录数
 	 */
@@ -134,6 +299,69 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return _cacheMod != null ? _cacheMod.size() : 0;
 	}
 
+	/**
+	 * 获取记录在堆外二级缓存中的key: 表ID+记录key的序列化
+	 */
+	private OctetsStream l2Key(K k)
+	{
+		return new OctetsStream(16).marshalUInt(_tableId).marshalVar(1, k);
+	}
+
+	/**
+	 * 从数据库存储读取记录
+	 * <p>
+	 * 同一记录并发的读取会合并成一次, 其它线程等待并共享读取的结果<br>
+	 * 启用了堆外二级缓存时先从二级缓存读取<br>
+	 * 只有持有此记录的锁时才会加入读cache. 无锁读取的结果可能已过时,加锁的读取不会共享它,而是自己重新读取
+	 * @param toCache 是否把读取的记录加入读cache
+	 */
+	private V loadSto(K k, boolean toCache)
+	{
+		if(toCache && !Procedure.isLockedByCurrentThread(lockId(k)))
+			toCache = false;
+		Loading<V> loading = new Loading<>();
+		Loading<V> cur = _loading.putIfAbsent(k, loading);
+		if(cur != null)
+		{
+			V v = cur.await();
+			if(!toCache || cur.isCached())
+			{
+				_coalescedCount.getAndIncrement();
+				return v;
+			}
+			loading = null; // 领头的是无锁读取,不能把它的结果加入读cache
+		}
+		try
+		{
+			OctetsStream l2k = (_l2 != null ? l2Key(k) : null);
+			V v = (l2k != null ? loadL2(l2k) : null);
+			if(v == null)
+			{
+				_readStoCount.getAndIncrement();
+				v = _stoTable.get(k);
+				if(v != null && toCache && l2k != null)
+					storeL2(l2k, v);
+			}
+			if(v != null && toCache)
+			{
+				v.setSaveState(1);
+				_cache.put(k, v);
+				sampleRecordSize(v);
+			}
+			if(loading != null) loading.done(v, toCache);
+			return v;
+		}
+		catch(Throwable e)
+		{
+			if(loading != null) loading.fail(e);
+			throw e;
+		}
+		finally
+		{
+			if(loading != null) _loading.remove(k, loading);
+		}
+	}
+
 	/**
 	 * 根据记录的key获取value
 	 * <p>
@@ -148,20 +376,18 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		if(v != null) return v;
 		if(_cacheMod == null) return null;
 		v = _cacheMod.get(k);
-		if(v != null)
+		if(v == null)
 		{
-			if(v == _deleted) return null;
-			_cache.put(k, v);
-			return v;
+			ConcurrentMap<K, V> snap = _cacheModSnap;
+			if(snap != null) v = snap.get(k);
 		}
-		_readStoCount.getAndIncrement();
-		v = _stoTable.get(k);
 		if(v != null)
 		{
-			v.setSaveState(1);
+			if(v == _deleted) return null;
 			_cache.put(k, v);
+			return v;
 		}
-		return v;
+		return loadSto(k, true);
 	}
 
 	/**
@@ -206,6 +432,29 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return getNoLock(k);
 	}
 
+	/**
+	 * 乐观读获取记录. 不加锁,在事务提交前校验此记录在读取后没有被其它事务修改或加锁,否则重做事务
+	 * <p>
+	 * 首次修改此记录时会自动追加锁. 适合只读或很少修改的事务<br>
+	 * 事务中读到的数据可能不一致,但最终只有校验通过才会提交. 冲突较多时会自动改为lockGet的方式重做<br>
+	 * 记录不在缓存中时会先加锁再从存储读取
+	 */
+	public S optimisticGet(K k) throws InterruptedException
+	{
+		Procedure proc = Procedure.getCurProcedure();
+		if(proc == null) throw new IllegalStateException("invalid optimisticGet out of procedure");
+		int lockId = lockId(k);
+		proc.readOptimistic(lockId);
+		if(!Procedure.isLockedByCurrentThread(lockId))
+		{
+			V v = getCacheUnsafe(k);
+			if(v != null) return SContext.current().addRecord(this, k, v);
+			if(!Procedure.upgradeLockForLoad(lockId)) // 无锁时不能把存储中读取的记录加入缓存
+				return getNoCache(k);
+		}
+		return getNoLock(k);
+	}
+
 	/**
 	 * 根据记录的key获取value
 	 * <p>
@@ -221,10 +470,14 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		if(v != null) return v;
 		if(_cacheMod == null) return null;
 		v = _cacheMod.get(k);
+		if(v == null)
+		{
+			ConcurrentMap<K, V> snap = _cacheModSnap;
+			if(snap != null) v = snap.get(k);
+		}
 		if(v != null)
 			return v != _deleted ? v : null;
-		_readStoCount.getAndIncrement();
-		return _stoTable.get(k);
+		return loadSto(k, false);
 	}
 
 	/**
@@ -252,6 +505,11 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		if(v != null) return v;
 		if(_cacheMod == null) return null;
 		v = _cacheMod.get(k);
+		if(v == null)
+		{
+			ConcurrentMap<K, V> snap = _cacheModSnap;
+			if(snap != null) v = snap.get(k);
+		}
 		return v != null && v != _deleted ? v : null;
 	}
 
@@ -265,6 +523,88 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
 	}
 
+	/**
+	 * 批量预读多个记录到读cache中
+	 * <p>
+	 * 适用于一次需要读取大量记录之前(如登录时)预先加载, 读缓存中没有的记录会通过存储引擎的getMulti一次批量读取<br>
+	 * 可以在事务外调用. 会尝试对需要读取的记录加锁, 加锁失败(正在被其它事务访问)的记录会跳过
+	 * @param counts 可以为null, 否则长度必须>=2, 分别累加从缓存中获取的记录数和从数据库存储读取的记录数
+	 */
+	public void prefetch(List<K> ks, long[] counts)
+	{
+		if(_cacheMod == null) return;
+		int n = ks.size(), hitCount = 0, missCount = 0, lockCount = 0;
+		List<K> misses = new ArrayList<>(n);
+		Lock[] locks = new Lock[n];
+		boolean readLocked = Procedure.readLockOutside(); // 持有记录锁期间不能调整锁池
+		try
+		{
+			for(K k : ks)
+			{
+				_readCount.getAndIncrement();
+				if(_cache.get(k) != null)
+				{
+					++hitCount;
+					continue;
+				}
+				Lock lock = Procedure.tryLock(lockId(k));
+				if(lock == null) continue;
+				locks[lockCount++] = lock;
+				V v = _cacheMod.get(k);
+				if(v == null)
+				{
+					ConcurrentMap<K, V> snap = _cacheModSnap;
+					if(snap != null) v = snap.get(k);
+				}
+				if(v != null)
+				{
+					if(v != _deleted) _cache.put(k, v);
+					++hitCount;
+				}
+				else if(_cache.get(k) != null)
+					++hitCount;
+				else if(_l2 != null && (v = loadL2(l2Key(k))) != null)
+				{
+					v.setSaveState(1);
+					_cache.put(k, v);
+					++hitCount;
+				}
+				else
+				{
+					misses.add(k);
+					++missCount;
+				}
+			}
+			if(missCount > 0)
+			{
+				_readStoCount.addAndGet(missCount);
+				List<V> vs = _stoTable.getMulti(misses);
+				for(int i = 0; i < missCount; ++i)
+				{
+					V v = vs.get(i);
+					if(v != null)
+					{
+						K k = misses.get(i);
+						if(_l2 != null) storeL2(l2Key(k), v);
+						v.setSaveState(1);
+						_cache.put(k, v);
+					}
+				}
+			}
+		}
+		finally
+		{
+			while(lockCount > 0)
+				locks[--lockCount].unlock();
+			if(readLocked) Procedure.readUnlock();
+		}
+		if(counts != null)
+		{
+			counts[0] += hitCount;
+			counts[1] += missCount;
+		}
+	}
+
 	/**
 	 * 标记记录已修改的状态
 	 * <p>
@@ -274,7 +614,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	public void modify(K k, V v)
 	{
 		Procedure.incVersion(lockId(k));
-		if(!v.modified() && _cacheMod != null)
+		if(v.getSaveState() != _modState && _cacheMod != null)
 		{
 			V vOld = _cacheMod.put(k, v);
 			if(vOld == null)
@@ -285,7 +625,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 				throw new IllegalStateException("modify unmatched record: t=" +
 						_tableName + ",k=" + k + ",vOld=" + vOld + ",v=" + v);
 			}
-			v.setSaveState(2);
+			v.setSaveState(_modState);
 		}
 	}
 
@@ -295,7 +635,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		K k = (K)ko;
 		V v = (V)vo;
 		Procedure.incVersion(lockId(k));
-		if(!v.modified() && _cacheMod != null)
+		if(v.getSaveState() != _modState && _cacheMod != null)
 		{
 			V vOld = _cacheMod.put(k, v);
 			if(vOld == null)
@@ -306,7 +646,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 				_cacheMod.put(k, vOld);
 				return;
 			}
-			v.setSaveState(2);
+			v.setSaveState(_modState);
 		}
 	}
 
@@ -332,7 +672,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 					vOld = _cacheMod.put(k, v);
 					if(vOld == null)
 						DBManager.instance().incModCount();
-					v.setSaveState(2);
+					v.setSaveState(_modState);
 				}
 			}
 			else
@@ -358,7 +698,8 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		if(vOld == v) return;
 		if(v.stored())
 			throw new IllegalStateException("put shared record: t=" + _tableName + ",k=" + k + ",v=" + v);
-		SContext.current().addOnRollbackDirty(() ->
+		SContext sctx = SContext.current();
+		sctx.addOnRollbackDirty(() ->
 		{
 			if(vOld != null)
 			{
@@ -368,6 +709,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 			else
 				removeUnsafe(k);
 		});
+		sctx.addRedo(this, k);
 		putUnsafe(k, v);
 		if(vOld != null)
 			vOld.setSaveState(0);
@@ -403,11 +745,13 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 			throw new IllegalAccessError("remove unlocked record! table=" + _tableName + ",key=" + k);
 		V vOld = getNoCacheUnsafe(k);
 		if(vOld == null) return;
-		SContext.current().addOnRollbackDirty(() ->
+		SContext sctx = SContext.current();
+		sctx.addOnRollbackDirty(() ->
 		{
 			vOld.setSaveState(0); // 确保可写入
 			putUnsafe(k, vOld);
 		});
+		sctx.addRedo(this, k);
 		removeUnsafe(k);
 		vOld.setSaveState(0);
 	}
@@ -476,4 +820,82 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	{
 		return walk(handler, null, null, true, false);
 	}
+
+	/**
+	 * 多线程并行遍历此表的所有key和value
+	 * <p>
+	 * 先只遍历一次所有的key(不反序列化value),稀疏地采样出分区的边界key,再在遍历线程池中并行遍历各分区<br>
+	 * 各分区内按key的顺序遍历,分区之间没有顺序. 会阻塞等待遍历完成,所以不要在事务中调用<br>
+	 * 注意事项同walk. handler会在多个线程中并发调用,需要自行保证线程安全
+	 * @param handler 遍历过程中返回false可中断整个遍历
+	 * @param walk 用于获取进度,取消和限速. 只能使用一次
+	 * @param partCount 分区数量. <=0表示使用默认值
+	 * @return 返回true表示已完全遍历, 返回false表示被中断或取消
+	 */
+	public boolean walkParallel(WalkValueHandler<K, V> handler, ParallelWalk walk, int partCount)
+	{
+		int n = (partCount > 0 ? partCount : ParallelWalk.getDefaultPartCount());
+		List<K> samples = new ArrayList<>(n * 8);
+		long[] idxStride = new long[] { 0, 1 };
+		_stoTable.walk(k ->
+		{
+			if(idxStride[0]++ % idxStride[1] == 0)
+			{
+				samples.add(k);
+				if(samples.size() >= n * 8) // 采样过多时只保留一半,并加倍采样间隔
+				{
+					for(int i = 0, m = samples.size() / 2; i < m; ++i)
+						samples.set(i, samples.get(i * 2));
+					samples.subList(samples.size() / 2, samples.size()).clear();
+					idxStride[1] *= 2;
+				}
+			}
+			return !walk.isCancelled();
+		}, null, null, true, false);
+		List<K> bounds = new ArrayList<>(n); // 各分区的起始key. 第一个分区从最小值开始
+		bounds.add(null);
+		for(int i = 1, m = samples.size(); i < n; ++i)
+		{
+			K k = (m > 0 ? samples.get(i * m / n) : null);
+			if(k != null && k != bounds.get(bounds.size() - 1))
+				bounds.add(k);
+		}
+		return walk.run(bounds.size(), part ->
+		{
+			K from = bounds.get(part);
+			K to = (part + 1 < bounds.size() ? bounds.get(part + 1) : null); // to是下一个分区的起始key,不包含在此分区中
+			return _stoTable.walk((k, v) -> to != null && to.equals(k) || walk.onWalk(part) && handler.onWalk(k, v),
+					_deleted, from, to, true, false);
+		});
+	}
+
+	public boolean walkParallel(WalkValueHandler<K, V> handler)
+	{
+		return walkParallel(handler, new ParallelWalk(), 0);
+	}
+
+	/**
+	 * 按记录key的顺序遍历此表中以指定前缀开头的所有key
+	 * <p>
+	 * 只遍历数据库存储层中匹配前缀的key范围. bean类型的key只支持有序key的表(keyorder),匹配key的前prefixFieldCount个字段<br>
+	 * 注意事项同walk
+	 * @param handler 遍历过程中返回false可中断遍历
+	 * @param prefix 需要匹配的key前缀. bean类型的key只需设置前prefixFieldCount个字段
+	 * @param prefixFieldCount bean类型的key需要匹配的前几个字段数量. 其它类型的key忽略此参数
+	 * @param reverse 是否按反序遍历
+	 */
+	public boolean walkPrefix(WalkHandler<K> handler, K prefix, int prefixFieldCount, boolean reverse)
+	{
+		return _stoTable.walkPrefix(handler, prefix, prefixFieldCount, reverse);
+	}
+
+	/**
+	 * 按记录key的顺序遍历此表中以指定前缀开头的所有key和value
+	 * <p>
+	 * 前缀的匹配规则同walkPrefix(WalkHandler,...), 注意事项同walk
+	 */
+	public boolean walkPrefix(WalkValueHandler<K, V> handler, K prefix, int prefixFieldCount, boolean reverse)
+	{
+		return _stoTable.walkPrefix(handler, _deleted, prefix, prefixFieldCount, reverse);
+	}
 }
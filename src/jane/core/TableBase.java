@@ -3,17 +3,105 @@ package jane.core;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import jane.core.SContext.Rec;
 
 public abstract class TableBase<V extends Bean<V>>
 {
+	public static final int					  CACHE_LRU		= 0;				   // 读缓存的淘汰策略: 近似LRU(默认)
+	public static final int					  CACHE_TINYLFU	= 1;				   // 读缓存的淘汰策略: W-TinyLFU. 适合有少量经常访问的记录,同时有遍历或大量一次性访问的表
 	protected static final List<TableBase<?>> _tables		= new ArrayList<>(16); // 所有表的容器
+	static volatile int						  _modState		= 2;				   // 当前已修改记录的存储状态值(见Bean.getSaveState). 快照模式下每轮checkpoint会改变
+	private static final int				  SHARD_MIN_SIZE = 0x10000;			   // 并行保存时写缓存记录数不小于此值的表会拆分成多个分片
+	private static ExecutorService			  _commitPool;						   // 提交时并行保存的线程池
+	private static final int				  RECORD_OVERHEAD = 64;				   // 估算每个读缓存记录除序列化大小以外占用的内存(对象头,map节点等)
+	private static final int				  MISS_BASE_COST = 256;				   // 一次cache-miss读取存储的固定开销(折算成字节数)
+	private static final int				  SNAP_WAIT_MAX	 = 64;				   // 保存快照时等待被持有锁记录的最长间隔(毫秒)
+	private static final int				  SNAP_WARN_ROUND = 100;			   // 保存快照重试此轮数后仍有记录被持有锁时输出警告
 	protected final String					  _tableName;						   // 表名
 	protected final int						  _tableId;							   // 表ID
 	protected final int						  _lockId;							   // 当前表的锁ID. 即锁名的hash值,一般和记录key的hash值计算得出记录的lockId
 	protected final V						  _deleted;							   // 表示已删除的value. 同存根bean
+	protected final int						  _cachePolicy;						   // 读缓存的淘汰策略(CACHE_*)
 	protected final AtomicLong				  _readCount	= new AtomicLong();	   // 读操作次数统计
 	protected final AtomicLong				  _readStoCount	= new AtomicLong();	   // 读数据库存储的次数统计(即cache-miss的次数统计)
+	protected final AtomicLong				  _coalescedCount = new AtomicLong();  // 并发读取同一记录时合并的cache-miss次数统计
+	protected final AtomicLong				  _readL2Count	= new AtomicLong();	   // 从堆外二级缓存读到记录的次数统计(不计入_readStoCount)
+	protected final OffHeapCache			  _l2;								   // 堆外二级缓存. 没有启用或内存表时为null
+	private final AtomicInteger				  _sampleCount	= new AtomicInteger(); // 统计记录大小的采样计数
+	private volatile int					  _recordSize;						   // 估算的每个读缓存记录占用的内存(字节)
+	private long							  _lastMissCount;					   // 上次分配读缓存预算时的cache-miss次数. 只在分配预算时访问
+	private double							  _missCost;						   // 按cache-miss次数和记录大小估算的近期cache-miss开销. 只在分配预算时访问
+
+	/**
+	 * 正在从数据库存储读取的记录
+	 * <p>
+	 * 同一记录并发的cache-miss只有第一个会读取存储并反序列化,其它的等待并共享结果
+	 */
+	protected static final class Loading<V extends Bean<V>>
+	{
+		private V		  _value;
+		private Throwable _error;
+		private boolean	  _cached; // 读取的记录是否已加入读缓存
+		private boolean	  _done;
+
+		synchronized void done(V v, boolean cached)
+		{
+			_value = v;
+			_cached = cached;
+			_done = true;
+			notifyAll();
+		}
+
+		synchronized void fail(Throwable e)
+		{
+			_error = e;
+			_done = true;
+			notifyAll();
+		}
+
+		/**
+		 * 等待读取完成. 不响应中断,但会保留中断状态
+		 * @return 读取的记录. 未加入读缓存的记录会返回副本,以免多个调用者共享同一个未缓存的对象
+		 */
+		V await()
+		{
+			boolean interrupted = false;
+			V v;
+			Throwable error;
+			synchronized(this)
+			{
+				while(!_done)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						interrupted = true;
+					}
+				}
+				v = _value;
+				error = _error;
+			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+			if(error != null)
+				throw new IllegalStateException("load record failed in other thread", error);
+			return v != null && !_cached ? v.clone() : v;
+		}
+
+		boolean isCached()
+		{
+			return _cached;
+		}
+	}
 
 	public static List<TableBase<?>> getTables()
 	{
@@ -21,51 +109,251 @@ public abstract class TableBase<V extends Bean<V>>
 	}
 
 	/**
-	 * 尝试依次加锁并保存全部表已修改的记录
-	 * <p>
-	 * @param counts 长度必须>=3,用于保存3个统计值,分别是保存前所有修改的记录数,保存后的剩余记录数,保存的记录数
+	 * 多线程并行保存时对每个表(或表的分片)的保存操作
 	 */
-	static void trySaveModifiedAll(long[] counts)
+	private interface SaveOperation
 	{
-		for(TableBase<?> table : _tables)
+		int save(TableBase<?> table, int shard, int shardCount);
+	}
+
+	/**
+	 * 获取提交时并行保存的线程池. 只在dbCommitThreadCount>1时创建
+	 */
+	private static synchronized ExecutorService getCommitPool()
+	{
+		if(_commitPool == null)
 		{
-			try
-			{
-				table.trySaveModified(counts);
-			}
-			catch(Throwable e)
+			AtomicInteger counter = new AtomicInteger();
+			_commitPool = Executors.newFixedThreadPool(Const.dbCommitThreadCount, r ->
 			{
-				Log.error("db-commit thread exception(trySaveModified:" + table.getTableName() + "):", e);
-			}
+				Thread t = new Thread(r, "CommitWorker-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY + 1);
+				return t;
+			});
 		}
+		return _commitPool;
 	}
 
 	/**
-	 * 在所有事务暂停的情况下直接依次保存全部表已修改的记录
+	 * 根据key的hash值计算所属的分片
 	 */
-	static int saveModifiedAll()
+	static int shard(int hash, int shardCount)
 	{
-		int m = 0;
-		for(TableBase<?> table : _tables)
+		return ((hash * 0x9e3779b1) >>> 1) % shardCount;
+	}
+
+	private static int saveSafe(TableBase<?> table, String opName, SaveOperation op, int shard, int shardCount)
+	{
+		try
+		{
+			return op.save(table, shard, shardCount);
+		}
+		catch(Throwable e)
+		{
+			Log.error("db-commit thread exception(" + opName + ':' + table.getTableName() + "):", e);
+			return 0;
+		}
+	}
+
+	/**
+	 * 对全部表执行保存操作
+	 * <p>
+	 * 如果配置了多个提交线程且存储引擎支持并行写,则每个表作为一个任务并行执行,且允许分片的大表会拆分成多个任务<br>
+	 * 否则在当前线程中依次执行
+	 * @param sharding 是否允许把写缓存记录数很多的表拆分成多个分片并行保存
+	 * @return 保存的记录数
+	 */
+	private static int saveAll(Storage sto, String opName, boolean sharding, SaveOperation op)
+	{
+		int threadCount = Const.dbCommitThreadCount;
+		if(threadCount <= 1 || sto == null || !sto.putParallel(true))
+		{
+			int m = 0;
+			for(TableBase<?> table : _tables)
+				m += saveSafe(table, opName, op, 0, 1);
+			return m;
+		}
+		try
 		{
-			try
+			ExecutorService pool = getCommitPool();
+			List<Future<Integer>> futures = new ArrayList<>(_tables.size() + threadCount);
+			for(TableBase<?> table : _tables)
 			{
-				m += table.saveModified();
+				int shardCount = (sharding && table.getCacheModSize() >= SHARD_MIN_SIZE ? threadCount : 1);
+				for(int i = 0; i < shardCount; ++i)
+				{
+					int shard = i;
+					futures.add(pool.submit(() -> saveSafe(table, opName, op, shard, shardCount)));
+				}
 			}
-			catch(Throwable e)
+			int m = 0;
+			boolean interrupted = false;
+			for(Future<Integer> f : futures)
 			{
-				Log.error("db-commit thread exception(saveModified:" + table.getTableName() + "):", e);
+				for(;;) // 必须等待所有任务完成才能结束并行写
+				{
+					try
+					{
+						m += f.get();
+						break;
+					}
+					catch(InterruptedException e)
+					{
+						interrupted = true;
+					}
+					catch(ExecutionException e)
+					{
+						Log.error("db-commit thread exception(" + opName + "):", e);
+						break;
+					}
+				}
 			}
+			if(interrupted)
+				Thread.currentThread().interrupt();
+			return m;
 		}
-		return m;
+		finally
+		{
+			sto.putParallel(false);
+		}
+	}
+
+	/**
+	 * 尝试依次加锁并保存全部表已修改的记录
+	 * <p>
+	 * @param counts 长度必须>=3,用于保存3个统计值,分别是保存前所有修改的记录数,保存后的剩余记录数,保存的记录数
+	 */
+	static void trySaveModifiedAll(Storage sto, long[] counts)
+	{
+		for(TableBase<?> table : _tables)
+			counts[0] += table.getCacheModSize();
+		counts[2] += saveAll(sto, "trySaveModified", true, TableBase::trySaveModified);
+		for(TableBase<?> table : _tables)
+			counts[1] += table.getCacheModSize();
+	}
+
+	/**
+	 * 在所有事务暂停的情况下直接依次保存全部表已修改的记录
+	 */
+	static int saveModifiedAll(Storage sto)
+	{
+		return saveAll(sto, "saveModified", false, (table, shard, shardCount) -> table.saveModified());
+	}
+
+	/**
+	 * 开始新一轮的修改,并把全部表当前的写缓存转为快照
+	 * <p>
+	 * 必须在所有事务暂停的情况下调用. 之后的事务在首次修改快照中的记录前会先复制一份(见copyOnWrite)
+	 */
+	static void beginSnapshotAll()
+	{
+		int epoch = ((_modState >>> 2) + 1) & 0x1fff_ffff;
+		_modState = ((epoch != 0 ? epoch : 1) << 2) | 2;
+		for(TableBase<?> table : _tables)
+			table.beginSnapshot();
+	}
+
+	/**
+	 * 在事务可并发运行的情况下依次保存全部表的快照
+	 */
+	static int saveSnapshotAll(Storage sto)
+	{
+		return saveAll(sto, "saveSnapshot", false, (table, shard, shardCount) -> table.saveSnapshot());
 	}
 
-	protected TableBase(int tableId, String tableName, V stubV, int lockId)
+	protected TableBase(int tableId, String tableName, V stubV, int lockId, int cachePolicy)
 	{
 		_tableName = tableName;
 		_tableId = tableId;
 		_lockId = lockId;
 		_deleted = stubV;
+		_cachePolicy = cachePolicy;
+		_recordSize = (stubV != null ? stubV.initSize() : 0) + RECORD_OVERHEAD;
+		_l2 = (stubV != null ? OffHeapCache.instance() : null);
+	}
+
+	/**
+	 * 按全局的读缓存内存预算(Const.dbCacheBudget)重新分配各表的读缓存记录数量上限
+	 * <p>
+	 * 预算的一半平分给各表作为保底,另一半按各表近期的cache-miss开销(cache-miss次数 * (固定开销 + 记录大小))的比例分配<br>
+	 * 再按各表估算的记录大小换算成记录数量上限. 内存表不参与分配,仍使用openTable时指定的记录数量<br>
+	 * 由提交线程周期调用(见Const.dbCacheBalancePeriod)
+	 */
+	static void balanceCacheAll(long budget)
+	{
+		List<TableBase<?>> tables = new ArrayList<>(_tables.size());
+		double costSum = 0;
+		for(TableBase<?> table : _tables)
+		{
+			if(table._deleted == null) continue; // 内存表
+			tables.add(table);
+			long missCount = table._readStoCount.get() + table._coalescedCount.get();
+			long n = missCount - table._lastMissCount;
+			table._lastMissCount = missCount;
+			table._missCost = (table._missCost + (double)n * (MISS_BASE_COST + table._recordSize)) * 0.5;
+			costSum += table._missCost;
+		}
+		int n = tables.size();
+		if(n == 0) return;
+		long floor = budget / 2 / n;
+		long rest = budget - floor * n;
+		for(TableBase<?> table : tables)
+		{
+			long bytes = floor + (costSum > 0 ? (long)(rest * (table._missCost / costSum)) : rest / n);
+			int count = (int)Math.max(Math.min(bytes / table._recordSize, Integer.MAX_VALUE), 1);
+			if(count != table.getCacheMaxCount())
+			{
+				if(Log.hasDebug)
+					Log.debug("balance cache: {}: {}=>{} ({} bytes/record)", table._tableName, table.getCacheMaxCount(), count, table._recordSize);
+				table.setCacheMaxCount(count);
+			}
+		}
+	}
+
+	/**
+	 * 采样统计记录序列化后的大小,用于估算每个读缓存记录占用的内存
+	 * <p>
+	 * 只在启用读缓存预算(Const.dbCacheBudget)时每16次调用采样一次
+	 */
+	protected final void sampleRecordSize(V v)
+	{
+		if(Const.dbCacheBudget <= 0 || (_sampleCount.getAndIncrement() & 15) != 0) return;
+		int size = v.marshal(new OctetsStream(v.initSize())).size() + RECORD_OVERHEAD;
+		_recordSize = (_recordSize * 7 + size) >> 3;
+	}
+
+	/**
+	 * 从堆外二级缓存读取并反序列化记录
+	 * @param key 表ID+记录key的序列化. 调用前需确认_l2不为null
+	 * @return 没有缓存时返回null
+	 */
+	protected final V loadL2(Octets key)
+	{
+		byte[] data = _l2.get(key);
+		if(data == null) return null;
+		V v = _deleted.create();
+		try
+		{
+			v.unmarshal(OctetsStream.wrap(data));
+		}
+		catch(MarshalException e)
+		{
+			_l2.remove(key);
+			Log.error("unmarshal L2 cache record failed: table=" + _tableName, e);
+			return null;
+		}
+		_readL2Count.getAndIncrement();
+		return v;
+	}
+
+	/**
+	 * 把从数据库存储读取的记录序列化后放入堆外二级缓存
+	 * @param key 表ID+记录key的序列化. 调用前需确认_l2不为null
+	 */
+	protected final void storeL2(Octets key, V v)
+	{
+		_l2.put(key, v.marshal(new OctetsStream(v.initSize())));
 	}
 
 	/**
@@ -84,11 +372,55 @@ public abstract class TableBase<V extends Bean<V>>
 		return _tableName;
 	}
 
+	/**
+	 * 获取读缓存的淘汰策略(CACHE_*)
+	 */
+	public int getCachePolicy()
+	{
+		return _cachePolicy;
+	}
+
+	/**
+	 * 获取读缓存的淘汰策略名
+	 */
+	public String getCachePolicyName()
+	{
+		return _cachePolicy == CACHE_TINYLFU ? "TinyLFU" : "LRU";
+	}
+
 	/**
 	 * 获取读缓存记录数
 	 */
 	public abstract int getCacheSize();
 
+	/**
+	 * 获取读缓存记录数量上限
+	 */
+	public abstract int getCacheMaxCount();
+
+	/**
+	 * 获取读缓存淘汰的总耗时(纳秒). 读缓存不是LRU时返回-1
+	 */
+	public abstract long getCacheEvictNanos();
+
+	/**
+	 * 获取读缓存淘汰时超出记录数量上限的最大值. 读缓存不是LRU时返回-1
+	 */
+	public abstract int getCacheMaxOvershoot();
+
+	/**
+	 * 设置读缓存记录数量上限. 内存表设置后超过上限的记录会被自动丢弃
+	 */
+	public abstract void setCacheMaxCount(int maxCount);
+
+	/**
+	 * 获取估算的每个读缓存记录占用的内存(字节)
+	 */
+	public int getRecordSize()
+	{
+		return _recordSize;
+	}
+
 	/**
 	 * 获取写缓存记录数
 	 */
@@ -110,15 +442,121 @@ public abstract class TableBase<V extends Bean<V>>
 		return _readStoCount.get();
 	}
 
+	/**
+	 * 获取对当前表并发读取同一记录时合并的cache-miss次数统计
+	 * <p>
+	 * 合并的cache-miss不计入getReadStoCount
+	 */
+	public long getCoalescedCount()
+	{
+		return _coalescedCount.get();
+	}
+
+	/**
+	 * 获取从堆外二级缓存读到记录的统计次数
+	 * <p>
+	 * 二级缓存命中的读取不计入getReadStoCount
+	 */
+	public long getReadL2Count()
+	{
+		return _readL2Count.get();
+	}
+
+	/**
+	 * 获取读缓存(包括写缓存)的命中率. 范围:[0,1]. 还没有读操作时返回-1
+	 * <p>
+	 * 即读操作中没有读数据库存储(包括合并的cache-miss)的比例,用于比较不同淘汰策略的效果. 二级缓存的命中也算作命中
+	 */
+	public double getCacheHitRatio()
+	{
+		long rc = _readCount.get();
+		if(rc <= 0) return -1;
+		long mc = _readStoCount.get() + _coalescedCount.get();
+		return rc > mc ? (double)(rc - mc) / rc : 0;
+	}
+
 	/**
 	 * 尝试依次加锁并保存此表已修改的记录
 	 * <p>
-	 * @param counts 长度必须>=3,用于保存3个统计值,分别是保存前所有修改的记录数,保存后的剩余记录数,保存的记录数
+	 * @param shard 只保存key的hash值按shardCount取模后等于此值的记录,用于多线程并行保存
+	 * @param shardCount 分片数量. 1表示不分片
+	 * @return 保存的记录数
 	 */
-	protected abstract void trySaveModified(long[] counts);
+	protected abstract int trySaveModified(int shard, int shardCount);
 
 	/**
 	 * 在所有事务暂停的情况下直接依次保存此表已修改的记录
 	 */
 	protected abstract int saveModified();
+
+	/**
+	 * 把此表当前的写缓存转为快照,并使用新的写缓存
+	 * <p>
+	 * 必须在所有事务暂停的情况下调用
+	 */
+	abstract void beginSnapshot();
+
+	/**
+	 * 依次加锁并保存此表快照中的所有记录,完成后清除快照
+	 */
+	abstract int saveSnapshot();
+
+	/**
+	 * 保存快照的一轮之后仍有记录被事务持有锁时调用,等待一段时间再重试
+	 * <p>
+	 * 等待间隔从1毫秒开始倍增到SNAP_WAIT_MAX毫秒,避免长时间持有锁的事务(如等待远程应答)使提交线程空转
+	 * @param round 已经重试的轮数(从0开始)
+	 * @param left 剩余未保存的记录数
+	 * @return 等待时是否被打断. 需要在保存完快照后恢复打断状态
+	 */
+	final boolean waitSnapshotLocked(int round, int left)
+	{
+		if(round == SNAP_WARN_ROUND)
+			Log.warn("{}: saveSnapshot still waiting for {} locked records", _tableName, left);
+		try
+		{
+			Thread.sleep(round < 6 ? 1L << round : SNAP_WAIT_MAX);
+			return false;
+		}
+		catch(InterruptedException e)
+		{
+			return true; // 快照必须保存完整,所以打断时也继续等待
+		}
+	}
+
+	/**
+	 * 事务首次修改记录前调用. 如果此记录仍在快照中未保存,则把快照中的值替换成其副本
+	 * <p>
+	 * 必须在已加锁的状态下调用
+	 */
+	abstract void copyOnWrite(Rec rec);
+
+	/**
+	 * 把读缓存中的key(最多maxCount个)按key的顺序序列化,用于下次启动时预热读缓存
+	 * <p>
+	 * 依次序列化key数量和各key. 内存表或key类型不支持序列化时不做任何操作
+	 * @return 序列化的key数量
+	 */
+	abstract int marshalHotKeys(OctetsStream os, int maxCount);
+
+	/**
+	 * 反序列化count个key并批量预读到读缓存中. 用于启动时预热读缓存
+	 * @param stubK Table的key存根对象. TableLong不使用
+	 * @param counts 同prefetch的counts参数
+	 */
+	abstract void prefetchHotKeys(OctetsStream os, int count, Object stubK, long[] counts) throws MarshalException;
+
+	/**
+	 * 把此表指定key的记录当前值(写缓存中的值)序列化成重做日志的entry
+	 * <p>
+	 * 在事务提交时已加锁的状态下调用. 如果此记录不在写缓存中则不做任何操作
+	 */
+	abstract void marshalRedo(OctetsStream os, Object k);
+
+	/**
+	 * 重放一个重做日志的entry到此表的写缓存中
+	 * <p>
+	 * 只在openTable时调用
+	 */
+	abstract void redo(OctetsStream os, int kind, Object stubK) throws MarshalException;
 }
@@ -1,17 +1,23 @@
 package jane.core;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import jane.core.SContext.Rec;
 import jane.core.SContext.RecordLong;
 import jane.core.SContext.Safe;
 import jane.core.Storage.Helper;
 import jane.core.Storage.WalkHandlerLong;
 import jane.core.Storage.WalkValueHandlerLong;
 import jane.core.map.LongConcurrentHashMap;
+import jane.core.map.LongConcurrentLRUMap;
+import jane.core.map.LongDirtyMap;
 import jane.core.map.LongMap;
 import jane.core.map.LongMap.LongIterator;
 import jane.core.map.LongMap.MapIterator;
+import jane.core.map.Resizable;
 
 /**
  * 使用ID类型作为key的数据库表类
@@ -23,7 +29,10 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 {
 	private final Storage.TableLong<V> _stoTable;							// 存储引擎的表对象
 	private final LongMap<V>		   _cache;								// 读缓存. 有大小限制,溢出自动清理
-	private final LongMap<V>		   _cacheMod;							// 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private volatile LongDirtyMap<V>   _cacheMod;							// 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private volatile LongDirtyMap<V>   _cacheModSnap;						// 快照模式下正在保存的写缓存快照. 保存完成后清除
+	private final LongConcurrentHashMap<Loading<V>> _loading = new LongConcurrentHashMap<>(); // 正在从数据库存储读取的记录
+	private long					   _idCounterSnap = -1;					// 快照模式下待保存的idCounter. -1表示不需要保存
 	private final AtomicLong		   _idCounter	 = new AtomicLong();	// 用于自增长ID的统计器, 当前值表示当前表已存在的最大ID值
 	private final AtomicBoolean		   _idCounterMod = new AtomicBoolean();	// idCounter是否待存状态(有修改未存库)
 	private int						   _autoIdBegin	 = Const.autoIdBegin;	// 自增长ID的初始值, 可运行时指定
@@ -36,14 +45,15 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	 * @param lockName 此表关联的锁名
 	 * @param cacheSize 此表的读缓存记录数量上限. 如果是内存表则表示超过此上限则会自动丢弃
 	 * @param stubV 记录value的存根对象,不要用于记录有用的数据. 这里只用于标记删除的字段,如果为null则表示此表是内存表
+	 * @param cachePolicy 读缓存的淘汰策略(TableBase.CACHE_*)
 	 */
-	TableLong(int tableId, String tableName, Storage.TableLong<V> stoTable, String lockName, int cacheSize, V stubV)
+	TableLong(int tableId, String tableName, Storage.TableLong<V> stoTable, String lockName, int cacheSize, V stubV, int cachePolicy)
 	{
-		super(tableId, tableName, stubV, (lockName != null && !(lockName = lockName.trim()).isEmpty() ? lockName.hashCode() : tableId) * 0x9e3779b1);
+		super(tableId, tableName, stubV, (lockName != null && !(lockName = lockName.trim()).isEmpty() ? lockName.hashCode() : tableId) * 0x9e3779b1, cachePolicy);
 		_stoTable = stoTable;
 		if(cacheSize < 1) cacheSize = 1;
-		_cache = Util.newLongConcurrentLRUMap(cacheSize, tableName);
-		_cacheMod = (stoTable != null ? new LongConcurrentHashMap<>() : null);
+		_cache = (cachePolicy == CACHE_TINYLFU ? Util.newLongConcurrentTinyLFUMap(cacheSize) : Util.newLongConcurrentLRUMap(cacheSize, tableName));
+		_cacheMod = (stoTable != null ? new LongDirtyMap<>() : null);
 		if(stoTable != null) _idCounter.set(_stoTable.getIdCounter());
 		_tables.add(this);
 	}
@@ -89,47 +99,40 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	/**
 	 * 尝试依次加锁并保存此表已修改的记录
 	 * <p>
-	 * @param counts 长度必须>=3,用于保存3个统计值,分别是保存前所有修改的记录数,保存后的剩余记录数,保存的记录数
+	 * 按写缓存的段分批取出记录,保存后每段批量删除一次,见{@link LongDirtyMap#drain}
+	 * @param shard 只保存写缓存的段序号按shardCount取模后等于此值的记录,用于多线程并行保存
+	 * @param shardCount 分片数量. 1表示不分片
+	 * @return 保存的记录数
 	 */
 	@Override
-	protected void trySaveModified(long[] counts)
+	protected int trySaveModified(int shard, int shardCount)
 	{
-		if(_cacheMod == null) return;
-		counts[0] += _cacheMod.size();
-		long n = 0;
-		try
+		LongDirtyMap<V> cacheMod = _cacheMod;
+		if(cacheMod == null) return 0;
+		return cacheMod.drain(shard, shardCount, (k, v) ->
 		{
-			for(LongIterator it = _cacheMod.keyIterator(); it.hasNext();)
+			Lock lock = Procedure.tryLock(lockId(k));
+			if(lock == null) return false;
+			try
 			{
-				long k = it.next();
-				Lock lock = Procedure.tryLock(lockId(k));
-				if(lock != null)
+				v = cacheMod.get(k);
+				if(v == null) return false;
+				if(v == _deleted)
+					_stoTable.remove(k);
+				else
 				{
-					try
-					{
-						++n;
-						V v = _cacheMod.get(k);
-						if(v == _deleted)
-							_stoTable.remove(k);
-						else
-						{
-							_stoTable.put(k, v);
-							v.setSaveState(1);
-						}
-						_cacheMod.remove(k, v);
-					}
-					finally
-					{
-						lock.unlock();
-					}
+					_stoTable.put(k, v);
+					v.setSaveState(1);
+					sampleRecordSize(v);
 				}
+				if(_l2 != null) _l2.remove(l2Key(k));
+				return true;
 			}
-		}
-		finally
-		{
-			counts[1] += _cacheMod.size();
-			counts[2] += n;
-		}
+			finally
+			{
+				lock.unlock();
+			}
+		});
 	}
 
 	/**
@@ -150,6 +153,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 				_stoTable.put(k, v);
 				v.setSaveState(1);
 			}
+			if(_l2 != null) _l2.remove(l2Key(k));
 		}
 		int m = _cacheMod.size();
 		_cacheMod.clear();
@@ -158,6 +162,153 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return m;
 	}
 
+	@Override
+	void beginSnapshot()
+	{
+		if(_cacheMod == null) return;
+		_cacheModSnap = _cacheMod;
+		_cacheMod = new LongDirtyMap<>();
+		_idCounterSnap = (_idCounterMod.getAndSet(false) ? _idCounter.get() : -1);
+	}
+
+	@Override
+	int saveSnapshot()
+	{
+		LongDirtyMap<V> snap = _cacheModSnap;
+		if(snap == null) return 0;
+		int n = 0;
+		boolean interrupted = false;
+		for(int round = 0;; ++round)
+		{
+			n += snap.drain(0, 1, (k, v) ->
+			{
+				Lock lock = Procedure.tryLock(lockId(k));
+				if(lock == null) return false;
+				try
+				{
+					v = snap.get(k);
+					if(v == null) return false;
+					if(v == _deleted)
+						_stoTable.remove(k);
+					else
+					{
+						_stoTable.put(k, v);
+						if(v.getSaveState() != _modState) // 当前轮次又修改过的记录仍保持修改状态
+							v.setSaveState(1);
+					}
+					if(_l2 != null) _l2.remove(l2Key(k));
+					return true;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			});
+			if(snap.isEmpty()) break;
+			interrupted |= waitSnapshotLocked(round, snap.size());
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		if(_idCounterSnap >= 0)
+		{
+			_stoTable.setIdCounter(_idCounterSnap);
+			_idCounterSnap = -1;
+		}
+		_cacheModSnap = null;
+		return n;
+	}
+
+	@Override
+	void copyOnWrite(Rec rec)
+	{
+		LongDirtyMap<V> snap = _cacheModSnap;
+		if(snap == null) return;
+		long k = rec.getKeyLong();
+		V v = snap.get(k);
+		if(v != null && v != _deleted && v == SContext.unsafe(rec.getValue()))
+		{
+			V vCopy = v.clone();
+			vCopy.setSaveState(1);
+			snap.put(k, vCopy);
+		}
+	}
+
+	@Override
+	int marshalHotKeys(OctetsStream os, int maxCount)
+	{
+		if(_cacheMod == null || maxCount <= 0) return 0;
+		long[] keys = new long[Math.min(_cache.size(), maxCount)];
+		int n = 0;
+		for(LongIterator it = _cache.keyIterator(); it.hasNext() && n < keys.length;)
+			keys[n++] = it.next();
+		Arrays.sort(keys, 0, n);
+		os.marshalUInt(n);
+		for(int i = 0; i < n; ++i)
+			os.marshal(keys[i]);
+		return n;
+	}
+
+	@Override
+	void prefetchHotKeys(OctetsStream os, int count, Object stubK, long[] counts) throws MarshalException
+	{
+		long[] keys = new long[count];
+		for(int i = 0; i < count; ++i)
+			keys[i] = os.unmarshalLong();
+		prefetch(keys, counts);
+	}
+
+	@Override
+	void marshalRedo(OctetsStream os, Object ko)
+	{
+		marshalRedo(os, ((Long)ko).longValue());
+	}
+
+	void marshalRedo(OctetsStream os, long k)
+	{
+		if(_cacheMod == null) return;
+		V v = _cacheMod.get(k);
+		if(v == null) return;
+		int pos = RedoLog.beginEntry(os, v != _deleted ? RedoLog.KIND_PUT : RedoLog.KIND_REMOVE, _tableId);
+		os.marshal(k);
+		if(v != _deleted) v.marshal(os);
+		RedoLog.endEntry(os, pos);
+		if(_idCounterMod.get())
+		{
+			pos = RedoLog.beginEntry(os, RedoLog.KIND_IDCOUNTER, _tableId);
+			os.marshal(_idCounter.get());
+			RedoLog.endEntry(os, pos);
+		}
+	}
+
+	@Override
+	void redo(OctetsStream os, int kind, Object stubK) throws MarshalException
+	{
+		if(_cacheMod == null) return;
+		if(kind == RedoLog.KIND_IDCOUNTER)
+		{
+			long idCounter = os.unmarshalLong();
+			if(idCounter > _idCounter.get())
+			{
+				_idCounter.set(idCounter);
+				if(_idCounterMod.compareAndSet(false, true))
+					DBManager.instance().incModCount();
+			}
+			return;
+		}
+		long k = os.unmarshalLong();
+		V v = _deleted;
+		if(kind == RedoLog.KIND_PUT)
+		{
+			v = _deleted.create();
+			v.unmarshal(os);
+			v.setSaveState(_modState);
+		}
+		else if(kind != RedoLog.KIND_REMOVE)
+			return;
+		_cache.remove(k);
+		if(_cacheMod.put(k, v) == null)
+			DBManager.instance().incModCount();
+	}
+
 	/**
 	 * 获取读缓存记录数
 	 */
@@ -167,6 +318,30 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return _cache.size();
 	}
 
+	@Override
+	public int getCacheMaxCount()
+	{
+		return ((Resizable)_cache).getMaxCount();
+	}
+
+	@Override
+	public void setCacheMaxCount(int maxCount)
+	{
+		((Resizable)_cache).setMaxCount(maxCount);
+	}
+
+	@Override
+	public long getCacheEvictNanos()
+	{
+		return _cache instanceof LongConcurrentLRUMap ? ((LongConcurrentLRUMap<?>)_cache).getEvictNanos() : -1;
+	}
+
+	@Override
+	public int getCacheMaxOvershoot()
+	{
+		return _cache instanceof LongConcurrentLRUMap ? ((LongConcurrentLRUMap<?>)_cache).getMaxOvershoot() : -1;
+	}
+
 	/**
 	 * 获取写缓存记录数
 	 */
@@ -176,6 +351,69 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return _cacheMod != null ? _cacheMod.size() : 0;
 	}
 
+	/**
+	 * 获取记录在堆外二级缓存中的key: 表ID+记录key的序列化
+	 */
+	private OctetsStream l2Key(long k)
+	{
+		return new OctetsStream(14).marshalUInt(_tableId).marshal(k);
+	}
+
+	/**
+	 * 从数据库存储读取记录
+	 * <p>
+	 * 同一记录并发的读取会合并成一次, 其它线程等待并共享读取的结果<br>
+	 * 启用了堆外二级缓存时先从二级缓存读取<br>
+	 * 只有持有此记录的锁时才会加入读cache. 无锁读取的结果可能已过时,加锁的读取不会共享它,而是自己重新读取
+	 * @param toCache 是否把读取的记录加入读cache
+	 */
+	private V loadSto(long k, boolean toCache)
+	{
+		if(toCache && !Procedure.isLockedByCurrentThread(lockId(k)))
+			toCache = false;
+		Loading<V> loading = new Loading<>();
+		Loading<V> cur = _loading.putIfAbsent(k, loading);
+		if(cur != null)
+		{
+			V v = cur.await();
+			if(!toCache || cur.isCached())
+			{
+				_coalescedCount.getAndIncrement();
+				return v;
+			}
+			loading = null; // 领头的是无锁读取,不能把它的结果加入读cache
+		}
+		try
+		{
+			OctetsStream l2k = (_l2 != null ? l2Key(k) : null);
+			V v = (l2k != null ? loadL2(l2k) : null);
+			if(v == null)
+			{
+				_readStoCount.getAndIncrement();
+				v = _stoTable.get(k);
+				if(v != null && toCache && l2k != null)
+					storeL2(l2k, v);
+			}
+			if(v != null && toCache)
+			{
+				v.setSaveState(1);
+				_cache.put(k, v);
+				sampleRecordSize(v);
+			}
+			if(loading != null) loading.done(v, toCache);
+			return v;
+		}
+		catch(Throwable e)
+		{
+			if(loading != null) loading.fail(e);
+			throw e;
+		}
+		finally
+		{
+			if(loading != null) _loading.remove(k, loading);
+		}
+	}
+
 	/**
 	 * 根据记录的key获取value
 	 * <p>
@@ -190,20 +428,18 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		if(v != null) return v;
 		if(_cacheMod == null) return null;
 		v = _cacheMod.get(k);
-		if(v != null)
+		if(v == null)
 		{
-			if(v == _deleted) return null;
-			_cache.put(k, v);
-			return v;
+			LongDirtyMap<V> snap = _cacheModSnap;
+			if(snap != null) v = snap.get(k);
 		}
-		_readStoCount.getAndIncrement();
-		v = _stoTable.get(k);
 		if(v != null)
 		{
-			v.setSaveState(1);
+			if(v == _deleted) return null;
 			_cache.put(k, v);
+			return v;
 		}
-		return v;
+		return loadSto(k, true);
 	}
 
 	/**
@@ -248,6 +484,29 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return getNoLock(k);
 	}
 
+	/**
+	 * 乐观读获取记录. 不加锁,在事务提交前校验此记录在读取后没有被其它事务修改或加锁,否则重做事务
+	 * <p>
+	 * 首次修改此记录时会自动追加锁. 适合只读或很少修改的事务<br>
+	 * 事务中读到的数据可能不一致,但最终只有校验通过才会提交. 冲突较多时会自动改为lockGet的方式重做<br>
+	 * 记录不在缓存中时会先加锁再从存储读取
+	 */
+	public S optimisticGet(long k) throws InterruptedException
+	{
+		Procedure proc = Procedure.getCurProcedure();
+		if(proc == null) throw new IllegalStateException("invalid optimisticGet out of procedure");
+		int lockId = lockId(k);
+		proc.readOptimistic(lockId);
+		if(!Procedure.isLockedByCurrentThread(lockId))
+		{
+			V v = getCacheUnsafe(k);
+			if(v != null) return SContext.current().addRecord(this, k, v);
+			if(!Procedure.upgradeLockForLoad(lockId)) // 无锁时不能把存储中读取的记录加入缓存
+				return getNoCache(k);
+		}
+		return getNoLock(k);
+	}
+
 	/**
 	 * 根据记录的key获取value
 	 * <p>
@@ -263,10 +522,14 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		if(v != null) return v;
 		if(_cacheMod == null) return null;
 		v = _cacheMod.get(k);
+		if(v == null)
+		{
+			LongDirtyMap<V> snap = _cacheModSnap;
+			if(snap != null) v = snap.get(k);
+		}
 		if(v != null)
 			return v != _deleted ? v : null;
-		_readStoCount.getAndIncrement();
-		return _stoTable.get(k);
+		return loadSto(k, false);
 	}
 
 	/**
@@ -294,6 +557,11 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		if(v != null) return v;
 		if(_cacheMod == null) return null;
 		v = _cacheMod.get(k);
+		if(v == null)
+		{
+			LongDirtyMap<V> snap = _cacheModSnap;
+			if(snap != null) v = snap.get(k);
+		}
 		return v != null && v != _deleted ? v : null;
 	}
 
@@ -307,6 +575,85 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return v != null ? sctx.addRecord(this, k, v) : sctx.getRecord(this, k);
 	}
 
+	/**
+	 * 批量预读多个记录到读cache中
+	 * <p>
+	 * 适用于一次需要读取大量记录之前(如登录时)预先加载, 读缓存中没有的记录会通过存储引擎的getMulti一次批量读取<br>
+	 * 可以在事务外调用. 会尝试对需要读取的记录加锁, 加锁失败(正在被其它事务访问)的记录会跳过
+	 * @param counts 可以为null, 否则长度必须>=2, 分别累加从缓存中获取的记录数和从数据库存储读取的记录数
+	 */
+	public void prefetch(long[] ks, long[] counts)
+	{
+		if(_cacheMod == null) return;
+		int n = ks.length, hitCount = 0, missCount = 0, lockCount = 0;
+		long[] misses = new long[n];
+		Lock[] locks = new Lock[n];
+		boolean readLocked = Procedure.readLockOutside(); // 持有记录锁期间不能调整锁池
+		try
+		{
+			for(long k : ks)
+			{
+				_readCount.getAndIncrement();
+				if(_cache.get(k) != null)
+				{
+					++hitCount;
+					continue;
+				}
+				Lock lock = Procedure.tryLock(lockId(k));
+				if(lock == null) continue;
+				locks[lockCount++] = lock;
+				V v = _cacheMod.get(k);
+				if(v == null)
+				{
+					LongDirtyMap<V> snap = _cacheModSnap;
+					if(snap != null) v = snap.get(k);
+				}
+				if(v != null)
+				{
+					if(v != _deleted) _cache.put(k, v);
+					++hitCount;
+				}
+				else if(_cache.get(k) != null)
+					++hitCount;
+				else if(_l2 != null && (v = loadL2(l2Key(k))) != null)
+				{
+					v.setSaveState(1);
+					_cache.put(k, v);
+					++hitCount;
+				}
+				else
+					misses[missCount++] = k;
+			}
+			if(missCount > 0)
+			{
+				_readStoCount.addAndGet(missCount);
+				long[] keys = (missCount < n ? Arrays.copyOf(misses, missCount) : misses);
+				List<V> vs = _stoTable.getMulti(keys);
+				for(int i = 0; i < missCount; ++i)
+				{
+					V v = vs.get(i);
+					if(v != null)
+					{
+						if(_l2 != null) storeL2(l2Key(keys[i]), v);
+						v.setSaveState(1);
+						_cache.put(keys[i], v);
+					}
+				}
+			}
+		}
+		finally
+		{
+			while(lockCount > 0)
+				locks[--lockCount].unlock();
+			if(readLocked) Procedure.readUnlock();
+		}
+		if(counts != null)
+		{
+			counts[0] += hitCount;
+			counts[1] += missCount;
+		}
+	}
+
 	/**
 	 * 标记记录已修改的状态
 	 * <p>
@@ -316,7 +663,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	public void modify(long k, V v)
 	{
 		Procedure.incVersion(lockId(k));
-		if(!v.modified() && _cacheMod != null)
+		if(v.getSaveState() != _modState && _cacheMod != null)
 		{
 			V vOld = _cacheMod.put(k, v);
 			if(vOld == null)
@@ -327,7 +674,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 				throw new IllegalStateException("modify unmatched record: t=" +
 						_tableName + ",k=" + k + ",vOld=" + vOld + ",v=" + v);
 			}
-			v.setSaveState(2);
+			v.setSaveState(_modState);
 		}
 	}
 
@@ -336,7 +683,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	{
 		V v = (V)vo;
 		Procedure.incVersion(lockId(k));
-		if(!v.modified() && _cacheMod != null)
+		if(v.getSaveState() != _modState && _cacheMod != null)
 		{
 			V vOld = _cacheMod.put(k, v);
 			if(vOld == null)
@@ -347,7 +694,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 				_cacheMod.put(k, vOld);
 				return;
 			}
-			v.setSaveState(2);
+			v.setSaveState(_modState);
 		}
 	}
 
@@ -374,7 +721,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 					vOld = _cacheMod.put(k, v);
 					if(vOld == null)
 						DBManager.instance().incModCount();
-					v.setSaveState(2);
+					v.setSaveState(_modState);
 				}
 			}
 			else
@@ -400,7 +747,8 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		if(vOld == v) return;
 		if(v.stored())
 			throw new IllegalStateException("put shared record: t=" + _tableName + ",k=" + k + ",v=" + v);
-		SContext.current().addOnRollbackDirty(() ->
+		SContext sctx = SContext.current();
+		sctx.addOnRollbackDirty(() ->
 		{
 			if(vOld != null)
 			{
@@ -410,6 +758,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 			else
 				removeUnsafe(k);
 		});
+		sctx.addRedo(this, k);
 		putUnsafe(k, v);
 		if(vOld != null)
 			vOld.setSaveState(0);
@@ -482,11 +831,13 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 			throw new IllegalAccessError("remove unlocked record! table=" + _tableName + ",key=" + k);
 		V vOld = getNoCacheUnsafe(k);
 		if(vOld == null) return;
-		SContext.current().addOnRollbackDirty(() ->
+		SContext sctx = SContext.current();
+		sctx.addOnRollbackDirty(() ->
 		{
 			vOld.setSaveState(0); // 确保可写入
 			putUnsafe(k, vOld);
 		});
+		sctx.addRedo(this, k);
 		removeUnsafe(k);
 		vOld.setSaveState(0);
 	}
@@ -555,4 +906,51 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	{
 		return walk(handler, 0, -1, true, false);
 	}
+
+	/**
+	 * 多线程并行遍历此表的所有key和value
+	 * <p>
+	 * 先取得存储中最小和最大的非负key,把此范围均分成多个分区(负数key并入最后的分区),再在遍历线程池中并行遍历各分区<br>
+	 * 各分区内按key的顺序遍历,分区之间没有顺序. 会阻塞等待遍历完成,所以不要在事务中调用<br>
+	 * 注意事项同walk. handler会在多个线程中并发调用,需要自行保证线程安全
+	 * @param handler 遍历过程中返回false可中断整个遍历
+	 * @param walk 用于获取进度,取消和限速. 只能使用一次
+	 * @param partCount 分区数量. <=0表示使用默认值
+	 * @return 返回true表示已完全遍历, 返回false表示被中断或取消
+	 */
+	public boolean walkParallel(WalkValueHandlerLong<V> handler, ParallelWalk walk, int partCount)
+	{
+		long[] minMax = new long[] { -1, -1 };
+		_stoTable.walk(k ->
+		{
+			minMax[0] = k;
+			return false;
+		}, 0, Long.MAX_VALUE, true, false);
+		_stoTable.walk(k ->
+		{
+			minMax[1] = k;
+			return false;
+		}, 0, Long.MAX_VALUE, true, true);
+		long min = Math.max(minMax[0], 0), max = Math.max(minMax[1], min);
+		int n = (partCount > 0 ? partCount : ParallelWalk.getDefaultPartCount());
+		long step = (max - min) / n + 1;
+		if(step < 1024 && n > 1) // 记录较少时减少分区
+		{
+			step = Math.min(1024, (max - min) + 1);
+			n = (int)((max - min) / step) + 1;
+		}
+		long stepFinal = step;
+		int nFinal = n;
+		return walk.run(n, part ->
+		{
+			long from = min + stepFinal * part;
+			long to = (part < nFinal - 1 ? from + stepFinal - 1 : -1); // -1表示到最大值,包括负数的key
+			return _stoTable.walk((k, v) -> walk.onWalk(part) && handler.onWalk(k, v), _deleted, from, to, true, false);
+		});
+	}
+
+	public boolean walkParallel(WalkValueHandlerLong<V> handler)
+	{
+		return walkParallel(handler, new ParallelWalk(), 0);
+	}
 }
@@ -22,8 +22,10 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import jane.core.map.ConcurrentLRUMap;
+import jane.core.map.ConcurrentTinyLFUMap;
 import jane.core.map.LongConcurrentHashMap;
 import jane.core.map.LongConcurrentLRUMap;
+import jane.core.map.LongConcurrentTinyLFUMap;
 import jane.core.map.LongMap;
 
 /**
@@ -66,6 +68,22 @@ public final class Util
 		// return new ConcurrentLinkedHashMap.Builder().maximumWeightedCapacity(maxCount).initialCapacity(maxCount).<V>buildLong();
 	}
 
+	/**
+	 * 使用{@link ConcurrentTinyLFUMap}创建可并发带W-TinyLFU自动淘汰的HashMap
+	 */
+	public static <K, V> Map<K, V> newConcurrentTinyLFUMap(int maxCount)
+	{
+		return maxCount > 0 ? new ConcurrentTinyLFUMap<>(maxCount, 0.5f) : newConcurrentHashMap();
+	}
+
+	/**
+	 * 使用{@link LongConcurrentTinyLFUMap}创建可并发带W-TinyLFU自动淘汰的HashMap
+	 */
+	public static <V> LongMap<V> newLongConcurrentTinyLFUMap(int maxCount)
+	{
+		return maxCount > 0 ? new LongConcurrentTinyLFUMap<>(maxCount, 0.5f) : new LongConcurrentHashMap<>(16, 0.5f);
+	}
+
 	/**
 	 * 逐字节比较两个字节数组
 	 */
@@ -25,53 +25,67 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import jane.core.Log;
-import jane.core.map.LRUCleaner.Cleanable;
 
 /**
  * A LRU cache implementation based upon ConcurrentHashMap and other techniques to reduce
  * contention and synchronization overhead to utilize multiple CPU cores more effectively.
  * <p/>
  * Note that the implementation does not follow a true LRU (least-recently-used) eviction strategy.
- * Instead it strives to remove least recently used items but when the initial cleanup does not remove enough items
- * to reach the 'acceptSize' limit, it can remove more items forcefully regardless of access order.
+ * Eviction is amortized into put(): once the size exceeds 'lowerSize', each put samples a few entries
+ * from a resumable cursor over the map and evicts the least recently used one of them,
+ * so eviction keeps pace with inserts and never needs a full scan or a background thread.
+ * If puts outrun eviction and the size reaches 'upperSize', they wait for the eviction lock and evict until below it.
  *
  * MapDB note: Original comes from:
  * https://svn.apache.org/repos/asf/lucene/dev/trunk/solr/core/src/java/org/apache/solr/util/ConcurrentLRUCache.java
  */
-public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Cleanable
+public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Resizable
 {
-	private static final int							 UPPERSIZE_MIN	= 1024;
-	private final ConcurrentHashMap<K, CacheEntry<K, V>> map;
-	private final AtomicLong							 versionCounter	= new AtomicLong();
-	private final AtomicInteger							 size			= new AtomicInteger();
-	private final AtomicInteger							 sweepStatus	= new AtomicInteger();
-	private final int									 upperSize;
-	private final int									 lowerSize;
-	private final int									 acceptSize;
-	private final String								 name;
-	private long										 minVersion;
-
-	public ConcurrentLRUMap(int upperSize, int lowerSize, int acceptSize, int initialSize, float loadFactor, String name)
+	private static final int								OVERSHOOT_MIN	= 64;
+	private static final int								SAMPLE_COUNT	= 8;				// number of entries sampled to pick one victim
+	private static final int								EVICT_PER_PUT	= 2;				// max entries evicted by one put while below 'upperSize'
+	private final ConcurrentHashMap<K, CacheEntry<K, V>>	map;
+	private final AtomicLong								versionCounter	= new AtomicLong();
+	private final AtomicInteger								size			= new AtomicInteger();
+	private final ReentrantLock								evictLock		= new ReentrantLock();
+	private final AtomicLong								evictCount		= new AtomicLong();	// total evicted entries
+	private final AtomicLong								evictNanos		= new AtomicLong();	// total time spent on eviction
+	private volatile int									upperSize;							// hard limit. puts above it wait for eviction
+	private volatile int									lowerSize;							// target size
+	private volatile int									maxOvershoot;						// max observed (size - lowerSize) when evicting
+	private final String									name;
+	private Iterator<CacheEntry<K, V>>						evictCursor;						// resumable sampling cursor. guarded by evictLock
+
+	public ConcurrentLRUMap(int upperSize, int lowerSize, int initialSize, float loadFactor, String name)
 	{
 		if(lowerSize <= 0) throw new IllegalArgumentException("lowerSize must be > 0");
 		if(upperSize <= lowerSize) throw new IllegalArgumentException("upperSize must be > lowerSize");
 		map = new ConcurrentHashMap<>(initialSize, loadFactor);
 		this.upperSize = upperSize;
 		this.lowerSize = lowerSize;
-		this.acceptSize = acceptSize;
 		this.name = name;
 	}
 
 	public ConcurrentLRUMap(int lowerSize, float loadFactor, String name)
 	{
-		this(Math.max(lowerSize + (lowerSize + 1) / 2, UPPERSIZE_MIN), lowerSize, lowerSize + lowerSize / 4,
-				Math.max(lowerSize + (lowerSize + 1) / 2, UPPERSIZE_MIN) + 256, loadFactor, name);
+		this(calcUpperSize(lowerSize), lowerSize, calcUpperSize(lowerSize) + 256, loadFactor, name);
 	}
 
-	private static final class CacheEntry<K, V> extends CacheEntryBase<V>
+	/**
+	 * 'upperSize' allows 1/8 overshoot (at least OVERSHOOT_MIN) so that puts rarely wait for eviction.
+	 */
+	private static int calcUpperSize(int lowerSize)
+	{
+		return (int)Math.min((long)lowerSize + Math.max(lowerSize >> 3, OVERSHOOT_MIN), Integer.MAX_VALUE);
+	}
+
+	private static final class CacheEntry<K, V>
 	{
 		final K key;
+		final V value;
+		long	version; // volatile is not necessary for most situation
 
 		CacheEntry(K k, V v, long ver)
 		{
@@ -81,6 +95,51 @@ public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Cleanable
 		}
 	}
 
+	@Override
+	public int getMaxCount()
+	{
+		return lowerSize;
+	}
+
+	/**
+	 * sets the new 'lowerSize' and recalculates 'upperSize' in the same way as the simple constructor.
+	 * <p/>
+	 * if the cache is already larger than the new 'lowerSize', the excess entries are evicted in the calling thread.
+	 */
+	@Override
+	public void setMaxCount(int maxCount)
+	{
+		if(maxCount <= 0) throw new IllegalArgumentException("maxCount must be > 0");
+		upperSize = calcUpperSize(maxCount);
+		lowerSize = maxCount;
+		if(size.get() > maxCount)
+			evict(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the total number of evicted entries
+	 */
+	public long getEvictCount()
+	{
+		return evictCount.get();
+	}
+
+	/**
+	 * @return the total time spent on eviction in nanoseconds
+	 */
+	public long getEvictNanos()
+	{
+		return evictNanos.get();
+	}
+
+	/**
+	 * @return the max number of entries above 'lowerSize' observed when evicting
+	 */
+	public int getMaxOvershoot()
+	{
+		return maxOvershoot;
+	}
+
 	@Override
 	public boolean isEmpty()
 	{
@@ -124,8 +183,8 @@ public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Cleanable
 		CacheEntry<K, V> ceOld = map.put(key, new CacheEntry<>(key, value, versionCounter.getAndIncrement()));
 		if(ceOld != null)
 			return ceOld.value;
-		if(size.getAndIncrement() >= upperSize && sweepStatus.get() == 0)
-			LRUCleaner.submit(sweepStatus, this);
+		if(size.incrementAndGet() > lowerSize)
+			evict(EVICT_PER_PUT);
 		return null;
 	}
 
@@ -153,197 +212,76 @@ public final class ConcurrentLRUMap<K, V> implements Map<K, V>, Cleanable
 		size.set(0);
 	}
 
-	private void evictEntry(Object key)
-	{
-		CacheEntry<K, V> o = map.remove(key);
-		if(o == null) return;
-		size.getAndDecrement();
-		// evictedEntry(o.key, o.value);
-	}
-
-	/** override this method to get notified about evicted entries*/
-	// private void evictedEntry(K key, V value) {}
-
 	/**
-	 * Removes items from the cache to bring the size down to 'acceptSize'.
+	 * Evicts entries after a put if the size exceeds 'lowerSize'.
 	 * <p/>
-	 * It is done in two stages. In the first stage, least recently used items are evicted.
-	 * If after the first stage, the cache size is still greater than 'acceptSize', the second stage takes over.
-	 * <p/>
-	 * The second stage is more intensive and tries to bring down the cache size to the 'lowerSize'.
+	 * Only one thread evicts at a time. Other threads skip it unless the size has reached 'upperSize',
+	 * in which case they wait for the lock so that the cache can not grow without bound.
+	 * @param maxEvict the max number of entries to evict while the size is below 'upperSize', plus 1/8 of the overshoot
 	 */
-	@Override
-	public void sweep()
+	private void evict(int maxEvict)
 	{
-		sweep(lowerSize, acceptSize);
-	}
-
-	@Override
-	public synchronized void sweep(int newLowerSize, int newAcceptSize)
-	{
-		// if we want to keep at least 1000 entries, then timestamps of current through current-1000
-		// are guaranteed not to be the oldest (but that does not mean there are 1000 entries in that group...
-		// it's acutally anywhere between 1 and 1000).
-		// Also, if we want to remove 500 entries, then oldestEntry through oldestEntry+500
-		// are guaranteed to be removed (however many there are there).
-
-		final long time = System.currentTimeMillis();
-		final int sizeOld = size.get();
-		if(sizeOld <= newLowerSize) return;
+		if(size.get() <= lowerSize) return;
+		if(!evictLock.tryLock())
+		{
+			if(size.get() < upperSize) return;
+			evictLock.lock();
+		}
 		try
 		{
-			final long nextV = versionCounter.get();
-			long minV = minVersion;
-			long maxVNew = -1;
-			long minVNew = Long.MAX_VALUE;
-			int numToKeep = newLowerSize;
-			int numToRemove = sizeOld - numToKeep;
-			int numKept = 0;
-			int numRemoved = 0;
-
-			CacheEntry<?, ?>[] eList = new CacheEntry<?, ?>[sizeOld];
-			int eSize = 0;
-
-			for(final CacheEntry<K, V> ce : map.values())
+			final long time = System.nanoTime();
+			final int lower = lowerSize;
+			final int overshoot = size.get() - lower;
+			if(overshoot > maxOvershoot) maxOvershoot = overshoot;
+			final int limit = (int)Math.min((long)maxEvict + (overshoot >> 3), Integer.MAX_VALUE); // evict more when falling behind
+			int n = 0;
+			for(int s; (s = size.get()) > lower && (n < limit || s >= upperSize); ++n)
 			{
-				final long v = ce.version;
-				ce.versionCopy = v;
-
-				// since the numToKeep group is likely to be bigger than numToRemove, check it first
-				if(v >= nextV - numToKeep)
-				{
-					// this entry is guaranteed not to be in the bottom group, so do nothing
-					numKept++;
-					if(minVNew > v) minVNew = v;
-				}
-				else if(v < minV + numToRemove) // entry in bottom group?
-				{
-					// this entry is guaranteed to be in the bottom group, so immediately remove it from the map
-					evictEntry(ce.key);
-					numRemoved++;
-				}
-				else if(eSize < sizeOld - 1)
-				{
-					// This entry *could* be in the bottom group.
-					// Collect these entries to avoid another full pass...
-					// this is wasted effort if enough entries are normally removed in this first pass.
-					// An alternate impl could make a full second pass.
-					eList[eSize++] = ce;
-					if(maxVNew < v) maxVNew = v;
-					if(minVNew > v) minVNew = v;
-				}
-			}
-
-			// int numPasses = 1; // maximum number of linear passes over the data
-
-			// if we didn't remove enough entries, then make more passes over the values we collected, with updated min and max values
-			if(sizeOld - numRemoved > newAcceptSize) // while(sizeOld - numRemoved > newAcceptSize && --numPasses >= 0)
-			{
-				if(minVNew != Long.MAX_VALUE) minV = minVNew;
-				minVNew = Long.MAX_VALUE;
-				final long maxV = maxVNew;
-				maxVNew = -1;
-				numToKeep = newLowerSize - numKept;
-				numToRemove = sizeOld - newLowerSize - numRemoved;
-
-				// iterate backward to make it easy to remove items
-				for(int i = eSize - 1; i >= 0; --i)
-				{
-					final CacheEntry<?, ?> ce = eList[i];
-					final long v = ce.versionCopy;
-
-					if(v > maxV - numToKeep)
-					{
-						// this entry is guaranteed not to be in the bottom group, so do nothing but remove it from the eList
-						numKept++;
-						eList[i] = eList[--eSize]; // remove the entry by moving the last element to its position
-						if(minVNew > v) minVNew = v;
-					}
-					else if(v < minV + numToRemove) // entry in bottom group?
-					{
-						// this entry is guaranteed to be in the bottom group, so immediately remove it from the map
-						evictEntry(ce.key);
-						numRemoved++;
-						eList[i] = eList[--eSize]; // remove the entry by moving the last element to its position
-					}
-					else
-					{
-						// This entry *could* be in the bottom group, so keep it in the eList, and update the stats
-						if(maxVNew < v) maxVNew = v;
-						if(minVNew > v) minVNew = v;
-					}
-				}
+				if(!evictSample()) break;
 			}
+			evictNanos.addAndGet(System.nanoTime() - time);
+			if(n > 1000 && Log.hasDebug)
+				Log.debug("LRUMap.evict({}: {}=>{}, {}ms)", name, lower + overshoot, size.get(), (System.nanoTime() - time) / 1_000_000);
+		}
+		finally
+		{
+			evictLock.unlock();
+		}
+	}
 
-			// if we still didn't remove enough entries, then make another pass while inserting into a priority queue
-			if(sizeOld - numRemoved > newAcceptSize)
+	/**
+	 * Samples up to SAMPLE_COUNT entries from the resumable cursor and evicts the least recently used one.
+	 * @return false if there is no entry to evict
+	 */
+	private boolean evictSample()
+	{
+		Iterator<CacheEntry<K, V>> it = evictCursor;
+		CacheEntry<K, V> victim = null;
+		for(int i = 0, restart = 0; i < SAMPLE_COUNT; ++i)
+		{
+			if(it == null || !it.hasNext())
 			{
-				if(minVNew != Long.MAX_VALUE) minV = minVNew;
-				minVNew = Long.MAX_VALUE;
-				final long maxV = maxVNew;
-				maxVNew = -1;
-				numToKeep = newLowerSize - numKept;
-				numToRemove = sizeOld - newLowerSize - numRemoved;
-				final LRUQueue<CacheEntry<?, ?>> queue = new LRUQueue<>(numToRemove, new CacheEntry<?, ?>[LRUQueue.calHeapSize(numToRemove)]);
-
-				for(int i = eSize - 1; i >= 0; --i)
-				{
-					final CacheEntry<?, ?> ce = eList[i];
-					final long v = ce.versionCopy;
-
-					if(v > maxV - numToKeep)
-					{
-						// this entry is guaranteed not to be in the bottom group, so do nothing but remove it from the eList
-						numKept++;
-						if(minVNew > v) minVNew = v;
-					}
-					else if(v < minV + numToRemove) // entry in bottom group?
-					{
-						// this entry is guaranteed to be in the bottom group so immediately remove it
-						evictEntry(ce.key);
-						numRemoved++;
-					}
-					else
-					{
-						// This entry *could* be in the bottom group. add it to the priority queue
-						// everything in the priority queue will be removed, so keep track of
-						// the lowest value that ever comes back out of the queue.
-						// first reduce the size of the priority queue to account for
-						// the number of items we have already removed while executing this loop so far.
-						final int maxSize = sizeOld - newLowerSize - numRemoved;
-						queue.maxSize = maxSize;
-						while(queue.size > maxSize && queue.size > 0)
-						{
-							final long otherEntryV = queue.pop().versionCopy;
-							if(minVNew > otherEntryV) minVNew = otherEntryV;
-						}
-						if(maxSize <= 0) break;
-
-						final CacheEntry<?, ?> o = queue.insertWithOverflow(ce);
-						if(o != null && minVNew > o.versionCopy) minVNew = o.versionCopy;
-					}
-				}
-
-				// Now delete everything in the priority queue. avoid using pop() since order doesn't matter anymore
-				for(final CacheEntry<?, ?> ce : queue.heap)
-				{
-					if(ce == null) continue;
-					evictEntry(ce.key);
-					numRemoved++;
-				}
-
-				// System.out.println("numRemoved=" + numRemoved + " numKept=" + numKept + " initialQueueSize="+ numToRemove
-				//	+ " finalQueueSize=" + queue.size() + " sizeOld-numRemoved=" + (sizeOld-numRemoved));
+				if(++restart > 2) break;
+				it = map.values().iterator();
+				if(!it.hasNext()) break;
 			}
-			minVersion = (minVNew == Long.MAX_VALUE ? minV : minVNew);
+			final CacheEntry<K, V> ce = it.next();
+			if(victim == null || ce.version < victim.version) victim = ce;
 		}
-		finally
+		evictCursor = it;
+		if(victim == null) return false;
+		if(map.remove(victim.key, victim))
 		{
-			if(Log.hasDebug)
-				Log.debug("LRUMap.sweep({}: {}=>{}, {}ms)", name, sizeOld, size.get(), System.currentTimeMillis() - time);
+			size.getAndDecrement();
+			evictCount.getAndIncrement();
+			// evictedEntry(victim.key, victim.value);
 		}
+		return true;
 	}
 
+	/** override this method to get notified about evicted entries*/
+	// private void evictedEntry(K key, V value) {}
+
 	@Override
 	public Set<K> keySet()
 	{
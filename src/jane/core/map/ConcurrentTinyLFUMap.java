@@ -0,0 +1,159 @@
+package jane.core.map;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于ConcurrentHashMap的可并发带W-TinyLFU自动淘汰的HashMap
+ * <p>
+ * 淘汰策略见{@link TinyLFUPolicy}. 和{@link ConcurrentLRUMap}相比,按访问频率决定淘汰,不会因一次遍历或大量一次性访问而冲掉经常访问的记录<br>
+ * 淘汰在读写操作中顺便批量处理,不需要后台线程. 记录数可能短暂地略微超过上限
+ */
+public final class ConcurrentTinyLFUMap<K, V> implements Map<K, V>, Resizable
+{
+	private final ConcurrentHashMap<K, KeyNode<K, V>> _map;
+	private final TinyLFUPolicy<V>					  _policy;
+
+	private static final class KeyNode<K, V> extends TinyLFUPolicy.Node<V>
+	{
+		final K key;
+
+		KeyNode(K k, V v)
+		{
+			super(v, k.hashCode());
+			key = k;
+		}
+	}
+
+	public ConcurrentTinyLFUMap(int maxCount, float loadFactor)
+	{
+		_map = new ConcurrentHashMap<>(maxCount + maxCount / 4, loadFactor);
+		_policy = new TinyLFUPolicy<V>(maxCount)
+		{
+			@Override
+			boolean evict(Node<V> node)
+			{
+				@SuppressWarnings("unchecked")
+				KeyNode<K, V> n = (KeyNode<K, V>)node;
+				return _map.remove(n.key, n);
+			}
+		};
+	}
+
+	@Override
+	public int getMaxCount()
+	{
+		return _policy.getMaxCount();
+	}
+
+	@Override
+	public void setMaxCount(int maxCount)
+	{
+		_policy.setMaxCount(maxCount);
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return _map.isEmpty();
+	}
+
+	@Override
+	public int size()
+	{
+		return _map.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return _map.containsKey(key);
+	}
+
+	@Deprecated
+	@Override
+	public boolean containsValue(Object value)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public V get(Object key)
+	{
+		KeyNode<K, V> n = _map.get(key);
+		if(n == null)
+			return null;
+		_policy.onRead(n);
+		return n.value;
+	}
+
+	@Override
+	public V put(K key, V value)
+	{
+		if(value == null)
+			return null;
+		KeyNode<K, V> nNew = new KeyNode<>(key, value);
+		for(;;)
+		{
+			KeyNode<K, V> n = _map.putIfAbsent(key, nNew);
+			if(n == null)
+			{
+				_policy.onAdd(nNew);
+				return null;
+			}
+			V vOld = n.value;
+			n.value = value;
+			if(_map.get(key) == n) // 如果在修改value的同时被淘汰了,则重新加入
+			{
+				_policy.onRead(n);
+				return vOld;
+			}
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends K, ? extends V> m)
+	{
+		for(Entry<? extends K, ? extends V> e : m.entrySet())
+			put(e.getKey(), e.getValue());
+	}
+
+	@Override
+	public V remove(Object key)
+	{
+		KeyNode<K, V> n = _map.remove(key);
+		if(n == null)
+			return null;
+		_policy.onRemove(n);
+		return n.value;
+	}
+
+	@Override
+	public void clear()
+	{
+		_map.clear();
+		_policy.onClear();
+	}
+
+	@Override
+	public Set<K> keySet()
+	{
+		return _map.keySet();
+	}
+
+	@Deprecated
+	@Override
+	public Collection<V> values()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Deprecated
+	@Override
+	public Set<Entry<K, V>> entrySet()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
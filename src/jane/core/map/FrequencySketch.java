@@ -0,0 +1,96 @@
+package jane.core.map;
+
+/**
+ * 用于估算访问频率的count-min sketch
+ * <p>
+ * 每个计数器4位(最大15),每个long保存16个计数器. 每个hash值对应4个计数器,估算值取其中的最小值<br>
+ * 累计增加的次数达到采样数量(容量的10倍)后,所有计数器减半,使旧的访问频率逐渐衰减<br>
+ * 非线程安全,需要外部同步
+ */
+final class FrequencySketch
+{
+	private static final long	RESET_MASK	= 0x7777_7777_7777_7777L;
+	private static final long	ONE_MASK	= 0x1111_1111_1111_1111L;
+	private static final long[]	SEEDS		= { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private final long[]		_table;			// 计数器表
+	private final int			_tableMask;		// _table.length-1
+	private final int			_sampleSize;	// 计数器减半的采样数量
+	private int					_size;			// 当前累计增加的次数
+
+	FrequencySketch(int maxCount)
+	{
+		int n = Integer.highestOneBit(Math.min(Math.max(maxCount, 16), 1 << 26) - 1) << 1;
+		_table = new long[n];
+		_tableMask = n - 1;
+		_sampleSize = (maxCount < Integer.MAX_VALUE / 10 ? maxCount * 10 : Integer.MAX_VALUE);
+	}
+
+	private static int spread(int x)
+	{
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private int indexOf(int hash, int i)
+	{
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return (int)h & _tableMask;
+	}
+
+	/**
+	 * 获取指定hash值的估算访问频率. 范围:[0,15]
+	 */
+	int frequency(int hash)
+	{
+		hash = spread(hash);
+		int start = (hash & 3) << 2;
+		int freq = 15;
+		for(int i = 0; i < 4; ++i)
+		{
+			int c = (int)(_table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xf;
+			if(freq > c) freq = c;
+		}
+		return freq;
+	}
+
+	/**
+	 * 增加指定hash值的访问频率
+	 */
+	void increment(int hash)
+	{
+		hash = spread(hash);
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for(int i = 0; i < 4; ++i)
+		{
+			int idx = indexOf(hash, i);
+			long mask = 0xfL << ((start + i) << 2);
+			long v = _table[idx];
+			if((v & mask) != mask)
+			{
+				_table[idx] = v + (1L << ((start + i) << 2));
+				added = true;
+			}
+		}
+		if(added && ++_size >= _sampleSize)
+			reset();
+	}
+
+	/**
+	 * 所有计数器减半
+	 */
+	private void reset()
+	{
+		int odd = 0;
+		long[] table = _table;
+		for(int i = 0, n = table.length; i < n; ++i)
+		{
+			long v = table[i];
+			odd += Long.bitCount(v & ONE_MASK);
+			table[i] = (v >>> 1) & RESET_MASK;
+		}
+		_size = (_size >>> 1) - (odd >>> 2);
+	}
+}
@@ -0,0 +1,206 @@
+package jane.core.map;
+
+import java.util.Iterator;
+
+/**
+ * 基于LongConcurrentHashMap的可并发带W-TinyLFU自动淘汰的HashMap
+ * <p>
+ * 同{@link ConcurrentTinyLFUMap},只是key是long类型
+ */
+public final class LongConcurrentTinyLFUMap<V> extends LongMap<V> implements Resizable
+{
+	private final LongConcurrentHashMap<KeyNode<V>> _map;
+	private final TinyLFUPolicy<V>					_policy;
+
+	private static final class KeyNode<V> extends TinyLFUPolicy.Node<V>
+	{
+		final long key;
+
+		KeyNode(long k, V v)
+		{
+			super(v, (int)(k ^ (k >>> 32)));
+			key = k;
+		}
+	}
+
+	public LongConcurrentTinyLFUMap(int maxCount, float loadFactor)
+	{
+		_map = new LongConcurrentHashMap<>(maxCount + maxCount / 4, loadFactor);
+		_policy = new TinyLFUPolicy<V>(maxCount)
+		{
+			@Override
+			boolean evict(Node<V> node)
+			{
+				KeyNode<V> n = (KeyNode<V>)node;
+				return _map.remove(n.key, n);
+			}
+		};
+	}
+
+	@Override
+	public int getMaxCount()
+	{
+		return _policy.getMaxCount();
+	}
+
+	@Override
+	public void setMaxCount(int maxCount)
+	{
+		_policy.setMaxCount(maxCount);
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return _map.isEmpty();
+	}
+
+	@Override
+	public int size()
+	{
+		return _map.size();
+	}
+
+	@Override
+	public V get(long key)
+	{
+		KeyNode<V> n = _map.get(key);
+		if(n == null)
+			return null;
+		_policy.onRead(n);
+		return n.value;
+	}
+
+	@Override
+	public V put(long key, V value)
+	{
+		if(value == null)
+			return null;
+		KeyNode<V> nNew = new KeyNode<>(key, value);
+		for(;;)
+		{
+			KeyNode<V> n = _map.putIfAbsent(key, nNew);
+			if(n == null)
+			{
+				_policy.onAdd(nNew);
+				return null;
+			}
+			V vOld = n.value;
+			n.value = value;
+			if(_map.get(key) == n) // 如果在修改value的同时被淘汰了,则重新加入
+			{
+				_policy.onRead(n);
+				return vOld;
+			}
+		}
+	}
+
+	@Override
+	public V remove(long key)
+	{
+		KeyNode<V> n = _map.remove(key);
+		if(n == null)
+			return null;
+		_policy.onRemove(n);
+		return n.value;
+	}
+
+	@Override
+	public boolean remove(long key, V value)
+	{
+		KeyNode<V> n = _map.get(key);
+		if(n == null || n.value != value || !_map.remove(key, n))
+			return false;
+		_policy.onRemove(n);
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		_map.clear();
+		_policy.onClear();
+	}
+
+	@Override
+	public LongIterator keyIterator()
+	{
+		return _map.keyIterator();
+	}
+
+	@Override
+	public Iterator<V> iterator()
+	{
+		return new ValueIterator<>(_map);
+	}
+
+	@Override
+	public MapIterator<V> entryIterator()
+	{
+		return new EntryIterator<>(_map);
+	}
+
+	private static final class ValueIterator<V> implements Iterator<V>
+	{
+		private final Iterator<KeyNode<V>> it;
+
+		ValueIterator(LongConcurrentHashMap<KeyNode<V>> map)
+		{
+			it = map.iterator();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return it.hasNext();
+		}
+
+		@Override
+		public V next()
+		{
+			return it.next().value;
+		}
+
+		@Deprecated
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static final class EntryIterator<V> implements MapIterator<V>
+	{
+		private final MapIterator<KeyNode<V>> it;
+
+		EntryIterator(LongConcurrentHashMap<KeyNode<V>> map)
+		{
+			it = map.entryIterator();
+		}
+
+		@Override
+		public boolean moveToNext()
+		{
+			return it.moveToNext();
+		}
+
+		@Override
+		public long key()
+		{
+			return it.key();
+		}
+
+		@Override
+		public V value()
+		{
+			return it.value().value;
+		}
+
+		@Deprecated
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,499 @@
+package jane.core.map;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 用于long类型key的写缓存(已修改记录集合)的可并发HashMap
+ * <p>
+ * 按key的hash值分成多个段,每段是开放寻址的long=>V哈希表(没有节点对象,key不装箱),写操作加段内的写锁,读操作用乐观读不加锁<br>
+ * 每段有一个纪元(epoch)计数,写入记录时记下当前纪元. {@link #drain}开始时递增纪元并复制出段内的全部记录,处理完后一次加锁批量删除已保存的记录<br>
+ * 期间重新写入的记录纪元不同,不会被删除. 这样提交线程保存时不需要每个记录都单独删除一次
+ */
+public final class LongDirtyMap<V> extends LongMap<V>
+{
+	private static final int	STRIPE_SHIFT	= 6;					// 段数量的位数
+	private static final int	STRIPE_COUNT	= 1 << STRIPE_SHIFT;	// 段数量
+	private static final int	INIT_CAPACITY	= 16;					// 每段初始的表长度
+	private final Stripe<V>[]	_stripes;
+
+	/**
+	 * 处理{@link #drain}取出的记录
+	 */
+	public interface DrainHandler<V>
+	{
+		/**
+		 * @return 是否已保存. 返回true的记录如果之后没有重新写入则会被删除
+		 */
+		boolean onDrain(long key, V value);
+	}
+
+	private static final class Stripe<V>
+	{
+		private final StampedLock	_lock	= new StampedLock();
+		private long[]				_keys;		// 开放寻址表的key
+		private Object[]			_values;	// 开放寻址表的value. null表示空位
+		private int[]				_epochs;	// 每个记录写入时的纪元
+		private volatile int		_size;		// 记录数
+		private int					_epoch;		// 当前纪元. 只在drain时递增
+
+		Stripe()
+		{
+			init(INIT_CAPACITY);
+		}
+
+		private void init(int cap)
+		{
+			_keys = new long[cap];
+			_values = new Object[cap];
+			_epochs = new int[cap];
+		}
+
+		/**
+		 * 查找key所在的位置. 可能在乐观读时调用,表可能正在被修改,需要容忍不一致的状态
+		 * @return 没找到返回-1
+		 */
+		private static int find(long[] keys, Object[] values, long key)
+		{
+			int mask = keys.length - 1;
+			if(values.length != keys.length) return -1;
+			for(int i = slot(key, mask), n = 0; n <= mask; i = (i + 1) & mask, ++n)
+			{
+				if(values[i] == null) return -1;
+				if(keys[i] == key) return i;
+			}
+			return -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(long key)
+		{
+			long stamp = _lock.tryOptimisticRead();
+			if(stamp != 0)
+			{
+				long[] keys = _keys;
+				Object[] values = _values;
+				int i = find(keys, values, key);
+				Object v = (i >= 0 ? values[i] : null);
+				if(_lock.validate(stamp)) return (V)v;
+			}
+			stamp = _lock.readLock();
+			try
+			{
+				int i = find(_keys, _values, key);
+				return i >= 0 ? (V)_values[i] : null;
+			}
+			finally
+			{
+				_lock.unlockRead(stamp);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		V put(long key, V value)
+		{
+			long stamp = _lock.writeLock();
+			try
+			{
+				long[] keys = _keys;
+				Object[] values = _values;
+				int mask = keys.length - 1;
+				for(int i = slot(key, mask);; i = (i + 1) & mask)
+				{
+					Object v = values[i];
+					if(v == null)
+					{
+						keys[i] = key;
+						values[i] = value;
+						_epochs[i] = _epoch;
+						int size = _size + 1;
+						_size = size;
+						if(size >= (keys.length >> 1) + (keys.length >> 2))
+							rehash(keys.length << 1);
+						return null;
+					}
+					if(keys[i] == key)
+					{
+						values[i] = value;
+						_epochs[i] = _epoch;
+						return (V)v;
+					}
+				}
+			}
+			finally
+			{
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		V remove(long key, Object value)
+		{
+			long stamp = _lock.writeLock();
+			try
+			{
+				int i = find(_keys, _values, key);
+				if(i < 0) return null;
+				Object v = _values[i];
+				if(value != null && v != value) return null;
+				removeAt(i);
+				return (V)v;
+			}
+			finally
+			{
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		void clear()
+		{
+			long stamp = _lock.writeLock();
+			try
+			{
+				init(INIT_CAPACITY);
+				_size = 0;
+			}
+			finally
+			{
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * 复制出段内的全部记录
+		 * @param epoch 非null时递增纪元并把新纪元保存到epoch[0]
+		 * @return [long[] keys, Object[] values]. 没有记录时返回null
+		 */
+		Object[] snapshot(int[] epoch)
+		{
+			long stamp = _lock.writeLock();
+			try
+			{
+				int size = _size;
+				if(size == 0) return null;
+				if(epoch != null) epoch[0] = ++_epoch;
+				long[] keys = _keys;
+				Object[] values = _values;
+				long[] ks = new long[size];
+				Object[] vs = new Object[size];
+				for(int i = 0, j = 0, n = keys.length; j < size && i < n; ++i)
+				{
+					Object v = values[i];
+					if(v != null)
+					{
+						ks[j] = keys[i];
+						vs[j++] = v;
+					}
+				}
+				return new Object[] { ks, vs };
+			}
+			finally
+			{
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * 批量删除已保存的记录. 纪元等于epoch的记录(drain开始后重新写入的)不删除
+		 */
+		void removeSaved(long[] keys, int count, int epoch)
+		{
+			long stamp = _lock.writeLock();
+			try
+			{
+				for(int j = 0; j < count; ++j)
+				{
+					int i = find(_keys, _values, keys[j]);
+					if(i >= 0 && _epochs[i] != epoch)
+						removeAt(i);
+				}
+			}
+			finally
+			{
+				_lock.unlockWrite(stamp);
+			}
+		}
+
+		private void removeAt(int i)
+		{
+			long[] keys = _keys;
+			Object[] values = _values;
+			int[] epochs = _epochs;
+			int mask = keys.length - 1;
+			_size = _size - 1;
+			for(;;) // 删除后把后面的连续记录中可以前移的移到空位,保证查找时不会中断
+			{
+				values[i] = null;
+				int j = i;
+				for(;;)
+				{
+					j = (j + 1) & mask;
+					if(values[j] == null) return;
+					int r = slot(keys[j], mask); // 记录j的理想位置. 在(i,j]之间的不能前移
+					if(i <= j ? (i >= r || r > j) : (i >= r && r > j)) break;
+				}
+				keys[i] = keys[j];
+				values[i] = values[j];
+				epochs[i] = epochs[j];
+				i = j;
+			}
+		}
+
+		private void rehash(int newCap)
+		{
+			long[] oldKeys = _keys;
+			Object[] oldValues = _values;
+			int[] oldEpochs = _epochs;
+			long[] keys = new long[newCap];
+			Object[] values = new Object[newCap];
+			int[] epochs = new int[newCap];
+			int mask = newCap - 1;
+			for(int i = 0, n = oldKeys.length; i < n; ++i)
+			{
+				Object v = oldValues[i];
+				if(v != null)
+				{
+					long k = oldKeys[i];
+					int j = slot(k, mask);
+					while(values[j] != null)
+						j = (j + 1) & mask;
+					keys[j] = k;
+					values[j] = v;
+					epochs[j] = oldEpochs[i];
+				}
+			}
+			_keys = keys;
+			_values = values;
+			_epochs = epochs;
+		}
+	}
+
+	private static long hash(long key)
+	{
+		long h = key * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+
+	private static int slot(long key, int mask)
+	{
+		return (int)hash(key) & mask;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public LongDirtyMap()
+	{
+		_stripes = new Stripe[STRIPE_COUNT];
+		for(int i = 0; i < STRIPE_COUNT; ++i)
+			_stripes[i] = new Stripe<>();
+	}
+
+	private Stripe<V> stripe(long key)
+	{
+		return _stripes[(int)(hash(key) >>> (64 - STRIPE_SHIFT))];
+	}
+
+	@Override
+	public int size()
+	{
+		int size = 0;
+		for(Stripe<V> stripe : _stripes)
+			size += stripe._size;
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		for(Stripe<V> stripe : _stripes)
+			if(stripe._size > 0) return false;
+		return true;
+	}
+
+	@Override
+	public V get(long key)
+	{
+		return stripe(key).get(key);
+	}
+
+	@Override
+	public V put(long key, V value)
+	{
+		if(value == null) throw new NullPointerException();
+		return stripe(key).put(key, value);
+	}
+
+	@Override
+	public V remove(long key)
+	{
+		return stripe(key).remove(key, null);
+	}
+
+	@Override
+	public boolean remove(long key, V value)
+	{
+		return value != null && stripe(key).remove(key, value) != null;
+	}
+
+	@Override
+	public void clear()
+	{
+		for(Stripe<V> stripe : _stripes)
+			stripe.clear();
+	}
+
+	/**
+	 * 分批取出并处理全部记录,处理后批量删除已保存的记录
+	 * <p>
+	 * 每段开始时复制出段内的记录,逐个调用handler,最后一次加锁删除handler返回true且期间没有重新写入的记录<br>
+	 * 同一段不能被多个线程同时drain
+	 * @param shard 只处理段序号按shardCount取模后等于此值的段,用于多线程并行处理
+	 * @param shardCount 分片数量. 1表示不分片
+	 * @return handler返回true的记录数
+	 */
+	@SuppressWarnings("unchecked")
+	public int drain(int shard, int shardCount, DrainHandler<V> handler)
+	{
+		int n = 0;
+		int[] epoch = new int[1];
+		for(int s = shard; s < STRIPE_COUNT; s += shardCount)
+		{
+			Stripe<V> stripe = _stripes[s];
+			Object[] snapshot = stripe.snapshot(epoch);
+			if(snapshot == null) continue;
+			long[] keys = (long[])snapshot[0];
+			Object[] values = (Object[])snapshot[1];
+			int m = 0;
+			try
+			{
+				for(int i = 0, c = keys.length; i < c; ++i)
+				{
+					if(handler.onDrain(keys[i], (V)values[i]))
+						keys[m++] = keys[i];
+				}
+			}
+			finally
+			{
+				if(m > 0)
+				{
+					stripe.removeSaved(keys, m, epoch[0]);
+					n += m;
+				}
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public LongIterator keyIterator()
+	{
+		return new Iter();
+	}
+
+	@Override
+	public Iterator<V> iterator()
+	{
+		return new ValueIterator();
+	}
+
+	@Override
+	public MapIterator<V> entryIterator()
+	{
+		return new Iter();
+	}
+
+	/**
+	 * 按段复制记录的迭代器. 不会反映迭代过程中对未迭代的段以外的修改
+	 */
+	private final class Iter implements LongIterator, MapIterator<V>
+	{
+		private int		 _stripe = -1;
+		private long[]	 _keys;
+		private Object[] _values;
+		private int		 _idx;
+
+		boolean advance()
+		{
+			if(_keys != null && ++_idx < _keys.length) return true;
+			while(++_stripe < STRIPE_COUNT)
+			{
+				Object[] snapshot = _stripes[_stripe].snapshot(null);
+				if(snapshot != null)
+				{
+					_keys = (long[])snapshot[0];
+					_values = (Object[])snapshot[1];
+					_idx = 0;
+					return true;
+				}
+			}
+			_keys = null;
+			return false;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			if(_keys != null && _idx + 1 < _keys.length) return true;
+			if(_stripe >= STRIPE_COUNT) return false;
+			boolean r = advance();
+			if(r) --_idx; // 下次next时再前进
+			return r;
+		}
+
+		@Override
+		public long next()
+		{
+			if(!advance()) throw new NoSuchElementException();
+			return _keys[_idx];
+		}
+
+		@Override
+		public boolean moveToNext()
+		{
+			return advance();
+		}
+
+		@Override
+		public long key()
+		{
+			return _keys[_idx];
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public V value()
+		{
+			return (V)_values[_idx];
+		}
+
+		@Override
+		public void remove()
+		{
+			LongDirtyMap.this.remove(_keys[_idx], value());
+		}
+	}
+
+	private final class ValueIterator implements Iterator<V>
+	{
+		private final Iter _it = new Iter();
+
+		@Override
+		public boolean hasNext()
+		{
+			return _it.hasNext();
+		}
+
+		@Override
+		public V next()
+		{
+			if(!_it.advance()) throw new NoSuchElementException();
+			return _it.value();
+		}
+
+		@Override
+		public void remove()
+		{
+			_it.remove();
+		}
+	}
+}
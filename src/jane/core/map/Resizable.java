@@ -0,0 +1,17 @@
+package jane.core.map;
+
+/**
+ * 可在运行时调整记录数量上限的缓存map
+ */
+public interface Resizable
+{
+	/**
+	 * 获取当前的记录数量上限
+	 */
+	int getMaxCount();
+
+	/**
+	 * 设置新的记录数量上限. 如果当前记录数超过新的上限,会尽快淘汰多出的记录
+	 */
+	void setMaxCount(int maxCount);
+}
@@ -0,0 +1,308 @@
+package jane.core.map;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * W-TinyLFU的淘汰策略
+ * <p>
+ * 记录分成3个LRU队列: 窗口区(容量的1%), 主区的试用区和保护区(主区的80%)<br>
+ * 新记录先进入窗口区,从窗口区溢出后进入试用区,在试用区再被访问则升级到保护区,保护区溢出则降级回试用区<br>
+ * 总数超过容量时,用count-min sketch估算的访问频率比较试用区最新进入的候选记录和最久未访问的记录,淘汰频率低的一个(相同则淘汰候选)<br>
+ * 所以一次性访问的大量记录(如遍历)只会冲掉窗口区和试用区中频率更低的记录,不会冲掉经常访问的记录<br>
+ * 读操作只记录到有损的环形缓冲区,写操作记录到无损的队列,由任意线程在tryLock成功后批量处理,读写操作本身不会阻塞
+ */
+abstract class TinyLFUPolicy<V>
+{
+	private static final int	QUEUE_NONE		= 0;	// 不在任何队列中
+	private static final int	QUEUE_WINDOW	= 1;	// 窗口区
+	private static final int	QUEUE_PROBATION	= 2;	// 试用区
+	private static final int	QUEUE_PROTECTED	= 3;	// 保护区
+	private static final int	READ_BUF_SIZE	= 128;	// 读缓冲区大小. 2的幂
+	private static final int	DRAIN_THRESHOLD	= 32;	// 每记录多少次读操作尝试处理一次缓冲区. 2的幂
+
+	private final ReentrantLock						_lock		= new ReentrantLock();
+	private final AtomicReferenceArray<Node<V>>		_readBuf	= new AtomicReferenceArray<>(READ_BUF_SIZE);
+	private final AtomicInteger						_readIdx	= new AtomicInteger();
+	private final ConcurrentLinkedQueue<Node<V>>	_writeBuf	= new ConcurrentLinkedQueue<>();
+	private final Node<V>							_window		= new Node<>(null, 0);	// 以下3个队列的头节点. next是最久未访问的,prev是最近访问的
+	private final Node<V>							_probation	= new Node<>(null, 0);
+	private final Node<V>							_protected	= new Node<>(null, 0);
+	private FrequencySketch							_sketch;
+	private volatile int							_maxCount;							// 记录数量上限
+	private int										_sketchCount;						// 创建_sketch时的记录数量上限
+	private int										_windowMax;							// 窗口区的记录数量上限
+	private int										_protectedMax;						// 保护区的记录数量上限
+	private int										_windowSize;
+	private int										_probationSize;
+	private int										_protectedSize;
+
+	static class Node<V>
+	{
+		volatile V			value;
+		volatile boolean	removed;	// 是否已从map中删除或淘汰
+		final int			hash;		// key的hash值,用于估算访问频率
+		Node<V>				prev;		// 所在队列的前一个节点. prev,next,queue只在持有_lock时访问
+		Node<V>				next;		// 所在队列的后一个节点
+		int					queue;		// 所在的队列(QUEUE_*)
+
+		Node(V v, int h)
+		{
+			value = v;
+			hash = h;
+			prev = next = this;
+		}
+	}
+
+	TinyLFUPolicy(int maxCount)
+	{
+		init(maxCount);
+	}
+
+	private void init(int maxCount)
+	{
+		if(maxCount <= 0) throw new IllegalArgumentException("maxCount must be > 0");
+		_maxCount = maxCount;
+		_windowMax = Math.max(maxCount / 100, 1);
+		_protectedMax = (int)((maxCount - _windowMax) * 0.8);
+		if(_sketch == null || maxCount > _sketchCount * 2) // 容量增加很多时重建sketch以保证精度,已有的频率信息会丢失
+		{
+			_sketch = new FrequencySketch(maxCount);
+			_sketchCount = maxCount;
+		}
+	}
+
+	final int getMaxCount()
+	{
+		return _maxCount;
+	}
+
+	/**
+	 * 调整记录数量上限. 如果超过新的上限,会立即淘汰多出的记录
+	 */
+	final void setMaxCount(int maxCount)
+	{
+		_lock.lock();
+		try
+		{
+			init(maxCount);
+			while(_protectedSize > _protectedMax)
+				demote();
+			drain();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * 把保护区最久未访问的记录降级到试用区
+	 */
+	private void demote()
+	{
+		Node<V> node = _protected.next;
+		unlink(node);
+		--_protectedSize;
+		link(_probation, node);
+		node.queue = QUEUE_PROBATION;
+		++_probationSize;
+	}
+
+	/**
+	 * 从map中删除被淘汰的记录
+	 * @return 是否删除成功. 记录已被删除或替换则返回false
+	 */
+	abstract boolean evict(Node<V> node);
+
+	/**
+	 * 访问了map中的记录后调用
+	 */
+	final void onRead(Node<V> node)
+	{
+		int i = _readIdx.getAndIncrement();
+		_readBuf.lazySet(i & (READ_BUF_SIZE - 1), node);
+		if((i & (DRAIN_THRESHOLD - 1)) == 0)
+			tryDrain();
+	}
+
+	/**
+	 * 新记录加入map后调用
+	 */
+	final void onAdd(Node<V> node)
+	{
+		_writeBuf.offer(node);
+		tryDrain();
+	}
+
+	/**
+	 * 记录从map中删除后调用
+	 */
+	final void onRemove(Node<V> node)
+	{
+		node.removed = true;
+		_writeBuf.offer(node);
+		tryDrain();
+	}
+
+	/**
+	 * map清空后调用
+	 */
+	final void onClear()
+	{
+		_lock.lock();
+		try
+		{
+			drain();
+			clearQueue(_window);
+			clearQueue(_probation);
+			clearQueue(_protected);
+			_windowSize = _probationSize = _protectedSize = 0;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	private static <V> void clearQueue(Node<V> head)
+	{
+		for(Node<V> node = head.next; node != head; node = node.next)
+		{
+			node.removed = true;
+			node.queue = QUEUE_NONE;
+		}
+		head.prev = head.next = head;
+	}
+
+	private void tryDrain()
+	{
+		while(_lock.tryLock())
+		{
+			try
+			{
+				drain();
+			}
+			finally
+			{
+				_lock.unlock();
+			}
+			if(_writeBuf.isEmpty()) break; // 处理期间其它线程加入的写操作可能因tryLock失败而没有处理
+		}
+	}
+
+	private static <V> void link(Node<V> head, Node<V> node)
+	{
+		Node<V> last = head.prev;
+		node.prev = last;
+		node.next = head;
+		last.next = node;
+		head.prev = node;
+	}
+
+	private static <V> void unlink(Node<V> node)
+	{
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = node.next = node;
+	}
+
+	private void unlinkQueue(Node<V> node)
+	{
+		switch(node.queue)
+		{
+			case QUEUE_WINDOW:
+				--_windowSize;
+				break;
+			case QUEUE_PROBATION:
+				--_probationSize;
+				break;
+			case QUEUE_PROTECTED:
+				--_protectedSize;
+				break;
+			default:
+				return;
+		}
+		unlink(node);
+		node.queue = QUEUE_NONE;
+	}
+
+	private void drain()
+	{
+		for(int i = 0; i < READ_BUF_SIZE; ++i)
+		{
+			Node<V> node = _readBuf.getAndSet(i, null);
+			if(node != null)
+				access(node);
+		}
+		for(Node<V> node; (node = _writeBuf.poll()) != null;)
+		{
+			if(node.removed)
+				unlinkQueue(node);
+			else if(node.queue == QUEUE_NONE)
+			{
+				_sketch.increment(node.hash);
+				link(_window, node);
+				node.queue = QUEUE_WINDOW;
+				++_windowSize;
+			}
+		}
+		evictAll();
+	}
+
+	private void access(Node<V> node)
+	{
+		_sketch.increment(node.hash);
+		if(node.removed) return;
+		switch(node.queue)
+		{
+			case QUEUE_WINDOW:
+				unlink(node);
+				link(_window, node);
+				break;
+			case QUEUE_PROBATION:
+				unlink(node);
+				--_probationSize;
+				link(_protected, node);
+				node.queue = QUEUE_PROTECTED;
+				++_protectedSize;
+				while(_protectedSize > _protectedMax)
+					demote();
+				break;
+			case QUEUE_PROTECTED:
+				unlink(node);
+				link(_protected, node);
+				break;
+		}
+	}
+
+	private void evictAll()
+	{
+		while(_windowSize > _windowMax)
+		{
+			Node<V> node = _window.next;
+			unlink(node);
+			--_windowSize;
+			link(_probation, node);
+			node.queue = QUEUE_PROBATION;
+			++_probationSize;
+		}
+		while(_windowSize + _probationSize + _protectedSize > _maxCount)
+		{
+			Node<V> node;
+			if(_probationSize > 0)
+			{
+				Node<V> victim = _probation.next;
+				Node<V> candidate = _probation.prev;
+				node = (candidate == victim || _sketch.frequency(candidate.hash) <= _sketch.frequency(victim.hash) ? candidate : victim);
+			}
+			else
+				node = (_protectedSize > 0 ? _protected.next : _window.next);
+			unlinkQueue(node);
+			node.removed = true;
+			evict(node);
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package jane.test;
 
 import java.util.concurrent.CountDownLatch;
-import jane.core.Const;
 import jane.core.DBManager;
 import jane.core.Procedure;
 import jane.bean.AllTables;
@@ -16,7 +15,7 @@ public final class TestAutoLock
 
 		final long k1 = 1;
 		final long k2 = 2;
-		final int lockMask = Const.lockPoolSize - 1;
+		final int lockMask = Procedure.getLockPoolSize() - 1;
 		System.out.println("lockId1 = " + (AllTables.TestTable.lockId(k1) & lockMask));
 		System.out.println("lockId2 = " + (AllTables.TestTable.lockId(k2) & lockMask));
 
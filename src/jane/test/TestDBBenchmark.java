@@ -7,7 +7,10 @@ import jane.core.Log;
 import jane.core.ProcThread;
 import jane.core.Procedure;
 import jane.core.Storage;
+import jane.core.StorageLSM;
 import jane.core.StorageLevelDB;
+import jane.core.StorageMMap;
+import jane.core.StorageMemory;
 import jane.core.Util;
 import jane.bean.AllTables;
 import jane.bean.TestBean;
@@ -24,6 +27,12 @@ public final class TestDBBenchmark
 		{
 			if("ld".equals(args[0]))
 				sto = StorageLevelDB.instance();
+			else if("lsm".equals(args[0]))
+				sto = StorageLSM.instance();
+			else if("mem".equals(args[0]))
+				sto = StorageMemory.instance();
+			else if("mmap".equals(args[0]))
+				sto = new StorageMMap(StorageLSM.instance());
 		}
 		if(sto == null) sto = StorageLevelDB.instance();
 		final int keyAllCount = (args.length > 1 ? Integer.parseInt(args[1]) : 100000);
@@ -0,0 +1,176 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import jane.core.map.LongConcurrentHashMap;
+import jane.core.map.LongDirtyMap;
+import jane.core.map.LongMap;
+import jane.core.map.LongMap.LongIterator;
+
+/**
+ * 比较TableLong写缓存使用LongConcurrentHashMap和LongDirtyMap时的性能
+ * <p>
+ * 多个线程模拟事务修改记录(加记录锁后put到写缓存),同时一个线程模拟提交线程周期地尝试加锁保存并清理写缓存<br>
+ * 最后检查每个记录最后保存的值是否等于最后修改的值
+ */
+public final class TestDirtyMap
+{
+	private static final int	KEY_COUNT		= 1 << 20;		// 记录key的范围
+	private static final int	LOCK_COUNT		= 1 << 16;		// 记录锁数量
+	private static final int	MODIFY_COUNT	= 2_000_000;	// 每个线程的修改次数
+	private static final long	SAVE_SLEEP		= 10;			// 提交线程每次保存的间隔(毫秒)
+
+	private interface Saver
+	{
+		int save(LongMap<Long> map, ReentrantLock[] locks, long[] saved);
+	}
+
+	private static boolean saveOne(LongMap<Long> map, ReentrantLock[] locks, long[] saved, long k)
+	{
+		ReentrantLock lock = locks[(int)k & (LOCK_COUNT - 1)];
+		if(!lock.tryLock()) return false;
+		try
+		{
+			Long v = map.get(k);
+			if(v == null) return false;
+			saved[(int)k] = v;
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 原来的方式: 遍历key, 每个记录加锁保存后单独删除
+	 */
+	private static int saveByIterator(LongMap<Long> map, ReentrantLock[] locks, long[] saved)
+	{
+		int n = 0;
+		for(LongIterator it = map.keyIterator(); it.hasNext();)
+		{
+			long k = it.next();
+			Long v = map.get(k);
+			if(v != null && saveOne(map, locks, saved, k))
+			{
+				map.remove(k, v);
+				++n;
+			}
+		}
+		return n;
+	}
+
+	private static int saveByDrain(LongMap<Long> map, ReentrantLock[] locks, long[] saved)
+	{
+		return ((LongDirtyMap<Long>)map).drain(0, 1, (k, v) -> saveOne(map, locks, saved, k));
+	}
+
+	private static long test(String name, LongMap<Long> map, Saver saver, int threadCount) throws InterruptedException
+	{
+		ReentrantLock[] locks = new ReentrantLock[LOCK_COUNT];
+		for(int i = 0; i < LOCK_COUNT; ++i)
+			locks[i] = new ReentrantLock();
+		long[] modified = new long[KEY_COUNT];
+		long[] saved = new long[KEY_COUNT];
+		AtomicLong counter = new AtomicLong();
+		AtomicLong saveCount = new AtomicLong();
+		AtomicLong saveTime = new AtomicLong();
+		AtomicBoolean stop = new AtomicBoolean();
+		CountDownLatch ready = new CountDownLatch(threadCount);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		for(int i = 0; i < threadCount; ++i)
+		{
+			threads[i] = new Thread(() ->
+			{
+				ready.countDown();
+				try
+				{
+					start.await();
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				ThreadLocalRandom rand = ThreadLocalRandom.current();
+				for(int j = 0; j < MODIFY_COUNT; ++j)
+				{
+					int k = rand.nextInt(KEY_COUNT);
+					ReentrantLock lock = locks[k & (LOCK_COUNT - 1)];
+					lock.lock();
+					try
+					{
+						long v = counter.incrementAndGet();
+						modified[k] = v;
+						map.put(k, v);
+					}
+					finally
+					{
+						lock.unlock();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		Thread committer = new Thread(() ->
+		{
+			while(!stop.get())
+			{
+				long t = System.nanoTime();
+				saveCount.addAndGet(saver.save(map, locks, saved));
+				saveTime.addAndGet(System.nanoTime() - t);
+				try
+				{
+					Thread.sleep(SAVE_SLEEP);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+			}
+		});
+		ready.await();
+		long t = System.nanoTime();
+		start.countDown();
+		committer.start();
+		for(Thread thread : threads)
+			thread.join();
+		t = System.nanoTime() - t;
+		stop.set(true);
+		committer.join();
+		long t2 = System.nanoTime();
+		while(!map.isEmpty())
+			saveCount.addAndGet(saver.save(map, locks, saved));
+		t2 = System.nanoTime() - t2;
+		long errors = 0;
+		for(int i = 0; i < KEY_COUNT; ++i)
+		{
+			if(saved[i] != modified[i])
+				++errors;
+		}
+		long ops = (long)threadCount * MODIFY_COUNT;
+		System.out.printf("%-22s threads=%-3d modify=%6dms ops/s=%10d save=%6dms final=%5dms saved=%-8d errors=%d%n",
+				name, threadCount, t / 1_000_000, (long)(ops * 1e9 / t), saveTime.get() / 1_000_000, t2 / 1_000_000, saveCount.get(), errors);
+		return errors;
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int[] threadCounts = { 1, 4, 16 };
+		long errors = 0;
+		for(int round = 0; round < 2; ++round) // 第一轮用于预热
+		{
+			System.out.println("round " + round + ':');
+			for(int n : threadCounts)
+			{
+				errors += test("LongConcurrentHashMap", new LongConcurrentHashMap<>(), TestDirtyMap::saveByIterator, n);
+				errors += test("LongDirtyMap", new LongDirtyMap<>(), TestDirtyMap::saveByDrain, n);
+			}
+		}
+		System.out.println(errors == 0 ? "OK" : "FAILED: " + errors);
+	}
+}
@@ -0,0 +1,168 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.FastRWLock;
+import jane.core.StripedRWLock;
+
+/**
+ * 比较FastRWLock和StripedRWLock在多线程频繁加读锁时的性能,同时有一个写线程定期加写锁并检查互斥
+ */
+public final class TestRWLock
+{
+	private static final int  READ_COUNT	= 2_000_000; // 每个读线程的加锁次数
+	private static final long WRITE_SLEEP = 10;		  // 写线程每次加写锁的间隔(毫秒)
+
+	private interface RWLock
+	{
+		void readLock();
+
+		void readUnlock();
+
+		void writeLock();
+
+		void writeUnlock();
+	}
+
+	private static RWLock wrap(FastRWLock lock)
+	{
+		return new RWLock()
+		{
+			@Override
+			public void readLock()
+			{
+				lock.readLock();
+			}
+
+			@Override
+			public void readUnlock()
+			{
+				lock.readUnlock();
+			}
+
+			@Override
+			public void writeLock()
+			{
+				lock.writeLock();
+			}
+
+			@Override
+			public void writeUnlock()
+			{
+				lock.writeUnlock();
+			}
+		};
+	}
+
+	private static RWLock wrap(StripedRWLock lock)
+	{
+		return new RWLock()
+		{
+			@Override
+			public void readLock()
+			{
+				lock.readLock();
+			}
+
+			@Override
+			public void readUnlock()
+			{
+				lock.readUnlock();
+			}
+
+			@Override
+			public void writeLock()
+			{
+				lock.writeLock();
+			}
+
+			@Override
+			public void writeUnlock()
+			{
+				lock.writeUnlock();
+			}
+		};
+	}
+
+	private static long test(String name, RWLock lock, int threadCount) throws InterruptedException
+	{
+		AtomicBoolean writing = new AtomicBoolean();
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong errors = new AtomicLong();
+		AtomicLong writes = new AtomicLong();
+		CountDownLatch ready = new CountDownLatch(threadCount);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[threadCount];
+		for(int i = 0; i < threadCount; ++i)
+		{
+			threads[i] = new Thread(() ->
+			{
+				ready.countDown();
+				try
+				{
+					start.await();
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+				for(int j = 0; j < READ_COUNT; ++j)
+				{
+					lock.readLock();
+					if(writing.get()) errors.incrementAndGet();
+					lock.readUnlock();
+				}
+			});
+			threads[i].start();
+		}
+		Thread writer = new Thread(() ->
+		{
+			while(!stop.get())
+			{
+				lock.writeLock();
+				writing.set(true);
+				writes.incrementAndGet();
+				writing.set(false);
+				lock.writeUnlock();
+				try
+				{
+					Thread.sleep(WRITE_SLEEP);
+				}
+				catch(InterruptedException e)
+				{
+					return;
+				}
+			}
+		});
+		ready.await();
+		long t = System.nanoTime();
+		start.countDown();
+		writer.start();
+		for(Thread thread : threads)
+			thread.join();
+		t = System.nanoTime() - t;
+		stop.set(true);
+		writer.join();
+		long ops = (long)threadCount * READ_COUNT;
+		System.out.printf("%-14s threads=%-3d time=%6dms ops/s=%12d writes=%-4d errors=%d%n",
+				name, threadCount, t / 1_000_000, (long)(ops * 1e9 / t), writes.get(), errors.get());
+		return errors.get();
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int[] threadCounts = { 1, 8, 32 };
+		long errors = 0;
+		for(int round = 0; round < 2; ++round) // 第一轮用于预热
+		{
+			System.out.println("round " + round + ':');
+			for(int n : threadCounts)
+			{
+				errors += test("FastRWLock", wrap(new FastRWLock()), n);
+				errors += test("StripedRWLock", wrap(new StripedRWLock()), n);
+			}
+		}
+		System.out.println(errors == 0 ? "OK" : "FAILED: " + errors);
+	}
+}
@@ -0,0 +1,52 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import jane.core.DBManager;
+import jane.core.Procedure;
+import jane.core.StorageMemory;
+
+// JVM: -DdbVirtualThreadCount=1 (需要JDK21+)
+// RUN: java -DdbVirtualThreadCount=1 jane.test.TestVirtualThread 2000 100
+public final class TestVirtualThread
+{
+	public static void main(String[] args) throws Exception
+	{
+		final int procCount = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+		final int waitMs = (args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		DBManager dbMgr = DBManager.instance();
+		dbMgr.startup(StorageMemory.instance());
+
+		final CountDownLatch cd = new CountDownLatch(procCount);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		long t = System.currentTimeMillis();
+		for(int i = 0; i < procCount; ++i)
+		{
+			dbMgr.submit(new Procedure()
+			{
+				@Override
+				protected void onProcess() throws Exception
+				{
+					int n = running.incrementAndGet();
+					if(n > maxRunning.get()) maxRunning.set(n); // 统计值,不要求精确
+					try
+					{
+						Thread.sleep(waitMs); // 模拟等待远程应答
+					}
+					finally
+					{
+						running.decrementAndGet();
+						cd.countDown();
+					}
+				}
+			});
+		}
+		cd.await();
+		t = System.currentTimeMillis() - t;
+		System.out.println("procedures: " + procCount + ", wait: " + waitMs + "ms, time: " + t + "ms, max running: " + maxRunning.get() +
+				", threads: " + dbMgr.getProcThreads().getLargestPoolSize());
+		System.out.println(t < (long)waitMs * 10 ? "OK: waiting procedures run concurrently" : "SLOW: waiting procedures block the pool");
+		System.exit(0);
+	}
+}
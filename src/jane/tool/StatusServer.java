@@ -7,17 +7,23 @@ import java.util.ArrayList;
 import java.util.Map.Entry;
 import java.util.concurrent.ThreadPoolExecutor;
 import org.apache.mina.core.session.IoSession;
+import jane.core.Const;
 import jane.core.DBManager;
 import jane.core.DBSimpleManager;
 import jane.core.HttpCodec;
 import jane.core.NetManager;
 import jane.core.OctetsStream;
+import jane.core.OffHeapCache;
 import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.core.Procedure.LockStat;
 import jane.core.StorageLevelDB;
 import jane.core.TableBase;
 
 public class StatusServer extends NetManager
 {
+	private static final int TOP_LOCK_COUNT = 20; // 显示等待时间最多的锁数量
+
 	public StatusServer()
 	{
 		setCodec(HttpCodec.class);
@@ -27,7 +33,7 @@ public class StatusServer extends NetManager
 	{
 		ArrayList<Object> list = new ArrayList<>();
 
-		long v1 = 0, v2 = 0, v3 = 0, v4 = 0;
+		long v1 = 0, v2 = 0, v3 = 0, v4 = 0, v5 = 0, v6 = 0;
 		for(TableBase<?> table : TableBase.getTables())
 		{
 			ArrayList<Object> strs = new ArrayList<>();
@@ -44,7 +50,18 @@ public class StatusServer extends NetManager
 			v4 += rtc;
 			strs.add(rc);
 			strs.add(rtc);
-			strs.add(rc > 0 ? String.format("%.2f%%", (double)(rc - rtc) * 100 / rc) : "-.--%");
+			double ratio = table.getCacheHitRatio();
+			strs.add(ratio >= 0 ? String.format("%.2f%%", ratio * 100) : "-.--%");
+			strs.add(table.getCachePolicyName());
+			long evictNanos = table.getCacheEvictNanos();
+			int overshoot = table.getCacheMaxOvershoot();
+			if(evictNanos >= 0)
+			{
+				v5 += evictNanos;
+				if(overshoot > v6) v6 = overshoot;
+			}
+			strs.add(evictNanos >= 0 ? evictNanos / 1_000_000 : "-");
+			strs.add(overshoot >= 0 ? overshoot : "-");
 			list.add(strs);
 		}
 		if(DBSimpleManager.hasCreated())
@@ -65,6 +82,9 @@ public class StatusServer extends NetManager
 			strs.add(rc);
 			strs.add(rtc);
 			strs.add(rc > 0 ? String.format("%.2f%%", (double)(rc - rtc) * 100 / rc) : "-.--%");
+			strs.add("LRU");
+			strs.add("-");
+			strs.add("-");
 			list.add(strs);
 		}
 		ArrayList<Object> strs = new ArrayList<>();
@@ -74,6 +94,9 @@ public class StatusServer extends NetManager
 		strs.add(v3);
 		strs.add(v4);
 		strs.add(v3 > 0 ? String.format("%.2f%%", (double)(v3 - v4) * 100 / v3) : "-.--%");
+		strs.add("-");
+		strs.add(v5 / 1_000_000);
+		strs.add(v6);
 		list.add(strs);
 
 		Runtime runtime = Runtime.getRuntime();
@@ -92,10 +115,26 @@ public class StatusServer extends NetManager
 			ThreadPoolExecutor tpe = dbMgr.getProcThreads();
 			list.add(new SimpleEntry<String, Object>("jane.ProcSessionCount", dbMgr.getSessionCount()));
 			list.add(new SimpleEntry<String, Object>("jane.ProcWaitingCount", dbMgr.getProcQueuedCount()));
+			list.add(new SimpleEntry<String, Object>("jane.ProcSessionQueueMax", dbMgr.getSessionQueueMaxSize()));
 			list.add(new SimpleEntry<String, Object>("jane.ProcQueueCount", tpe.getQueue().size()));
 			list.add(new SimpleEntry<String, Object>("jane.ProcThreadCount", tpe.getActiveCount() + "/" + tpe.getPoolSize() + "/" + tpe.getLargestPoolSize()));
 			list.add(new SimpleEntry<String, Object>("jane.ProcCompletedCount", tpe.getCompletedTaskCount()));
+			list.add(new SimpleEntry<String, Object>("jane.ProcLane", dbMgr.getProcLane().toString()));
+			list.add(new SimpleEntry<String, Object>("jane.ProcBgLane", dbMgr.getBackgroundProcLane().toString()));
+			list.add(new SimpleEntry<String, Object>("jane.ProcBgDeferRejectCount", dbMgr.getBackgroundProcLane().getDeferCount() + "/" + dbMgr.getBackgroundRejectCount()));
+			list.add(new SimpleEntry<String, Object>("jane.CommitCount", dbMgr.getCommitCount()));
+			list.add(new SimpleEntry<String, Object>("jane.CommitPauseTime", dbMgr.getCommitPauseTime() + "/" + dbMgr.getCommitPauseMaxTime() + "/" + dbMgr.getCommitPauseTotalTime()));
 		}
+		OffHeapCache l2 = OffHeapCache.instance();
+		if(l2 != null)
+		{
+			list.add(new SimpleEntry<String, Object>("jane.L2CacheSize", formatter.format(l2.getUsedSize()) + "/" + formatter.format(l2.getCapacity())));
+			list.add(new SimpleEntry<String, Object>("jane.L2CacheCount", l2.getHitCount() + "/" + l2.getMissCount() + "/" + l2.getPutCount() + "/" + l2.getEvictCount()));
+		}
+		list.add(new SimpleEntry<String, Object>("jane.LockPoolSize", Procedure.getLockPoolSize() + "/" + Const.lockPoolMaxSize));
+		list.add(new SimpleEntry<String, Object>("jane.LockWaitCount", Procedure.getLockWaitCount() + "/" + Procedure.getLockCollideCount() + "/" + Procedure.getLockWaitNanos() / 1_000_000));
+		list.add(new SimpleEntry<String, Object>("jane.OptimisticConflictCount", Procedure.getOptimisticConflictCount()));
+		list.add(new SimpleEntry<String, Object>("jane.LockBatchCount", Procedure.getBatchCount() + "/" + Procedure.getBatchProcCount()));
 		list.add(new SimpleEntry<String, Object>("jane.ProcInterruptCount", ProcThread.getInterruptCount()));
 		list.add(new SimpleEntry<String, Object>("jane.AskWaitingCount", NetManager.getAskCount()));
 
@@ -106,7 +145,7 @@ public class StatusServer extends NetManager
 	public static void genStatus(StringBuilder sb)
 	{
 		ArrayList<Object> list = genStatusList();
-		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>Table</b><td><b>RCacheSize</b><td><b>WCacheSize</b><td><b>RCount</b><td><b>RCacheMissCount</b><td><b>RCacheRatio</b>\n");
+		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>Table</b><td><b>RCacheSize</b><td><b>WCacheSize</b><td><b>RCount</b><td><b>RCacheMissCount</b><td><b>RCacheRatio</b><td><b>RCachePolicy</b><td><b>RCacheEvictTime(ms)</b><td><b>RCacheMaxOvershoot</b>\n");
 		for(Object obj : list)
 		{
 			if(obj instanceof ArrayList)
@@ -134,6 +173,21 @@ public class StatusServer extends NetManager
 		sb.append("</table>\n");
 	}
 
+	public static void genLockInfo(StringBuilder sb)
+	{
+		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>LockIndex</b><td><b>WaitCount</b><td><b>CollideCount</b><td><b>WaitTime(ms)</b><td><b>Blocker</b><td><b>Holder</b>\n");
+		for(LockStat stat : Procedure.getTopLockStats(TOP_LOCK_COUNT))
+		{
+			sb.append("<tr><td bgcolor=silver>").append(stat.index);
+			sb.append("<td align=right>").append(stat.waitCount);
+			sb.append("<td align=right>").append(stat.collideCount);
+			sb.append("<td align=right>").append(stat.waitNanos / 1_000_000);
+			sb.append("<td>").append(stat.blocker);
+			sb.append("<td>").append(stat.holder).append('\n');
+		}
+		sb.append("</table>\n");
+	}
+
 	public static void genLevelDBInfo(StringBuilder sb)
 	{
 		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td><b>property</b><td><b>value</b>\n");
@@ -169,6 +223,8 @@ public class StatusServer extends NetManager
 			sb.append("<html><head><meta http-equiv=\"content-type\" content=\"text/html;charset=utf-8\"/><title>Jane Status</title></head><body>\n");
 			genStatus(sb);
 			sb.append("<p>\n");
+			genLockInfo(sb);
+			sb.append("<p>\n");
 			genLevelDBInfo(sb);
 			sb.append("</body></html>\n");
 			byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
@@ -271,7 +271,7 @@ public final class AllTables
 	 */
 	public static void register() { _dbm.startCommitThread(); }#<#
 #>#
-#(#	#(table.comment)public static final #(table.table)<#(table.key)#(table.comma)#(table.value), #(table.value).Safe> #(table.name) = _dbm.<#(table.key)#(table.comma)#(table.value), #(table.value).Safe>openTable(#(table.id), "#(table.name)", "#(table.lock)", #(table.cachesize)#(table.comma)#(table.keys), #(table.values));
+#(#	#(table.comment)public static final #(table.table)<#(table.key)#(table.comma)#(table.value), #(table.value).Safe> #(table.name) = _dbm.<#(table.key)#(table.comma)#(table.value), #(table.value).Safe>openTable(#(table.id), "#(table.name)", "#(table.lock)", #(table.cachesize)#(table.comma)#(table.keys), #(table.values)#(table.keyorder)#(table.cachepolicy));
 #)#
 	/**
 	 * 以下内部类可以单独使用,避免初始化前面的表对象
@@ -1243,6 +1243,23 @@ local function savebean(beanname, safe)
 	end
 end
 
+local ordered_type = { byte = "Byte", char = "Char", short = "Short", int = "Int", long = "Long", boolean = "Boolean",
+						float = "Float", double = "Double", String = "String", Octets = "Octets" }
+local function gen_ordered(bean) -- 生成有序key的序列化和反序列化方法
+	local marshal, unmarshal = {}, {}
+	for _, var in ipairs(bean) do
+		if var.id > 0 then
+			local t = ordered_type[var.type]
+			if not t then error("ERROR: unsupported type for keyorder: " .. var.type .. " (bean.name: " .. bean.name .. ", var.name: " .. var.name .. ")") end
+			marshal[#marshal + 1] = string.format("\t\tif(_n_ < %d) return _s_;\n\t\t_s_.marshalOrdered(this.%s);\n", #marshal + 1, var.name)
+			unmarshal[#unmarshal + 1] = string.format("\t\tthis.%s = _s_.unmarshalOrdered%s();\n", var.name, t)
+		end
+	end
+	return "\n\t@Override\n\tpublic OctetsStream marshalOrdered(OctetsStream _s_, int _n_)\n\t{\n" .. concat(marshal) ..
+		"\t\treturn _s_;\n\t}\n\n\t@Override\n\tpublic OctetsStream unmarshalOrdered(OctetsStream _s_) throws MarshalException\n\t{\n" ..
+		concat(unmarshal) .. "\t\treturn _s_;\n\t}\n"
+end
+
 local key_conv = { int = "Integer", integer = "Integer", Integer = "Integer", long = "Long", Long = "Long", float = "Float", Float = "Float", double = "Double", Double = "Double",
 					string = "String", String = "String", binary = "Octets", bytes = "Octets", data = "Octets", octets = "Octets", Octets = "Octets" }
 local need_save_dbt = {}
@@ -1278,7 +1295,19 @@ function dbt(table)
 		table.comma = ", "
 		tables.imports["jane.core.Table"] = true
 		need_save_dbt[table.key] = true
+		if table.keyorder and not table.memory then
+			local keybean = name_bean[table.key]
+			if not keybean then error("ERROR: unknown key bean for keyorder: " .. table.key .. " (dbt.name: " .. table.name .. ")") end
+			keybean.keyorder = true
+			table.keyorder = ", true"
+		end
 	end
+	if table.keyorder ~= ", true" then table.keyorder = "" end
+	if table.cache == "tinylfu" then
+		table.cachepolicy = (table.table == "Table" and table.keyorder == "" and ", false" or "") .. ", TableBase.CACHE_TINYLFU"
+		tables.imports["jane.core.TableBase"] = true
+	elseif not table.cache or table.cache == "lru" then table.cachepolicy = ""
+	else error("ERROR: unknown dbt.cache: " .. table.cache .. " (dbt.name: " .. table.name .. ")") end
 	table.values = table.memory and "null" or "#(table.value).BEAN_STUB"
 	table.lock = table.lock or ""
 	if table.comment and #table.comment > 0 then table.comment = "/**\n\t * " .. table.comment:gsub("\n", "<br>\n\t * ") .. "\n\t */\n\t" end
@@ -1377,6 +1406,10 @@ for beanname, safe in spairs(need_save) do
 				   :gsub("import java%.lang%.reflect%.Field;\n", "")
 				   :gsub("import jane%.core%.S.-\n", "")
 	end
+	if name_bean[beanname].keyorder then
+		local p = code:find("\n\t@Override\n\tpublic " .. beanname .. " clone()", 1, true)
+		code = code:sub(1, p - 1) .. gen_ordered(name_bean[beanname]) .. code:sub(p)
+	end
 	if not code:find("Util.", 1, true) then code = code:gsub("import jane%.core%.Util;\n", "") end
 	checksave(outpath .. namespace_path .. "/" .. beanname .. ".java", code:gsub("\r", ""), 0)
 end